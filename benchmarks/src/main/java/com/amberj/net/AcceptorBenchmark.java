@@ -0,0 +1,144 @@
+package com.amberj.net;
+
+import com.amberj.net.httpserver.Server;
+import com.amberj.net.transport.Transport;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How the nio engine scales with the number of selector threads. <code>connect</code> opens
+ * a connection per request, which measures the connection rate, <code>keepAlive</code> sends
+ * every request on the connection of the benchmark thread, which measures the throughput.
+ * Needs many client threads to show anything, e.g. <code>-t 32</code>, and a machine with
+ * the cores to serve them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AcceptorBenchmark {
+    private static final byte[] CLOSE = request("Connection: close\r\n");
+    private static final byte[] KEEP_ALIVE = request("");
+
+    @Param({"1", "2", "4", "8"})
+    int acceptors;
+
+    @Param({"true", "false"})
+    boolean reusePort;
+
+    private Server<Object> server;
+    int port;
+
+    private static byte[] request(String headers) {
+        return ("GET /plaintext HTTP/1.1\r\nHost: localhost\r\n" + headers + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Setup
+    public void start() throws IOException {
+        try (var socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        server = new Server<>(port, 4096);
+        server.transport(Transport.nio().acceptors(acceptors).reusePort(reusePort));
+        server.accessLog(null);
+        server.get("/plaintext", (request, response) -> response.write("Hello, World!"));
+        server.run(() -> {});
+    }
+
+    @TearDown
+    public void stop() {
+        server.stop(0);
+    }
+
+    @State(Scope.Thread)
+    public static class Connection {
+        private Socket socket;
+        private OutputStream out;
+        private InputStream in;
+        private final byte[] body = new byte[1024];
+
+        @Setup
+        public void connect(AcceptorBenchmark benchmark) throws IOException {
+            socket = new Socket(InetAddress.getLoopbackAddress(), benchmark.port);
+            socket.setTcpNoDelay(true);
+            out = socket.getOutputStream();
+            in = new BufferedInputStream(socket.getInputStream());
+        }
+
+        @TearDown
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    @Benchmark
+    public int connect() throws IOException {
+        try (var socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setTcpNoDelay(true);
+            // closing right after the response would leave the port in TIME_WAIT on this side
+            socket.setSoLinger(true, 0);
+            socket.getOutputStream().write(CLOSE);
+            return exchange(new BufferedInputStream(socket.getInputStream()), new byte[1024]);
+        }
+    }
+
+    @Benchmark
+    public int keepAlive(Connection connection) throws IOException {
+        connection.out.write(KEEP_ALIVE);
+        connection.out.flush();
+        return exchange(connection.in, connection.body);
+    }
+
+    /**
+     * Reads one response by its <code>Content-Length</code>.
+     */
+    private static int exchange(InputStream in, byte[] body) throws IOException {
+        long length = -1;
+        var line = new StringBuilder();
+        while (true) {
+            readLine(in, line);
+            if (line.isEmpty()) {
+                break;
+            }
+            if (line.length() > 15 && line.substring(0, 15).equalsIgnoreCase("content-length:")) {
+                length = Long.parseLong(line.substring(15).trim());
+            }
+        }
+        if (length < 0) {
+            throw new IOException("Expected a response with a Content-Length");
+        }
+        int read = 0;
+        while (read < length) {
+            int n = in.read(body, 0, (int) Math.min(body.length, length - read));
+            if (n == -1) {
+                throw new IOException("Connection closed");
+            }
+            read += n;
+        }
+        return read;
+    }
+
+    private static void readLine(InputStream in, StringBuilder line) throws IOException {
+        line.setLength(0);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                throw new IOException("Connection closed");
+            }
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.amberj.net;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks like <code>org.openjdk.jmh.Main</code>, with the GC profiler always
+ * on so every result comes with its allocation rate (<code>gc.alloc.rate.norm</code> is
+ * bytes allocated per operation).
+ * <p>
+ * <code>java -jar benchmarks/target/benchmarks.jar Router</code> runs the benchmarks
+ * whose name contains <code>Router</code>, all JMH options are accepted.
+ */
+public final class Benchmarks {
+    private Benchmarks() {}
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        var options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
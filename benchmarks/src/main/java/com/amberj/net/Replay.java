@@ -0,0 +1,198 @@
+package com.amberj.net;
+
+import com.amberj.net.httpserver.TrafficCapture;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends the requests of a {@link TrafficCapture} log to a running server at the pace they
+ * were recorded, or faster, and prints latency percentiles next to those of the recording:
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar com.amberj.net.Replay traffic.bin http://localhost:8000 [speed]
+ * </pre>
+ * A speed of <code>2</code> sends the requests twice as fast as they arrived. Every request
+ * is sent at its time whether or not earlier ones were answered, and its latency counts
+ * from that time, so a server that falls behind shows it instead of slowing the replay down.
+ * WebSocket and event stream requests are skipped, and so are requests whose body was not
+ * recorded completely and the headers the HTTP client sets itself. Before the replay the client sends some of the <code>GET</code> requests
+ * without measuring them, so its own startup does not show up as latency of the server.
+ */
+public final class Replay {
+    private static final Set<String> CLIENT_HEADERS = Set.of("connection", "content-length", "expect", "host",
+            "transfer-encoding", "upgrade", "keep-alive", "te", "trailer", "http2-settings");
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9, 100};
+    private static final int CLIENT_WARMUP = 200;
+
+    private Replay() {}
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 2) {
+            System.err.println("Usage: Replay <capture file> <base URL, e.g. http://localhost:8000> [speed, 1 by default]");
+            System.exit(2);
+        }
+        List<TrafficCapture.Record> captured = TrafficCapture.read(Path.of(args[0]));
+        List<TrafficCapture.Record> records = captured.stream()
+                .filter(Replay::replayable)
+                .sorted(Comparator.comparingLong(TrafficCapture.Record::timeMicros))
+                .toList();
+        if (records.size() < captured.size()) {
+            System.out.println("Skipping " + (captured.size() - records.size())
+                    + " WebSocket, event stream and incompletely recorded requests");
+        }
+        URI base = URI.create(args[1]);
+        double speed = args.length > 2 ? Double.parseDouble(args[2]) : 1;
+        if (records.isEmpty()) {
+            System.out.println("No requests to replay in " + args[0]);
+            return;
+        }
+
+        long[] latencies = new long[records.size()];
+        var statuses = new AtomicLongArray(6);
+        var failed = new AtomicLong();
+        var responses = new ArrayList<CompletableFuture<?>>(records.size());
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            HttpClient client = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_1_1)
+                    .connectTimeout(Duration.ofSeconds(5))
+                    .executor(executor)
+                    .build();
+            warmUp(client, base, records);
+            long firstMicros = records.get(0).timeMicros();
+            long start = System.nanoTime();
+            for (int i = 0; i < records.size(); i++) {
+                TrafficCapture.Record record = records.get(i);
+                long due = start + (long) ((record.timeMicros() - firstMicros) * 1000 / speed);
+                for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+                    LockSupport.parkNanos(wait);
+                }
+                int index = i;
+                responses.add(client.sendAsync(request(base, record), HttpResponse.BodyHandlers.discarding())
+                        .whenComplete((response, failure) -> {
+                            latencies[index] = System.nanoTime() - due;
+                            if (failure != null) {
+                                failed.incrementAndGet();
+                            } else {
+                                statuses.incrementAndGet(Math.min(response.statusCode() / 100, 5));
+                            }
+                        }));
+            }
+            try {
+                CompletableFuture.allOf(responses.toArray(CompletableFuture[]::new)).get(1, TimeUnit.MINUTES);
+            } catch (Exception e) {
+                // failed requests are counted, unanswered ones are reported as such
+            }
+            long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            report(records, latencies, statuses, failed.get(), responses, millis, speed);
+        }
+    }
+
+    private static void warmUp(HttpClient client, URI base, List<TrafficCapture.Record> records) {
+        List<TrafficCapture.Record> gets = records.stream()
+                .filter(record -> record.method().equals("GET"))
+                .limit(CLIENT_WARMUP / 10)
+                .toList();
+        for (int i = 0; i < CLIENT_WARMUP && !gets.isEmpty(); i++) {
+            try {
+                client.send(request(base, gets.get(i % gets.size())), HttpResponse.BodyHandlers.discarding());
+            } catch (IOException e) {
+                // counted in the replay
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static boolean replayable(TrafficCapture.Record record) {
+        if (record.bodyTruncated()) {
+            return false;
+        }
+        for (Map.Entry<String, List<String>> header : record.headers().entrySet()) {
+            String name = header.getKey().toLowerCase(Locale.ROOT);
+            if (name.equals("upgrade") && header.getValue().stream().anyMatch(value -> value.equalsIgnoreCase("websocket"))
+                    || name.equals("accept") && header.getValue().stream().anyMatch(value -> value.contains("text/event-stream"))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static HttpRequest request(URI base, TrafficCapture.Record record) {
+        var request = HttpRequest.newBuilder(base.resolve(record.target()))
+                .timeout(Duration.ofSeconds(30))
+                .method(record.method(), record.body().length == 0
+                        ? HttpRequest.BodyPublishers.noBody()
+                        : HttpRequest.BodyPublishers.ofByteArray(record.body()));
+        for (Map.Entry<String, List<String>> header : record.headers().entrySet()) {
+            if (CLIENT_HEADERS.contains(header.getKey().toLowerCase(Locale.ROOT))) {
+                continue;
+            }
+            for (String value : header.getValue()) {
+                try {
+                    request.header(header.getKey(), value);
+                } catch (IllegalArgumentException e) {
+                    // a header the client refuses to send
+                }
+            }
+        }
+        return request.build();
+    }
+
+    private static void report(List<TrafficCapture.Record> records, long[] latencies, AtomicLongArray statuses,
+                               long failed, List<CompletableFuture<?>> responses, long millis, double speed) {
+        long answered = responses.stream().filter(CompletableFuture::isDone).count();
+        long[] replayed = new long[(int) answered];
+        long[] recorded = new long[records.size()];
+        int n = 0;
+        for (int i = 0; i < records.size(); i++) {
+            recorded[i] = records.get(i).durationMicros() * 1000L;
+            if (responses.get(i).isDone()) {
+                replayed[n++] = latencies[i];
+            }
+        }
+        Arrays.sort(replayed);
+        Arrays.sort(recorded);
+        System.out.printf(Locale.ROOT, "Replayed %d requests at %.1fx in %.1f s (%.0f requests/s), %d failed, %d unanswered%n",
+                records.size(), speed, millis / 1000.0, records.size() * 1000.0 / millis, failed,
+                records.size() - answered);
+        System.out.printf(Locale.ROOT, "Status 1xx %d, 2xx %d, 3xx %d, 4xx %d, 5xx %d%n",
+                statuses.get(1), statuses.get(2), statuses.get(3), statuses.get(4), statuses.get(5));
+        System.out.printf(Locale.ROOT, "%-10s %12s %12s%n", "latency", "replay ms", "recorded ms");
+        for (double percentile : PERCENTILES) {
+            System.out.printf(Locale.ROOT, "%-10s %12.3f %12.3f%n", percentile == 100 ? "max" : "p" + format(percentile),
+                    percentile(replayed, percentile) / 1e6, percentile(recorded, percentile) / 1e6);
+        }
+    }
+
+    private static String format(double percentile) {
+        return percentile == Math.rint(percentile) ? Long.toString((long) percentile) : Double.toString(percentile);
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return Double.NaN;
+        }
+        int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+}
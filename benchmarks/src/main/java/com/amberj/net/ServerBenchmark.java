@@ -0,0 +1,138 @@
+package com.amberj.net;
+
+import com.amberj.net.httpserver.Server;
+import com.amberj.net.template.Data;
+import com.amberj.net.transport.Transport;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Requests over loopback against a running {@link Server}, one keep-alive connection per
+ * benchmark thread. The client is a plain socket writing a fixed request and reading the
+ * response by its <code>Content-Length</code>, so most of the time is spent in the server.
+ * Run with <code>-t 8</code> or more to measure it under concurrency.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ServerBenchmark {
+
+    @Param({"jdk", "nio"})
+    String transport;
+
+    private Server<Object> server;
+    int port;
+
+    @Setup
+    public void start() throws IOException {
+        try (var socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        server = new Server<>(port);
+        server.transport(transport.equals("nio") ? Transport.nio() : Transport.jdk());
+        server.accessLog(null);
+        server.get("/plaintext", (request, response) -> response.write("Hello, World!"));
+        server.get("/users/{id}", (request, response) -> response.json(new Data()
+                .with("id", request.pathParams().get("id"))
+                .with("name", "Jane Doe")
+                .with("email", "jane@example.com")));
+        server.run(() -> {});
+    }
+
+    @TearDown
+    public void stop() {
+        server.stop(0);
+    }
+
+    @State(Scope.Thread)
+    public static class Connection {
+        private Socket socket;
+        private OutputStream out;
+        private InputStream in;
+        private byte[] plaintext;
+        private byte[] json;
+        private final byte[] body = new byte[64 * 1024];
+
+        @Setup
+        public void connect(ServerBenchmark benchmark) throws IOException {
+            socket = new Socket(InetAddress.getLoopbackAddress(), benchmark.port);
+            socket.setTcpNoDelay(true);
+            out = socket.getOutputStream();
+            in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+            plaintext = request("/plaintext");
+            json = request("/users/42");
+        }
+
+        @TearDown
+        public void close() throws IOException {
+            socket.close();
+        }
+
+        private static byte[] request(String path) {
+            return ("GET " + path + " HTTP/1.1\r\nHost: localhost\r\nAccept: */*\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        }
+
+        int send(byte[] request) throws IOException {
+            out.write(request);
+            out.flush();
+            long length = -1;
+            var line = new StringBuilder();
+            while (true) {
+                readLine(line);
+                if (line.isEmpty()) {
+                    break;
+                }
+                if (line.length() > 15 && line.substring(0, 15).equalsIgnoreCase("content-length:")) {
+                    length = Long.parseLong(line.substring(15).trim());
+                }
+            }
+            if (length < 0) {
+                throw new IOException("Expected a response with a Content-Length");
+            }
+            int read = 0;
+            while (read < length) {
+                int n = in.read(body, 0, (int) Math.min(body.length, length - read));
+                if (n == -1) {
+                    throw new IOException("Connection closed");
+                }
+                read += n;
+            }
+            return read;
+        }
+
+        private void readLine(StringBuilder line) throws IOException {
+            line.setLength(0);
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b == -1) {
+                    throw new IOException("Connection closed");
+                }
+                if (b != '\r') {
+                    line.append((char) b);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public int plaintext(Connection connection) throws IOException {
+        return connection.send(connection.plaintext);
+    }
+
+    @Benchmark
+    public int json(Connection connection) throws IOException {
+        return connection.send(connection.json);
+    }
+}
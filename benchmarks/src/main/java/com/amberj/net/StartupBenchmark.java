@@ -0,0 +1,137 @@
+package com.amberj.net;
+
+import com.amberj.net.httpserver.Server;
+import com.amberj.net.template.Data;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time from launching a JVM with a small {@link App} to its first successful response, with
+ * and without an AppCDS archive. The archive is written once per trial by a training run of
+ * the same app (<code>-Damberj.training=true</code>). Each invocation starts a new JVM, so
+ * the GC profiler numbers are those of the benchmark process, not of the server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 10)
+@Fork(1)
+public class StartupBenchmark {
+
+    @Param({"false", "true"})
+    boolean archive;
+
+    private String java;
+    private String classPath;
+    private Path archiveFile;
+    private Process server;
+
+    @Setup(Level.Trial)
+    public void train() throws IOException, InterruptedException {
+        java = ProcessHandle.current().info().command().orElse("java");
+        classPath = System.getProperty("java.class.path");
+        if (!archive) {
+            return;
+        }
+        archiveFile = Files.createTempFile("amberj-startup", ".jsa");
+        Files.delete(archiveFile);
+        Process training = new ProcessBuilder(java, "-XX:ArchiveClassesAtExit=" + archiveFile, "-Damberj.training=true",
+                "-cp", classPath, App.class.getName(), Integer.toString(freePort()))
+                .inheritIO()
+                .start();
+        if (training.waitFor() != 0 || !Files.exists(archiveFile)) {
+            throw new IllegalStateException("The training run did not write " + archiveFile);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteArchive() throws IOException {
+        if (archiveFile != null) {
+            Files.deleteIfExists(archiveFile);
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void stopServer() throws InterruptedException {
+        if (server != null) {
+            server.destroy();
+            server.waitFor();
+            server = null;
+        }
+    }
+
+    @Benchmark
+    public int firstResponse() throws IOException, InterruptedException {
+        int port = freePort();
+        var command = new ArrayList<>(List.of(java));
+        if (archive) {
+            command.add("-XX:SharedArchiveFile=" + archiveFile);
+        }
+        command.addAll(List.of("-cp", classPath, App.class.getName(), Integer.toString(port)));
+        server = new ProcessBuilder(command).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+        while (true) {
+            try {
+                int status = get(port, "/users/1");
+                if (status == 200) {
+                    return status;
+                }
+            } catch (IOException e) {
+                // not listening yet
+            }
+            if (!server.isAlive()) {
+                throw new IllegalStateException("The server exited with " + server.exitValue());
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (var socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static int get(int port, String path) throws IOException {
+        try (var socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.getOutputStream().write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            InputStream in = socket.getInputStream();
+            byte[] head = in.readNBytes(12);
+            in.transferTo(OutputStream.nullOutputStream());
+            return head.length < 12 ? -1 : Integer.parseInt(new String(head, 9, 3, StandardCharsets.US_ASCII));
+        }
+    }
+
+    /**
+     * The server that is started: plain text, JSON and a template.
+     */
+    public static final class App {
+        public static void main(String[] args) throws IOException {
+            var server = new Server<>(Integer.parseInt(args[0]));
+            server.accessLog(null);
+            server.get("/plaintext", (request, response) -> response.write("Hello, World!"));
+            server.get("/users/{id}", (request, response) -> response.json(new Data()
+                    .with("id", request.pathParams().get("id"))
+                    .with("name", "Jane Doe")
+                    .with("email", "jane@example.com")));
+            server.get("/page", (request, response) -> response.render("benchmark", new Data()
+                    .with("title", "Startup")
+                    .with("rows", List.of(Map.of("id", 1, "name", "Jane", "email", "jane@example.com", "active", true)))));
+            server.run(() -> {});
+        }
+    }
+}
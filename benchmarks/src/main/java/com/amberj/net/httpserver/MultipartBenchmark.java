@@ -0,0 +1,62 @@
+package com.amberj.net.httpserver;
+
+import com.sun.net.httpserver.Headers;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing a <code>multipart/form-data</code> body with three text fields and one file of
+ * 1 KB, 64 KB or 1 MB. The file part is written to a temp file, so the larger sizes include
+ * the cost of the disk write.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MultipartBenchmark {
+    private static final String BOUNDARY = "----WebKitFormBoundary7MA4YWxkTrZu0gW";
+
+    @Param({"1024", "65536", "1048576"})
+    int fileSize;
+
+    private byte[] body;
+    private Headers headers;
+    private MultipartFormDataParser.Limits limits;
+
+    @Setup
+    public void setUp() throws IOException {
+        byte[] file = new byte[fileSize];
+        new Random(42).nextBytes(file);
+        var out = new ByteArrayOutputStream(fileSize + 1024);
+        for (String[] field : new String[][]{{"title", "Quarterly report"}, {"author", "Jane Doe"}, {"tags", "finance,q3,draft"}}) {
+            out.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"" + field[0] + "\"\r\n\r\n" + field[1] + "\r\n")
+                    .getBytes(StandardCharsets.UTF_8));
+        }
+        out.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"report.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        out.write(file);
+        out.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8));
+        body = out.toByteArray();
+
+        headers = new Headers();
+        headers.set("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
+        limits = MultipartFormDataParser.Limits.defaults();
+    }
+
+    @Benchmark
+    public Map<String, Object> parse() throws IOException {
+        Map<String, Object> form = MultipartFormDataParser.parseMultipartForm(new BenchmarkExchange("POST", "/upload", headers, body), limits);
+        Files.deleteIfExists(((File) form.get("file")).toPath());
+        return form;
+    }
+}
@@ -0,0 +1,54 @@
+package com.amberj.net.httpserver;
+
+import com.amberj.net.http.HttpRequest;
+import com.sun.net.httpserver.Headers;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Query string, cookie and form body parsing as a handler triggers it through {@link HttpRequest}.
+ * Header parsing happens in the transport, see <code>HeadParsingBenchmark</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestParsingBenchmark {
+    private static final String QUERY = "q=java%20http%20server&page=3&size=50&sort=name&sort=-created&filter=active&lang=en";
+    private static final List<String> COOKIES = List.of(
+            "session=4f2a9c1e7b8d4e0f9a6b3c2d1e0f9a8b; theme=dark; lang=en-US; _ga=GA1.2.123456789.1700000000; consent=true");
+    private static final byte[] FORM = "username=jane.doe&email=jane%40example.com&password=s3cr3t%21&remember=on"
+            .getBytes(StandardCharsets.US_ASCII);
+
+    private HttpRequest.Parser parser;
+    private Headers formHeaders;
+
+    @Setup
+    public void setUp() {
+        parser = HttpRequestUtil.parser(MultipartFormDataParser.Limits.defaults());
+        formHeaders = new Headers();
+        formHeaders.set("Content-Type", "application/x-www-form-urlencoded");
+    }
+
+    @Benchmark
+    public Map<String, List<String>> queryParams() {
+        return parser.queryParams(QUERY);
+    }
+
+    @Benchmark
+    public Map<String, String> cookies() {
+        return parser.cookies(COOKIES);
+    }
+
+    @Benchmark
+    public Map<String, Object> formBody() throws IOException {
+        return parser.body(new BenchmarkExchange("POST", "/login", formHeaders, FORM));
+    }
+}
@@ -0,0 +1,58 @@
+package com.amberj.net.httpserver;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Route lookup in a table of 10, 100 and 1000 routes, half of them with a
+ * <code>{param}</code> segment.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouterBenchmark {
+
+    @Param({"10", "100", "1000"})
+    int routes;
+
+    private Router router;
+    private String staticPath;
+    private String paramPath;
+    private String missingPath;
+
+    @Setup
+    public void setUp() {
+        var builder = Router.builder();
+        for (int i = 0; i < routes; i++) {
+            if (i % 2 == 0) {
+                builder.add(Router.GET, "/api/v1/resource" + i + "/list", (request, response) -> {});
+            } else {
+                builder.add(Router.GET, "/api/v1/resource" + i + "/{id}/details", (request, response) -> {});
+            }
+        }
+        router = builder.build();
+        int last = routes - 1;
+        staticPath = "/api/v1/resource" + (last - last % 2) + "/list";
+        paramPath = "/api/v1/resource" + (last - (last + 1) % 2) + "/42/details";
+        missingPath = "/api/v2/unknown/path";
+    }
+
+    @Benchmark
+    public Router.Match matchStatic() {
+        return router.match(Router.GET, staticPath);
+    }
+
+    @Benchmark
+    public Router.Match matchParam() {
+        return router.match(Router.GET, paramPath);
+    }
+
+    @Benchmark
+    public Router.Match matchMissing() {
+        return router.match(Router.GET, missingPath);
+    }
+}
@@ -0,0 +1,71 @@
+package com.amberj.net.json;
+
+import com.dslplatform.json.CompiledJson;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding a request body and encoding a response with the shared {@link Json} instance,
+ * for a record with converters generated at compile time and for an untyped map.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonBenchmark {
+
+    @CompiledJson
+    public record User(long id, String username, String email, boolean active, List<String> roles) {}
+
+    private static final byte[] USER = """
+            {"id":42,"username":"jane.doe","email":"jane@example.com","active":true,"roles":["admin","editor","viewer"]}"""
+            .getBytes(StandardCharsets.UTF_8);
+
+    private User user;
+    private List<User> users;
+    private ByteArrayOutputStream out;
+
+    @Setup
+    public void setUp() {
+        user = new User(42, "jane.doe", "jane@example.com", true, List.of("admin", "editor", "viewer"));
+        users = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            users.add(new User(i, "user" + i, "user" + i + "@example.com", i % 3 != 0, List.of("viewer")));
+        }
+        out = new ByteArrayOutputStream(64 * 1024);
+    }
+
+    @Benchmark
+    public User decodeRecord() throws IOException {
+        return Json.read(new ByteArrayInputStream(USER), User.class);
+    }
+
+    @Benchmark
+    public Map<?, ?> decodeMap() throws IOException {
+        return Json.read(new ByteArrayInputStream(USER), Map.class);
+    }
+
+    @Benchmark
+    public int encodeRecord() throws IOException {
+        out.reset();
+        Json.write(out, user);
+        return out.size();
+    }
+
+    @Benchmark
+    public int encodeArray() throws IOException {
+        out.reset();
+        Json.writeArray(out, users.iterator());
+        return out.size();
+    }
+}
@@ -0,0 +1,56 @@
+package com.amberj.net.template;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering a compiled template with a loop over 50 rows, into a discarding writer and
+ * into a <code>String</code> the way {@link TemplateEngine#parse} does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TemplateBenchmark {
+    private static final String TEMPLATE = "templates/benchmark.html";
+
+    private TemplateEngine engine;
+    private Map<String, Object> context;
+
+    public record Row(int id, String name, String email, boolean active) {}
+
+    @Setup
+    public void setUp() throws IOException {
+        engine = new TemplateEngine();
+        List<Row> rows = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            rows.add(new Row(i, "User " + i, "user" + i + "@example.com", i % 3 != 0));
+        }
+        context = new Data()
+                .with("title", "Users")
+                .with("rows", rows)
+                .getContext();
+        engine.render(TEMPLATE, context, Writer.nullWriter());
+    }
+
+    @Benchmark
+    public void renderToWriter() throws IOException {
+        engine.render(TEMPLATE, context, Writer.nullWriter());
+    }
+
+    @Benchmark
+    public String renderToString() throws IOException {
+        var writer = new StringWriter(8192);
+        engine.render(TEMPLATE, context, writer);
+        return writer.toString();
+    }
+}
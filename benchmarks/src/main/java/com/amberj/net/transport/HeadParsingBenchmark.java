@@ -0,0 +1,66 @@
+package com.amberj.net.transport;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing a request line and headers of a typical browser request from the connection buffer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeadParsingBenchmark {
+    private static final String HEAD = """
+            GET /api/v1/users/42?fields=name,email&expand=roles HTTP/1.1\r
+            Host: localhost:8000\r
+            User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0 Safari/537.36\r
+            Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,*/*;q=0.8\r
+            Accept-Language: en-US,en;q=0.9\r
+            Accept-Encoding: gzip, deflate, br\r
+            Connection: keep-alive\r
+            Cookie: session=4f2a9c1e7b8d4e0f9a6b3c2d1e0f9a8b; theme=dark; lang=en-US\r
+            Cache-Control: max-age=0\r
+            \r
+            """;
+
+    private ServerSocketChannel server;
+    private SocketChannel client;
+    private SocketChannel accepted;
+    private NioConnection connection;
+    private ByteBuffer buffer;
+
+    @Setup
+    public void setUp() throws IOException {
+        // a connection only needs a connected channel to be created, nothing is sent over it
+        server = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        client = SocketChannel.open(server.getLocalAddress());
+        accepted = server.accept();
+        connection = new NioConnection(null, accepted, null);
+        byte[] head = HEAD.getBytes(StandardCharsets.US_ASCII);
+        buffer = ByteBuffer.allocateDirect(head.length).put(head).flip();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        accepted.close();
+        client.close();
+        server.close();
+    }
+
+    @Benchmark
+    public NioExchange parseHead() throws HttpParseException {
+        buffer.position(0);
+        return Http1Parser.parse(connection, buffer);
+    }
+}
@@ -0,0 +1,115 @@
+package com.amberj.net.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Deflates a response body on the fly, in the gzip format or in the zlib format that
+ * HTTP calls <code>deflate</code>. The gzip header and trailer are written here so the
+ * raw deflater can come from the {@link Compression} pool. <code>flush()</code> does a
+ * sync flush, so streamed bodies reach the client without waiting for the end.
+ */
+final class CompressingOutputStream extends OutputStream {
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final Compression compression;
+    private final OutputStream out;
+    private final boolean gzip;
+    private final Deflater deflater;
+    private final CRC32 crc;
+    private final byte[] buffer;
+    private long size;
+    private boolean started;
+    private boolean closed;
+
+    CompressingOutputStream(Compression compression, OutputStream out, boolean gzip, Deflater deflater) {
+        this.compression = compression;
+        this.out = out;
+        this.gzip = gzip;
+        this.deflater = deflater;
+        this.crc = gzip ? new CRC32() : null;
+        this.buffer = new byte[8 * 1024];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream is closed");
+        }
+        if (len == 0) {
+            return;
+        }
+        start();
+        if (gzip) {
+            crc.update(b, off, len);
+        }
+        size += len;
+        deflater.setInput(b, off, len);
+        while (!deflater.needsInput()) {
+            deflate(Deflater.NO_FLUSH);
+        }
+    }
+
+    private void start() throws IOException {
+        if (!started) {
+            started = true;
+            if (gzip) {
+                out.write(GZIP_HEADER);
+            }
+        }
+    }
+
+    private int deflate(int flush) throws IOException {
+        int n = deflater.deflate(buffer, 0, buffer.length, flush);
+        if (n > 0) {
+            out.write(buffer, 0, n);
+        }
+        return n;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (closed) {
+            return;
+        }
+        if (started) {
+            while (deflate(Deflater.SYNC_FLUSH) == buffer.length) {
+                // the buffer was full, more output may be pending
+            }
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            start();
+            deflater.finish();
+            while (!deflater.finished()) {
+                deflate(Deflater.NO_FLUSH);
+            }
+            if (gzip) {
+                writeIntLE((int) crc.getValue());
+                writeIntLE((int) size);
+            }
+        } finally {
+            compression.release(deflater, gzip);
+            out.close();
+        }
+    }
+
+    private void writeIntLE(int value) throws IOException {
+        out.write(new byte[]{(byte) value, (byte) (value >> 8), (byte) (value >> 16), (byte) (value >> 24)});
+    }
+}
@@ -0,0 +1,165 @@
+package com.amberj.net.http;
+
+import com.amberj.net.httpserver.Next;
+import com.amberj.net.httpserver.TriConsumer;
+import com.sun.net.httpserver.Headers;
+
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * Middleware that compresses response bodies with gzip or deflate, whichever the client
+ * prefers in <code>Accept-Encoding</code>.
+ * <p>
+ * The decision is made when the response is committed: bodies with a known length below
+ * {@link #minSize(int)}, content types that are already compressed (images, video, archives)
+ * and responses that set their own <code>Content-Encoding</code> are sent as they are.
+ * Everything else is deflated while it is written and sent chunked, so the body is never
+ * held in memory a second time. Deflaters are pooled because their native state is
+ * expensive to set up for every response.
+ * <pre>
+ * server.use(new Compression().minSize(1024));
+ * </pre>
+ */
+public final class Compression implements TriConsumer<HttpRequest, HttpResponse, Next> {
+    private static final int MAX_POOLED = 64;
+
+    private int minSize = 1024;
+    private int level = Deflater.DEFAULT_COMPRESSION;
+    private final Queue<Deflater> gzipDeflaters = new ConcurrentLinkedQueue<>();
+    private final Queue<Deflater> zlibDeflaters = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    /**
+     * Smallest body that is compressed, 1024 bytes by default. Streamed bodies whose length
+     * is not known up front are always compressed.
+     */
+    public Compression minSize(int bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("minSize must not be negative");
+        }
+        this.minSize = bytes;
+        return this;
+    }
+
+    /**
+     * Deflate level from 1 (fastest) to 9 (smallest), zlib's default of 6 if not set.
+     */
+    public Compression level(int level) {
+        if (level < 1 || level > 9) {
+            throw new IllegalArgumentException("level must be between 1 and 9");
+        }
+        this.level = level;
+        return this;
+    }
+
+    @Override
+    public void accept(HttpRequest request, HttpResponse response, Next next) {
+        response.compression(this, negotiate(request.header("Accept-Encoding")));
+        next.run();
+    }
+
+    /**
+     * @return <code>gzip</code>, <code>deflate</code> or <code>null</code> if the client accepts neither
+     */
+    public static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        double gzip = quality(acceptEncoding, "gzip");
+        double deflate = quality(acceptEncoding, "deflate");
+        if (gzip <= 0 && deflate <= 0) {
+            return null;
+        }
+        return gzip >= deflate ? "gzip" : "deflate";
+    }
+
+    /**
+     * @return the q-value <code>Accept-Encoding</code> gives the coding, <code>*</code> counts for codings not listed
+     */
+    public static double quality(String acceptEncoding, String coding) {
+        double wildcard = 0;
+        for (String part : acceptEncoding.split(",")) {
+            String[] params = part.split(";");
+            String name = params[0].trim();
+            double q = 1;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if (name.equalsIgnoreCase(coding)) {
+                return q;
+            }
+            if (name.equals("*")) {
+                wildcard = q;
+            }
+        }
+        return wildcard;
+    }
+
+    /**
+     * @return <code>true</code> for text-like types that are worth compressing,
+     * <code>false</code> for types that are compressed already
+     */
+    public static boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        String type = contentType.toLowerCase(Locale.ROOT);
+        return type.startsWith("text/")
+                || type.contains("json")
+                || type.contains("javascript")
+                || type.contains("xml")
+                || type.startsWith("application/wasm");
+    }
+
+    /**
+     * Whether a response with these headers may vary by <code>Accept-Encoding</code>.
+     */
+    static boolean varies(int status, Headers headers) {
+        return status >= 200 && status != 204 && status != 206 && status != 304
+                && !headers.containsKey("Content-Encoding")
+                && isCompressible(headers.getFirst("Content-Type"));
+    }
+
+    /**
+     * @param length body length, <code>-1</code> if unknown
+     */
+    boolean applies(long length) {
+        return length != 0 && (length < 0 || length >= minSize);
+    }
+
+    OutputStream wrap(OutputStream out, String coding) {
+        boolean gzip = coding.equals("gzip");
+        return new CompressingOutputStream(this, out, gzip, acquire(gzip));
+    }
+
+    private Deflater acquire(boolean gzip) {
+        Deflater deflater = (gzip ? gzipDeflaters : zlibDeflaters).poll();
+        if (deflater == null) {
+            return new Deflater(level, gzip);
+        }
+        pooled.decrementAndGet();
+        return deflater;
+    }
+
+    void release(Deflater deflater, boolean gzip) {
+        if (pooled.incrementAndGet() > MAX_POOLED) {
+            pooled.decrementAndGet();
+            deflater.end();
+            return;
+        }
+        deflater.reset();
+        (gzip ? gzipDeflaters : zlibDeflaters).offer(deflater);
+    }
+}
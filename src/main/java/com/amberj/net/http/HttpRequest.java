@@ -1,28 +1,217 @@
 package com.amberj.net.http;
 
+import com.amberj.net.json.Json;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.net.URI;
+import java.time.Duration;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
-public record HttpRequest(
-        Map<String, Object> body,
-        Map<String, String> pathParams,
-        Map<String, List<String>> queryParams,
-        Map<String, List<String>> header,
-        Map<String, String> cookies,
-        String method,
-        URI uri
-) {
+/**
+ * The request passed to handlers and middleware.
+ * <p>
+ * Nothing is parsed up front: the body, query params and cookies are parsed the first
+ * time they are asked for and kept for later calls, and the headers are a read-only
+ * view of the exchange headers. A request belongs to the thread handling it.
+ * <p>
+ * A request can also be created from parts that are already parsed, as with the record this
+ * class used to be, e.g. to call a handler in a test.
+ */
+public final class HttpRequest {
+    private final HttpExchange exchange;
+    private final Map<String, String> pathParams;
+    private final Parser parser;
+    private final long deadlineNanos;
+    private final boolean hasDeadline;
+    // only set for a request created from parsed parts, the others ask the exchange
+    private final String method;
+    private final URI uri;
+    private Map<String, Object> body;
+    private Map<String, List<String>> queryParams;
+    private Map<String, List<String>> header;
+    private Map<String, String> cookies;
+
+    public HttpRequest(HttpExchange exchange, Map<String, String> pathParams, Parser parser) {
+        this.exchange = exchange;
+        this.pathParams = pathParams;
+        this.parser = parser;
+        this.deadlineNanos = 0;
+        this.hasDeadline = false;
+        this.method = null;
+        this.uri = null;
+    }
+
+    /**
+     * @param deadlineNanos <code>System.nanoTime()</code> by which the response has to be sent
+     */
+    public HttpRequest(HttpExchange exchange, Map<String, String> pathParams, Parser parser, long deadlineNanos) {
+        this.exchange = exchange;
+        this.pathParams = pathParams;
+        this.parser = parser;
+        this.deadlineNanos = deadlineNanos;
+        this.hasDeadline = true;
+        this.method = null;
+        this.uri = null;
+    }
+
+    /**
+     * Creates a request from parts that are already parsed, with the parameters of the record
+     * constructor of earlier versions. It has no exchange behind it: {@link #bodyStream()} is
+     * empty, {@link #bodyAs(Class)} returns <code>null</code> and there is no deadline.
+     */
+    public HttpRequest(Map<String, Object> body, Map<String, String> pathParams, Map<String, List<String>> queryParams,
+                       Map<String, List<String>> header, Map<String, String> cookies, String method, URI uri) {
+        this.exchange = null;
+        this.pathParams = pathParams;
+        this.parser = null;
+        this.deadlineNanos = 0;
+        this.hasDeadline = false;
+        this.body = body;
+        this.queryParams = queryParams;
+        this.header = header;
+        this.cookies = cookies;
+        this.method = method;
+        this.uri = uri;
+    }
+
+    /**
+     * Time left until the route's timeout, to be passed on to calls made while handling the
+     * request, e.g. <code>HttpRequest.newBuilder(uri).timeout(request.remainingTime())</code>.
+     *
+     * @return the time left, zero once it passed, <code>null</code> if the route has no timeout
+     */
+    public Duration remainingTime() {
+        if (!hasDeadline) {
+            return null;
+        }
+        return Duration.ofNanos(Math.max(0, deadlineNanos - System.nanoTime()));
+    }
+
+    /**
+     * The parsed body, form fields for <code>application/x-www-form-urlencoded</code> and
+     * <code>multipart/form-data</code>, the object for <code>application/json</code>.
+     * Parsed on first call; empty if the body was already consumed through {@link #bodyStream()}.
+     */
+    public Map<String, Object> body() {
+        if (body == null && exchange != null) {
+            try {
+                body = parser.body(exchange);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return body;
+    }
+
+    /**
+     * Binds a JSON body to the given type, read straight from the request stream with the
+     * shared {@link Json} instance. Records and classes annotated with <code>@CompiledJson</code>
+     * use the converters generated at compile time, other types are bound by reflection.
+     * The body can be read once, so this and {@link #body()} exclude each other.
+     *
+     * @return the bound value, <code>null</code> for an empty body
+     * @throws UncheckedIOException if the body is not valid JSON for the type
+     */
+    public <T> T bodyAs(Class<T> type) {
+        if (exchange == null) {
+            return null;
+        }
+        try {
+            return parser.bodyAs(exchange, type);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * The raw request body. Reading it means {@link #body()} has nothing left to parse.
+     */
+    public InputStream bodyStream() {
+        return exchange != null ? exchange.getRequestBody() : InputStream.nullInputStream();
+    }
+
+    public Map<String, String> pathParams() {
+        return pathParams;
+    }
+
+    public Map<String, List<String>> queryParams() {
+        if (queryParams == null && exchange != null) {
+            queryParams = parser.queryParams(exchange.getRequestURI().getRawQuery());
+        }
+        return queryParams;
+    }
+
+    /**
+     * All request headers. Lookups ignore the case of the header name.
+     */
+    public Map<String, List<String>> header() {
+        if (header == null && exchange != null) {
+            header = Collections.unmodifiableMap(exchange.getRequestHeaders());
+        }
+        return header;
+    }
+
+    /**
+     * @return the first value of the header, <code>null</code> if it was not sent
+     */
+    public String header(String name) {
+        if (exchange != null) {
+            return exchange.getRequestHeaders().getFirst(name);
+        }
+        if (header != null) {
+            for (Map.Entry<String, List<String>> entry : header.entrySet()) {
+                if (entry.getKey().equalsIgnoreCase(name) && !entry.getValue().isEmpty()) {
+                    return entry.getValue().get(0);
+                }
+            }
+        }
+        return null;
+    }
+
+    public Map<String, String> cookies() {
+        if (cookies == null && exchange != null) {
+            cookies = parser.cookies(exchange.getRequestHeaders().get("Cookie"));
+        }
+        return cookies;
+    }
+
+    public String method() {
+        return exchange != null ? exchange.getRequestMethod() : method;
+    }
+
+    public URI uri() {
+        return exchange != null ? exchange.getRequestURI() : uri;
+    }
 
     @Override
     public String toString() {
         return "HttpRequest{" +
                 "body=" + body +
                 ", pathParams=" + pathParams +
-                ", queryParams=" + queryParams +
-                ", header=" + header +
-                ", method='" + method + '\'' +
-                ", uri='" + uri + '\'' +
+                ", queryParams=" + queryParams() +
+                ", header=" + header() +
+                ", method='" + method() + '\'' +
+                ", uri='" + uri() + '\'' +
                 '}';
     }
+
+    /**
+     * Parses the parts of a request when they are first used.
+     */
+    public interface Parser {
+        Map<String, Object> body(HttpExchange exchange) throws IOException;
+
+        default <T> T bodyAs(HttpExchange exchange, Class<T> type) throws IOException {
+            return Json.read(exchange.getRequestBody(), type);
+        }
+
+        Map<String, List<String>> queryParams(String rawQuery);
+
+        Map<String, String> cookies(List<String> cookieHeaders);
+    }
 }
@@ -1,22 +1,37 @@
 package com.amberj.net.http;
 
+import com.amberj.net.json.Json;
 import com.amberj.net.template.Data;
 import com.amberj.net.template.TemplateEngine;
 import com.dslplatform.json.NonNull;
+import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.Collections;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
+import java.util.stream.Stream;
 
 
 public class HttpResponse {
 
     private String response;
+    private ResponseBody body;
+    private ResponseOutputStream outputStream;
+    private boolean committed;
     private int status;
     private String redirectURL;
     private final TemplateEngine templatingEngine;
@@ -24,9 +39,21 @@ public class HttpResponse {
     private String contentType;
     private boolean isMethodAllowed;
     private HttpExchange exchange;
+    private Compression compression;
+    private String contentCoding;
 
+    /**
+     * Creates a response that renders with an engine shared by all responses created this way.
+     */
     public HttpResponse(HttpExchange exchange) {
-        templatingEngine = new TemplateEngine();
+        this(exchange, DefaultTemplateEngine.INSTANCE);
+    }
+
+    /**
+     * @param templatingEngine the engine of the server, shared by all of its responses
+     */
+    public HttpResponse(HttpExchange exchange, TemplateEngine templatingEngine) {
+        this.templatingEngine = templatingEngine;
         status = 200;
         this.isMethodAllowed = true;
         this.exchange = exchange;
@@ -37,19 +64,23 @@ public class HttpResponse {
      * and parses it through a template parser.
      * Which in this case is <code>PebbleEngine</code> which is a very light-weight template parser
      * with similar syntax to <code>Django Template Engine</code>.
+     * The page is rendered straight into the response when it is sent.
      *
      * @param template name of the template file
      * @param data data which can be accessed in template
      */
     public void render(@NonNull String template, Data data) {
-        String filePath = template + ".html";
-        contentType = "text/html";
+        setTemplate(template, data.getContext());
+    }
 
-        try {
-            this.response = templatingEngine.parse("templates/"+filePath, data.getContext());
-        } catch (IOException e) {
-            this.response = "<h1>Template name is invalid " + filePath + " </h1>";
-        }
+    private void setTemplate(String template, Map<String, Object> context) {
+        String name = "templates/" + template + ".html";
+        contentType = "text/html";
+        setBody(ResponseBody.of(out -> {
+            var writer = new TemplateWriter(out);
+            templatingEngine.render(name, context, writer);
+            writer.finish();
+        }));
     }
 
     String getFileContent(String basePath, String fileName) throws URISyntaxException, IOException {
@@ -81,19 +112,43 @@ public class HttpResponse {
      * @param template the html file name
      */
     public void render(String template) {
-        String filePath = template + ".html";
-        contentType = "text/html";
-
-        try {
-            this.response = templatingEngine.parse("templates/"+filePath, null);
-        } catch (IOException e) {
-            this.response = "<h1>Template name is invalid " + filePath + " </h1>";
-        }
+        setTemplate(template, null);
     }
 
     public void json(Data data) {
+        json(data.getContext());
+    }
+
+    /**
+     * Sends the value as JSON, encoded by the shared {@link Json} instance straight into
+     * the response while it is sent. Records, classes, maps and collections are supported.
+     *
+     * @param value the value to send, <code>null</code> sends <code>null</code>
+     */
+    public void json(Object value) {
+        contentType = "application/json";
+        setBody(ResponseBody.of(out -> Json.write(out, value)));
+    }
+
+    /**
+     * Sends the elements as a JSON array, encoded while they are iterated, so a large result
+     * set never has to be in memory as a whole.
+     */
+    public void json(Iterator<?> elements) {
         contentType = "application/json";
-        response = data.toJson();
+        setBody(ResponseBody.of(out -> Json.writeArray(out, elements)));
+    }
+
+    /**
+     * Sends the elements as a JSON array like {@link #json(Iterator)} and closes the stream afterwards.
+     */
+    public void json(Stream<?> elements) {
+        contentType = "application/json";
+        setBody(ResponseBody.of(out -> {
+            try (elements) {
+                Json.writeArray(out, elements.iterator());
+            }
+        }));
     }
 
     /**
@@ -103,6 +158,213 @@ public class HttpResponse {
     public void write(String response) {
         contentType = "text/html";
         this.response = response;
+        this.body = null;
+    }
+
+    /**
+     * Sends the given bytes as the body, as they are and with a <code>Content-Length</code>.
+     * The content type defaults to <code>application/octet-stream</code>.
+     *
+     * @param body the response body
+     */
+    public void write(byte[] body) {
+        setBody(ResponseBody.of(body));
+    }
+
+    /**
+     * Sends the remaining bytes of the buffer as the body, heap and direct buffers are
+     * written without copying them into a <code>String</code> first.
+     * The content type defaults to <code>application/octet-stream</code>.
+     *
+     * @param body the response body, its position is not changed
+     */
+    public void write(ByteBuffer body) {
+        setBody(ResponseBody.of(body));
+    }
+
+    /**
+     * Streams the given input as the body and closes it afterwards. Inputs of more than a
+     * few kilobytes are sent with <code>Transfer-Encoding: chunked</code>.
+     * The content type defaults to <code>application/octet-stream</code>.
+     *
+     * @param body the response body
+     */
+    public void write(InputStream body) {
+        setBody(ResponseBody.of(body, -1));
+    }
+
+    /**
+     * Streams exactly <code>length</code> bytes of the given input as the body and closes it afterwards.
+     * The content type defaults to <code>application/octet-stream</code>.
+     *
+     * @param body the response body
+     * @param length number of bytes the input provides
+     */
+    public void write(InputStream body, long length) {
+        setBody(ResponseBody.of(body, length));
+    }
+
+    private void setBody(ResponseBody body) {
+        if (contentType == null) {
+            contentType = "application/octet-stream";
+        }
+        this.body = body;
+        this.response = null;
+    }
+
+    /**
+     * Returns a stream to write the body to while the handler is running, for bodies that
+     * are generated piece by piece (exports, reports). Small bodies are still sent with a
+     * <code>Content-Length</code>, larger ones or a <code>flush()</code> send the headers and
+     * continue with <code>Transfer-Encoding: chunked</code>. Status and headers must be set
+     * before the first write. The stream is closed by the server after the handler returns.
+     * The content type defaults to <code>application/octet-stream</code>.
+     *
+     * @return the body stream of this response
+     */
+    public OutputStream outputStream() {
+        if (outputStream == null) {
+            setBody(null);
+            outputStream = new ResponseOutputStream(this);
+        }
+        return outputStream;
+    }
+
+    public HttpResponse contentType(String contentType) {
+        this.contentType = contentType;
+        return this;
+    }
+
+    /**
+     * Sets a response header, replacing any previous value.
+     */
+    public HttpResponse header(String name, String value) {
+        exchange.getResponseHeaders().set(name, value);
+        return this;
+    }
+
+    /**
+     * @return <code>true</code> once the status and headers were sent to the client
+     */
+    public boolean isCommitted() {
+        return committed || exchange.getResponseCode() != -1;
+    }
+
+    /**
+     * Lets the body be compressed with the given coding when it is committed.
+     *
+     * @param coding <code>gzip</code>, <code>deflate</code> or <code>null</code> if the client accepts neither
+     */
+    void compression(Compression compression, String coding) {
+        this.compression = compression;
+        this.contentCoding = coding;
+    }
+
+    /**
+     * Turns the body the handler produced into bytes, which are then also what is sent.
+     * Templates and other streamed bodies are rendered completely.
+     *
+     * @param maxLength bodies known to be longer are left alone
+     * @return the body, <code>null</code> if it was written through {@link #outputStream()},
+     * was already sent or is longer than <code>maxLength</code>
+     */
+    byte[] bufferBody(long maxLength) throws IOException {
+        if (outputStream != null || isCommitted()) {
+            return null;
+        }
+        if (body == null) {
+            return response != null ? response.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        }
+        long length = body.length();
+        if (length > maxLength) {
+            return null;
+        }
+        var out = new ByteArrayOutputStream(length >= 0 ? (int) length : 1024);
+        body.writeTo(out);
+        byte[] bytes = out.toByteArray();
+        body = ResponseBody.of(bytes);
+        return bytes;
+    }
+
+    /**
+     * Sends the status line and headers.
+     *
+     * @param length body length, <code>-1</code> if unknown which sends a chunked body
+     * @return the stream the body has to be written to
+     */
+    OutputStream commit(long length) throws IOException {
+        committed = true;
+        Headers headers = exchange.getResponseHeaders();
+        boolean head = "HEAD".equalsIgnoreCase(exchange.getRequestMethod());
+        if (contentType != null) {
+            headers.set("Content-Type", contentType);
+        }
+        if (compression != null && Compression.varies(status, headers)) {
+            addVary(headers);
+            if (contentCoding != null && compression.applies(length)) {
+                headers.set("Content-Encoding", contentCoding);
+                headers.remove("Content-Length");
+                if (!head) {
+                    exchange.sendResponseHeaders(status, 0);
+                    return compression.wrap(exchange.getResponseBody(), contentCoding);
+                }
+                // a GET would be sent compressed and chunked
+                length = -1;
+            }
+        }
+        if (head) {
+            // the exchange takes no length for HEAD, the header tells the length a GET would have
+            if (length >= 0) {
+                headers.set("Content-Length", Long.toString(length));
+            }
+            exchange.sendResponseHeaders(status, -1);
+            exchange.getResponseBody().close();
+            return OutputStream.nullOutputStream();
+        }
+        exchange.sendResponseHeaders(status, length < 0 ? 0 : length == 0 ? -1 : length);
+        return exchange.getResponseBody();
+    }
+
+    private static void addVary(Headers headers) {
+        String vary = headers.getFirst("Vary");
+        if (vary == null) {
+            headers.set("Vary", "Accept-Encoding");
+        } else if (!vary.equals("*") && !vary.toLowerCase(Locale.ROOT).contains("accept-encoding")) {
+            headers.set("Vary", vary + ", Accept-Encoding");
+        }
+    }
+
+    /**
+     * Sends whatever the handler produced and completes the exchange.
+     * Called by the server once the handler chain has finished.
+     */
+    public void send() throws IOException {
+        if (outputStream != null) {
+            outputStream.close();
+            return;
+        }
+        if (isCommitted()) {
+            exchange.getResponseBody().close();
+            return;
+        }
+        ResponseBody body = this.body;
+        if (body == null && response != null) {
+            body = ResponseBody.of(response.getBytes(StandardCharsets.UTF_8));
+        }
+        if (body == null) {
+            commit(0).close();
+            return;
+        }
+        if (body.length() < 0) {
+            // small bodies still get a Content-Length, the stream holds back the first bytes
+            var out = new ResponseOutputStream(this);
+            body.writeTo(out);
+            out.close();
+            return;
+        }
+        try (OutputStream out = commit(body.length())) {
+            body.writeTo(out);
+        }
     }
 
     @SuppressWarnings("unused")
@@ -111,6 +373,10 @@ public class HttpResponse {
         return this;
     }
 
+    /**
+     * @return the body set through <code>write(String)</code>,
+     * <code>null</code> for templates, JSON, binary and streamed bodies
+     */
     public String getResponse() {
         return response;
     }
@@ -143,4 +409,32 @@ public class HttpResponse {
     public HttpExchange getExchange() {
         return this.exchange;
     }
+
+    /**
+     * Pebble flushes its writer after every template, which would send a small page chunked.
+     * The encoded bytes reach the response stream, its flushes do not.
+     */
+    private static final class TemplateWriter extends OutputStreamWriter {
+        TemplateWriter(OutputStream out) {
+            super(new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+            }, StandardCharsets.UTF_8);
+        }
+
+        void finish() throws IOException {
+            flush();
+        }
+    }
+
+    private static final class DefaultTemplateEngine {
+        static final TemplateEngine INSTANCE = new TemplateEngine();
+    }
 }
@@ -0,0 +1,104 @@
+package com.amberj.net.http;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToLongFunction;
+
+/**
+ * Map bounded by the total weight of its values, evicting the least recently used ones.
+ * It backs {@link ResponseCache} and the static file cache of the server.
+ * <p>
+ * Lookups go to a concurrent map, the recency of the keys is kept in an access-ordered map
+ * next to it, so the thread that puts a value evicts from its head. A hit only moves its key
+ * to the tail when no other thread holds the lock of that map, it never waits for it.
+ */
+public final class LruCache<K, V> {
+    private final long maxWeight;
+    private final ToLongFunction<V> weigher;
+    private final Map<K, V> values = new ConcurrentHashMap<>();
+    // guarded by lock, least recently used first
+    private final LinkedHashMap<K, V> recency = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicLong weight = new AtomicLong();
+    private final ReentrantLock lock = new ReentrantLock();
+
+    public LruCache(long maxWeight, ToLongFunction<V> weigher) {
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+    }
+
+    /**
+     * @return the value, <code>null</code> if there is none
+     */
+    public V get(K key) {
+        V value = values.get(key);
+        if (value != null && lock.tryLock()) {
+            try {
+                recency.get(key);
+            } finally {
+                lock.unlock();
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Adds the value and evicts the least recently used ones while the total weight is over the limit.
+     */
+    public void put(K key, V value) {
+        lock.lock();
+        try {
+            V previous = values.put(key, value);
+            recency.put(key, value);
+            if (previous != null) {
+                weight.addAndGet(-weigher.applyAsLong(previous));
+            }
+            weight.addAndGet(weigher.applyAsLong(value));
+            Iterator<Map.Entry<K, V>> eldest = recency.entrySet().iterator();
+            while (weight.get() > maxWeight && eldest.hasNext()) {
+                Map.Entry<K, V> evicted = eldest.next();
+                eldest.remove();
+                values.remove(evicted.getKey(), evicted.getValue());
+                weight.addAndGet(-weigher.applyAsLong(evicted.getValue()));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the key if it still maps to the value.
+     */
+    public void remove(K key, V value) {
+        lock.lock();
+        try {
+            if (values.remove(key, value)) {
+                recency.remove(key, value);
+                weight.addAndGet(-weigher.applyAsLong(value));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void clear() {
+        lock.lock();
+        try {
+            values.clear();
+            recency.clear();
+            weight.set(0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the total weight of the values
+     */
+    public long weight() {
+        return weight.get();
+    }
+}
@@ -0,0 +1,94 @@
+package com.amberj.net.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+/**
+ * Body of a response that is written once the handler chain has finished.
+ */
+interface ResponseBody {
+
+    /**
+     * @return the body length in bytes or <code>-1</code> if it is not known up front
+     */
+    long length();
+
+    void writeTo(OutputStream out) throws IOException;
+
+    /**
+     * Produces a body while it is being written, e.g. an encoder or a template.
+     */
+    @FunctionalInterface
+    interface Source {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * @return a body of unknown length, see {@link ResponseOutputStream} for how it is sent
+     */
+    static ResponseBody of(Source source) {
+        return new ResponseBody() {
+            @Override
+            public long length() {
+                return -1;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                source.writeTo(out);
+            }
+        };
+    }
+
+    static ResponseBody of(byte[] bytes) {
+        return new ResponseBody() {
+            @Override
+            public long length() {
+                return bytes.length;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(bytes);
+            }
+        };
+    }
+
+    static ResponseBody of(ByteBuffer buffer) {
+        ByteBuffer body = buffer.duplicate();
+        return new ResponseBody() {
+            @Override
+            public long length() {
+                return body.remaining();
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                if (body.hasArray()) {
+                    out.write(body.array(), body.arrayOffset() + body.position(), body.remaining());
+                } else {
+                    Channels.newChannel(out).write(body);
+                }
+            }
+        };
+    }
+
+    static ResponseBody of(InputStream in, long length) {
+        return new ResponseBody() {
+            @Override
+            public long length() {
+                return length;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                try (in) {
+                    in.transferTo(out);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,262 @@
+package com.amberj.net.http;
+
+import com.amberj.net.httpserver.Next;
+import com.amberj.net.httpserver.TriConsumer;
+import com.sun.net.httpserver.Headers;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Middleware that keeps <code>GET</code> responses in memory and answers repeated requests
+ * without running the handler.
+ * <p>
+ * Responses are keyed by path, query and the request headers named in {@link #vary(String...)}.
+ * A response is fresh for the {@link #ttl(Duration)}, after that it is served stale for the
+ * {@link #staleWhileRevalidate(Duration)} window while a single request runs the handler
+ * again to replace it. Concurrent misses on the same key are coalesced: one request runs
+ * the handler, the others wait for its response instead of running the handler as well.
+ * <p>
+ * Only responses with a cacheable status, without <code>Set-Cookie</code> and without
+ * <code>Cache-Control: no-store</code> or <code>private</code> are kept, and requests with
+ * <code>Authorization</code> bypass the cache unless it is one of the vary headers. The cache
+ * is bounded by the total size of the bodies, the least recently used responses are evicted
+ * first. Bodies are buffered on a miss, so it is meant for routes with bounded output.
+ * Register it for the routes it should cache:
+ * <pre>
+ * server.use("/products", new ResponseCache().ttl(Duration.ofMinutes(5)).vary("Accept-Language"));
+ * </pre>
+ */
+public final class ResponseCache implements TriConsumer<HttpRequest, HttpResponse, Next> {
+    private static final int ENTRY_OVERHEAD = 512;
+    private static final Set<Integer> CACHEABLE_STATUS = Set.of(200, 203, 204, 300, 301, 308, 404, 410);
+    private static final Set<String> UNCACHED_HEADERS = Set.of("Date", "Content-Length", "Transfer-Encoding", "Connection", "Age");
+
+    private long ttlNanos = TimeUnit.SECONDS.toNanos(60);
+    private long staleNanos;
+    private long maxEntryBytes = 1024 * 1024;
+    private List<String> varyHeaders = List.of();
+    private boolean varyAuthorization;
+
+    private LruCache<String, Entry> entries = new LruCache<>(64L * 1024 * 1024, Entry::weight);
+    private final Map<String, CompletableFuture<Entry>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * How long a response is served without running the handler, 60 seconds by default.
+     */
+    public ResponseCache ttl(Duration ttl) {
+        this.ttlNanos = ttl.toNanos();
+        return this;
+    }
+
+    /**
+     * How long an expired response may still be served while one request refreshes it, none by default.
+     */
+    public ResponseCache staleWhileRevalidate(Duration window) {
+        this.staleNanos = window.toNanos();
+        return this;
+    }
+
+    /**
+     * Limits the bodies of all responses together, 64 MB by default, and the body of a single
+     * response, 1 MB by default. Larger responses are sent but not kept.
+     */
+    public ResponseCache maxBytes(long total, long perResponse) {
+        this.maxEntryBytes = Math.min(perResponse, total);
+        this.entries = new LruCache<>(total, Entry::weight);
+        return this;
+    }
+
+    /**
+     * Request headers whose values select a different response, e.g. <code>Accept-Language</code>.
+     */
+    public ResponseCache vary(String... headers) {
+        this.varyHeaders = List.of(headers);
+        this.varyAuthorization = varyHeaders.stream().anyMatch(h -> h.equalsIgnoreCase("Authorization"));
+        return this;
+    }
+
+    /**
+     * Drops every cached response.
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    @Override
+    public void accept(HttpRequest request, HttpResponse response, Next next) {
+        String method = request.method();
+        boolean head = method.equalsIgnoreCase("HEAD");
+        if (!head && !method.equalsIgnoreCase("GET")
+                || request.header("Authorization") != null && !varyAuthorization) {
+            next.run();
+            return;
+        }
+        String key = key(request);
+
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            long age = System.nanoTime() - entry.storedAt;
+            if (age < ttlNanos) {
+                serve(entry, response, age);
+                return;
+            }
+            if (age < ttlNanos + staleNanos) {
+                // one request refreshes the entry, the others keep getting the stale one meanwhile
+                if (head || !entry.revalidating.compareAndSet(false, true)) {
+                    serve(entry, response, age);
+                    return;
+                }
+                try {
+                    load(key, response, next);
+                } finally {
+                    entry.revalidating.set(false);
+                }
+                return;
+            }
+            entries.remove(key, entry);
+        }
+        if (head) {
+            next.run();
+            return;
+        }
+
+        var flight = new CompletableFuture<Entry>();
+        CompletableFuture<Entry> leader = inFlight.putIfAbsent(key, flight);
+        if (leader != null) {
+            Entry loaded = leader.join();
+            if (loaded != null) {
+                serve(loaded, response, 0);
+            } else {
+                next.run();
+            }
+            return;
+        }
+        Entry loaded = null;
+        try {
+            loaded = load(key, response, next);
+        } finally {
+            inFlight.remove(key, flight);
+            flight.complete(loaded);
+        }
+    }
+
+    /**
+     * Runs the handler and keeps its response if it can be cached.
+     *
+     * @return the new entry, <code>null</code> if the response was not kept
+     */
+    private Entry load(String key, HttpResponse response, Next next) {
+        next.run();
+        Headers headers = response.getExchange().getResponseHeaders();
+        if (!isCacheable(response, headers)) {
+            Entry stale = entries.get(key);
+            if (stale != null) {
+                entries.remove(key, stale);
+            }
+            return null;
+        }
+        byte[] body;
+        try {
+            body = response.bufferBody(maxEntryBytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (body == null || body.length > maxEntryBytes) {
+            return null;
+        }
+
+        var kept = new LinkedHashMap<String, List<String>>();
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if (!UNCACHED_HEADERS.contains(header.getKey())) {
+                kept.put(header.getKey(), List.copyOf(header.getValue()));
+            }
+        }
+        var entry = new Entry(response.getStatus(), response.getContentType(), kept, body);
+        entries.put(key, entry);
+        return entry;
+    }
+
+    private boolean isCacheable(HttpResponse response, Headers headers) {
+        if (response.isCommitted() || response.getRedirectURL() != null || response.isMethodAllowed()
+                || !CACHEABLE_STATUS.contains(response.getStatus()) || headers.containsKey("Set-Cookie")) {
+            return false;
+        }
+        String cacheControl = headers.getFirst("Cache-Control");
+        if (cacheControl != null) {
+            String directives = cacheControl.toLowerCase(Locale.ROOT);
+            if (directives.contains("no-store") || directives.contains("private")) {
+                return false;
+            }
+        }
+        String vary = headers.getFirst("Vary");
+        if (vary != null) {
+            // a response that varies by a header the key does not include can not be shared
+            for (String name : vary.split(",")) {
+                String header = name.trim();
+                if (header.equals("*") || !header.isEmpty() && varyHeaders.stream().noneMatch(header::equalsIgnoreCase)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private void serve(Entry entry, HttpResponse response, long ageNanos) {
+        Headers headers = response.getExchange().getResponseHeaders();
+        for (Map.Entry<String, List<String>> header : entry.headers.entrySet()) {
+            headers.put(header.getKey(), new ArrayList<>(header.getValue()));
+        }
+        headers.set("Age", Long.toString(TimeUnit.NANOSECONDS.toSeconds(ageNanos)));
+        response.status(entry.status);
+        response.write(entry.body);
+        if (entry.contentType != null) {
+            response.contentType(entry.contentType);
+        }
+    }
+
+    private String key(HttpRequest request) {
+        var key = new StringBuilder(64).append(request.uri().getRawPath());
+        String query = request.uri().getRawQuery();
+        if (query != null) {
+            key.append('?').append(query);
+        }
+        for (String header : varyHeaders) {
+            String value = request.header(header);
+            key.append('\n').append(value == null ? "" : value);
+        }
+        return key.toString();
+    }
+
+    private static final class Entry {
+        final int status;
+        final String contentType;
+        final Map<String, List<String>> headers;
+        final byte[] body;
+        final long storedAt;
+        final AtomicBoolean revalidating = new AtomicBoolean();
+
+        Entry(int status, String contentType, Map<String, List<String>> headers, byte[] body) {
+            this.status = status;
+            this.contentType = contentType;
+            this.headers = headers;
+            this.body = body;
+            this.storedAt = System.nanoTime();
+        }
+
+        long weight() {
+            return ENTRY_OVERHEAD + body.length;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.amberj.net.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Stream returned by {@link HttpResponse#outputStream()}.
+ * <p>
+ * The first bytes are held back so a body that turns out to be small is still sent
+ * with a <code>Content-Length</code>. Once more than the threshold is written, or the
+ * stream is flushed, the headers are sent and the rest of the body goes out with
+ * <code>Transfer-Encoding: chunked</code>.
+ */
+final class ResponseOutputStream extends OutputStream {
+    static final int THRESHOLD = 8 * 1024;
+
+    private final HttpResponse response;
+    private byte[] buffer;
+    private int count;
+    private OutputStream out;
+    private boolean closed;
+
+    ResponseOutputStream(HttpResponse response) {
+        this.response = response;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream is closed");
+        }
+        if (out != null) {
+            out.write(b, off, len);
+            return;
+        }
+        if (count + len <= THRESHOLD) {
+            if (buffer == null) {
+                buffer = new byte[Math.max(256, len)];
+            } else if (count + len > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.min(THRESHOLD, Math.max(buffer.length * 2, count + len)));
+            }
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+            return;
+        }
+        commit(-1);
+        out.write(b, off, len);
+    }
+
+    private void commit(long length) throws IOException {
+        out = response.commit(length);
+        if (count > 0) {
+            out.write(buffer, 0, count);
+        }
+        buffer = null;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (closed) {
+            return;
+        }
+        if (out == null) {
+            commit(-1);
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (out == null) {
+            commit(count);
+        }
+        out.close();
+    }
+}
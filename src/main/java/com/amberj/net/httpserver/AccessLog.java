@@ -0,0 +1,430 @@
+package com.amberj.net.httpserver;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes one line per request without making the request wait for the output.
+ * <p>
+ * A request only copies the fields the format needs into a lock-free ring buffer. A
+ * single background thread formats the lines and writes them in batches, flushing once
+ * the buffer runs empty, so neither the lock of the output nor formatting the timestamp
+ * serialize the request threads. The timestamp is formatted at most once per second.
+ * <p>
+ * The format is plain text with these placeholders:
+ * <ul>
+ *     <li><code>%t</code> time the request arrived, e.g. <code>18/Oct/2026:14:03:07 +0200</code></li>
+ *     <li><code>%h</code> client address</li>
+ *     <li><code>%m</code> method, <code>%U</code> URI with the query, <code>%H</code> protocol</li>
+ *     <li><code>%r</code> request line, the same as <code>%m %U %H</code></li>
+ *     <li><code>%s</code> status code</li>
+ *     <li><code>%D</code> time taken in milliseconds</li>
+ *     <li><code>%{Name}i</code> a request header, <code>-</code> if missing</li>
+ *     <li><code>%%</code> a percent sign</li>
+ * </ul>
+ */
+public final class AccessLog {
+    public static final String DEFAULT_FORMAT = "%t %m: %U %s %Dms";
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    /**
+     * What a request does when the writer falls behind and the buffer is full.
+     */
+    public enum WhenFull {
+        /** the line is dropped and counted, see {@link #dropped()} */
+        DROP,
+        /** the request waits for the writer to make room */
+        BLOCK
+    }
+
+    private static final int BATCH_SIZE = 512;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.ENGLISH)
+            .withZone(ZoneId.systemDefault());
+
+    private final SinkOpener opener;
+    private Part[] parts;
+    private String[] headerNames;
+    private boolean needsAddress;
+    private int capacity = DEFAULT_CAPACITY;
+    private WhenFull whenFull = WhenFull.DROP;
+
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile RingBuffer<Entry> buffer;
+    private volatile Thread writer;
+    private volatile boolean running;
+    private volatile boolean sleeping;
+
+    // only touched by the writer thread
+    private long lastSecond = Long.MIN_VALUE;
+    private String lastTime;
+
+    private AccessLog(SinkOpener opener) {
+        this.opener = opener;
+        format(DEFAULT_FORMAT);
+    }
+
+    /**
+     * Logs to <code>System.out</code>, the default of a server.
+     */
+    public static AccessLog stdout() {
+        return new AccessLog(StdoutSink::new);
+    }
+
+    /**
+     * Appends to a file, which is created if it does not exist.
+     */
+    public static AccessLog file(Path path) {
+        return new AccessLog(() -> new FileSink(path));
+    }
+
+    /**
+     * Logs every line at <code>INFO</code> level to the SLF4J logger <code>com.amberj.net.access</code>.
+     */
+    public static AccessLog slf4j() {
+        return slf4j("com.amberj.net.access");
+    }
+
+    public static AccessLog slf4j(String loggerName) {
+        return new AccessLog(() -> new Slf4jSink(LoggerFactory.getLogger(loggerName)));
+    }
+
+    /**
+     * @param format the line format, see the placeholders above
+     * @throws IllegalArgumentException if the format has an unknown placeholder
+     */
+    public AccessLog format(String format) {
+        var parts = new ArrayList<Part>();
+        var headerNames = new ArrayList<String>();
+        var literal = new StringBuilder();
+        boolean needsAddress = false;
+        for (int i = 0; i < format.length(); i++) {
+            char c = format.charAt(i);
+            if (c != '%') {
+                literal.append(c);
+                continue;
+            }
+            if (i + 1 == format.length()) {
+                throw new IllegalArgumentException("Access log format ends with '%': " + format);
+            }
+            char code = format.charAt(++i);
+            if (code == '%') {
+                literal.append('%');
+                continue;
+            }
+            String header = null;
+            if (code == '{') {
+                int end = format.indexOf('}', i);
+                if (end == -1 || end + 1 == format.length() || format.charAt(end + 1) != 'i') {
+                    throw new IllegalArgumentException("Expected %{Name}i in access log format: " + format);
+                }
+                header = format.substring(i + 1, end);
+                code = 'i';
+                i = end + 1;
+            } else if ("thmUHrsD".indexOf(code) == -1) {
+                throw new IllegalArgumentException("Unknown placeholder %" + code + " in access log format: " + format);
+            }
+            if (!literal.isEmpty()) {
+                parts.add(new Part('\0', literal.toString(), -1));
+                literal.setLength(0);
+            }
+            if (header != null) {
+                parts.add(new Part(code, header, headerNames.size()));
+                headerNames.add(header);
+            } else {
+                parts.add(new Part(code, null, -1));
+            }
+            needsAddress |= code == 'h';
+        }
+        if (!literal.isEmpty()) {
+            parts.add(new Part('\0', literal.toString(), -1));
+        }
+        this.parts = parts.toArray(Part[]::new);
+        this.headerNames = headerNames.toArray(String[]::new);
+        this.needsAddress = needsAddress;
+        return this;
+    }
+
+    /**
+     * @param capacity how many lines may wait for the writer, rounded up to a power of two
+     */
+    public AccessLog capacity(int capacity) {
+        this.capacity = capacity;
+        return this;
+    }
+
+    public AccessLog whenFull(WhenFull whenFull) {
+        this.whenFull = whenFull;
+        return this;
+    }
+
+    /**
+     * @return how many lines were dropped because the buffer was full or the output failed
+     */
+    public long dropped() {
+        return dropped.get();
+    }
+
+    void start() throws IOException {
+        Sink sink = opener.open();
+        buffer = new RingBuffer<>(capacity);
+        running = true;
+        writer = Thread.ofPlatform()
+                .name("amberj-access-log")
+                .daemon()
+                .start(() -> drain(sink));
+    }
+
+    /**
+     * Writes the lines still in the buffer and closes the output.
+     */
+    void stop() {
+        Thread thread = writer;
+        if (thread == null) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Called on the request thread once the response was sent.
+     *
+     * @param startMillis wall clock time the request arrived
+     * @param startNanos  {@link System#nanoTime()} when the request arrived
+     */
+    void log(HttpExchange exchange, long startMillis, long startNanos) {
+        RingBuffer<Entry> buffer = this.buffer;
+        if (buffer == null || !running) {
+            return;
+        }
+        String[] headers = null;
+        if (headerNames.length > 0) {
+            headers = new String[headerNames.length];
+            for (int i = 0; i < headers.length; i++) {
+                headers[i] = exchange.getRequestHeaders().getFirst(headerNames[i]);
+            }
+        }
+        var entry = new Entry(
+                startMillis,
+                System.nanoTime() - startNanos,
+                exchange.getRequestMethod(),
+                exchange.getRequestURI().toString(),
+                exchange.getProtocol(),
+                exchange.getResponseCode(),
+                needsAddress ? exchange.getRemoteAddress() : null,
+                headers);
+
+        while (!buffer.offer(entry)) {
+            if (whenFull == WhenFull.DROP || !running) {
+                dropped.incrementAndGet();
+                return;
+            }
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(FULL_PARK_NANOS);
+        }
+        if (sleeping) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private void drain(Sink sink) {
+        RingBuffer<Entry> buffer = this.buffer;
+        var line = new StringBuilder(256);
+        boolean failed = false;
+        int batched = 0;
+        try {
+            while (true) {
+                Entry entry = buffer.poll();
+                if (entry == null) {
+                    if (batched > 0) {
+                        batched = 0;
+                        failed = flush(sink, failed);
+                    }
+                    if (!running) {
+                        if (buffer.isEmpty()) {
+                            return;
+                        }
+                        continue;
+                    }
+                    sleeping = true;
+                    // a request that saw sleeping == false has already published its line
+                    if (buffer.isEmpty() && running) {
+                        LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    }
+                    sleeping = false;
+                    continue;
+                }
+                if (failed) {
+                    dropped.incrementAndGet();
+                    continue;
+                }
+                line.setLength(0);
+                append(line, entry);
+                try {
+                    sink.write(line);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    failed = true;
+                }
+                if (++batched == BATCH_SIZE) {
+                    batched = 0;
+                    failed = flush(sink, failed);
+                }
+            }
+        } finally {
+            try {
+                sink.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static boolean flush(Sink sink, boolean failed) {
+        if (failed) {
+            return true;
+        }
+        try {
+            sink.flush();
+            return false;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return true;
+        }
+    }
+
+    private void append(StringBuilder line, Entry entry) {
+        for (Part part : parts) {
+            switch (part.code) {
+                case '\0' -> line.append(part.text);
+                case 't' -> line.append(time(entry.startMillis));
+                case 'h' -> line.append(entry.remote == null ? "-" : entry.remote.getAddress() == null ? entry.remote.getHostString() : entry.remote.getAddress().getHostAddress());
+                case 'm' -> line.append(entry.method);
+                case 'U' -> line.append(entry.uri);
+                case 'H' -> line.append(entry.protocol);
+                case 'r' -> line.append(entry.method).append(' ').append(entry.uri).append(' ').append(entry.protocol);
+                case 's' -> line.append(entry.status);
+                case 'D' -> line.append(TimeUnit.NANOSECONDS.toMillis(entry.durationNanos));
+                case 'i' -> {
+                    String value = entry.headers[part.header];
+                    line.append(value == null ? "-" : value);
+                }
+                default -> throw new IllegalStateException("Unknown placeholder %" + part.code);
+            }
+        }
+    }
+
+    private String time(long millis) {
+        long second = Math.floorDiv(millis, 1000);
+        if (second != lastSecond) {
+            lastSecond = second;
+            lastTime = TIME_FORMAT.format(Instant.ofEpochSecond(second));
+        }
+        return lastTime;
+    }
+
+    private record Part(char code, String text, int header) {}
+
+    private record Entry(long startMillis, long durationNanos, String method, String uri, String protocol,
+                         int status, InetSocketAddress remote, String[] headers) {}
+
+    @FunctionalInterface
+    private interface SinkOpener {
+        Sink open() throws IOException;
+    }
+
+    private interface Sink {
+        void write(CharSequence line) throws IOException;
+
+        void flush() throws IOException;
+
+        void close() throws IOException;
+    }
+
+    private static final class StdoutSink implements Sink {
+        private final StringBuilder batch = new StringBuilder(16 * 1024);
+
+        @Override
+        public void write(CharSequence line) {
+            batch.append(line).append(System.lineSeparator());
+        }
+
+        @Override
+        public void flush() {
+            // one call per batch, so the lock of System.out is taken once for many lines
+            System.out.print(batch);
+            System.out.flush();
+            batch.setLength(0);
+        }
+
+        @Override
+        public void close() {
+            if (!batch.isEmpty()) {
+                flush();
+            }
+        }
+    }
+
+    private static final class FileSink implements Sink {
+        private final Writer out;
+
+        FileSink(Path path) throws IOException {
+            this.out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(path,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE), StandardCharsets.UTF_8), 64 * 1024);
+        }
+
+        @Override
+        public void write(CharSequence line) throws IOException {
+            out.append(line).append('\n');
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    private record Slf4jSink(Logger logger) implements Sink {
+        @Override
+        public void write(CharSequence line) {
+            logger.info(line.toString());
+        }
+
+        @Override
+        public void flush() {}
+
+        @Override
+        public void close() {}
+    }
+}
@@ -0,0 +1,174 @@
+package com.amberj.net.httpserver;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Caps how many requests are handled at the same time. A request over the limit is answered
+ * with <code>503 Service Unavailable</code> and a <code>Retry-After</code> header right away,
+ * before anything of it is parsed, so a spike is shed instead of slowing down every request.
+ * <p>
+ * A {@link #fixed(int)} limit never changes. An {@link #adaptive(int, int, int)} limit follows
+ * the observed latency, in the style of a gradient limiter: the average latency of each
+ * 100 ms window is compared with the latency without load, the lowest window average seen.
+ * While it stays within 1.5 times of that the limit grows by about its square root per window,
+ * once requests queue up somewhere and latency rises the limit shrinks by the same ratio, at
+ * most halving per window. The baseline slowly follows the latency upwards, so a lasting change
+ * of the work itself is picked up within minutes. Windows in which less than half of the limit
+ * was used do not change it, an idle server keeps its limit.
+ * <p>
+ * One instance is one budget: registering it for several routes makes them share it.
+ */
+public final class ConcurrencyLimit {
+    private static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int MIN_WINDOW_SAMPLES = 10;
+    private static final double BASELINE_DRIFT = 600;
+    private static final double TOLERANCE = 1.5;
+    private static final double SMOOTHING = 0.2;
+
+    private final boolean adaptive;
+    private final int minLimit;
+    private final int maxLimit;
+    private final LongSupplier clock;
+    private volatile double limit;
+    private long retryAfterSeconds = 1;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+
+    // the window of latency samples of the adaptive mode
+    private final AtomicLong windowEnd;
+    private final LongAdder windowNanos = new LongAdder();
+    private final LongAdder windowSamples = new LongAdder();
+    private final AtomicInteger windowMaxInFlight = new AtomicInteger();
+    private double baselineRtt;
+
+    private ConcurrencyLimit(boolean adaptive, int initial, int min, int max, LongSupplier clock) {
+        if (min < 1 || initial < min || max < initial) {
+            throw new IllegalArgumentException("Expected 1 <= min <= initial <= max, got " + min + ", " + initial + ", " + max);
+        }
+        this.adaptive = adaptive;
+        this.minLimit = min;
+        this.maxLimit = max;
+        this.limit = initial;
+        this.clock = clock;
+        this.windowEnd = new AtomicLong(clock.getAsLong() + WINDOW_NANOS);
+    }
+
+    /**
+     * @param limit requests handled at the same time
+     */
+    public static ConcurrencyLimit fixed(int limit) {
+        return new ConcurrencyLimit(false, limit, limit, limit, System::nanoTime);
+    }
+
+    /**
+     * @param initial limit to start with, one the server surely handles: the latency seen
+     *                before the limit is reached is what higher latencies are compared with
+     * @param min     the limit never goes below this, e.g. the size of a downstream pool
+     * @param max     the limit never goes above this
+     */
+    public static ConcurrencyLimit adaptive(int initial, int min, int max) {
+        return adaptive(initial, min, max, System::nanoTime);
+    }
+
+    static ConcurrencyLimit adaptive(int initial, int min, int max, LongSupplier clock) {
+        return new ConcurrencyLimit(true, initial, min, max, clock);
+    }
+
+    /**
+     * The <code>Retry-After</code> sent with rejections, one second by default.
+     */
+    public ConcurrencyLimit retryAfter(Duration retryAfter) {
+        this.retryAfterSeconds = Math.max(0, retryAfter.toSeconds());
+        return this;
+    }
+
+    long retryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    /**
+     * @return the current limit
+     */
+    public int limit() {
+        return (int) limit;
+    }
+
+    /**
+     * @return requests being handled right now
+     */
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return how many requests were rejected so far
+     */
+    public long rejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return <code>true</code> if the request may proceed, it then has to {@link #release(long)}
+     */
+    boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= (int) limit) {
+                rejected.increment();
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                if (adaptive) {
+                    windowMaxInFlight.accumulateAndGet(current + 1, Math::max);
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @param latencyNanos how long the request took
+     */
+    void release(long latencyNanos) {
+        inFlight.decrementAndGet();
+        if (!adaptive) {
+            return;
+        }
+        windowNanos.add(latencyNanos);
+        windowSamples.increment();
+
+        long now = clock.getAsLong();
+        long end = windowEnd.get();
+        if (now - end >= 0 && windowSamples.sum() >= MIN_WINDOW_SAMPLES && windowEnd.compareAndSet(end, now + WINDOW_NANOS)) {
+            // only the thread that closed the window gets here
+            long samples = windowSamples.sumThenReset();
+            long nanos = windowNanos.sumThenReset();
+            int maxInFlight = windowMaxInFlight.getAndSet(0);
+            if (samples > 0) {
+                update((double) nanos / samples, maxInFlight);
+            }
+        }
+    }
+
+    private void update(double rtt, int maxInFlight) {
+        if (baselineRtt == 0 || rtt < baselineRtt) {
+            baselineRtt = rtt;
+        } else {
+            baselineRtt += (rtt - baselineRtt) / BASELINE_DRIFT;
+        }
+        double current = limit;
+        if (maxInFlight < current / 2) {
+            return;
+        }
+        double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * baselineRtt / rtt));
+        double target = current * gradient + Math.sqrt(current);
+        double next = current * (1 - SMOOTHING) + target * SMOOTHING;
+        limit = Math.max(minLimit, Math.min(maxLimit, next));
+    }
+}
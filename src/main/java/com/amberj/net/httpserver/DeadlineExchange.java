@@ -0,0 +1,190 @@
+package com.amberj.net.httpserver;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The exchange a handler with a deadline responds through. Once the deadline passed and the
+ * server took over the exchange, the handler can no longer send headers or read the request
+ * body, so a handler that keeps running after its timeout can not interleave its response
+ * with the server's.
+ * <p>
+ * The handler sets its response headers on a copy, which only replaces the headers of the
+ * real exchange when the handler sends them. The server's answer to a timed out request
+ * does not carry headers the handler set.
+ */
+final class DeadlineExchange extends HttpExchange {
+    private final HttpExchange exchange;
+    private final Headers responseHeaders;
+    private boolean headersSent;
+    private boolean expired;
+
+    DeadlineExchange(HttpExchange exchange) {
+        this.exchange = exchange;
+        this.responseHeaders = new Headers();
+        copy(exchange.getResponseHeaders(), responseHeaders);
+    }
+
+    private static void copy(Headers from, Headers to) {
+        to.clear();
+        for (Map.Entry<String, List<String>> header : from.entrySet()) {
+            to.put(header.getKey(), new ArrayList<>(header.getValue()));
+        }
+    }
+
+    /**
+     * Takes the exchange away from the handler.
+     *
+     * @return <code>true</code> if the handler sent no headers yet, the caller then answers the request
+     */
+    synchronized boolean expire() {
+        expired = true;
+        return !headersSent;
+    }
+
+    /**
+     * Lets the handler hand the connection over to another protocol, which ends the deadline.
+     *
+     * @return the exchange to upgrade
+     */
+    synchronized HttpExchange upgrade() throws IOException {
+        if (expired) {
+            throw new IOException("The request timed out, the response was already sent by the server");
+        }
+        headersSent = true;
+        copy(responseHeaders, exchange.getResponseHeaders());
+        return exchange;
+    }
+
+    synchronized boolean isExpired() {
+        return expired;
+    }
+
+    @Override
+    public void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+        synchronized (this) {
+            if (expired) {
+                throw new IOException("The request timed out, the response was already sent by the server");
+            }
+            headersSent = true;
+        }
+        copy(responseHeaders, exchange.getResponseHeaders());
+        exchange.sendResponseHeaders(rCode, responseLength);
+    }
+
+    @Override
+    public Headers getRequestHeaders() {
+        return exchange.getRequestHeaders();
+    }
+
+    @Override
+    public Headers getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return exchange.getRequestURI();
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return exchange.getRequestMethod();
+    }
+
+    @Override
+    public HttpContext getHttpContext() {
+        return exchange.getHttpContext();
+    }
+
+    @Override
+    public void close() {
+        exchange.close();
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+        return new FilterInputStream(exchange.getRequestBody()) {
+            @Override
+            public int read() throws IOException {
+                checkExpired();
+                return super.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                checkExpired();
+                return super.read(b, off, len);
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                checkExpired();
+                return super.skip(n);
+            }
+        };
+    }
+
+    private synchronized void checkExpired() throws IOException {
+        if (expired && !headersSent) {
+            throw new IOException("The request timed out, the server answered it");
+        }
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+        return exchange.getResponseBody();
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return exchange.getRemoteAddress();
+    }
+
+    @Override
+    public int getResponseCode() {
+        return exchange.getResponseCode();
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return exchange.getLocalAddress();
+    }
+
+    @Override
+    public String getProtocol() {
+        return exchange.getProtocol();
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return exchange.getAttribute(name);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        exchange.setAttribute(name, value);
+    }
+
+    @Override
+    public void setStreams(InputStream i, OutputStream o) {
+        exchange.setStreams(i, o);
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+        return exchange.getPrincipal();
+    }
+}
@@ -0,0 +1,108 @@
+package com.amberj.net.httpserver;
+
+import java.util.ArrayDeque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A named feed of Server-Sent Events that any number of {@link EventStream}s subscribe to.
+ * Each published event is serialized once and the same bytes are queued on every stream.
+ * <p>
+ * Events get increasing ids, unique across all channels and, as they start from the clock,
+ * across restarts. The channel keeps the last events, so a client that reconnects with the
+ * id it saw last in <code>Last-Event-ID</code> gets what it missed before the new events.
+ */
+public final class EventChannel {
+    public static final int DEFAULT_HISTORY = 100;
+
+    private static final AtomicLong SEQUENCE = new AtomicLong(System.currentTimeMillis() * 1000);
+
+    private final String name;
+    private final int history;
+    private final Set<EventStream> subscribers = ConcurrentHashMap.newKeySet();
+    // guarded by this, the last events in the order they were published
+    private final ArrayDeque<EventStream.Event> recent = new ArrayDeque<>();
+
+    public EventChannel(String name) {
+        this(name, DEFAULT_HISTORY);
+    }
+
+    /**
+     * @param history how many of the last events are kept for clients that reconnect, <code>0</code> for none
+     */
+    public EventChannel(String name, int history) {
+        if (history < 0) {
+            throw new IllegalArgumentException("history must not be negative, got " + history);
+        }
+        this.name = name;
+        this.history = history;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    /**
+     * @return the number of subscribed streams
+     */
+    public int size() {
+        return subscribers.size();
+    }
+
+    public void publish(String data) {
+        publish(null, data);
+    }
+
+    /**
+     * Queues the event on every subscribed stream without waiting for any of them.
+     *
+     * @param event the <code>event</code> field, <code>null</code> for the default <code>message</code> event
+     */
+    public synchronized void publish(String event, String data) {
+        EventStream.Event serialized = EventStream.event(SEQUENCE.incrementAndGet(), event, data);
+        if (history > 0) {
+            if (recent.size() == history) {
+                recent.removeFirst();
+            }
+            recent.addLast(serialized);
+        }
+        for (EventStream stream : subscribers) {
+            stream.enqueue(serialized.bytes);
+        }
+    }
+
+    /**
+     * Adds the stream after replaying the events it missed, without a publish in between.
+     */
+    synchronized void subscribe(EventStream stream, String lastEventId) {
+        long last = parseId(lastEventId);
+        if (last >= 0) {
+            for (EventStream.Event event : recent) {
+                if (event.sequence > last) {
+                    stream.enqueue(event.bytes);
+                }
+            }
+        }
+        subscribers.add(stream);
+        if (!stream.isOpen()) {
+            // the stream ended while it subscribed
+            subscribers.remove(stream);
+        }
+    }
+
+    void unsubscribe(EventStream stream) {
+        subscribers.remove(stream);
+    }
+
+    private static long parseId(String id) {
+        if (id == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(id.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
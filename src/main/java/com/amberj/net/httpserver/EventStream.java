@@ -0,0 +1,293 @@
+package com.amberj.net.httpserver;
+
+import com.amberj.net.http.HttpRequest;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One client of a Server-Sent Events route registered with {@link Server#sse(String, java.util.function.BiConsumer)}.
+ * <p>
+ * Events are queued and written by the thread of the request, which stays with the stream
+ * until the client goes away or {@link #close()} is called. Sending never blocks: a client
+ * that falls {@link Options#bufferSize()} events behind loses events or is disconnected,
+ * see {@link WhenFull}. While nothing is sent a comment goes out every
+ * {@link Options#heartbeat()}, which keeps proxies from closing the connection and notices
+ * clients that are gone.
+ */
+public final class EventStream {
+    private static final byte[] HEARTBEAT = ": heartbeat\n\n".getBytes(StandardCharsets.US_ASCII);
+    // marker in the queue that ends the stream
+    private static final byte[] END = new byte[0];
+
+    /**
+     * What happens to an event for a client whose buffer is full.
+     */
+    public enum WhenFull {
+        /** the event is dropped and counted, see {@link #dropped()} */
+        DROP,
+        /** the client is disconnected, it reconnects and resumes with <code>Last-Event-ID</code> */
+        DISCONNECT
+    }
+
+    /**
+     * @param heartbeat  how long the stream may stay silent before a comment is sent
+     * @param bufferSize events queued for a client before {@link WhenFull} applies
+     * @param whenFull   what happens to a client that falls behind
+     */
+    public record Options(Duration heartbeat, int bufferSize, WhenFull whenFull) {
+        public Options {
+            if (heartbeat.isNegative() || heartbeat.isZero() || bufferSize < 1) {
+                throw new IllegalArgumentException("Expected a positive heartbeat and buffer size, got " + heartbeat + ", " + bufferSize);
+            }
+        }
+
+        /**
+         * A heartbeat every 15 seconds, 256 events per client, slow clients are disconnected.
+         */
+        public static Options defaults() {
+            return new Options(Duration.ofSeconds(15), 256, WhenFull.DISCONNECT);
+        }
+    }
+
+    /**
+     * An event serialized once, to be sent to any number of streams without copying it.
+     */
+    public static final class Event {
+        final long sequence;
+        final byte[] bytes;
+
+        private Event(long sequence, byte[] bytes) {
+            this.sequence = sequence;
+            this.bytes = bytes;
+        }
+    }
+
+    private final HttpRequest request;
+    private final Options options;
+    private final BlockingQueue<byte[]> queue;
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean closed;
+
+    // guarded by this
+    private final List<EventChannel> channels = new ArrayList<>(2);
+
+    EventStream(HttpRequest request, Options options) {
+        this.request = request;
+        this.options = options;
+        this.queue = new LinkedBlockingQueue<>(options.bufferSize());
+    }
+
+    public static Event event(String data) {
+        return event(null, null, data);
+    }
+
+    public static Event event(String name, String data) {
+        return event(null, name, data);
+    }
+
+    /**
+     * @param id   sent as the <code>id</code> field, which the client sends back in <code>Last-Event-ID</code>
+     *             when it reconnects. <code>null</code> for none
+     * @param name the <code>event</code> field, <code>null</code> for the default <code>message</code> event
+     * @param data the <code>data</code>, sent as one field per line
+     */
+    public static Event event(String id, String name, String data) {
+        return new Event(-1, serialize(id, name, data));
+    }
+
+    /**
+     * An event of a channel, whose id is its sequence number.
+     */
+    static Event event(long sequence, String name, String data) {
+        return new Event(sequence, serialize(Long.toString(sequence), name, data));
+    }
+
+    private static byte[] serialize(String id, String name, String data) {
+        var text = new StringBuilder(data.length() + 32);
+        if (id != null) {
+            text.append("id: ").append(field("id", id)).append('\n');
+        }
+        if (name != null) {
+            text.append("event: ").append(field("name", name)).append('\n');
+        }
+        int start = 0;
+        for (int i = 0; i < data.length(); i++) {
+            char c = data.charAt(i);
+            if (c == '\n' || c == '\r') {
+                text.append("data: ").append(data, start, i).append('\n');
+                if (c == '\r' && i + 1 < data.length() && data.charAt(i + 1) == '\n') {
+                    i++;
+                }
+                start = i + 1;
+            }
+        }
+        text.append("data: ").append(data, start, data.length()).append("\n\n");
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String field(String field, String value) {
+        if (value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0) {
+            throw new IllegalArgumentException("The " + field + " of an event must be a single line");
+        }
+        return value;
+    }
+
+    /**
+     * @return the request that opened the stream, with its path parameters, headers and cookies
+     */
+    public HttpRequest request() {
+        return request;
+    }
+
+    /**
+     * @return the <code>Last-Event-ID</code> a reconnecting client sent, <code>null</code> on its first connection
+     */
+    public String lastEventId() {
+        return request.header("Last-Event-ID");
+    }
+
+    /**
+     * @return <code>false</code> once the stream was closed or the client went away
+     */
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    /**
+     * @return events dropped because the client fell behind, with {@link WhenFull#DROP}
+     */
+    public long dropped() {
+        return dropped.get();
+    }
+
+    public void send(String data) {
+        send(event(data));
+    }
+
+    public void send(String name, String data) {
+        send(event(name, data));
+    }
+
+    public void send(Event event) {
+        enqueue(event.bytes);
+    }
+
+    /**
+     * Sends the events of the channel from now on. A client that reconnects with a
+     * <code>Last-Event-ID</code> of the channel first gets the events it missed, as far as
+     * the channel still has them.
+     */
+    public void subscribe(EventChannel channel) {
+        synchronized (this) {
+            if (closed || channels.contains(channel)) {
+                return;
+            }
+            channels.add(channel);
+        }
+        channel.subscribe(this, lastEventId());
+    }
+
+    public void unsubscribe(EventChannel channel) {
+        synchronized (this) {
+            channels.remove(channel);
+        }
+        channel.unsubscribe(this);
+    }
+
+    /**
+     * Ends the stream once the events queued so far are written.
+     */
+    public void close() {
+        if (!closed) {
+            closed = true;
+            end();
+        }
+    }
+
+    void enqueue(byte[] event) {
+        if (closed) {
+            return;
+        }
+        if (!queue.offer(event)) {
+            if (options.whenFull() == WhenFull.DROP) {
+                dropped.incrementAndGet();
+            } else {
+                disconnect();
+            }
+        }
+    }
+
+    /**
+     * Ends the stream right away, dropping what is queued.
+     */
+    private void disconnect() {
+        closed = true;
+        queue.clear();
+        end();
+        // the writing thread may be stuck on the client for a while, channels stop sending right away
+        leaveChannels();
+    }
+
+    private void end() {
+        // events of senders that got past the closed check may still be arriving
+        while (!queue.offer(END)) {
+            queue.poll();
+        }
+    }
+
+    /**
+     * Writes events until the stream is closed, on the thread of the request.
+     */
+    void run(OutputStream out) throws IOException {
+        long heartbeat = options.heartbeat().toNanos();
+        try {
+            out.flush();
+            while (true) {
+                byte[] event;
+                try {
+                    event = queue.poll(heartbeat, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for events");
+                }
+                if (event == null) {
+                    out.write(HEARTBEAT);
+                } else {
+                    // everything queued goes out with one flush
+                    for (; event != null; event = queue.poll()) {
+                        if (event == END) {
+                            out.flush();
+                            return;
+                        }
+                        out.write(event);
+                    }
+                }
+                out.flush();
+            }
+        } finally {
+            closed = true;
+            leaveChannels();
+        }
+    }
+
+    private void leaveChannels() {
+        List<EventChannel> subscribed;
+        synchronized (this) {
+            subscribed = List.copyOf(channels);
+            channels.clear();
+        }
+        for (EventChannel channel : subscribed) {
+            channel.unsubscribe(this);
+        }
+    }
+}
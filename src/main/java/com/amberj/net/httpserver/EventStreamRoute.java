@@ -0,0 +1,50 @@
+package com.amberj.net.httpserver;
+
+import com.amberj.net.http.HttpRequest;
+import com.amberj.net.http.HttpResponse;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.function.BiConsumer;
+
+/**
+ * Handler of a Server-Sent Events route: lets the handler of the application subscribe the
+ * stream to its channels, sends the headers and writes events until the stream ends. The
+ * body goes out as it is, a compressed event stream would need a deflater per client.
+ */
+final class EventStreamRoute implements BiConsumer<HttpRequest, HttpResponse> {
+    private final BiConsumer<HttpRequest, EventStream> handler;
+    private final EventStream.Options options;
+
+    EventStreamRoute(BiConsumer<HttpRequest, EventStream> handler, EventStream.Options options) {
+        this.handler = handler;
+        this.options = options;
+    }
+
+    @Override
+    public void accept(HttpRequest request, HttpResponse response) {
+        var stream = new EventStream(request, options);
+        handler.accept(request, stream);
+
+        HttpExchange exchange = response.getExchange();
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+        exchange.getResponseHeaders().set("Cache-Control", "no-store");
+        // keeps reverse proxies like nginx from buffering the stream
+        exchange.getResponseHeaders().set("X-Accel-Buffering", "no");
+        try {
+            if ("HEAD".equalsIgnoreCase(request.method())) {
+                stream.close();
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, 0);
+            stream.run(exchange.getResponseBody());
+        } catch (IOException e) {
+            if (stream.isOpen()) {
+                throw new UncheckedIOException(e);
+            }
+            // the client went away, which is how most streams end
+        }
+    }
+}
@@ -1,7 +1,7 @@
 package com.amberj.net.httpserver;
 
 import com.amberj.net.http.HttpRequest;
-import com.dslplatform.json.DslJson;
+import com.amberj.net.json.Json;
 import com.sun.net.httpserver.HttpExchange;
 
 import java.io.*;
@@ -9,34 +9,58 @@ import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 
-import static java.lang.System.out;
-
 class HttpRequestUtil {
-    static HttpRequest getHttpRequest(HttpExchange exchange, List<String> paramsList, ArrayList<String> pathParams) throws IOException {
-        Map<String, Object> body;
-        if (exchange.getRequestMethod().equalsIgnoreCase("POST") || exchange.getRequestMethod().equalsIgnoreCase("PUT")) {
-            body = getBody(exchange);
-        } else {
-            body = new HashMap<>();
-        }
-        var params = getPathParams(pathParams, paramsList);
-        var header = getHeader(exchange);
-        var cookies = getCookiesFromHeader(header);
-        var queryParams = getQueryParams(exchange);
+    /**
+     * @param limits size limits of <code>multipart/form-data</code> bodies
+     */
+    static HttpRequest.Parser parser(MultipartFormDataParser.Limits limits) {
+        return new HttpRequest.Parser() {
+            @Override
+            public Map<String, Object> body(HttpExchange exchange) throws IOException {
+                String method = exchange.getRequestMethod();
+                if (method.equalsIgnoreCase("POST") || method.equalsIgnoreCase("PUT") || method.equalsIgnoreCase("PATCH")) {
+                    return getBody(exchange, limits);
+                }
+                return new HashMap<>();
+            }
+
+            @Override
+            public Map<String, List<String>> queryParams(String rawQuery) {
+                return getQueryParams(rawQuery);
+            }
+
+            @Override
+            public Map<String, String> cookies(List<String> cookieHeaders) {
+                return getCookies(cookieHeaders);
+            }
+        };
+    }
 
-        return new HttpRequest(body, params, queryParams, header, cookies, exchange.getRequestMethod(), exchange.getRequestURI());
+    /**
+     * Wraps the exchange without reading anything from it, see {@link HttpRequest}.
+     */
+    static HttpRequest getHttpRequest(HttpExchange exchange, Map<String, String> params, HttpRequest.Parser parser) {
+        return new HttpRequest(exchange, params, parser);
     }
 
-    private static Map<String, Object> getBody(HttpExchange exchange) throws IOException {
+    /**
+     * @param deadlineNanos <code>System.nanoTime()</code> the route's timeout ends at
+     */
+    static HttpRequest getHttpRequest(HttpExchange exchange, Map<String, String> params, HttpRequest.Parser parser, long deadlineNanos) {
+        return new HttpRequest(exchange, params, parser, deadlineNanos);
+    }
+
+    private static Map<String, Object> getBody(HttpExchange exchange, MultipartFormDataParser.Limits limits) throws IOException {
         var inputStream = exchange.getRequestBody();
-        var contentType = exchange.getRequestHeaders().get("Content-Type");
+        var contentType = exchange.getRequestHeaders().getFirst("Content-Type");
         Map<String, Object> postData;
-        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
         if (contentType == null) {
             return new HashMap<>();
         }
 
-        if (Objects.equals(contentType.getFirst(), "application/x-www-form-urlencoded")) {
+        String mediaType = mediaType(contentType);
+        if (mediaType.equals("application/x-www-form-urlencoded")) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
             String line;
             postData = new HashMap<>();
             while ((line = reader.readLine()) != null) {
@@ -50,36 +74,28 @@ class HttpRequestUtil {
                     }
                 }
             }
-        } else if (Objects.equals(contentType.getFirst(), "application/json")) {
-            DslJson<Object> dslJson = new DslJson<>();
-            StringBuilder jsonString = new StringBuilder();
-            for (var line: reader.lines().toArray()) {
-                jsonString.append(line);
-            }
-            ByteArrayInputStream input = new ByteArrayInputStream(jsonString.toString().getBytes(StandardCharsets.UTF_8));
-            postData = (Map<String, Object>) dslJson.deserialize(Map.class, input, new byte[jsonString.toString().length()]);
-        } else if (contentType.getFirst().startsWith("multipart/form-data")) {
-            postData = MultipartFormDataParser.parseMultipartForm(exchange);
+        } else if (mediaType.equals("application/json")) {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> json = Json.read(inputStream, Map.class);
+            postData = json != null ? json : new HashMap<>();
+        } else if (mediaType.equals("multipart/form-data")) {
+            postData = MultipartFormDataParser.parseRequest(exchange, limits);
         } else {
             postData = new HashMap<>();
         }
         return postData;
     }
 
-    private static Map<String, String> getPathParams(ArrayList<String> pathParams, List<String> params) {
-        var data = new HashMap<String, String>();
-        if (!pathParams.isEmpty()) {
-            for (int i = 0; i < pathParams.size(); i++) {
-                var key = pathParams.get(i).split(":")[0];
-                data.put(key, params.get(i));
-            }
-        }
-        return data;
+    /**
+     * @return the type without parameters, <code>application/json; charset=utf-8</code> becomes <code>application/json</code>
+     */
+    private static String mediaType(String contentType) {
+        int semicolon = contentType.indexOf(';');
+        String type = semicolon == -1 ? contentType : contentType.substring(0, semicolon);
+        return type.trim().toLowerCase(Locale.ROOT);
     }
 
-    private static Map<String, List<String>> getQueryParams(HttpExchange exchange) {
-        var requestUri = exchange.getRequestURI();
-        String query = requestUri.getQuery();
+    private static Map<String, List<String>> getQueryParams(String query) {
         Map<String, List<String>> queryParams = new HashMap<>();
 
         if (query == null || query.isEmpty()) {
@@ -89,7 +105,7 @@ class HttpRequestUtil {
         String[] pairs = query.split("&");
         for (String pair : pairs) {
             int idx = pair.indexOf("=");
-            String key = idx > 0 ? URLDecoder.decode(pair.substring(0, idx), StandardCharsets.UTF_8) : pair;
+            String key = URLDecoder.decode(idx > 0 ? pair.substring(0, idx) : pair, StandardCharsets.UTF_8);
             String value = idx > 0 && pair.length() > idx + 1 ? URLDecoder.decode(pair.substring(idx + 1), StandardCharsets.UTF_8) : null;
 
             queryParams.computeIfAbsent(key, k -> new ArrayList<>()).add(value);
@@ -98,24 +114,17 @@ class HttpRequestUtil {
         return queryParams;
     }
 
-    private static Map<String, List<String>> getHeader(HttpExchange exchange) {
-        var headers = exchange.getRequestHeaders();
-
-        return new HashMap<>(headers);
-    }
-
-    private static Map<String, String> getCookiesFromHeader(Map<String, List<String>> headers) {
+    private static Map<String, String> getCookies(List<String> cookieHeaders) {
         Map<String, String> cookies = new HashMap<>();
 
-        List<String> cookieHeaders = headers.get("Cookie");
         if (cookieHeaders != null) {
             for (String header : cookieHeaders) {
                 String[] cookiePairs = header.split(";");
                 for (String cookie : cookiePairs) {
-                    String[] keyValue = cookie.split("=");
-                    if (keyValue.length == 2) {
-                        String key = keyValue[0].trim();
-                        String value = keyValue[1].trim();
+                    int idx = cookie.indexOf('=');
+                    if (idx > 0) {
+                        String key = cookie.substring(0, idx).trim();
+                        String value = cookie.substring(idx + 1).trim();
                         cookies.put(key, value);
                     }
                 }
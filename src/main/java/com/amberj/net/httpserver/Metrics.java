@@ -0,0 +1,372 @@
+package com.amberj.net.httpserver;
+
+import com.amberj.net.transport.ZeroCopyOutput;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Request counters, latency histograms and byte counts of a server, exposed in the
+ * Prometheus text format.
+ * <p>
+ * Series are labelled with the route pattern as it was registered, never with the raw
+ * path, so the number of series is bounded by the number of routes. Static files are
+ * labelled <code>static</code> and requests no route matched <code>unmatched</code>.
+ * Everything is recorded into {@link LongAdder}s, which stripe updates over cells instead
+ * of making all request threads contend on one counter. Once the series of a route exist,
+ * recording a request allocates nothing but the two stream wrappers counting its bytes.
+ */
+public final class Metrics {
+    public static final String STATIC = "static";
+    public static final String UNMATCHED = "unmatched";
+
+    /** Upper bounds in seconds, the Prometheus client defaults. */
+    public static final double[] DEFAULT_BUCKETS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+    private static final String[] METHODS = {"GET", "HEAD", "POST", "PUT", "DELETE", "PATCH", "OPTIONS", "OTHER"};
+    private static final int MIN_STATUS = 100;
+    private static final int MAX_STATUS = 599;
+
+    private String path = "/metrics";
+    private double[] buckets = DEFAULT_BUCKETS;
+    private long[] bucketNanos = toNanos(DEFAULT_BUCKETS);
+
+    private final Map<String, RouteSeries> routes = new ConcurrentHashMap<>();
+    private final LongAdder inFlight = new LongAdder();
+    private final Map<String, ConcurrencyLimit> limits = new ConcurrentHashMap<>();
+
+    /**
+     * @param path the path the metrics are served on, <code>/metrics</code> by default
+     */
+    public Metrics path(String path) {
+        this.path = path;
+        return this;
+    }
+
+    public String path() {
+        return path;
+    }
+
+    /**
+     * @param buckets upper bounds of the latency histogram in seconds, in ascending order
+     */
+    public Metrics buckets(double... buckets) {
+        double[] sorted = buckets.clone();
+        Arrays.sort(sorted);
+        this.buckets = sorted;
+        this.bucketNanos = toNanos(sorted);
+        return this;
+    }
+
+    private static long[] toNanos(double[] seconds) {
+        long[] nanos = new long[seconds.length];
+        for (int i = 0; i < seconds.length; i++) {
+            nanos[i] = (long) (seconds[i] * TimeUnit.SECONDS.toNanos(1));
+        }
+        return nanos;
+    }
+
+    /**
+     * Called when a request arrives, wraps its streams to count the bytes.
+     *
+     * @return the counters of the request, to be passed to {@link #finished}
+     */
+    Exchange started(HttpExchange exchange) {
+        inFlight.increment();
+        var counted = new Exchange();
+        OutputStream out = exchange.getResponseBody();
+        exchange.setStreams(counted.in(exchange.getRequestBody()),
+                out instanceof ZeroCopyOutput ? counted.zeroCopyOut(out) : counted.out(out));
+        return counted;
+    }
+
+    /**
+     * Called once the response was sent.
+     *
+     * @param route the pattern of the matched route, {@link #STATIC} or {@link #UNMATCHED}
+     */
+    void finished(HttpExchange exchange, Exchange counted, String route, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        inFlight.decrement();
+        RouteSeries series = routes.get(route);
+        if (series == null) {
+            series = routes.computeIfAbsent(route, r -> new RouteSeries(bucketNanos.length));
+        }
+        series.method(methodIndex(exchange.getRequestMethod())).record(exchange.getResponseCode(), nanos,
+                counted.requestBytes, counted.responseBytes, bucketNanos);
+    }
+
+    private static int methodIndex(String method) {
+        for (int i = 0; i < METHODS.length - 1; i++) {
+            if (METHODS[i].equalsIgnoreCase(method)) {
+                return i;
+            }
+        }
+        return METHODS.length - 1;
+    }
+
+    /**
+     * Exports the current value and the rejections of a limit.
+     *
+     * @param name <code>global</code> for the limit of the server, the prefix for the limit of routes
+     */
+    void limit(String name, ConcurrencyLimit limit) {
+        limits.put(name, limit);
+    }
+
+    /**
+     * @return every metric in the Prometheus text exposition format 0.0.4
+     */
+    public String scrape() {
+        var out = new StringBuilder(4096);
+        var names = new ArrayList<>(routes.keySet());
+        names.sort(Comparator.naturalOrder());
+
+        out.append("# HELP http_server_requests_in_flight Requests currently being handled.\n");
+        out.append("# TYPE http_server_requests_in_flight gauge\n");
+        out.append("http_server_requests_in_flight ").append(inFlight.sum()).append('\n');
+
+        out.append("# HELP http_server_requests_total Requests handled, by route, method and status.\n");
+        out.append("# TYPE http_server_requests_total counter\n");
+        forEach(names, (route, method, series) -> {
+            for (int i = 0; i < series.statuses.length(); i++) {
+                LongAdder count = series.statuses.get(i);
+                if (count != null) {
+                    labels(out.append("http_server_requests_total"), route, method)
+                            .append(",status=\"").append(statusLabel(i)).append("\"} ").append(count.sum()).append('\n');
+                }
+            }
+        });
+
+        out.append("# HELP http_server_request_duration_seconds Time from the request arriving to the response being sent.\n");
+        out.append("# TYPE http_server_request_duration_seconds histogram\n");
+        forEach(names, (route, method, series) -> {
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                cumulative += series.buckets[i].sum();
+                labels(out.append("http_server_request_duration_seconds_bucket"), route, method)
+                        .append(",le=\"").append(buckets[i]).append("\"} ").append(cumulative).append('\n');
+            }
+            cumulative += series.buckets[series.buckets.length - 1].sum();
+            labels(out.append("http_server_request_duration_seconds_bucket"), route, method)
+                    .append(",le=\"+Inf\"} ").append(cumulative).append('\n');
+            labels(out.append("http_server_request_duration_seconds_sum"), route, method)
+                    .append("} ").append(series.nanos.sum() / 1e9).append('\n');
+            labels(out.append("http_server_request_duration_seconds_count"), route, method)
+                    .append("} ").append(cumulative).append('\n');
+        });
+
+        out.append("# HELP http_server_request_bytes_total Bytes of request bodies read.\n");
+        out.append("# TYPE http_server_request_bytes_total counter\n");
+        forEach(names, (route, method, series) -> labels(out.append("http_server_request_bytes_total"), route, method)
+                .append("} ").append(series.requestBytes.sum()).append('\n'));
+
+        out.append("# HELP http_server_response_bytes_total Bytes of response bodies written.\n");
+        out.append("# TYPE http_server_response_bytes_total counter\n");
+        forEach(names, (route, method, series) -> labels(out.append("http_server_response_bytes_total"), route, method)
+                .append("} ").append(series.responseBytes.sum()).append('\n'));
+
+        if (!limits.isEmpty()) {
+            var limitNames = new ArrayList<>(limits.keySet());
+            limitNames.sort(Comparator.naturalOrder());
+            out.append("# HELP http_server_concurrency_limit Requests a limit lets through at the same time.\n");
+            out.append("# TYPE http_server_concurrency_limit gauge\n");
+            for (String name : limitNames) {
+                escape(out.append("http_server_concurrency_limit{limit=\""), name)
+                        .append("\"} ").append(limits.get(name).limit()).append('\n');
+            }
+            out.append("# HELP http_server_requests_rejected_total Requests answered with 503 because a limit was reached.\n");
+            out.append("# TYPE http_server_requests_rejected_total counter\n");
+            for (String name : limitNames) {
+                escape(out.append("http_server_requests_rejected_total{limit=\""), name)
+                        .append("\"} ").append(limits.get(name).rejected()).append('\n');
+            }
+        }
+        return out.toString();
+    }
+
+    private void forEach(List<String> names, SeriesConsumer consumer) {
+        for (String route : names) {
+            RouteSeries routeSeries = routes.get(route);
+            for (int m = 0; m < METHODS.length; m++) {
+                MethodSeries series = routeSeries.methods.get(m);
+                if (series != null) {
+                    consumer.accept(route, METHODS[m], series);
+                }
+            }
+        }
+    }
+
+    private static String statusLabel(int index) {
+        int status = index + MIN_STATUS - 1;
+        return status < MIN_STATUS ? "none" : Integer.toString(status);
+    }
+
+    private static StringBuilder labels(StringBuilder out, String route, String method) {
+        out.append("{method=\"").append(method).append("\",route=\"");
+        return escape(out, route).append('"');
+    }
+
+    private static StringBuilder escape(StringBuilder out, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\' -> out.append("\\\\");
+                case '"' -> out.append("\\\"");
+                case '\n' -> out.append("\\n");
+                default -> out.append(c);
+            }
+        }
+        return out;
+    }
+
+    @FunctionalInterface
+    private interface SeriesConsumer {
+        void accept(String route, String method, MethodSeries series);
+    }
+
+    private static final class RouteSeries {
+        final AtomicReferenceArray<MethodSeries> methods = new AtomicReferenceArray<>(METHODS.length);
+        final int bucketCount;
+
+        RouteSeries(int bucketCount) {
+            this.bucketCount = bucketCount;
+        }
+
+        MethodSeries method(int index) {
+            MethodSeries series = methods.get(index);
+            if (series == null) {
+                methods.compareAndSet(index, null, new MethodSeries(bucketCount));
+                series = methods.get(index);
+            }
+            return series;
+        }
+    }
+
+    private static final class MethodSeries {
+        // index 0 counts responses that never got a status, e.g. when the client went away
+        final AtomicReferenceArray<LongAdder> statuses = new AtomicReferenceArray<>(MAX_STATUS - MIN_STATUS + 2);
+        final LongAdder[] buckets;
+        final LongAdder nanos = new LongAdder();
+        final LongAdder requestBytes = new LongAdder();
+        final LongAdder responseBytes = new LongAdder();
+
+        MethodSeries(int bucketCount) {
+            buckets = new LongAdder[bucketCount + 1];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(int status, long nanos, long requestBytes, long responseBytes, long[] bounds) {
+            int index = status < MIN_STATUS || status > MAX_STATUS ? 0 : status - MIN_STATUS + 1;
+            LongAdder count = statuses.get(index);
+            if (count == null) {
+                statuses.compareAndSet(index, null, new LongAdder());
+                count = statuses.get(index);
+            }
+            count.increment();
+
+            // the bucket after the last bound is +Inf
+            int bucket = 0;
+            while (bucket < bounds.length && nanos > bounds[bucket]) {
+                bucket++;
+            }
+            buckets[bucket].increment();
+            this.nanos.add(nanos);
+            this.requestBytes.add(requestBytes);
+            this.responseBytes.add(responseBytes);
+        }
+    }
+
+    /**
+     * Bytes read and written by one request. Each count has one writer, but with a handler
+     * timeout that is the handler's thread, not the request's thread that reads the counts,
+     * and a timed out handler may still be reading when the server answered for it.
+     */
+    static final class Exchange {
+        volatile long requestBytes;
+        volatile long responseBytes;
+
+        InputStream in(InputStream in) {
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b != -1) {
+                        requestBytes++;
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n > 0) {
+                        requestBytes += n;
+                    }
+                    return n;
+                }
+
+                @Override
+                public long skip(long n) throws IOException {
+                    long skipped = super.skip(n);
+                    requestBytes += skipped;
+                    return skipped;
+                }
+            };
+        }
+
+        OutputStream out(OutputStream out) {
+            return new CountingOutputStream(out);
+        }
+
+        OutputStream zeroCopyOut(OutputStream out) {
+            return new ZeroCopyCountingOutputStream(out);
+        }
+
+        private class CountingOutputStream extends FilterOutputStream {
+            CountingOutputStream(OutputStream out) {
+                super(out);
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                responseBytes++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                responseBytes += len;
+            }
+        }
+
+        private final class ZeroCopyCountingOutputStream extends CountingOutputStream implements ZeroCopyOutput {
+            ZeroCopyCountingOutputStream(OutputStream out) {
+                super(out);
+            }
+
+            @Override
+            public void transferFrom(FileChannel file, long position, long count) throws IOException {
+                ((ZeroCopyOutput) out).transferFrom(file, position, count);
+                responseBytes += count;
+            }
+        }
+    }
+}
@@ -3,101 +3,409 @@ import com.sun.net.httpserver.HttpExchange;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Parses <code>multipart/form-data</code> bodies while they are read from the socket.
+ * <p>
+ * The parser works on bytes: boundaries are found with a Boyer-Moore-Horspool search in
+ * a fixed buffer, and everything in front of a boundary is handed on as soon as it is
+ * known not to be part of one. Fields are collected in memory as <code>String</code>s,
+ * file parts are streamed into temp files with unique names. So the heap needed for an
+ * upload does not depend on its size, and the {@link Limits} are checked while reading.
+ * <p>
+ * For requests parsed by the server the temp files belong to the request and are deleted
+ * once the response was sent, a handler that wants to keep an upload moves it somewhere
+ * else. Callers of {@link #parseMultipartForm(HttpExchange, Limits)} own the files.
+ */
 public class MultipartFormDataParser {
+    // temp files per exchange of requests parsed by the server, exchange attributes are shared by the JDK server
+    private static final Map<HttpExchange, List<Path>> UPLOADS = new ConcurrentHashMap<>();
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_HEADER_SIZE = 16 * 1024;
+
+    /**
+     * Size limits of a multipart body.
+     *
+     * @param maxFieldSize largest form field, fields are held in memory
+     * @param maxFileSize  largest uploaded file
+     * @param maxTotalSize largest body, all parts and their headers together
+     */
+    public record Limits(long maxFieldSize, long maxFileSize, long maxTotalSize) {
+        /**
+         * 1 MB per field, 1 GB per file and in total.
+         */
+        public static Limits defaults() {
+            return new Limits(1024 * 1024, 1024L * 1024 * 1024, 1024L * 1024 * 1024);
+        }
+    }
+
+    /**
+     * Thrown when a part or the whole body is larger than its limit, answered with <code>413</code>.
+     */
+    public static class LimitExceededException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public LimitExceededException(String message) {
+            super(message);
+        }
+    }
 
     public static Map<String, Object> parseMultipartForm(HttpExchange exchange) throws IOException {
+        return parseMultipartForm(exchange, Limits.defaults());
+    }
+
+    /**
+     * @return form fields as <code>String</code>s and uploads as <code>File</code>s, by field name
+     */
+    public static Map<String, Object> parseMultipartForm(HttpExchange exchange, Limits limits) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try {
+            return parse(exchange, limits, files);
+        } catch (IOException | RuntimeException e) {
+            delete(files);
+            throw e;
+        }
+    }
+
+    /**
+     * Parses the body of a request handled by the server, its temp files are deleted by {@link #deleteTempFiles(HttpExchange)}.
+     */
+    static Map<String, Object> parseRequest(HttpExchange exchange, Limits limits) throws IOException {
+        List<Path> files = new ArrayList<>();
+        UPLOADS.put(exchange, files);
+        return parse(exchange, limits, files);
+    }
+
+    private static Map<String, Object> parse(HttpExchange exchange, Limits limits, List<Path> files) throws IOException {
         String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
-        if (contentType == null || !contentType.startsWith("multipart/form-data")) {
+        if (contentType == null || !contentType.toLowerCase(Locale.ROOT).startsWith("multipart/form-data")) {
             throw new IllegalArgumentException("Request is not multipart/form-data");
         }
 
         String boundary = extractBoundary(contentType);
-        byte[] requestBody = readRequestBody(exchange);
+        var reader = new PartReader(exchange.getRequestBody(), boundary, limits.maxTotalSize());
+        Map<String, Object> formData = new HashMap<>();
 
-        return parseParts(new String(requestBody, StandardCharsets.UTF_8), boundary);
+        if (!reader.skipPreamble()) {
+            return formData;
+        }
+        while (reader.nextPart()) {
+            String disposition = null;
+            for (String header : reader.readHeaders()) {
+                int colon = header.indexOf(':');
+                if (colon > 0 && header.substring(0, colon).trim().equalsIgnoreCase("Content-Disposition")) {
+                    disposition = header.substring(colon + 1);
+                }
+            }
+            String fieldName = disposition == null ? null : parameter(disposition, "name");
+            String fileName = disposition == null ? null : parameter(disposition, "filename");
+
+            if (fieldName == null || (fileName != null && fileName.isEmpty())) {
+                // unnamed parts and file inputs without a selected file
+                reader.readBody(OutputStream.nullOutputStream(), limits.maxFileSize(), "File");
+            } else if (fileName == null) {
+                var value = new ByteArrayOutputStream();
+                reader.readBody(value, limits.maxFieldSize(), "Field " + fieldName);
+                formData.put(fieldName, value.toString(StandardCharsets.UTF_8));
+            } else {
+                Path file = Files.createTempFile("upload-", "-" + safeFileName(fileName));
+                files.add(file);
+                try (OutputStream out = Files.newOutputStream(file)) {
+                    reader.readBody(out, limits.maxFileSize(), "File " + fieldName);
+                }
+                formData.put(fieldName, file.toFile());
+            }
+        }
+        return formData;
     }
 
     private static String extractBoundary(String contentType) {
-        String[] parts = contentType.split(";");
-        for (String part : parts) {
-            part = part.trim();
-            if (part.startsWith("boundary=")) {
-                return part.substring(9);
+        String boundary = parameter(contentType, "boundary");
+        if (boundary == null || boundary.isEmpty() || boundary.length() > 200) {
+            throw new IllegalArgumentException("Content-Type does not contain boundary");
+        }
+        return boundary;
+    }
+
+    /**
+     * Reads a parameter of a header value such as <code>form-data; name="a"; filename="b.txt"</code>,
+     * quoted or not.
+     */
+    static String parameter(String header, String name) {
+        int i = header.indexOf(';');
+        while (i != -1 && i < header.length()) {
+            int start = i + 1;
+            int eq = header.indexOf('=', start);
+            if (eq == -1) {
+                return null;
+            }
+            String key = header.substring(start, eq).trim();
+            int valueStart = eq + 1;
+            while (valueStart < header.length() && header.charAt(valueStart) == ' ') {
+                valueStart++;
+            }
+            String value;
+            int next;
+            if (valueStart < header.length() && header.charAt(valueStart) == '"') {
+                var quoted = new StringBuilder();
+                int j = valueStart + 1;
+                while (j < header.length() && header.charAt(j) != '"') {
+                    char c = header.charAt(j);
+                    if (c == '\\' && j + 1 < header.length()) {
+                        c = header.charAt(++j);
+                    }
+                    quoted.append(c);
+                    j++;
+                }
+                value = quoted.toString();
+                next = header.indexOf(';', j);
+            } else {
+                next = header.indexOf(';', valueStart);
+                value = header.substring(valueStart, next == -1 ? header.length() : next).trim();
             }
+            if (key.equalsIgnoreCase(name)) {
+                return value;
+            }
+            i = next;
         }
-        throw new IllegalArgumentException("Content-Type does not contain boundary");
+        return null;
     }
 
-    private static Map<String, Object> parseParts(String body, String boundary) throws IOException {
-        Map<String, Object> formData = new HashMap<>();
-        String[] parts = body.split("--" + boundary);
+    /**
+     * Keeps the last path segment of a client supplied name and only harmless characters,
+     * the name becomes the suffix of the temp file.
+     */
+    private static String safeFileName(String fileName) {
+        String name = fileName.substring(Math.max(fileName.lastIndexOf('/'), fileName.lastIndexOf('\\')) + 1);
+        var safe = new StringBuilder();
+        for (int i = 0; i < name.length() && safe.length() < 64; i++) {
+            char c = name.charAt(i);
+            safe.append(Character.isLetterOrDigit(c) || c == '.' || c == '-' || c == '_' ? c : '_');
+        }
+        return safe.toString();
+    }
 
-        for (String part : parts) {
-            if (part.trim().isEmpty() || part.equals("--")) {
-                continue;
+    /**
+     * Deletes the temp files created for the exchange's uploads that were not moved away.
+     */
+    static void deleteTempFiles(HttpExchange exchange) {
+        if (UPLOADS.isEmpty()) {
+            return;
+        }
+        List<Path> files = UPLOADS.remove(exchange);
+        if (files != null) {
+            delete(files);
+        }
+    }
+
+    private static void delete(List<Path> files) {
+        for (Path file : files) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ignored) {
             }
+        }
+    }
+
+    /**
+     * Reads the parts of a body through one buffer. Position <code>pos</code> to
+     * <code>limit</code> are the bytes read but not consumed yet.
+     */
+    private static final class PartReader {
+        private final InputStream in;
+        private final byte[] delimiter;
+        private final int[] skip;
+        private final byte[] buffer;
+        private final long maxTotalSize;
+        private int pos;
+        private int limit;
+        private long total;
+        private boolean eof;
 
-            int headersEndIndex = part.indexOf("\r\n\r\n");
-            if (headersEndIndex == -1) {
-                continue;
+        PartReader(InputStream in, String boundary, long maxTotalSize) {
+            this.in = in;
+            this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+            this.maxTotalSize = maxTotalSize;
+            this.buffer = new byte[BUFFER_SIZE];
+            this.skip = new int[256];
+            Arrays.fill(skip, delimiter.length);
+            for (int i = 0; i < delimiter.length - 1; i++) {
+                skip[delimiter[i] & 0xff] = delimiter.length - 1 - i;
             }
+            // the first boundary has no line break in front of it
+            buffer[0] = '\r';
+            buffer[1] = '\n';
+            limit = 2;
+        }
 
-            String headersPart = part.substring(0, headersEndIndex);
-            String bodyPart = part.substring(headersEndIndex + 4).trim();
+        private boolean fill() throws IOException {
+            if (eof) {
+                return false;
+            }
+            if (pos > 0) {
+                System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+                limit -= pos;
+                pos = 0;
+            }
+            if (limit == buffer.length) {
+                throw new IOException("Multipart header line too long");
+            }
+            int n = in.read(buffer, limit, buffer.length - limit);
+            if (n == -1) {
+                eof = true;
+                return false;
+            }
+            total += n;
+            if (total > maxTotalSize) {
+                throw new LimitExceededException("Request body is larger than " + maxTotalSize + " bytes");
+            }
+            limit += n;
+            return true;
+        }
 
-            String[] headers = headersPart.split("\r\n");
-            String fieldName = null;
-            String fileName = null;
-            for (String header : headers) {
-                if (header.startsWith("Content-Disposition:")) {
-                    String[] elements = header.split(";");
-                    for (String element : elements) {
-                        element = element.trim();
-                        if (element.startsWith("name=\"")) {
-                            fieldName = element.substring(6, element.length() - 1);
-                        } else if (element.startsWith("filename=\"")) {
-                            fileName = element.substring(10, element.length() - 1);
-                        }
-                    }
+        private boolean ensure(int bytes) throws IOException {
+            while (limit - pos < bytes) {
+                if (!fill()) {
+                    return false;
                 }
             }
+            return true;
+        }
 
-            if (fieldName != null) {
-                if (fileName == null) {
-                    // This is a form field
-                    formData.put(fieldName, bodyPart);
-                } else {
-                    // This is a file field
-                    // Save the file with its original name
-                    File file = saveFile(bodyPart, fileName);
-                    formData.put(fieldName, file);
+        /**
+         * @return the start of the next delimiter in the buffer or <code>-1</code>
+         */
+        private int findDelimiter() {
+            int last = delimiter.length - 1;
+            int i = pos;
+            while (i + last < limit) {
+                int j = last;
+                while (j >= 0 && buffer[i + j] == delimiter[j]) {
+                    j--;
+                }
+                if (j < 0) {
+                    return i;
                 }
+                i += skip[buffer[i + last] & 0xff];
             }
+            return -1;
         }
 
-        return formData;
-    }
+        /**
+         * Skips everything up to and including the first boundary.
+         *
+         * @return <code>false</code> if the body has no boundary at all
+         */
+        boolean skipPreamble() throws IOException {
+            return readBody(OutputStream.nullOutputStream(), Long.MAX_VALUE, null);
+        }
 
-    private static File saveFile(String fileContent, String fileName) throws IOException {
-        File file = new File(System.getProperty("java.io.tmpdir"), fileName);
-        file.deleteOnExit();
-        try (FileOutputStream fos = new FileOutputStream(file)) {
-            fos.write(fileContent.getBytes());
+        /**
+         * Consumes what follows a boundary.
+         *
+         * @return <code>true</code> if a part follows, <code>false</code> after the closing boundary
+         */
+        boolean nextPart() throws IOException {
+            if (!ensure(2)) {
+                throw new EOFException("Multipart body ends after a boundary");
+            }
+            if (buffer[pos] == '-' && buffer[pos + 1] == '-') {
+                pos += 2;
+                return false;
+            }
+            while (true) {
+                if (!ensure(2)) {
+                    throw new EOFException("Multipart body ends after a boundary");
+                }
+                if (buffer[pos] == '\r' && buffer[pos + 1] == '\n') {
+                    pos += 2;
+                    return true;
+                }
+                if (buffer[pos] != ' ' && buffer[pos] != '\t') {
+                    throw new IOException("Malformed multipart boundary");
+                }
+                pos++;
+            }
         }
-        return file;
-    }
 
-    private static byte[] readRequestBody(HttpExchange exchange) throws IOException {
-        InputStream inputStream = exchange.getRequestBody();
-        ByteArrayOutputStream result = new ByteArrayOutputStream();
-        byte[] buffer = new byte[1024];
-        int length;
-        while ((length = inputStream.read(buffer)) != -1) {
-            result.write(buffer, 0, length);
+        /**
+         * @return the header lines of the current part
+         */
+        List<String> readHeaders() throws IOException {
+            List<String> headers = new ArrayList<>(2);
+            int size = 0;
+            while (true) {
+                int end = -1;
+                int from = pos;
+                while (end == -1) {
+                    for (int i = from; i + 1 < limit; i++) {
+                        if (buffer[i] == '\r' && buffer[i + 1] == '\n') {
+                            end = i;
+                            break;
+                        }
+                    }
+                    if (end == -1) {
+                        from = Math.max(pos, limit - 1);
+                        int consumed = pos;
+                        if (!fill()) {
+                            throw new EOFException("Multipart body ends inside the part headers");
+                        }
+                        from -= consumed - pos;
+                    }
+                }
+                size += end - pos + 2;
+                if (size > MAX_HEADER_SIZE) {
+                    throw new LimitExceededException("Multipart headers are larger than " + MAX_HEADER_SIZE + " bytes");
+                }
+                String line = new String(buffer, pos, end - pos, StandardCharsets.UTF_8);
+                pos = end + 2;
+                if (line.isEmpty()) {
+                    return headers;
+                }
+                headers.add(line);
+            }
+        }
+
+        /**
+         * Copies the current part's body to <code>out</code> and consumes the boundary behind it.
+         *
+         * @param what names the part in the error message, <code>null</code> for the preamble
+         * @return <code>false</code> if the body ended before a boundary, which is only allowed for the preamble
+         */
+        boolean readBody(OutputStream out, long max, String what) throws IOException {
+            long written = 0;
+            while (true) {
+                int found = findDelimiter();
+                int end = found != -1 ? found : Math.max(pos, limit - delimiter.length + 1);
+                int length = end - pos;
+                if (length > 0) {
+                    written += length;
+                    if (written > max) {
+                        throw new LimitExceededException(what + " is larger than " + max + " bytes");
+                    }
+                    out.write(buffer, pos, length);
+                    pos = end;
+                }
+                if (found != -1) {
+                    pos += delimiter.length;
+                    return true;
+                }
+                if (!fill()) {
+                    if (what == null) {
+                        return false;
+                    }
+                    throw new EOFException("Multipart body ends inside a part");
+                }
+            }
         }
-        return result.toByteArray();
     }
 }
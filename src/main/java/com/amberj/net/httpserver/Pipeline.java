@@ -0,0 +1,156 @@
+package com.amberj.net.httpserver;
+
+import com.amberj.net.http.HttpRequest;
+import com.amberj.net.http.HttpResponse;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * The middleware of one route followed by its handler, resolved once when the router is
+ * built. Running it allocates a single cursor that walks the array, instead of a closure
+ * per middleware and request. The concurrency limit and timeout of the route are resolved along with it.
+ */
+final class Pipeline {
+    private final TriConsumer<HttpRequest, HttpResponse, Next>[] middlewares;
+    private final BiConsumer<HttpRequest, HttpResponse> handler;
+    private final Limit limit;
+    private final long timeoutNanos;
+    private final boolean stream;
+
+    @SuppressWarnings("unchecked")
+    private Pipeline(List<TriConsumer<HttpRequest, HttpResponse, Next>> middlewares, BiConsumer<HttpRequest, HttpResponse> handler,
+                     Limit limit, long timeoutNanos) {
+        this.middlewares = middlewares.toArray(TriConsumer[]::new);
+        this.handler = handler;
+        this.limit = limit;
+        this.timeoutNanos = timeoutNanos;
+        this.stream = handler instanceof EventStreamRoute;
+    }
+
+    /**
+     * @param pattern     the pattern the route was registered with
+     * @param middlewares all middleware in the order it runs, those whose prefix does not cover the route are left out
+     * @param limits      concurrency limits by prefix, the route gets the one with the longest prefix covering it
+     * @param timeouts    handler timeouts by prefix, the route gets the one with the longest prefix covering it.
+     *                    Event streams run for as long as the client listens and get none
+     */
+    static Pipeline of(String pattern, List<Middleware> middlewares, List<Limit> limits, List<Timeout> timeouts,
+                       BiConsumer<HttpRequest, HttpResponse> handler) {
+        var applicable = new ArrayList<TriConsumer<HttpRequest, HttpResponse, Next>>(middlewares.size());
+        List<String> segments = Router.segments(pattern);
+        for (Middleware middleware : middlewares) {
+            if (covers(middleware.prefix(), segments)) {
+                applicable.add(middleware.middleware());
+            }
+        }
+        Limit limit = mostSpecific(limits, Limit::prefix, segments);
+        Timeout timeout = handler instanceof EventStreamRoute ? null : mostSpecific(timeouts, Timeout::prefix, segments);
+        return new Pipeline(applicable, handler, limit, timeout != null ? timeout.timeout().toNanos() : 0);
+    }
+
+    /**
+     * @return the concurrency limit of the route, <code>null</code> if it has none
+     */
+    Limit limit() {
+        return limit;
+    }
+
+    /**
+     * @return how long the handler may take, <code>0</code> if it has no timeout
+     */
+    long timeoutNanos() {
+        return timeoutNanos;
+    }
+
+    /**
+     * @return <code>true</code> for an event stream, which holds its request open
+     */
+    boolean isStream() {
+        return stream;
+    }
+
+    void run(HttpRequest request, HttpResponse response) {
+        if (middlewares.length == 0) {
+            handler.accept(request, response);
+        } else {
+            new Cursor(request, response).run();
+        }
+    }
+
+    /**
+     * @param prefix route prefix, <code>null</code> for every route. Matched by whole segments
+     *               against the registered pattern, <code>/api</code> covers <code>/api</code> and
+     *               <code>/api/users/{id}</code> but not <code>/apidocs</code>
+     */
+    private static boolean covers(String prefix, List<String> routeSegments) {
+        if (prefix == null) {
+            return true;
+        }
+        List<String> prefixSegments = Router.segments(prefix);
+        if (prefixSegments.size() > routeSegments.size()) {
+            return false;
+        }
+        return routeSegments.subList(0, prefixSegments.size()).equals(prefixSegments);
+    }
+
+    /**
+     * @return the entry with the longest prefix covering the route, the later one of two equally long prefixes
+     */
+    private static <T> T mostSpecific(List<T> scoped, Function<T, String> prefix, List<String> routeSegments) {
+        T found = null;
+        int foundSize = -1;
+        for (T candidate : scoped) {
+            String candidatePrefix = prefix.apply(candidate);
+            int size = candidatePrefix == null ? 0 : Router.segments(candidatePrefix).size();
+            if (size >= foundSize && covers(candidatePrefix, routeSegments)) {
+                found = candidate;
+                foundSize = size;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Middleware registered for the routes under a prefix, <code>null</code> for every route.
+     */
+    record Middleware(String prefix, TriConsumer<HttpRequest, HttpResponse, Next> middleware) {}
+
+    /**
+     * A concurrency limit registered for the routes under a prefix.
+     */
+    record Limit(String prefix, ConcurrencyLimit limit) {}
+
+    /**
+     * A handler timeout registered for the routes under a prefix, <code>null</code> for every route.
+     */
+    record Timeout(String prefix, Duration timeout) {}
+
+    /**
+     * Position in the pipeline of one request. Each <code>next.run()</code> moves on to the
+     * following middleware, the last one runs the handler.
+     */
+    private final class Cursor implements Next {
+        private final HttpRequest request;
+        private final HttpResponse response;
+        private int index;
+
+        Cursor(HttpRequest request, HttpResponse response) {
+            this.request = request;
+            this.response = response;
+        }
+
+        @Override
+        public void run() {
+            int current = index++;
+            if (current < middlewares.length) {
+                middlewares[current].accept(request, response, this);
+            } else if (current == middlewares.length) {
+                handler.accept(request, response);
+            }
+        }
+    }
+}
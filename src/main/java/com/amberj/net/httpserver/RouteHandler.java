@@ -1,248 +1,152 @@
 package com.amberj.net.httpserver;
 
-import com.amberj.net.Config;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.amberj.net.http.HttpRequest;
 import com.amberj.net.http.HttpResponse;
+import com.amberj.net.template.TemplateEngine;
 
 import java.io.*;
-import java.net.URI;
-import java.net.URISyntaxException;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicReference;
-import java.util.function.BiConsumer;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import static java.lang.System.out;
 
 class RouteHandler implements HttpHandler {
-
-    // handler for request
-    private final ArrayList<RouteDetails> getHandlers;
-    private final ArrayList<RouteDetails> postHandlers;
-    private final ArrayList<RouteDetails> putHandlers;
-    private final ArrayList<RouteDetails> deleteHandlers;
-    private final ArrayList<RouteDetails> patchHandlers;
-
-    // route specific values
-    private final String route;
-    private List<String> params;
-    private List<TriConsumer<HttpRequest, HttpResponse, Next>> middlewares;
-
-    private RouteHandler(String route) {
-        this.route = route;
-        this.getHandlers = new ArrayList<>();
-        this.postHandlers = new ArrayList<>();
-        this.putHandlers = new ArrayList<>();
-        this.deleteHandlers = new ArrayList<>();
-        this.patchHandlers = new ArrayList<>();
-    }
-
-    public void setMiddlewares(List<TriConsumer<HttpRequest, HttpResponse, Next>> middlewares) {
-        this.middlewares = middlewares;
-    }
-
-    public RouteHandler handle(com.amberj.net.httpserver.HttpHandler handler, ArrayList<String> pathParams, String regex) {
-        this.getHandlers.add(new RouteDetails(pathParams, regex, handler::get));
-        this.postHandlers.add(new RouteDetails(pathParams, regex, handler::post));
-        this.deleteHandlers.add(new RouteDetails(pathParams, regex, handler::delete));
-        this.putHandlers.add(new RouteDetails(pathParams, regex, handler::put));
-        this.patchHandlers.add(new RouteDetails(pathParams, regex, handler::patch));
-        return this;
-    }
-
-    public RouteHandler get(BiConsumer<HttpRequest, HttpResponse> handler, ArrayList<String> pathParams, String regex) {
-        this.getHandlers.add(new RouteDetails(pathParams, regex, handler));
-        return this;
-    }
-
-    public RouteHandler post(BiConsumer<HttpRequest, HttpResponse> handler, ArrayList<String> pathParams, String regex) {
-        this.postHandlers.add(new RouteDetails(pathParams, regex, handler));
-        return this;
-    }
-
-    public RouteHandler put(BiConsumer<HttpRequest, HttpResponse> handler, ArrayList<String> pathParams, String regex) {
-        this.putHandlers.add(new RouteDetails(pathParams, regex, handler));
-        return this;
-    }
-
-    public RouteHandler delete(BiConsumer<HttpRequest, HttpResponse> handler, ArrayList<String> pathParams, String regex) {
-        this.deleteHandlers.add(new RouteDetails(pathParams, regex, handler));
-        return this;
-    }
-
-    public RouteHandler patch(BiConsumer<HttpRequest, HttpResponse> handler, ArrayList<String> pathParams, String regex) {
-        this.patchHandlers.add(new RouteDetails(pathParams, regex, handler));
-        return this;
-    }
-
-    public static RouteHandler create(String route) {
-        return new RouteHandler(route);
-    }
-
-    private static List<String> matchWildcard(String input, String wildcardPattern) {
-        String regexPattern = wildcardPattern.replace("*", "([^/]*)");
-
-        Pattern pattern = Pattern.compile(regexPattern);
-
-        Matcher matcher = pattern.matcher(input);
-
-        List<String> matches = new ArrayList<>();
-
-        if (matcher.matches()) {
-            for (int i = 1; i <= matcher.groupCount(); i++) {
-                matches.add(matcher.group(i));
-            }
-        }
-
-        return matches;
+    // how long a timed out handler gets to react to the interrupt before the server answers
+    private static final Duration TIMEOUT_GRACE = Duration.ofMillis(50);
+
+    private final Router router;
+    private final StaticFileHandler staticFiles;
+    private final TemplateEngine templates;
+    private final HttpRequest.Parser parser;
+    private final AccessLog accessLog;
+    private final Metrics metrics;
+    private final ConcurrencyLimit limit;
+    private final TrafficCapture capture;
+
+    /**
+     * @param limit limit of the whole server, <code>null</code> for none
+     * @param capture log of sampled requests, <code>null</code> for none
+     */
+    RouteHandler(Router router, StaticFileHandler staticFiles, TemplateEngine templates, HttpRequest.Parser parser,
+                 AccessLog accessLog, Metrics metrics, ConcurrencyLimit limit, TrafficCapture capture) {
+        this.router = router;
+        this.staticFiles = staticFiles;
+        this.templates = templates;
+        this.parser = parser;
+        this.accessLog = accessLog;
+        this.metrics = metrics;
+        this.limit = limit;
+        this.capture = capture;
     }
 
     @Override
     public void handle(HttpExchange exchange) throws IOException {
-        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
-        String currRoute = exchange.getRequestURI().getPath();
-
-        if (currRoute.startsWith("/" + Config.STATIC_DIR)) {
-            handleStaticFileRequest(exchange);
+        if (accessLog == null && metrics == null && capture == null) {
+            dispatch(exchange);
             return;
         }
-        if (currRoute.endsWith("/") && currRoute.length() > 1) {
-            currRoute = currRoute.substring(0, currRoute.length() - 1);
+        long startMillis = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        Metrics.Exchange counted = metrics != null ? metrics.started(exchange) : null;
+        TrafficCapture.Recording recording = capture != null ? capture.started(exchange, startNanos) : null;
+        String route = Metrics.UNMATCHED;
+        try {
+            route = dispatch(exchange);
+        } finally {
+            if (recording != null) {
+                capture.finished(exchange, recording);
+            }
+            if (metrics != null) {
+                metrics.finished(exchange, counted, route, startNanos);
+            }
+            if (accessLog != null) {
+                accessLog.log(exchange, startMillis, startNanos);
+            }
         }
+    }
 
-        String method = exchange.getRequestMethod().toUpperCase();
-
-        RouteDetails matchedHandler;
-        switch (method) {
-            case "GET":
-            case "HEAD":
-                matchedHandler = matchRoute(currRoute, getHandlers);
-                break;
-            case "POST":
-                matchedHandler = matchRoute(currRoute, postHandlers);
-                break;
-            case "PUT":
-                matchedHandler = matchRoute(currRoute, putHandlers);
-                break;
-            case "DELETE":
-                matchedHandler = matchRoute(currRoute, deleteHandlers);
-                break;
-            case "PATCH":
-                matchedHandler = matchRoute(currRoute, patchHandlers);
-                break;
-            default:
-                handleMethodNotAllowed(exchange);
-                return;
+    /**
+     * @return the pattern of the route that handled the request, {@link Metrics#STATIC} or {@link Metrics#UNMATCHED}
+     */
+    private String dispatch(HttpExchange exchange) throws IOException {
+        if (limit == null) {
+            return route(exchange, null);
         }
-
-        if (matchedHandler == null) {
-            handleNotFound(exchange);
-        } else if ("HEAD".equals(method)) {
-            handleHeadRequest(exchange, matchedHandler.pathParams, matchedHandler.handler);
-        } else {
-            handleRequest(exchange, matchedHandler.pathParams, matchedHandler.handler);
+        if (!limit.tryAcquire()) {
+            handleServiceUnavailable(exchange, limit);
+            return Metrics.UNMATCHED;
         }
-
-        out.println(new Date() + " " + exchange.getRequestMethod() + ": " + exchange.getRequestURI().toString() + " " + exchange.getResponseCode());
-    }
-
-
-
-    private RouteDetails matchRoute(String currRoute, List<RouteDetails> handlers) {
-        for (RouteDetails handler : handlers) {
-            if (handler.regex == null && currRoute.equals(route)) {
-                return handler;
-            } else if (handler.regex != null) {
-                params = matchWildcard(currRoute, handler.regex);
-                if (!params.isEmpty() && !currRoute.equals("/")) {
-                    return handler;
-                }
-            }
+        var permit = new Permit();
+        try {
+            return route(exchange, permit);
+        } finally {
+            permit.release();
         }
-        return null;
     }
 
-    byte[] getFileContent(String fileName) throws URISyntaxException, IOException {
-        URL url = getClass().getClassLoader().getResource("static/" + fileName);
-        if (url != null) {
-            URI uri = url.toURI();
-            Path path = Paths.get(uri);
-            if (Files.exists(path)) {
-                return Files.readAllBytes(path);
+    /**
+     * The slot of a request in the limit of the whole server.
+     */
+    private final class Permit {
+        private final long start = System.nanoTime();
+        private boolean released;
+
+        void release() {
+            if (!released) {
+                released = true;
+                limit.release(System.nanoTime() - start);
             }
         }
-        return null;
     }
 
+    /**
+     * @param permit slot in the limit of the whole server, <code>null</code> without a limit
+     */
+    private String route(HttpExchange exchange, Permit permit) throws IOException {
+        String currRoute = exchange.getRequestURI().getPath();
 
-    private void handleHeadRequest(HttpExchange exchange, ArrayList<String> pathParams, BiConsumer<HttpRequest, HttpResponse> handler) throws IOException {
-        var httpRequest = HttpRequestUtil.getHttpRequest(exchange, params, pathParams);
-
-        var httpResponse = new HttpResponse(exchange);
-
-        try {
-            handler.accept(httpRequest, httpResponse);
-        } catch (Exception e) {
-            handleError(exchange, e);
+        if (staticFiles.matches(currRoute)) {
+            staticFiles.handle(exchange);
+            return Metrics.STATIC;
         }
-
-        if (httpResponse.isMethodAllowed()) {
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        String method = exchange.getRequestMethod().toUpperCase();
+        int methodIndex = Router.methodIndex(method);
+        if (methodIndex == -1) {
             handleMethodNotAllowed(exchange);
-            return;
-        }
-
-        if (httpResponse.getRedirectURL() != null) {
-            handleRedirect(exchange, httpResponse.getRedirectURL());
+            return Metrics.UNMATCHED;
         }
 
-        exchange.getResponseHeaders().set("Content-Type", httpResponse.getContentType());
-        exchange.sendResponseHeaders(httpResponse.getStatus(), -1); // No response body for HEAD method
-        exchange.getResponseBody().close();
-    }
+        Router.Match match = router.match(methodIndex, currRoute);
 
-    private void handleStaticFileRequest(HttpExchange exchange) throws IOException {
-        String requestMethod = exchange.getRequestMethod();
-        if (!requestMethod.equalsIgnoreCase("GET")) {
-            handleMethodNotAllowed(exchange);
-            return;
+        if (match == null) {
+            handleNotFound(exchange);
+            return Metrics.UNMATCHED;
         }
-
-        String filePath = exchange.getRequestURI().getPath().substring("/static/".length());
+        Pipeline pipeline = match.route().pipeline();
+        if (pipeline.isStream() && permit != null) {
+            // an event stream is open for hours, it would hold the slot and skew the adaptive limit
+            permit.release();
+        }
+        ConcurrencyLimit routeLimit = pipeline.limit() != null ? pipeline.limit().limit() : null;
+        if (routeLimit != null && !routeLimit.tryAcquire()) {
+            handleServiceUnavailable(exchange, routeLimit);
+            return match.route().pattern();
+        }
+        long start = System.nanoTime();
         try {
-            byte[] fileContent = getFileContent(filePath);
-
-            if (fileContent != null) {
-                String mimeType = Files.probeContentType(Paths.get("static/" + filePath));
-                if (mimeType == null) {
-                    mimeType = "application/octet-stream"; // Default MIME type
-                }
-
-                exchange.getResponseHeaders().set("Content-Type", mimeType);
-                exchange.sendResponseHeaders(200, fileContent.length);
-
-                OutputStream outputStream = exchange.getResponseBody();
-                outputStream.write(fileContent);
-                outputStream.close();
-            } else {
-                String response = "File not found";
-                exchange.sendResponseHeaders(404, response.length());
-                OutputStream outputStream = exchange.getResponseBody();
-                outputStream.write(response.getBytes(StandardCharsets.UTF_8));
-                outputStream.close();
+            handleRequest(exchange, match.params(), pipeline);
+        } finally {
+            if (routeLimit != null) {
+                routeLimit.release(System.nanoTime() - start);
             }
-        } catch (IOException | URISyntaxException e) {
-            exchange.sendResponseHeaders(500, -1);
         }
+        return match.route().pattern();
     }
 
+
+
     private void handleRedirect(HttpExchange exchange, String redirectUrl) throws IOException {
         exchange.getResponseHeaders().set("Location", redirectUrl);
         exchange.getResponseHeaders().set("Cache-Control", "no-cache");
@@ -278,31 +182,80 @@ class RouteHandler implements HttpHandler {
         os.close();
     }
 
-    private void handleRequest(HttpExchange exchange, ArrayList<String> pathParams, BiConsumer<HttpRequest, HttpResponse> handler) throws IOException {
-        var httpRequest = HttpRequestUtil.getHttpRequest(exchange, params, pathParams);
+    private void handleRequest(HttpExchange exchange, Map<String, String> pathParams, Pipeline pipeline) throws IOException {
+        long timeout = pipeline.timeoutNanos();
+        if (timeout == 0) {
+            try {
+                respond(exchange, HttpRequestUtil.getHttpRequest(exchange, pathParams, parser), pipeline);
+            } finally {
+                MultipartFormDataParser.deleteTempFiles(exchange);
+            }
+            return;
+        }
+        var guarded = new DeadlineExchange(exchange);
+        var httpRequest = HttpRequestUtil.getHttpRequest(guarded, pathParams, parser, System.nanoTime() + timeout);
+        var failure = new AtomicReference<Throwable>();
+        // the handler runs on its own thread, so the request can be answered even if it ignores the interrupt
+        Thread worker = Thread.ofVirtual().unstarted(() -> {
+            try {
+                respond(guarded, httpRequest, pipeline);
+            } catch (Throwable e) {
+                failure.set(e);
+            } finally {
+                // the uploads are registered for the exchange the request was parsed from
+                MultipartFormDataParser.deleteTempFiles(guarded);
+            }
+        });
+        worker.start();
+        try {
+            if (!worker.join(Duration.ofNanos(timeout))) {
+                boolean answer = guarded.expire();
+                worker.interrupt();
+                if (answer) {
+                    worker.join(TIMEOUT_GRACE);
+                    handleTimeout(exchange);
+                } else {
+                    // the response is already being sent, the interrupted handler decides how it ends
+                    worker.join();
+                }
+                return;
+            }
+        } catch (InterruptedException e) {
+            worker.interrupt();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the handler");
+        }
+        Throwable e = failure.get();
+        if (e instanceof IOException io) {
+            throw io;
+        } else if (e instanceof RuntimeException runtime) {
+            throw runtime;
+        } else if (e instanceof Error error) {
+            throw error;
+        }
+    }
 
-        var httpResponse = new HttpResponse(exchange);
+    private void respond(HttpExchange exchange, HttpRequest httpRequest, Pipeline pipeline) throws IOException {
+        var httpResponse = new HttpResponse(exchange, templates);
 
         try {
-            if (!middlewares.isEmpty()) {
-                Runnable chainedFunc = null;
-
-                for (var middleware: middlewares.reversed()) {
-                    if (chainedFunc == null) {
-                        chainedFunc = () -> middleware.accept(httpRequest, httpResponse, () -> handler.accept(httpRequest, httpResponse));
-                    } else {
-                        Runnable finalChainedFunc = chainedFunc;
-                        chainedFunc = () -> middleware.accept(httpRequest, httpResponse, finalChainedFunc::run);
-                    }
+            pipeline.run(httpRequest, httpResponse);
+        } catch (Exception e) {
+            // most likely caused by the interrupt of the timeout
+            boolean timedOut = exchange instanceof DeadlineExchange timed && timed.isExpired();
+            if (httpResponse.isCommitted()) {
+                if (!timedOut) {
+                    e.printStackTrace();
                 }
-
-                assert chainedFunc != null;
-                chainedFunc.run();
+                exchange.close();
+            } else if (timedOut) {
+                return;
+            } else if (isPayloadTooLarge(e)) {
+                handlePayloadTooLarge(exchange);
             } else {
-                handler.accept(httpRequest, httpResponse);
+                handleError(exchange, e);
             }
-        } catch (Exception e) {
-            handleError(exchange, e);
+            return;
         }
 
         if (httpResponse.isMethodAllowed()) {
@@ -312,16 +265,71 @@ class RouteHandler implements HttpHandler {
 
         if (httpResponse.getRedirectURL() != null) {
             handleRedirect(exchange, httpResponse.getRedirectURL());
+            return;
+        }
+
+        try {
+            httpResponse.send();
+        } catch (RuntimeException e) {
+            // a template that fails to render before anything was sent still gets the error page
+            if (httpResponse.isCommitted()) {
+                e.printStackTrace();
+                exchange.close();
+            } else {
+                handleError(exchange, e);
+            }
+        }
+    }
+
+    private static boolean isPayloadTooLarge(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof MultipartFormDataParser.LimitExceededException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void handlePayloadTooLarge(HttpExchange exchange) throws IOException {
+        String response = "413 (Content Too Large)\n";
+        // the rest of the body is not read, the connection can not be reused
+        exchange.getResponseHeaders().set("Connection", "close");
+        exchange.sendResponseHeaders(413, response.length());
+        OutputStream os = exchange.getResponseBody();
+        os.write(response.getBytes());
+        os.close();
+    }
+
+    private void handleTimeout(HttpExchange exchange) throws IOException {
+        String response = "503 (Service Unavailable)\n";
+        if (hasBody(exchange)) {
+            // the body may be partly read, the connection can not be reused
+            exchange.getResponseHeaders().set("Connection", "close");
         }
+        exchange.sendResponseHeaders(503, response.length());
+        OutputStream os = exchange.getResponseBody();
+        os.write(response.getBytes());
+        os.close();
+    }
 
-        String response = httpResponse.getResponse();
-        exchange.getResponseHeaders().set("Content-Type", httpResponse.getContentType());
-        exchange.sendResponseHeaders(httpResponse.getStatus(), response.getBytes().length);
+    private void handleServiceUnavailable(HttpExchange exchange, ConcurrencyLimit limit) throws IOException {
+        String response = "503 (Service Unavailable)\n";
+        exchange.getResponseHeaders().set("Retry-After", Long.toString(limit.retryAfterSeconds()));
+        if (hasBody(exchange)) {
+            // the body is not read, the connection can not be reused
+            exchange.getResponseHeaders().set("Connection", "close");
+        }
+        exchange.sendResponseHeaders(503, response.length());
         OutputStream os = exchange.getResponseBody();
         os.write(response.getBytes());
         os.close();
     }
 
+    private static boolean hasBody(HttpExchange exchange) {
+        String length = exchange.getRequestHeaders().getFirst("Content-Length");
+        return length != null && !length.equals("0") || exchange.getRequestHeaders().containsKey("Transfer-Encoding");
+    }
+
     private void handleNotFound(HttpExchange exchange) throws IOException {
         String response = "404 (Not Found)\n";
         exchange.sendResponseHeaders(404, response.length());
@@ -337,10 +345,4 @@ class RouteHandler implements HttpHandler {
         os.write(response.getBytes());
         os.close();
     }
-
-    record RouteDetails(
-            ArrayList<String> pathParams,
-            String regex,
-            BiConsumer<HttpRequest, HttpResponse> handler
-    ) {}
 }
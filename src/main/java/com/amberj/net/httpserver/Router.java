@@ -0,0 +1,350 @@
+package com.amberj.net.httpserver;
+
+import com.amberj.net.http.HttpRequest;
+import com.amberj.net.http.HttpResponse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Compiled routing table shared by every method.
+ * <p>
+ * Routes are stored in one trie per method where every edge is a path segment
+ * (a radix tree keyed on segments rather than characters). Static segments live in a
+ * small open addressing table that is probed straight from the request path, so a
+ * lookup of a route without <code>{param}</code> segments does not allocate.
+ * A <code>{param}</code> segment is a single wildcard edge per node and is only
+ * tried when no static edge matches.
+ * <p>
+ * A router is immutable once built and can be used by any number of threads.
+ */
+final class Router {
+
+    static final int GET = 0;
+    static final int POST = 1;
+    static final int PUT = 2;
+    static final int DELETE = 3;
+    static final int PATCH = 4;
+    private static final int METHODS = 5;
+
+    private final Node[] roots;
+    private final boolean[] hasParams;
+
+    private Router(Node[] roots, boolean[] hasParams) {
+        this.roots = roots;
+        this.hasParams = hasParams;
+    }
+
+    /**
+     * @return index of the method table, <code>HEAD</code> shares the <code>GET</code> table.
+     * <code>-1</code> if the method is not supported
+     */
+    static int methodIndex(String method) {
+        return switch (method) {
+            case "GET", "HEAD" -> GET;
+            case "POST" -> POST;
+            case "PUT" -> PUT;
+            case "DELETE" -> DELETE;
+            case "PATCH" -> PATCH;
+            default -> -1;
+        };
+    }
+
+    static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Finds the route registered for the given method index and request path.
+     * A trailing <code>/</code> on the path is ignored.
+     *
+     * @return the match or <code>null</code> when no route matches
+     */
+    Match match(int method, String path) {
+        if (method < 0 || method >= METHODS) {
+            return null;
+        }
+        Node root = roots[method];
+        int end = path.length();
+        if (end > 1 && path.charAt(end - 1) == '/') {
+            end--;
+        }
+
+        Node node = findStatic(root, path, end);
+        if (node != null) {
+            return node.staticMatch;
+        }
+        if (!hasParams[method]) {
+            return null;
+        }
+
+        String[] values = new String[Route.MAX_PARAMS];
+        node = find(root, path, 1, end, values, 0);
+        if (node == null) {
+            return null;
+        }
+        return new Match(node.route, node.route.params(values));
+    }
+
+    private static Node findStatic(Node node, String path, int end) {
+        int start = 1;
+        if (end <= 1) {
+            return node.route != null ? node : null;
+        }
+        while (node != null) {
+            int slash = path.indexOf('/', start);
+            int segEnd = slash == -1 || slash > end ? end : slash;
+            node = node.child(path, start, segEnd);
+            if (segEnd >= end) {
+                return node != null && node.route != null ? node : null;
+            }
+            start = segEnd + 1;
+        }
+        return null;
+    }
+
+    private static Node find(Node node, String path, int start, int end, String[] values, int depth) {
+        if (start > end || end <= 1) {
+            return node.route != null ? node : null;
+        }
+        int slash = path.indexOf('/', start);
+        int segEnd = slash == -1 || slash > end ? end : slash;
+
+        Node child = node.child(path, start, segEnd);
+        if (child != null) {
+            Node found = find(child, path, segEnd + 1, end, values, depth);
+            if (found != null) {
+                return found;
+            }
+        }
+        if (node.param != null && segEnd > start && depth < values.length) {
+            Node found = find(node.param, path, segEnd + 1, end, values, depth + 1);
+            if (found != null) {
+                values[depth] = path.substring(start, segEnd);
+                return found;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the segments of a pattern or path, without the leading and trailing <code>/</code>
+     */
+    static List<String> segments(String pattern) {
+        var segments = new ArrayList<String>();
+        String path = pattern.startsWith("/") ? pattern.substring(1) : pattern;
+        if (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        if (path.isEmpty()) {
+            return segments;
+        }
+        int start = 0;
+        int slash;
+        while ((slash = path.indexOf('/', start)) != -1) {
+            segments.add(path.substring(start, slash));
+            start = slash + 1;
+        }
+        segments.add(path.substring(start));
+        return segments;
+    }
+
+    /**
+     * A registered route. <code>pattern</code> is the route as it was registered
+     * and is what should be used to identify the route (e.g. in logs).
+     * <code>pipeline</code> runs the route's middleware and then its handler.
+     */
+    record Route(
+            String pattern,
+            String[] paramNames,
+            BiConsumer<HttpRequest, HttpResponse> handler,
+            Pipeline pipeline
+    ) {
+        static final int MAX_PARAMS = 32;
+
+        Map<String, String> params(String[] values) {
+            if (paramNames.length == 0) {
+                return Collections.emptyMap();
+            }
+            var params = new HashMap<String, String>(paramNames.length * 2);
+            for (int i = 0; i < paramNames.length; i++) {
+                params.put(paramNames[i], values[i]);
+            }
+            return params;
+        }
+    }
+
+    /**
+     * Result of a lookup. The <code>params</code> map belongs to the request that
+     * was matched, so concurrent requests never share path params.
+     */
+    record Match(Route route, Map<String, String> params) {}
+
+    private static final class Node {
+        final String segment;
+        final int hash;
+        Node[] table;
+        int size;
+        Node param;
+        Route route;
+        Match staticMatch;
+
+        Node(String segment) {
+            this.segment = segment;
+            this.hash = segment.hashCode();
+        }
+
+        Node child(String path, int start, int end) {
+            Node[] table = this.table;
+            if (table == null) {
+                return null;
+            }
+            int len = end - start;
+            int h = 0;
+            for (int i = start; i < end; i++) {
+                h = 31 * h + path.charAt(i);
+            }
+            int mask = table.length - 1;
+            for (int i = h & mask; ; i = (i + 1) & mask) {
+                Node node = table[i];
+                if (node == null) {
+                    return null;
+                }
+                if (node.hash == h && node.segment.length() == len && path.regionMatches(start, node.segment, 0, len)) {
+                    return node;
+                }
+            }
+        }
+
+        Node getOrAddChild(String segment) {
+            Node existing = child(segment, 0, segment.length());
+            if (existing != null) {
+                return existing;
+            }
+            if (table == null) {
+                table = new Node[4];
+            } else if ((size + 1) * 2 > table.length) {
+                Node[] old = table;
+                table = new Node[old.length * 2];
+                for (Node node : old) {
+                    if (node != null) {
+                        insert(node);
+                    }
+                }
+            }
+            Node node = new Node(segment);
+            insert(node);
+            size++;
+            return node;
+        }
+
+        private void insert(Node node) {
+            int mask = table.length - 1;
+            int i = node.hash & mask;
+            while (table[i] != null) {
+                i = (i + 1) & mask;
+            }
+            table[i] = node;
+        }
+    }
+
+    /**
+     * Collects routes while the server is being configured.
+     * Registering the same method and pattern twice keeps the first handler,
+     * like the previous per-context lookup did.
+     */
+    static final class Builder {
+        private final List<List<Route>> routes;
+
+        private Builder() {
+            routes = new ArrayList<>(METHODS);
+            for (int i = 0; i < METHODS; i++) {
+                routes.add(new ArrayList<>());
+            }
+        }
+
+        Builder add(int method, String pattern, BiConsumer<HttpRequest, HttpResponse> handler) {
+            routes.get(method).add(new Route(pattern, paramNames(pattern), handler, null));
+            return this;
+        }
+
+        Builder handle(String pattern, com.amberj.net.httpserver.HttpHandler handler) {
+            add(GET, pattern, handler::get);
+            add(POST, pattern, handler::post);
+            add(PUT, pattern, handler::put);
+            add(DELETE, pattern, handler::delete);
+            add(PATCH, pattern, handler::patch);
+            return this;
+        }
+
+        Router build() {
+            return build(List.of(), List.of(), List.of());
+        }
+
+        /**
+         * @return the routes registered for the method index so far, in the order they were added
+         */
+        List<Route> routes(int method) {
+            return List.copyOf(routes.get(method));
+        }
+
+        /**
+         * Gives each route a pipeline of the middleware whose prefix covers it, and the most
+         * specific concurrency limit and timeout covering it.
+         *
+         * @param middlewares middleware in the order it runs
+         */
+        Router build(List<Pipeline.Middleware> middlewares, List<Pipeline.Limit> limits, List<Pipeline.Timeout> timeouts) {
+            Node[] roots = new Node[METHODS];
+            boolean[] hasParams = new boolean[METHODS];
+            for (int method = 0; method < METHODS; method++) {
+                Node root = new Node("");
+                for (Route registered : routes.get(method)) {
+                    Route route = new Route(registered.pattern(), registered.paramNames(), registered.handler(),
+                            Pipeline.of(registered.pattern(), middlewares, limits, timeouts, registered.handler()));
+                    Node node = root;
+                    for (String segment : segments(route.pattern())) {
+                        if (isParam(segment)) {
+                            if (node.param == null) {
+                                node.param = new Node(segment);
+                            }
+                            node = node.param;
+                            hasParams[method] = true;
+                        } else {
+                            node = node.getOrAddChild(segment);
+                        }
+                    }
+                    if (node.route == null) {
+                        node.route = route;
+                        node.staticMatch = new Match(route, Collections.emptyMap());
+                    }
+                }
+                roots[method] = root;
+            }
+            return new Router(roots, hasParams);
+        }
+
+        private static String[] paramNames(String pattern) {
+            var names = new ArrayList<String>();
+            for (String segment : segments(pattern)) {
+                if (isParam(segment)) {
+                    // "{id:int}" style hints are accepted, only the name is kept
+                    String name = segment.substring(1, segment.length() - 1).split(":")[0];
+                    names.add(name);
+                }
+            }
+            if (names.size() > Route.MAX_PARAMS) {
+                throw new IllegalArgumentException("Route " + pattern + " has more than " + Route.MAX_PARAMS + " path params");
+            }
+            return names.toArray(String[]::new);
+        }
+
+        private static boolean isParam(String segment) {
+            return segment.length() > 2 && segment.charAt(0) == '{' && segment.charAt(segment.length() - 1) == '}';
+        }
+    }
+}
@@ -1,62 +1,71 @@
 package com.amberj.net.httpserver;
 
 import com.amberj.net.Config;
+import com.amberj.net.http.Compression;
 import com.amberj.net.http.HttpResponse;
-import com.sun.net.httpserver.HttpServer;
 import com.amberj.net.http.HttpRequest;
+import com.amberj.net.template.TemplateEngine;
+import com.amberj.net.transport.NioTransport;
+import com.amberj.net.transport.Transport;
 
 import java.io.*;
 import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.function.BiConsumer;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import static java.lang.System.out;
 
 public class Server<T> {
-    private final HttpServer server;
     private final int port;
-    private final HashMap<String, RouteHandler> routeHandlerMap;
+    private final int backlog;
+    private Transport transport;
+    private final Router.Builder routes;
     private final ExecutorService executor;
-    private final List<TriConsumer<HttpRequest, HttpResponse, Next>> middlewares;
+    private final List<Pipeline.Middleware> middlewares;
+    private final Map<String, String> staticCacheControl;
+    private long staticCacheBytes = 32L * 1024 * 1024;
+    private long staticCacheMaxFileSize = 256 * 1024;
+    private boolean preloadStatic;
+    private Compression compression;
+    private int maxTemplates = TemplateEngine.DEFAULT_MAX_TEMPLATES;
+    private boolean precompileTemplates;
+    private MultipartFormDataParser.Limits multipartLimits = MultipartFormDataParser.Limits.defaults();
+    private AccessLog accessLog = AccessLog.stdout();
+    private TrafficCapture capture;
+    private Metrics metrics;
+    private ConcurrencyLimit concurrencyLimit;
+    private final List<Pipeline.Limit> routeLimits = new ArrayList<>();
+    private final List<Pipeline.Timeout> timeouts = new ArrayList<>();
     private T context;
+    private boolean webSockets;
+    private WarmupPlan warmup;
+    private final Map<String, EventChannel> channels = new ConcurrentHashMap<>();
 
 
     /**
      * @param port The port you want to start your server
-     * @throws IOException for if the port is busy
+     * @throws IOException kept for compatibility, the port is bound by {@link #run()}
      */
     public Server(int port) throws IOException {
-        this.routeHandlerMap = new HashMap<>();
-        this.server = HttpServer.create(new InetSocketAddress(port), 512);
-        this.port = port;
-        this.executor = Executors.newVirtualThreadPerTaskExecutor();
-        this.middlewares = new ArrayList<>();
+        this(port, 512);
     }
 
     public Server(int port, int backlog) throws IOException {
-        this.routeHandlerMap = new HashMap<>();
-        this.server = HttpServer.create(new InetSocketAddress(port), backlog);
+        this.routes = Router.builder();
         this.port = port;
+        this.backlog = backlog;
+        this.transport = Transport.jdk();
         this.executor = Executors.newVirtualThreadPerTaskExecutor();
         this.middlewares = new ArrayList<>();
-    }
-
-    private static String getPrefixUntilWildcard(String input, String wildcardPattern) {
-        String regexPattern = wildcardPattern.replace("*", "\\*");
-
-        int wildcardIndex = regexPattern.indexOf("*");
-
-        if (wildcardIndex == -1) {
-            return input;
-        }
-
-        return input.substring(0, wildcardIndex - 1);
+        this.staticCacheControl = new LinkedHashMap<>();
     }
 
     private HttpHandler fContextHandlerToHandler(WithContextHttpHandler<T> handler) {
@@ -88,32 +97,6 @@ public class Server<T> {
         };
     }
 
-    private RouteDetails extractPathParams(String route) {
-        Pattern pattern = Pattern.compile("\\{([a-zA-Z]+)}");
-        Matcher matcher = pattern.matcher(route);
-        ArrayList<String> pathParams = new ArrayList<>();
-        String regex = null;
-
-        while (matcher.find()) {
-            String placeholder = matcher.group(1);
-            if (regex == null) {
-                regex = route.replace("{" + placeholder + "}", "*");
-            } else {
-                regex = regex.replace("{" + placeholder + "}", "*");
-            }
-            pathParams.add(placeholder);
-        }
-
-        if (regex != null) {
-            route = getPrefixUntilWildcard(route, regex);
-        }
-        if (route.endsWith("/") && route.length() > 1) {
-            route = route.substring(0, route.length() - 1);
-        }
-
-        return new RouteDetails(route, pathParams, regex);
-    }
-
     /**
      * This function register a <code>HTTP GET</code> route
      * and its handler
@@ -122,12 +105,7 @@ public class Server<T> {
      * @param handler a function to handle the http request
      */
     public void get(String route, BiConsumer<HttpRequest, HttpResponse> handler) {
-        RouteDetails routeDetails = extractPathParams(route);
-        if (routeHandlerMap.containsKey(routeDetails.cleanedRoute)) {
-            routeHandlerMap.put(routeDetails.cleanedRoute, routeHandlerMap.get(routeDetails.cleanedRoute).get(handler, routeDetails.pathParams, routeDetails.regex));
-        } else {
-            routeHandlerMap.put(routeDetails.cleanedRoute, RouteHandler.create(routeDetails.cleanedRoute).get(handler, routeDetails.pathParams, routeDetails.regex));
-        }
+        routes.add(Router.GET, route, handler);
     }
 
     public void get(String route, TriConsumer<HttpRequest, HttpResponse, T> handler) {
@@ -142,12 +120,7 @@ public class Server<T> {
      * @param handler a function to handle the http request
      */
     public void post(String route, BiConsumer<HttpRequest, HttpResponse> handler) {
-        RouteDetails routeDetails = extractPathParams(route);
-        if (routeHandlerMap.containsKey(routeDetails.cleanedRoute)) {
-            routeHandlerMap.put(routeDetails.cleanedRoute, routeHandlerMap.get(routeDetails.cleanedRoute).post(handler, routeDetails.pathParams, routeDetails.regex));
-        } else {
-            routeHandlerMap.put(routeDetails.cleanedRoute, RouteHandler.create(routeDetails.cleanedRoute).post(handler, routeDetails.pathParams, routeDetails.regex));
-        }
+        routes.add(Router.POST, route, handler);
     }
 
     public void post(String route, TriConsumer<HttpRequest, HttpResponse, T> handler) {
@@ -162,12 +135,7 @@ public class Server<T> {
      * @param handler a function to handle the http request
      */
     public void put(String route, BiConsumer<HttpRequest, HttpResponse> handler) {
-        RouteDetails routeDetails = extractPathParams(route);
-        if (routeHandlerMap.containsKey(routeDetails.cleanedRoute)) {
-            routeHandlerMap.put(routeDetails.cleanedRoute, routeHandlerMap.get(routeDetails.cleanedRoute).put(handler, routeDetails.pathParams, routeDetails.regex));
-        } else {
-            routeHandlerMap.put(routeDetails.cleanedRoute, RouteHandler.create(routeDetails.cleanedRoute).put(handler, routeDetails.pathParams, routeDetails.regex));
-        }
+        routes.add(Router.PUT, route, handler);
     }
 
     public void put(String route, TriConsumer<HttpRequest, HttpResponse, T> handler) {
@@ -182,12 +150,7 @@ public class Server<T> {
      * @param handler a function to handle the http request
      */
     public void patch(String route, BiConsumer<HttpRequest, HttpResponse> handler) {
-        RouteDetails routeDetails = extractPathParams(route);
-        if (routeHandlerMap.containsKey(routeDetails.cleanedRoute)) {
-            routeHandlerMap.put(routeDetails.cleanedRoute, routeHandlerMap.get(routeDetails.cleanedRoute).patch(handler, routeDetails.pathParams, routeDetails.regex));
-        } else {
-            routeHandlerMap.put(routeDetails.cleanedRoute, RouteHandler.create(routeDetails.cleanedRoute).patch(handler, routeDetails.pathParams, routeDetails.regex));
-        }
+        routes.add(Router.PATCH, route, handler);
     }
 
     public void patch(String route, TriConsumer<HttpRequest, HttpResponse, T> handler) {
@@ -202,12 +165,7 @@ public class Server<T> {
      * @param handler a function to handle the http request
      */
     public void delete(String route, BiConsumer<HttpRequest, HttpResponse> handler) {
-        RouteDetails routeDetails = extractPathParams(route);
-        if (routeHandlerMap.containsKey(routeDetails.cleanedRoute)) {
-            routeHandlerMap.put(routeDetails.cleanedRoute, routeHandlerMap.get(routeDetails.cleanedRoute).delete(handler, routeDetails.pathParams, routeDetails.regex));
-        } else {
-            routeHandlerMap.put(routeDetails.cleanedRoute, RouteHandler.create(routeDetails.cleanedRoute).delete(handler, routeDetails.pathParams, routeDetails.regex));
-        }
+        routes.add(Router.DELETE, route, handler);
     }
 
     public void delete(String route, TriConsumer<HttpRequest, HttpResponse, T> handler) {
@@ -222,18 +180,68 @@ public class Server<T> {
      * @param handler a handler class.
      */
     public void handle(String route, HttpHandler handler) {
-        RouteDetails routeDetails = extractPathParams(route);
-        if (routeHandlerMap.containsKey(routeDetails.cleanedRoute)) {
-            routeHandlerMap.put(routeDetails.cleanedRoute, routeHandlerMap.get(routeDetails.cleanedRoute).handle(handler, routeDetails.pathParams, routeDetails.regex));
-        } else {
-            routeHandlerMap.put(routeDetails.cleanedRoute, RouteHandler.create(routeDetails.cleanedRoute).handle(handler, routeDetails.pathParams, routeDetails.regex));
-        }
+        routes.handle(route, handler);
     }
 
     public void handle(String route, WithContextHttpHandler<T> handler) {
         handle(route, fContextHandlerToHandler(handler));
     }
 
+    /**
+     * Registers a WebSocket endpoint (RFC 6455) on a <code>GET</code> route, with messages of
+     * up to {@link WebSocket#DEFAULT_MAX_MESSAGE_SIZE} bytes. Middleware runs on the handshake,
+     * e.g. to check a session cookie, and {@link WebSocket#request()} keeps the handshake request.
+     * Needs the nio engine: <code>server.transport(Transport.nio())</code>.
+     *
+     * @param route the route of the endpoint, with path parameters like any other route
+     * @param handler the callbacks of every connection
+     */
+    public void ws(String route, WebSocketHandler handler) {
+        ws(route, handler, WebSocket.DEFAULT_MAX_MESSAGE_SIZE);
+    }
+
+    /**
+     * Registers a WebSocket endpoint like {@link #ws(String, WebSocketHandler)}.
+     *
+     * @param maxMessageSize largest message in bytes, fragments put together. Larger messages
+     *                       close the connection with {@link WebSocket#MESSAGE_TOO_BIG}
+     */
+    public void ws(String route, WebSocketHandler handler, int maxMessageSize) {
+        routes.add(Router.GET, route, new WebSocketUpgrade(handler, maxMessageSize));
+        webSockets = true;
+    }
+
+    /**
+     * Registers a Server-Sent Events endpoint on a <code>GET</code> route. The handler gets the
+     * stream of each client before the headers are sent, to subscribe it to channels or send
+     * it events, e.g. <code>sse("/prices", (request, stream) -> stream.subscribe(channel("prices")))</code>.
+     * The stream stays open after the handler returns, until the client goes away or it is closed.
+     * Middleware runs first, handler timeouts do not apply, and the stream does not count
+     * against the limit of {@link #concurrencyLimit(ConcurrencyLimit)}, only against a limit of its route.
+     *
+     * @param route the route of the endpoint, with path parameters like any other route
+     * @param handler called once per client
+     */
+    public void sse(String route, BiConsumer<HttpRequest, EventStream> handler) {
+        sse(route, handler, EventStream.Options.defaults());
+    }
+
+    /**
+     * Registers a Server-Sent Events endpoint like {@link #sse(String, BiConsumer)}.
+     *
+     * @param options heartbeat interval, events buffered per client and what happens to slow clients
+     */
+    public void sse(String route, BiConsumer<HttpRequest, EventStream> handler, EventStream.Options options) {
+        routes.add(Router.GET, route, new EventStreamRoute(handler, options));
+    }
+
+    /**
+     * @return the event channel of that name, created with {@link EventChannel#DEFAULT_HISTORY} on first use
+     */
+    public EventChannel channel(String name) {
+        return channels.computeIfAbsent(name, EventChannel::new);
+    }
+
     public void context(T context) {
         this.context = context;
     }
@@ -243,7 +251,21 @@ public class Server<T> {
      * @param middleware - a TriConsumer lambda function
      */
     public void use(TriConsumer<HttpRequest, HttpResponse, Next> middleware) {
-        this.middlewares.add(middleware);
+        this.middlewares.add(new Pipeline.Middleware(null, middleware));
+    }
+
+    /**
+     * Registers middleware for the routes under a prefix, e.g. <code>use("/api", auth)</code>
+     * runs <code>auth</code> for <code>/api/users/{id}</code> but not for <code>/health</code>.
+     * The prefix is compared by whole segments with the pattern a route was registered with,
+     * so a route's own pattern scopes middleware to that route and the ones below it.
+     * Global and scoped middleware run in the order they were registered.
+     *
+     * @param prefix route prefix, e.g. <code>/admin</code>
+     * @param middleware - a TriConsumer lambda function
+     */
+    public void use(String prefix, TriConsumer<HttpRequest, HttpResponse, Next> middleware) {
+        this.middlewares.add(new Pipeline.Middleware(prefix, middleware));
     }
 
     public void setStaticDir(String path) {
@@ -251,18 +273,248 @@ public class Server<T> {
     }
 
     /**
+     * Sets the <code>Cache-Control</code> header sent with the static files of a directory,
+     * e.g. <code>staticCacheControl("assets", "public, max-age=31536000, immutable")</code>.
+     * Files outside every configured directory are sent with <code>no-cache</code>,
+     * so clients revalidate them with their <code>ETag</code>.
+     *
+     * @param directory directory relative to the static dir, <code>""</code> for all of it
+     * @param cacheControl the header value
+     */
+    public void staticCacheControl(String directory, String cacheControl) {
+        this.staticCacheControl.put(directory, cacheControl);
+    }
+
+    /**
+     * Sizes the in-memory cache for static files. Files up to <code>maxFileSize</code> bytes
+     * are kept in memory with precomputed gzip and deflate variants, the least recently used
+     * ones are evicted once all variants together exceed <code>maxBytes</code>. Defaults to
+     * 32 MB and 256 KB, <code>staticCache(0, 0)</code> always reads from disk.
+     *
+     * @param maxBytes     memory budget of the cache
+     * @param maxFileSize  largest file that is cached
+     */
+    public void staticCache(long maxBytes, long maxFileSize) {
+        this.staticCacheBytes = maxBytes;
+        this.staticCacheMaxFileSize = maxFileSize;
+    }
+
+    /**
+     * Loads the static files into the cache in {@link #run()} instead of on their first request.
+     */
+    public void preloadStatic(boolean preload) {
+        this.preloadStatic = preload;
+    }
+
+    /**
+     * Limits how many compiled templates the server keeps, 512 by default. All responses of
+     * the server share one template engine, the least recently used templates are dropped
+     * and parsed again on their next use.
+     */
+    public void templateCache(int maxTemplates) {
+        this.maxTemplates = maxTemplates;
+    }
+
+    /**
+     * Compiles every template under <code>templates/</code> in {@link #run()}, so no request
+     * pays for parsing one and broken templates fail the startup instead of a request.
+     */
+    public void precompileTemplates(boolean precompile) {
+        this.precompileTemplates = precompile;
+    }
+
+    /**
+     * Size limits for <code>multipart/form-data</code> bodies, 1 MB per field and 1 GB per
+     * file and in total by default. Requests over a limit are answered with <code>413</code>.
+     */
+    public void multipartLimits(MultipartFormDataParser.Limits limits) {
+        this.multipartLimits = limits;
+    }
+
+    /**
+     * Sets where a line per request is logged, <code>System.out</code> by default.
+     * Lines are written by a background thread, so requests never wait for the output,
+     * e.g. <code>accessLog(AccessLog.file(Path.of("access.log")).format("%h [%t] \"%r\" %s %Dms"))</code>.
+     *
+     * @param accessLog the access log, <code>null</code> to turn it off
+     */
+    public void accessLog(AccessLog accessLog) {
+        this.accessLog = accessLog;
+    }
+
+    /**
+     * Records sampled requests to a binary log, to replay them against a server later, e.g.
+     * <code>capture(TrafficCapture.file(Path.of("traffic.bin")).sample(0.01))</code>.
+     * See the README for the replay tool. Nothing is recorded by default.
+     *
+     * @param capture the log to append to, <code>null</code> to turn it off
+     */
+    public void capture(TrafficCapture capture) {
+        this.capture = capture;
+    }
+
+    /**
+     * Records request counts, latencies and byte counts per route and serves them in the
+     * Prometheus text format on <code>metrics.path()</code>, <code>/metrics</code> by default.
+     * The endpoint is a regular <code>GET</code> route, so middleware registered with
+     * {@link #use(TriConsumer)} can protect it.
+     *
+     * @param metrics the metrics to record into, <code>null</code> to turn them off
+     */
+    public void metrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Limits how many requests the server handles at the same time, static files included.
+     * Requests over the limit are answered with <code>503</code> and a <code>Retry-After</code>
+     * header before they are parsed, e.g. <code>concurrencyLimit(ConcurrencyLimit.adaptive(100, 20, 1000))</code>.
+     * There is no limit by default.
+     *
+     * @param limit the limit, <code>null</code> to turn it off
+     */
+    public void concurrencyLimit(ConcurrencyLimit limit) {
+        this.concurrencyLimit = limit;
+    }
+
+    /**
+     * Limits how many requests the routes under a prefix handle at the same time, on top of the
+     * limit of the server, e.g. <code>concurrencyLimit("/reports", ConcurrencyLimit.fixed(4))</code>
+     * keeps slow reports from taking every slot. Prefixes match like {@link #use(String, TriConsumer)},
+     * a route covered by several prefixes gets the limit of the longest one. The routes under a
+     * prefix share its limit.
+     *
+     * @param prefix route prefix, e.g. <code>/reports</code>
+     * @param limit the limit of those routes
+     */
+    public void concurrencyLimit(String prefix, ConcurrencyLimit limit) {
+        this.routeLimits.add(new Pipeline.Limit(prefix, limit));
+    }
+
+    /**
+     * Limits how long the handler of any route may take, middleware and sending the response
+     * included. Once it is over the handler's thread is interrupted, and unless the handler
+     * already started sending a response the server answers with <code>503</code> right away.
+     * A handler that is already streaming its response is only interrupted. Handlers can pass the time they
+     * have left on to their own calls with {@link HttpRequest#remainingTime()}.
+     * There is no timeout by default.
+     *
+     * @param timeout how long a handler may take
+     */
+    public void timeout(Duration timeout) {
+        this.timeouts.add(new Pipeline.Timeout(null, timeout));
+    }
+
+    /**
+     * Limits how long the handlers of the routes under a prefix may take, like {@link #timeout(Duration)}.
+     * A route covered by several prefixes gets the timeout of the longest one, e.g.
+     * <code>timeout(Duration.ofSeconds(2))</code> with <code>timeout("/reports", Duration.ofSeconds(30))</code>.
+     *
+     * @param prefix route prefix, e.g. <code>/reports</code>
+     * @param timeout how long a handler may take
+     */
+    public void timeout(String prefix, Duration timeout) {
+        this.timeouts.add(new Pipeline.Timeout(prefix, timeout));
+    }
+
+    /**
+     * Compresses responses of every route, like registering the middleware with
+     * {@link #use(TriConsumer)} but always ahead of the other middleware.
+     * Static files have their own precompressed variants and are not affected.
+     *
+     * @param compression the compression settings, <code>null</code> to turn it off
+     */
+    public void compression(Compression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Selects the engine that accepts connections, <code>Transport.jdk()</code> by default.
+     * <code>server.transport(Transport.nio())</code> switches to the built-in nio engine
+     * without touching any route or handler.
+     *
+     * @param transport the engine to start in {@link #run()}
+     */
+    public void transport(Transport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Sends requests to the routes in memory in {@link #run()}, before the port is bound, so
+     * the first clients do not wait for the JIT, e.g. <code>warmup(new WarmupPlan().iterations(20_000))</code>.
+     * How many requests were sent and how their latency changed is printed when it is done.
+     *
+     * @param warmup the requests and how long to send them, <code>null</code> for no warmup
+     */
+    public void warmup(WarmupPlan warmup) {
+        this.warmup = warmup;
+    }
+
+    /**
+     * Starts the server. Started with <code>-Damberj.training=true</code> it makes a training
+     * run for a class data sharing archive instead: it sends requests to its own <code>GET</code>
+     * routes and exits, see the README.
      *
      * @param function callback function
      */
     public void run(Runnable function) {
-        routeHandlerMap.keySet().forEach((route) -> {
-            RouteHandler handler = routeHandlerMap.get(route);
-            handler.setMiddlewares(this.middlewares);
-            server.createContext(route, handler).getFilters();
-        });
-
-        server.setExecutor(executor);
-        server.start();
+        if (webSockets && !(transport instanceof NioTransport)) {
+            throw new IllegalStateException("WebSocket routes need the nio engine, e.g. server.transport(Transport.nio())");
+        }
+        StaticAssetCache assets = staticCacheBytes > 0 && staticCacheMaxFileSize > 0
+                ? new StaticAssetCache(staticCacheBytes, staticCacheMaxFileSize)
+                : null;
+        var staticFiles = new StaticFileHandler(staticCacheControl, assets);
+        var middlewares = new ArrayList<Pipeline.Middleware>();
+        if (compression != null) {
+            middlewares.add(new Pipeline.Middleware(null, compression));
+        }
+        middlewares.addAll(this.middlewares);
+        var templates = new TemplateEngine(maxTemplates);
+        if (metrics != null) {
+            Metrics metrics = this.metrics;
+            routes.add(Router.GET, metrics.path(), (request, response) -> {
+                response.contentType("text/plain; version=0.0.4; charset=utf-8");
+                response.write(metrics.scrape().getBytes(StandardCharsets.UTF_8));
+            });
+            if (concurrencyLimit != null) {
+                metrics.limit("global", concurrencyLimit);
+            }
+            for (Pipeline.Limit limit : routeLimits) {
+                metrics.limit(limit.prefix(), limit.limit());
+            }
+        }
+        var parser = HttpRequestUtil.parser(multipartLimits);
+        var handler = new RouteHandler(routes.build(middlewares, routeLimits, timeouts), staticFiles, templates,
+                parser, accessLog, metrics, concurrencyLimit, capture);
+
+        try {
+            if (accessLog != null) {
+                accessLog.start();
+            }
+            if (capture != null) {
+                capture.start();
+            }
+            if (preloadStatic) {
+                staticFiles.preload();
+            }
+            if (precompileTemplates) {
+                templates.precompile("templates");
+            }
+            if (warmup != null) {
+                // warmup requests stay out of the logs, the metrics and what the adaptive limits learned
+                warmup.run(new RouteHandler(routes.build(middlewares, List.of(), timeouts), staticFiles, templates,
+                        parser, null, null, null, null), routes.routes(Router.GET));
+            }
+            transport.start(new InetSocketAddress(port), backlog, handler, executor);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not start the server on port " + port, e);
+        }
+        if (Training.enabled()) {
+            Training.run(port, routes.routes(Router.GET), templates);
+            stop(0);
+            System.exit(0);
+        }
         function.run();
     }
 
@@ -270,15 +522,16 @@ public class Server<T> {
         run(() -> out.println("Server is listening on: http://localhost:" + this.port));
     }
 
-    private static class RouteDetails {
-        String cleanedRoute;
-        ArrayList<String> pathParams;
-        String regex;
-
-        RouteDetails(String cleanedRoute, ArrayList<String> pathParams, String regex) {
-            this.cleanedRoute = cleanedRoute;
-            this.pathParams = pathParams;
-            this.regex = regex;
+    /**
+     * Stops the server, waiting up to <code>delay</code> seconds for in-flight requests.
+     */
+    public void stop(int delay) {
+        transport.stop(delay);
+        if (accessLog != null) {
+            accessLog.stop();
+        }
+        if (capture != null) {
+            capture.stop();
         }
     }
 
@@ -0,0 +1,191 @@
+package com.amberj.net.httpserver;
+
+import com.amberj.net.http.Compression;
+import com.amberj.net.http.LruCache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps small static files in memory together with their gzip and deflate encodings,
+ * which are computed once when the file is loaded.
+ * <p>
+ * The cache is bounded by the total bytes of all variants, the least recently used files
+ * are evicted first. Concurrent misses for the same file share one load. An entry is
+ * reloaded as soon as the file's size or modification time no longer match.
+ */
+class StaticAssetCache {
+    private static final int ENTRY_OVERHEAD = 256;
+
+    private final long maxBytes;
+    private final long maxFileSize;
+    private final LruCache<String, Asset> assets;
+    private final Map<String, CompletableFuture<Asset>> loading;
+
+    StaticAssetCache(long maxBytes, long maxFileSize) {
+        this.maxBytes = maxBytes;
+        this.maxFileSize = Math.min(maxFileSize, Integer.MAX_VALUE - 8);
+        this.assets = new LruCache<>(maxBytes, Asset::weight);
+        this.loading = new ConcurrentHashMap<>();
+    }
+
+    boolean accepts(StaticFileHandler.StaticFile file) {
+        return file.size() <= maxFileSize && file.size() <= maxBytes;
+    }
+
+    /**
+     * @return <code>true</code> if the file can be added without evicting another one
+     */
+    boolean fits(StaticFileHandler.StaticFile file) {
+        return assets.weight() + ENTRY_OVERHEAD + file.size() <= maxBytes;
+    }
+
+    /**
+     * @return the cached asset for the given version of the file, loading it if needed,
+     * <code>null</code> if the file changed since it was stat'ed, it is then sent from disk
+     */
+    Asset get(String name, StaticFileHandler.StaticFile file) throws IOException {
+        Asset asset = assets.get(name);
+        if (asset != null && asset.file().etag().equals(file.etag())) {
+            return asset;
+        }
+
+        var flight = new CompletableFuture<Asset>();
+        CompletableFuture<Asset> leader = loading.putIfAbsent(name, flight);
+        if (leader != null) {
+            Asset loaded = leader.join();
+            if (loaded != null && loaded.file().etag().equals(file.etag())) {
+                return loaded;
+            }
+            // the load failed or read another version of the file
+            return load(name, file);
+        }
+        Asset loaded = null;
+        try {
+            loaded = load(name, file);
+        } finally {
+            loading.remove(name, flight);
+            flight.complete(loaded);
+        }
+        return loaded;
+    }
+
+    private Asset load(String name, StaticFileHandler.StaticFile file) throws IOException {
+        Asset asset = read(file);
+        if (asset != null) {
+            assets.put(name, asset);
+        }
+        return asset;
+    }
+
+    /**
+     * @return <code>null</code> if the file was rewritten after it was stat'ed, the bytes
+     * would not match the size and ETag of <code>file</code>
+     */
+    private static Asset read(StaticFileHandler.StaticFile file) throws IOException {
+        byte[] identity = Files.readAllBytes(file.path());
+        if (identity.length != file.size()) {
+            return null;
+        }
+        byte[] gzip = null;
+        byte[] deflate = null;
+        if (Compression.isCompressible(file.mimeType())) {
+            gzip = smallerOrNull(gzip(identity), identity);
+            deflate = smallerOrNull(deflate(identity), identity);
+        }
+        return new Asset(file, identity, gzip, deflate);
+    }
+
+    private static byte[] smallerOrNull(byte[] encoded, byte[] identity) {
+        return encoded.length < identity.length ? encoded : null;
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        var out = new ByteArrayOutputStream(data.length / 2 + 64);
+        try (var gzip = new GZIPOutputStream(out) {
+            {
+                def.setLevel(Deflater.BEST_COMPRESSION);
+            }
+        }) {
+            gzip.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] deflate(byte[] data) throws IOException {
+        var out = new ByteArrayOutputStream(data.length / 2 + 64);
+        var deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try (var deflate = new DeflaterOutputStream(out, deflater)) {
+            deflate.write(data);
+        } finally {
+            deflater.end();
+        }
+        return out.toByteArray();
+    }
+
+    static final class Asset {
+        private final StaticFileHandler.StaticFile file;
+        private final byte[] identity;
+        private final byte[] gzip;
+        private final byte[] deflate;
+
+        Asset(StaticFileHandler.StaticFile file, byte[] identity, byte[] gzip, byte[] deflate) {
+            this.file = file;
+            this.identity = identity;
+            this.gzip = gzip;
+            this.deflate = deflate;
+        }
+
+        StaticFileHandler.StaticFile file() {
+            return file;
+        }
+
+        byte[] identity() {
+            return identity;
+        }
+
+        /**
+         * @return <code>true</code> if the asset has encoded variants, responses then vary by <code>Accept-Encoding</code>
+         */
+        boolean hasVariants() {
+            return gzip != null || deflate != null;
+        }
+
+        /**
+         * @return the encoding to send for the given <code>Accept-Encoding</code> header,
+         * <code>null</code> for the identity bytes
+         */
+        String negotiate(String acceptEncoding) {
+            if (acceptEncoding == null || !hasVariants()) {
+                return null;
+            }
+            double gzipQ = gzip != null ? Compression.quality(acceptEncoding, "gzip") : 0;
+            double deflateQ = deflate != null ? Compression.quality(acceptEncoding, "deflate") : 0;
+            if (gzipQ <= 0 && deflateQ <= 0) {
+                return null;
+            }
+            if (gzipQ >= deflateQ) {
+                return "gzip";
+            }
+            return "deflate";
+        }
+
+        byte[] bytes(String encoding) {
+            if (encoding == null) {
+                return identity;
+            }
+            return encoding.equals("gzip") ? gzip : deflate;
+        }
+
+        long weight() {
+            return ENTRY_OVERHEAD + identity.length + (gzip != null ? gzip.length : 0) + (deflate != null ? deflate.length : 0);
+        }
+    }
+}
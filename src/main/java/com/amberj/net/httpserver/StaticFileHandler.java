@@ -0,0 +1,499 @@
+package com.amberj.net.httpserver;
+
+import com.amberj.net.Config;
+import com.amberj.net.transport.ZeroCopyOutput;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Serves the files under <code>Config.STATIC_DIR</code> on the classpath.
+ * <p>
+ * Files are streamed with <code>FileChannel.transferTo</code>, which becomes a
+ * <code>sendfile</code> on the nio transport, so a download never goes through the heap.
+ * Resolved paths, MIME types and ETags are cached and revalidated against the file's
+ * size and modification time. <code>Range</code> requests are answered with
+ * <code>206</code>, <code>If-None-Match</code>/<code>If-Modified-Since</code> with <code>304</code>.
+ * <p>
+ * Small files are served from a {@link StaticAssetCache} when one is configured, in the
+ * gzip or deflate encoding the client accepts.
+ */
+class StaticFileHandler {
+    private static final String DEFAULT_CACHE_CONTROL = "no-cache";
+    private static final long[] INVALID_RANGE = new long[0];
+    private static final Map<String, String> MIME_TYPES = Map.ofEntries(
+            Map.entry("html", "text/html"),
+            Map.entry("htm", "text/html"),
+            Map.entry("css", "text/css"),
+            Map.entry("js", "text/javascript"),
+            Map.entry("mjs", "text/javascript"),
+            Map.entry("json", "application/json"),
+            Map.entry("map", "application/json"),
+            Map.entry("txt", "text/plain"),
+            Map.entry("csv", "text/csv"),
+            Map.entry("xml", "application/xml"),
+            Map.entry("svg", "image/svg+xml"),
+            Map.entry("png", "image/png"),
+            Map.entry("jpg", "image/jpeg"),
+            Map.entry("jpeg", "image/jpeg"),
+            Map.entry("gif", "image/gif"),
+            Map.entry("webp", "image/webp"),
+            Map.entry("avif", "image/avif"),
+            Map.entry("ico", "image/x-icon"),
+            Map.entry("woff", "font/woff"),
+            Map.entry("woff2", "font/woff2"),
+            Map.entry("ttf", "font/ttf"),
+            Map.entry("wasm", "application/wasm"),
+            Map.entry("pdf", "application/pdf"),
+            Map.entry("zip", "application/zip"),
+            Map.entry("gz", "application/gzip"),
+            Map.entry("mp4", "video/mp4"),
+            Map.entry("webm", "video/webm"),
+            Map.entry("mp3", "audio/mpeg")
+    );
+
+    private final String prefix;
+    private final String resourceDir;
+    private final List<Map.Entry<String, String>> cacheControl;
+    private final Map<String, StaticFile> files;
+    private final Map<String, String> mimeTypes;
+    private final StaticAssetCache assets;
+    private FileSystem jarFileSystem;
+
+    /**
+     * @param cacheControl <code>Cache-Control</code> value per directory relative to the static dir,
+     *                     the longest matching directory wins
+     * @param assets       in-memory cache for small files, <code>null</code> to always read from disk
+     */
+    StaticFileHandler(Map<String, String> cacheControl, StaticAssetCache assets) {
+        this.resourceDir = Config.STATIC_DIR.endsWith("/") ? Config.STATIC_DIR : Config.STATIC_DIR + "/";
+        this.prefix = "/" + resourceDir;
+        this.files = new ConcurrentHashMap<>();
+        this.mimeTypes = new ConcurrentHashMap<>(MIME_TYPES);
+        this.assets = assets;
+
+        var entries = new ArrayList<Map.Entry<String, String>>();
+        cacheControl.forEach((dir, value) -> entries.add(Map.entry(normalizeDir(dir), value)));
+        entries.sort((a, b) -> b.getKey().length() - a.getKey().length());
+        this.cacheControl = entries;
+    }
+
+    private static String normalizeDir(String dir) {
+        String normalized = dir.replace('\\', '/');
+        while (normalized.startsWith("/")) {
+            normalized = normalized.substring(1);
+        }
+        if (!normalized.isEmpty() && !normalized.endsWith("/")) {
+            normalized += "/";
+        }
+        return normalized;
+    }
+
+    boolean matches(String path) {
+        return path.startsWith(prefix);
+    }
+
+    void handle(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        boolean head = method.equalsIgnoreCase("HEAD");
+        if (!head && !method.equalsIgnoreCase("GET")) {
+            sendStatus(exchange, 405, "405 (Method Not Allowed)\n");
+            return;
+        }
+
+        String name = exchange.getRequestURI().getPath().substring(prefix.length());
+        StaticFile file = resolve(name);
+        if (file == null) {
+            sendStatus(exchange, 404, "File not found");
+            return;
+        }
+
+        Headers requestHeaders = exchange.getRequestHeaders();
+        Headers headers = exchange.getResponseHeaders();
+        String range = requestHeaders.getFirst("Range");
+        StaticAssetCache.Asset asset = assets != null && assets.accepts(file) ? assets.get(name, file) : null;
+        String encoding = null;
+        if (asset != null && asset.hasVariants()) {
+            headers.set("Vary", "Accept-Encoding");
+            if (range == null) {
+                encoding = asset.negotiate(requestHeaders.getFirst("Accept-Encoding"));
+            }
+        }
+        String etag = encoding == null ? file.etag() : variantEtag(file.etag(), encoding);
+
+        headers.set("Cache-Control", cacheControl(name));
+        headers.set("ETag", etag);
+        headers.set("Last-Modified", file.lastModifiedHttp());
+        headers.set("Accept-Ranges", "bytes");
+
+        if (notModified(file, etag, requestHeaders)) {
+            exchange.sendResponseHeaders(304, -1);
+            exchange.getResponseBody().close();
+            return;
+        }
+
+        headers.set("Content-Type", file.mimeType());
+        long start = 0;
+        long length = file.size();
+        int status = 200;
+
+        if (range != null && rangeApplies(file, requestHeaders.getFirst("If-Range"))) {
+            long[] bounds = parseRange(range, file.size());
+            if (bounds == INVALID_RANGE) {
+                headers.set("Content-Range", "bytes */" + file.size());
+                sendStatus(exchange, 416, "");
+                return;
+            }
+            if (bounds != null) {
+                start = bounds[0];
+                length = bounds[1] - bounds[0] + 1;
+                status = 206;
+                headers.set("Content-Range", "bytes " + bounds[0] + "-" + bounds[1] + "/" + file.size());
+            }
+        }
+
+        byte[] bytes = null;
+        if (asset != null) {
+            bytes = asset.bytes(encoding);
+            if (encoding != null) {
+                headers.set("Content-Encoding", encoding);
+                length = bytes.length;
+            }
+        }
+
+        if (head) {
+            headers.set("Content-Length", Long.toString(length));
+            exchange.sendResponseHeaders(status, -1);
+            exchange.getResponseBody().close();
+            return;
+        }
+
+        if (bytes != null) {
+            exchange.sendResponseHeaders(status, length == 0 ? -1 : length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes, (int) start, (int) length);
+            }
+            return;
+        }
+
+        try (FileChannel channel = FileChannel.open(file.path(), StandardOpenOption.READ)) {
+            exchange.sendResponseHeaders(status, length == 0 ? -1 : length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                transfer(channel, start, length, out);
+            }
+        }
+    }
+
+    /**
+     * Loads every file under the static dir into the asset cache until its budget is used up.
+     *
+     * @return the number of files loaded
+     */
+    int preload() throws IOException {
+        if (assets == null) {
+            return 0;
+        }
+        Path root = locate("");
+        if (root == null || !Files.isDirectory(root)) {
+            return 0;
+        }
+        List<Path> paths;
+        try (var walk = Files.walk(root)) {
+            paths = walk.filter(Files::isRegularFile).toList();
+        }
+        int loaded = 0;
+        for (Path path : paths) {
+            String name = root.relativize(path).toString().replace('\\', '/');
+            StaticFile file = resolve(name);
+            if (file != null && assets.accepts(file) && assets.fits(file) && assets.get(name, file) != null) {
+                loaded++;
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Encoded variants need their own strong ETag, <code>"size-mtime"</code> becomes <code>"size-mtime-gzip"</code>.
+     */
+    private static String variantEtag(String etag, String encoding) {
+        return etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+    }
+
+    private static void transfer(FileChannel channel, long position, long count, OutputStream out) throws IOException {
+        if (count == 0) {
+            return;
+        }
+        if (out instanceof ZeroCopyOutput zeroCopy) {
+            zeroCopy.transferFrom(channel, position, count);
+            return;
+        }
+        WritableByteChannel target = Channels.newChannel(out);
+        while (count > 0) {
+            long n = channel.transferTo(position, count, target);
+            if (n <= 0) {
+                throw new IOException("File is shorter than the announced length");
+            }
+            position += n;
+            count -= n;
+        }
+    }
+
+    private String cacheControl(String name) {
+        for (Map.Entry<String, String> entry : cacheControl) {
+            if (name.startsWith(entry.getKey())) {
+                return entry.getValue();
+            }
+        }
+        return DEFAULT_CACHE_CONTROL;
+    }
+
+    private static boolean notModified(StaticFile file, String etag, Headers requestHeaders) {
+        String ifNoneMatch = requestHeaders.getFirst("If-None-Match");
+        if (ifNoneMatch != null) {
+            return etagMatches(ifNoneMatch, etag) || etagMatches(ifNoneMatch, file.etag());
+        }
+        String ifModifiedSince = requestHeaders.getFirst("If-Modified-Since");
+        if (ifModifiedSince != null) {
+            long since = parseHttpDate(ifModifiedSince);
+            return since != -1 && file.lastModified() / 1000 <= since / 1000;
+        }
+        return false;
+    }
+
+    private static boolean etagMatches(String header, String etag) {
+        for (String candidate : header.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*")) {
+                return true;
+            }
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A <code>Range</code> only applies when <code>If-Range</code> is missing or still names this version of the file.
+     */
+    private static boolean rangeApplies(StaticFile file, String ifRange) {
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(file.etag());
+        }
+        long date = parseHttpDate(ifRange);
+        return date != -1 && file.lastModified() / 1000 <= date / 1000;
+    }
+
+    /**
+     * Parses a single <code>bytes=</code> range. Multiple ranges are not supported and
+     * are answered with the whole file, which the specification allows.
+     *
+     * @return inclusive start and end, <code>null</code> to send the whole file,
+     * {@link #INVALID_RANGE} if the range can not be satisfied
+     */
+    static long[] parseRange(String header, long size) {
+        if (!header.startsWith("bytes=") || header.indexOf(',') != -1) {
+            return null;
+        }
+        String spec = header.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash == -1) {
+            return null;
+        }
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            if (!isDigits(first) || !isDigits(last)) {
+                return null;
+            }
+            long start;
+            long end;
+            if (first.isEmpty()) {
+                if (last.isEmpty()) {
+                    return null;
+                }
+                long suffix = Long.parseLong(last);
+                if (suffix == 0) {
+                    return INVALID_RANGE;
+                }
+                start = Math.max(0, size - suffix);
+                end = size - 1;
+                if (size == 0) {
+                    return INVALID_RANGE;
+                }
+            } else {
+                start = Long.parseLong(first);
+                if (start >= size) {
+                    return INVALID_RANGE;
+                }
+                if (last.isEmpty()) {
+                    end = size - 1;
+                } else {
+                    long requestedEnd = Long.parseLong(last);
+                    if (requestedEnd < start) {
+                        return null;
+                    }
+                    end = Math.min(requestedEnd, size - 1);
+                }
+            }
+            return new long[]{start, end};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Range positions are plain digits, <code>Long.parseLong</code> would also take a sign.
+     */
+    private static boolean isDigits(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) < '0' || s.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long parseHttpDate(String value) {
+        try {
+            return ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Looks up a file, reusing the cached entry while the file's size and modification time are unchanged.
+     *
+     * @return the file or <code>null</code> if there is no such file
+     */
+    StaticFile resolve(String name) throws IOException {
+        if (!isSafe(name)) {
+            return null;
+        }
+        StaticFile cached = files.get(name);
+        Path path = cached != null ? cached.path() : locate(name);
+        if (path == null) {
+            return null;
+        }
+
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            files.remove(name);
+            return null;
+        }
+        if (!attributes.isRegularFile()) {
+            return null;
+        }
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        if (cached != null && cached.size() == attributes.size() && cached.lastModified() == lastModified) {
+            return cached;
+        }
+
+        var file = new StaticFile(
+                path,
+                attributes.size(),
+                lastModified,
+                "\"" + Long.toHexString(attributes.size()) + "-" + Long.toHexString(lastModified) + "\"",
+                DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(lastModified).atOffset(ZoneOffset.UTC)),
+                mimeType(name)
+        );
+        files.put(name, file);
+        return file;
+    }
+
+    private static boolean isSafe(String name) {
+        if (name.isEmpty() || name.indexOf('\\') != -1 || name.indexOf('\0') != -1) {
+            return false;
+        }
+        for (String segment : name.split("/")) {
+            if (segment.equals("..")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Path locate(String name) throws IOException {
+        URL url = getClass().getClassLoader().getResource(resourceDir + name);
+        if (url == null) {
+            return null;
+        }
+        try {
+            URI uri = url.toURI();
+            if (uri.getScheme().equals("jar")) {
+                return jarFileSystem(uri).getPath("/" + resourceDir + name);
+            }
+            return Paths.get(uri);
+        } catch (URISyntaxException | FileSystemNotFoundException e) {
+            return null;
+        }
+    }
+
+    private synchronized FileSystem jarFileSystem(URI uri) throws IOException {
+        if (jarFileSystem == null || !jarFileSystem.isOpen()) {
+            try {
+                jarFileSystem = FileSystems.newFileSystem(uri, Collections.emptyMap());
+            } catch (FileSystemAlreadyExistsException e) {
+                jarFileSystem = FileSystems.getFileSystem(uri);
+            }
+        }
+        return jarFileSystem;
+    }
+
+    private String mimeType(String name) {
+        int dot = name.lastIndexOf('.');
+        String extension = dot == -1 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+        return mimeTypes.computeIfAbsent(extension, ext -> {
+            try {
+                String probed = Files.probeContentType(Paths.get("file." + ext));
+                return probed != null ? probed : "application/octet-stream";
+            } catch (IOException | InvalidPathException e) {
+                return "application/octet-stream";
+            }
+        });
+    }
+
+    private static void sendStatus(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    record StaticFile(
+            Path path,
+            long size,
+            long lastModified,
+            String etag,
+            String lastModifiedHttp,
+            String mimeType
+    ) {}
+}
@@ -0,0 +1,439 @@
+package com.amberj.net.httpserver;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Records requests to a binary log, to replay production traffic against a server later,
+ * e.g. <code>capture(TrafficCapture.file(Path.of("traffic.bin")).sample(0.05))</code>.
+ * <p>
+ * A sampled request keeps a copy of the body bytes the handler reads, up to
+ * {@link #maxBodySize(int)}. Once the response was sent, the request thread serializes
+ * method, path with query, headers, body, arrival time, status and duration into one
+ * record and copies it into a memory-mapped region of the file, which is the only part
+ * done under a lock. Requests that are not sampled cost one random number.
+ * <p>
+ * The file starts with the 8 bytes <code>AMBJCAP1</code>, followed by records of
+ * <pre>
+ * int    length of the rest of the record, 0 where the log ends
+ * long   arrival, microseconds since the epoch
+ * int    microseconds until the response was sent
+ * short  status code
+ * byte   1 if the body is incomplete, 0 otherwise
+ * method, path, then a short count of header name and value pairs
+ * int    body length, followed by the body
+ * </pre>
+ * in big-endian order. Method and header names are UTF-8 with a short length, path and
+ * header values UTF-8 with an int length. {@link #read(Path)} reads a log back.
+ */
+public final class TrafficCapture {
+    public static final int DEFAULT_MAX_BODY_SIZE = 64 * 1024;
+    public static final long DEFAULT_MAX_BYTES = 1024L * 1024 * 1024;
+
+    private static final byte[] MAGIC = "AMBJCAP1".getBytes(StandardCharsets.US_ASCII);
+    // the file is mapped this much at a time
+    private static final long REGION_SIZE = 16L * 1024 * 1024;
+    private static final int TRUNCATED = 1;
+
+    /**
+     * A recorded request.
+     *
+     * @param timeMicros     arrival, microseconds since the epoch
+     * @param durationMicros how long the server took to send the response
+     * @param bodyTruncated  whether <code>body</code> is only the start of the body, because it was
+     *                       larger than the limit or the handler did not read all of it
+     */
+    public record Record(long timeMicros, int durationMicros, int status, String method, String target,
+                         Map<String, List<String>> headers, byte[] body, boolean bodyTruncated) {}
+
+    private final Path path;
+    private double sample = 1;
+    private int maxBodySize = DEFAULT_MAX_BODY_SIZE;
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    private Set<String> excludedHeaders = Set.of("authorization", "proxy-authorization", "cookie");
+
+    private final AtomicLong captured = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private long epochMicros;
+    private long epochNanos;
+
+    // guarded by this
+    private FileChannel channel;
+    private MappedByteBuffer region;
+    private long regionStart;
+    private long position;
+
+    private TrafficCapture(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Appends to a file, which is created if it does not exist.
+     */
+    public static TrafficCapture file(Path path) {
+        return new TrafficCapture(path);
+    }
+
+    /**
+     * The share of requests that are recorded, all of them by default.
+     *
+     * @param rate between 0 and 1, e.g. <code>0.01</code> for one request in a hundred
+     */
+    public TrafficCapture sample(double rate) {
+        if (!(rate > 0 && rate <= 1)) {
+            throw new IllegalArgumentException("Expected a sample rate above 0 and at most 1, got " + rate);
+        }
+        this.sample = rate;
+        return this;
+    }
+
+    /**
+     * How much of a request body is kept, {@link #DEFAULT_MAX_BODY_SIZE} bytes by default.
+     * Larger bodies are recorded incomplete.
+     */
+    public TrafficCapture maxBodySize(int maxBodySize) {
+        this.maxBodySize = maxBodySize;
+        return this;
+    }
+
+    /**
+     * How large the file may grow, 1 GB by default. Requests that do not fit are dropped.
+     */
+    public TrafficCapture maxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        return this;
+    }
+
+    /**
+     * Headers that are left out of the log, <code>Authorization</code>, <code>Proxy-Authorization</code>
+     * and <code>Cookie</code> by default, so no credentials end up in it.
+     */
+    public TrafficCapture excludeHeaders(String... names) {
+        this.excludedHeaders = Arrays.stream(names)
+                .map(name -> name.toLowerCase(Locale.ROOT))
+                .collect(Collectors.toUnmodifiableSet());
+        return this;
+    }
+
+    /**
+     * @return how many requests were written to the log
+     */
+    public long captured() {
+        return captured.get();
+    }
+
+    /**
+     * @return how many sampled requests were not written, because the log was full or could not be written
+     */
+    public long dropped() {
+        return dropped.get();
+    }
+
+    synchronized void start() throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            position = end(channel);
+            if (position == 0) {
+                channel.write(ByteBuffer.wrap(MAGIC), 0);
+                position = MAGIC.length;
+            }
+        } catch (IOException e) {
+            channel.close();
+            channel = null;
+            throw e;
+        }
+        region = null;
+        epochMicros = System.currentTimeMillis() * 1000;
+        epochNanos = System.nanoTime();
+    }
+
+    /**
+     * @return where the records of an existing log end, 0 for an empty file
+     */
+    private static long end(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size == 0) {
+            return 0;
+        }
+        var magic = ByteBuffer.allocate(MAGIC.length);
+        var length = ByteBuffer.allocate(Integer.BYTES);
+        if (channel.read(magic, 0) != MAGIC.length || !Arrays.equals(magic.array(), MAGIC)) {
+            throw new IOException("Not a traffic capture: " + size + " bytes without the header");
+        }
+        long position = MAGIC.length;
+        while (position + Integer.BYTES <= size) {
+            length.clear();
+            channel.read(length, position);
+            int next = length.getInt(0);
+            if (next <= 0 || position + Integer.BYTES + next > size) {
+                break;
+            }
+            position += Integer.BYTES + next;
+        }
+        return position;
+    }
+
+    /**
+     * Cuts the file to the records written and closes it.
+     */
+    synchronized void stop() {
+        if (channel == null) {
+            return;
+        }
+        region = null;
+        try {
+            // the mapped regions run past the last record, the reader also stops at the zeros
+            channel.truncate(position);
+        } catch (IOException ignored) {
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        channel = null;
+    }
+
+    /**
+     * Called when a request arrives. Sampled requests get a copy of their body kept.
+     *
+     * @param startNanos {@link System#nanoTime()} when the request arrived
+     * @return the recording to pass to {@link #finished}, <code>null</code> if the request is not recorded
+     */
+    Recording started(HttpExchange exchange, long startNanos) {
+        if (sample < 1 && ThreadLocalRandom.current().nextDouble() >= sample) {
+            return null;
+        }
+        var recording = new Recording(exchange.getRequestBody(), maxBodySize, startNanos);
+        exchange.setStreams(recording, null);
+        return recording;
+    }
+
+    /**
+     * Called on the request thread once the response was sent.
+     */
+    void finished(HttpExchange exchange, Recording recording) {
+        long nanos = System.nanoTime() - recording.startNanos;
+        byte[] record = encode(exchange, recording, epochMicros + (recording.startNanos - epochNanos) / 1000,
+                (int) Math.min(Integer.MAX_VALUE, nanos / 1000));
+        if (append(record)) {
+            captured.incrementAndGet();
+        } else {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private synchronized boolean append(byte[] record) {
+        if (channel == null || position + record.length > maxBytes) {
+            return false;
+        }
+        try {
+            if (region == null || position + record.length > regionStart + region.capacity()) {
+                regionStart = position;
+                region = channel.map(FileChannel.MapMode.READ_WRITE, position, Math.max(REGION_SIZE, record.length));
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        region.put((int) (position - regionStart), record);
+        position += record.length;
+        return true;
+    }
+
+    private byte[] encode(HttpExchange exchange, Recording recording, long timeMicros, int durationMicros) {
+        byte[] method = exchange.getRequestMethod().getBytes(StandardCharsets.UTF_8);
+        byte[] target = exchange.getRequestURI().toString().getBytes(StandardCharsets.UTF_8);
+        var headers = new ArrayList<byte[]>();
+        int size = Integer.BYTES + Long.BYTES + Integer.BYTES + Short.BYTES + 1
+                + Short.BYTES + method.length + Integer.BYTES + target.length + Short.BYTES;
+        for (Map.Entry<String, List<String>> header : exchange.getRequestHeaders().entrySet()) {
+            if (excludedHeaders.contains(header.getKey().toLowerCase(Locale.ROOT))) {
+                continue;
+            }
+            byte[] name = header.getKey().getBytes(StandardCharsets.UTF_8);
+            for (String value : header.getValue()) {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                headers.add(name);
+                headers.add(bytes);
+                size += Short.BYTES + name.length + Integer.BYTES + bytes.length;
+            }
+        }
+        byte[] body = recording.body();
+        size += Integer.BYTES + body.length;
+
+        var buffer = ByteBuffer.allocate(size);
+        buffer.putInt(size - Integer.BYTES);
+        buffer.putLong(timeMicros);
+        buffer.putInt(durationMicros);
+        buffer.putShort((short) exchange.getResponseCode());
+        buffer.put((byte) (recording.truncated(exchange) ? TRUNCATED : 0));
+        buffer.putShort((short) method.length).put(method);
+        buffer.putInt(target.length).put(target);
+        buffer.putShort((short) (headers.size() / 2));
+        for (int i = 0; i < headers.size(); i += 2) {
+            buffer.putShort((short) headers.get(i).length).put(headers.get(i));
+            buffer.putInt(headers.get(i + 1).length).put(headers.get(i + 1));
+        }
+        buffer.putInt(body.length).put(body);
+        return buffer.array();
+    }
+
+    /**
+     * Reads the records of a log in the order they were written, which is the order the
+     * responses were sent in.
+     */
+    public static List<Record> read(Path path) throws IOException {
+        var records = new ArrayList<Record>();
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 64 * 1024))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a traffic capture: " + path);
+            }
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length == 0) {
+                    break;
+                }
+                records.add(decode(in));
+            }
+        }
+        return records;
+    }
+
+    private static Record decode(DataInputStream in) throws IOException {
+        long timeMicros = in.readLong();
+        int durationMicros = in.readInt();
+        int status = in.readShort();
+        boolean truncated = (in.readByte() & TRUNCATED) != 0;
+        String method = string(in, in.readUnsignedShort());
+        String target = string(in, in.readInt());
+        int count = in.readUnsignedShort();
+        var headers = new LinkedHashMap<String, List<String>>();
+        for (int i = 0; i < count; i++) {
+            String name = string(in, in.readUnsignedShort());
+            headers.computeIfAbsent(name, n -> new ArrayList<>(1)).add(string(in, in.readInt()));
+        }
+        byte[] body = new byte[in.readInt()];
+        in.readFully(body);
+        return new Record(timeMicros, durationMicros, status, method, target, headers, body, truncated);
+    }
+
+    private static String string(DataInputStream in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The request body of a sampled request, keeping a copy of what the handler reads.
+     */
+    static final class Recording extends FilterInputStream {
+        private final ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        private final int maxBodySize;
+        private final long startNanos;
+        private boolean overflow;
+        private boolean eof;
+
+        Recording(InputStream in, int maxBodySize, long startNanos) {
+            super(in);
+            this.maxBodySize = maxBodySize;
+            this.startNanos = startNanos;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b == -1) {
+                eof = true;
+            } else if (copy.size() < maxBodySize) {
+                copy.write(b);
+            } else {
+                overflow = true;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n == -1) {
+                eof = true;
+            } else if (n > 0) {
+                keep(b, off, n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // read instead of skipping, so the copy has no holes
+            byte[] skipped = new byte[(int) Math.min(n, 8192)];
+            int read = read(skipped, 0, skipped.length);
+            return Math.max(read, 0);
+        }
+
+        private void keep(byte[] b, int off, int len) {
+            int room = maxBodySize - copy.size();
+            if (len > room) {
+                overflow = true;
+                len = Math.max(room, 0);
+            }
+            copy.write(b, off, len);
+        }
+
+        byte[] body() {
+            return copy.toByteArray();
+        }
+
+        /**
+         * @return whether the handler read less than the whole body or it was over the limit
+         */
+        boolean truncated(HttpExchange exchange) {
+            if (overflow) {
+                return true;
+            }
+            if (eof) {
+                return false;
+            }
+            String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+            if (contentLength == null) {
+                // a chunked body the handler did not read to its end
+                return exchange.getRequestHeaders().containsKey("Transfer-Encoding");
+            }
+            try {
+                return copy.size() < Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+    }
+}
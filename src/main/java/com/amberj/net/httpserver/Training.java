@@ -0,0 +1,128 @@
+package com.amberj.net.httpserver;
+
+import com.amberj.net.json.Json;
+import com.amberj.net.template.TemplateEngine;
+import com.sun.management.HotSpotDiagnosticMXBean;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static java.lang.System.out;
+
+/**
+ * The training run of an AppCDS archive, started with <code>-Damberj.training=true</code>.
+ * The JVM writes the classes it loaded into the archive when it exits, so the run loads
+ * what requests need: it compiles the templates, sets up JSON and sends a few rounds of
+ * requests over loopback to every <code>GET</code> route, through the real engine, then
+ * exits. Path parameters get the value <code>1</code>. Other methods are left alone, their
+ * handlers may change data. WebSocket and event stream routes are skipped.
+ * <pre>
+ * java -XX:ArchiveClassesAtExit=app.jsa -Damberj.training=true -jar app.jar
+ * java -XX:SharedArchiveFile=app.jsa -jar app.jar
+ * </pre>
+ */
+final class Training {
+    static final String PROPERTY = "amberj.training";
+    private static final int ROUNDS = 3;
+
+    private Training() {}
+
+    static boolean enabled() {
+        return Boolean.getBoolean(PROPERTY);
+    }
+
+    /**
+     * @param gets the registered <code>GET</code> routes
+     */
+    static void run(int port, List<Router.Route> gets, TemplateEngine templates) {
+        if (!archiving()) {
+            out.println("Training run without -XX:ArchiveClassesAtExit=<file>, no class archive will be written");
+        }
+        try {
+            templates.precompile("templates");
+        } catch (IOException | RuntimeException e) {
+            out.println("Training run could not compile the templates: " + e);
+        }
+        try {
+            Json.write(OutputStream.nullOutputStream(), Map.of("training", List.of(1, "two", true)));
+        } catch (IOException ignored) {
+        }
+
+        List<String> paths = paths(gets);
+        int requests = 0;
+        int failed = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            for (String path : paths) {
+                requests++;
+                try {
+                    int status = get(port, path);
+                    if (status >= 500) {
+                        failed++;
+                    }
+                } catch (IOException e) {
+                    failed++;
+                }
+            }
+        }
+        out.println("Training run sent " + requests + " requests to " + paths.size() + " routes ("
+                + failed + " failed), exiting to write the class archive");
+    }
+
+    static List<String> paths(List<Router.Route> gets) {
+        var paths = new ArrayList<String>();
+        for (Router.Route route : gets) {
+            if (route.handler() instanceof EventStreamRoute || route.handler() instanceof WebSocketUpgrade) {
+                continue;
+            }
+            var path = new StringBuilder();
+            for (String segment : Router.segments(route.pattern())) {
+                path.append('/');
+                path.append(segment.startsWith("{") && segment.endsWith("}") ? "1" : segment);
+            }
+            paths.add(path.isEmpty() ? "/" : path.toString());
+        }
+        return paths;
+    }
+
+    /**
+     * @return the status of the response, read to its end
+     */
+    private static int get(int port, String path) throws IOException {
+        try (var socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setSoTimeout(10_000);
+            OutputStream request = socket.getOutputStream();
+            request.write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\nAccept: */*\r\n"
+                    + "Accept-Encoding: gzip\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            request.flush();
+            InputStream response = socket.getInputStream();
+            byte[] head = new byte[12];
+            int read = response.readNBytes(head, 0, head.length);
+            response.transferTo(OutputStream.nullOutputStream());
+            if (read < head.length) {
+                throw new IOException("Incomplete response to " + path);
+            }
+            return Integer.parseInt(new String(head, 9, 3, StandardCharsets.US_ASCII));
+        }
+    }
+
+    /**
+     * Whether the JVM writes a dynamic archive on exit.
+     */
+    private static boolean archiving() {
+        try {
+            var vm = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+            return !vm.getVMOption("ArchiveClassesAtExit").getValue().isEmpty()
+                    || Boolean.parseBoolean(vm.getVMOption("AutoCreateSharedArchive").getValue());
+        } catch (RuntimeException e) {
+            return true;
+        }
+    }
+}
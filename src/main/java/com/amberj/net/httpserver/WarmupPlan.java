@@ -0,0 +1,185 @@
+package com.amberj.net.httpserver;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static java.lang.System.out;
+
+/**
+ * Requests the server handles in memory before it binds its port, so the JIT compiles the
+ * request path before the first client arrives, e.g.
+ * <code>server.warmup(new WarmupPlan().iterations(20_000).duration(Duration.ofSeconds(10)))</code>.
+ * <p>
+ * By default every <code>GET</code> route is called once per iteration, with the value
+ * <code>1</code> for its path parameters. Requests added with {@link #request(String, String)}
+ * or {@link #recorded(Path)} replace them, e.g. to include a <code>POST</code> with a harmless
+ * body or real traffic. Requests run through
+ * the middleware and handlers like real ones, but not through the access log, metrics and
+ * concurrency limits. The engine's own parsing is not part of it.
+ */
+public final class WarmupPlan {
+    // requests whose latency is averaged for the report
+    private static final int BLOCK = 100;
+
+    record Request(String method, String path, Map<String, List<String>> headers, byte[] body) {}
+
+    private int iterations = 10_000;
+    private Duration duration;
+    private final List<Request> requests = new ArrayList<>();
+    private final List<Path> recordings = new ArrayList<>();
+
+    /**
+     * How often every request is sent, 10000 times by default.
+     */
+    public WarmupPlan iterations(int iterations) {
+        if (iterations < 1) {
+            throw new IllegalArgumentException("Expected at least one iteration, got " + iterations);
+        }
+        this.iterations = iterations;
+        return this;
+    }
+
+    /**
+     * Ends the warmup after this long even if not all iterations were sent, no limit by default.
+     */
+    public WarmupPlan duration(Duration duration) {
+        this.duration = duration;
+        return this;
+    }
+
+    /**
+     * Sends this request instead of the default ones.
+     *
+     * @param path path and query, e.g. <code>/users/42?fields=name</code>
+     */
+    public WarmupPlan request(String method, String path) {
+        return request(method, path, null, null);
+    }
+
+    /**
+     * Sends this request with a body instead of the default ones,
+     * e.g. <code>request("POST", "/search", "application/json", "{\"q\":\"shoes\"}")</code>.
+     */
+    public WarmupPlan request(String method, String path, String contentType, String body) {
+        requests.add(synthetic(method, path, contentType, body == null ? null : body.getBytes(StandardCharsets.UTF_8)));
+        return this;
+    }
+
+    /**
+     * Sends the <code>GET</code> and <code>HEAD</code> requests of a {@link TrafficCapture} log
+     * instead of the default ones. Other methods are left out, their handlers may change data,
+     * so are requests whose body was not recorded completely. The log is read in {@link Server#run()}.
+     */
+    public WarmupPlan recorded(Path capture) {
+        recordings.add(capture);
+        return this;
+    }
+
+    private static Request synthetic(String method, String path, String contentType, byte[] body) {
+        var headers = new Headers();
+        headers.set("Host", "localhost");
+        headers.set("Accept", "*/*");
+        if (contentType != null) {
+            headers.set("Content-Type", contentType);
+        }
+        if (body != null) {
+            headers.set("Content-Length", Integer.toString(body.length));
+        }
+        return new Request(method.toUpperCase(Locale.ROOT), path, headers, body == null ? new byte[0] : body);
+    }
+
+    /**
+     * @param handler a handler of the server's routes without access log, metrics and limits
+     * @param gets    the registered <code>GET</code> routes, called when no requests were added
+     */
+    void run(HttpHandler handler, List<Router.Route> gets) throws IOException {
+        List<Request> requests = new ArrayList<>(this.requests);
+        for (Path recording : recordings) {
+            for (TrafficCapture.Record record : TrafficCapture.read(recording)) {
+                if (replayable(record)) {
+                    requests.add(new Request(record.method(), record.target(), record.headers(), record.body()));
+                }
+            }
+        }
+        if (requests.isEmpty()) {
+            requests = new ArrayList<>();
+            for (String path : Training.paths(gets)) {
+                requests.add(synthetic("GET", path, null, null));
+            }
+        }
+        if (requests.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        long end = duration == null ? 0 : start + duration.toNanos();
+        long sent = 0;
+        long failed = 0;
+        long blockNanos = 0;
+        long firstBlock = -1;
+        long lastBlock = -1;
+        outer:
+        for (int i = 0; i < iterations; i++) {
+            for (Request request : requests) {
+                var exchange = new WarmupExchange(request);
+                long before = System.nanoTime();
+                try {
+                    handler.handle(exchange);
+                    if (exchange.getResponseCode() >= 500) {
+                        failed++;
+                    }
+                } catch (IOException | RuntimeException e) {
+                    failed++;
+                } finally {
+                    exchange.close();
+                }
+                long after = System.nanoTime();
+                blockNanos += after - before;
+                if (++sent % BLOCK == 0) {
+                    if (firstBlock == -1) {
+                        firstBlock = blockNanos / BLOCK;
+                    }
+                    lastBlock = blockNanos / BLOCK;
+                    blockNanos = 0;
+                }
+                if (duration != null && after - end >= 0) {
+                    break outer;
+                }
+            }
+        }
+        var report = new StringBuilder("Warmup sent ").append(sent).append(" requests (").append(requests.size())
+                .append(" different) in ").append((System.nanoTime() - start) / 1_000_000).append(" ms (")
+                .append(failed).append(" failed)");
+        if (firstBlock != -1) {
+            report.append(", mean latency ").append(micros(firstBlock)).append(" for the first ").append(BLOCK)
+                    .append(" requests, ").append(micros(lastBlock)).append(" for the last ").append(BLOCK);
+        }
+        out.println(report);
+    }
+
+    /**
+     * Whether a recorded request is read-only and ends, unlike a WebSocket or an event stream.
+     */
+    private static boolean replayable(TrafficCapture.Record record) {
+        if (!record.method().equals("GET") && !record.method().equals("HEAD") || record.bodyTruncated()) {
+            return false;
+        }
+        var headers = new Headers(record.headers());
+        String upgrade = headers.getFirst("Upgrade");
+        String accept = headers.getFirst("Accept");
+        return (upgrade == null || !upgrade.equalsIgnoreCase("websocket"))
+                && (accept == null || !accept.contains("text/event-stream"));
+    }
+
+    private static String micros(long nanos) {
+        return String.format(Locale.ROOT, "%.1f us", nanos / 1000.0);
+    }
+}
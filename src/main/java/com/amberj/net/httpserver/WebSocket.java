@@ -0,0 +1,507 @@
+package com.amberj.net.httpserver;
+
+import com.amberj.net.http.HttpRequest;
+import com.amberj.net.transport.UpgradedConnection;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One WebSocket connection (RFC 6455) of a route registered with {@link Server#ws(String, WebSocketHandler)}.
+ * <p>
+ * A virtual thread reads the connection and calls the {@link WebSocketHandler}. It answers
+ * pings, puts fragmented messages together and closes the connection with {@link #MESSAGE_TOO_BIG}
+ * when a message is over the size limit of the route. When nothing arrives within the idle
+ * timeout of the engine it sends a ping, and closes the connection if the next timeout passes
+ * without an answer. While it waits the connection holds no buffer.
+ * <p>
+ * Sending never blocks: frames are queued and written by a virtual thread that only runs
+ * while the queue is not empty. A client that falls more than {@value #MAX_QUEUED_BYTES}
+ * bytes behind is disconnected. Any thread may send, messages are sent in the order they
+ * were queued, and messages queued after {@link #close()} are dropped.
+ */
+public final class WebSocket {
+    public static final int NORMAL_CLOSURE = 1000;
+    public static final int GOING_AWAY = 1001;
+    public static final int PROTOCOL_ERROR = 1002;
+    public static final int UNSUPPORTED_DATA = 1003;
+    public static final int NO_STATUS = 1005;
+    public static final int ABNORMAL_CLOSURE = 1006;
+    public static final int INVALID_PAYLOAD = 1007;
+    public static final int POLICY_VIOLATION = 1008;
+    public static final int MESSAGE_TOO_BIG = 1009;
+    public static final int INTERNAL_ERROR = 1011;
+
+    /** Size limit of a message, fragments put together, unless the route sets another. */
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 64 * 1024;
+    /** How far a client may fall behind before it is disconnected. */
+    public static final int MAX_QUEUED_BYTES = 1024 * 1024;
+
+    private static final int CONTINUATION = 0x0;
+    private static final int TEXT = 0x1;
+    private static final int BINARY = 0x2;
+    private static final int CLOSE = 0x8;
+    private static final int PING = 0x9;
+    private static final int PONG = 0xa;
+    private static final int MAX_BATCH = 16;
+    private static final byte[] KEEPALIVE_PING = frame(PING, new byte[0]);
+
+    private final UpgradedConnection connection;
+    private final WebSocketHandler handler;
+    private final int maxMessageSize;
+    private final HttpRequest request;
+    private volatile Object attachment;
+
+    private final Queue<byte[]> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicBoolean writing = new AtomicBoolean();
+    private final AtomicBoolean closeSent = new AtomicBoolean();
+    // set once the reading thread is done, whoever writes then closes the connection
+    private volatile boolean closed;
+    private boolean pinged;
+
+    // guarded by this
+    private List<WebSocketGroup> groups;
+    private boolean left;
+
+    WebSocket(UpgradedConnection connection, WebSocketHandler handler, int maxMessageSize, HttpRequest request) {
+        this.connection = connection;
+        this.handler = handler;
+        this.maxMessageSize = maxMessageSize;
+        this.request = request;
+    }
+
+    /**
+     * A message encoded into its frame once, to be sent on many connections without copying
+     * it, see {@link WebSocketGroup#broadcast(Message)}.
+     */
+    public static final class Message {
+        final byte[] frame;
+
+        private Message(byte[] frame) {
+            this.frame = frame;
+        }
+    }
+
+    public static Message text(String text) {
+        return new Message(frame(TEXT, text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public static Message binary(byte[] data) {
+        return new Message(frame(BINARY, data));
+    }
+
+    /**
+     * @return the handshake request, with the path parameters, headers and cookies it came with
+     */
+    public HttpRequest request() {
+        return request;
+    }
+
+    public InetSocketAddress remoteAddress() {
+        return connection.remoteAddress();
+    }
+
+    /**
+     * Keeps an object with the connection, e.g. the user it belongs to.
+     */
+    public void attach(Object attachment) {
+        this.attachment = attachment;
+    }
+
+    public Object attachment() {
+        return attachment;
+    }
+
+    /**
+     * @return <code>false</code> once a close frame was sent or the connection is gone
+     */
+    public boolean isOpen() {
+        return !closeSent.get() && !closed && connection.isOpen();
+    }
+
+    public void send(String text) {
+        send(text(text));
+    }
+
+    public void send(byte[] data) {
+        send(binary(data));
+    }
+
+    public void send(Message message) {
+        if (!closeSent.get()) {
+            enqueue(message.frame);
+        }
+    }
+
+    public void close() {
+        close(NORMAL_CLOSURE, "");
+    }
+
+    /**
+     * Starts the close handshake. The connection is closed once the client answered it, or
+     * after the idle timeout if it does not.
+     *
+     * @param code   status code, e.g. {@link #NORMAL_CLOSURE}
+     * @param reason up to 123 bytes of UTF-8, longer reasons are cut
+     */
+    public void close(int code, String reason) {
+        byte[] text = reason.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(text.length, 123);
+        byte[] payload = new byte[2 + length];
+        payload[0] = (byte) (code >>> 8);
+        payload[1] = (byte) code;
+        System.arraycopy(text, 0, payload, 2, length);
+        if (closeSent.compareAndSet(false, true)) {
+            enqueue(frame(CLOSE, payload));
+        }
+    }
+
+    /**
+     * Reads the connection until it is closed, on the thread started by the handshake.
+     */
+    void run() {
+        int code = ABNORMAL_CLOSURE;
+        String reason = "";
+        try {
+            if (callback(() -> handler.onOpen(this))) {
+                CloseFrame frame = readMessages();
+                code = frame.code();
+                reason = frame.reason();
+            }
+        } catch (CloseException e) {
+            close(e.code, e.getMessage());
+            code = e.code;
+            reason = e.getMessage();
+        } catch (IOException e) {
+            // the connection broke or timed out, there is no close handshake
+        } finally {
+            finish();
+            for (WebSocketGroup group : leaveAll()) {
+                group.removeClosed(this);
+            }
+            int closeCode = code;
+            String closeReason = reason;
+            callback(() -> handler.onClose(this, closeCode, closeReason));
+        }
+    }
+
+    private CloseFrame readMessages() throws IOException {
+        byte[] header = new byte[8];
+        byte[] mask = new byte[4];
+        int type = 0;
+        byte[] message = null;
+        int messageLength = 0;
+        while (true) {
+            readFully(header, 0, 2);
+            int b0 = header[0] & 0xff;
+            int b1 = header[1] & 0xff;
+            boolean fin = (b0 & 0x80) != 0;
+            int opcode = b0 & 0x0f;
+            if ((b0 & 0x70) != 0) {
+                throw new CloseException(PROTOCOL_ERROR, "Reserved bits set without an extension");
+            }
+            if ((b1 & 0x80) == 0) {
+                throw new CloseException(PROTOCOL_ERROR, "Frames of a client must be masked");
+            }
+            long length = b1 & 0x7f;
+            if (length == 126) {
+                readFully(header, 0, 2);
+                length = (header[0] & 0xff) << 8 | header[1] & 0xff;
+            } else if (length == 127) {
+                readFully(header, 0, 8);
+                length = 0;
+                for (int i = 0; i < 8; i++) {
+                    length = length << 8 | header[i] & 0xff;
+                }
+                if (length < 0) {
+                    throw new CloseException(PROTOCOL_ERROR, "Frame length out of range");
+                }
+            }
+            readFully(mask, 0, 4);
+
+            if (opcode >= CLOSE) {
+                if (!fin || length > 125) {
+                    throw new CloseException(PROTOCOL_ERROR, "Control frames must not be fragmented or over 125 bytes");
+                }
+                byte[] payload = new byte[(int) length];
+                readFully(payload, 0, payload.length);
+                unmask(payload, 0, payload.length, mask);
+                switch (opcode) {
+                    case CLOSE -> {
+                        return closeFrame(payload);
+                    }
+                    case PING -> {
+                        if (!closeSent.get()) {
+                            enqueue(frame(PONG, payload));
+                        }
+                    }
+                    case PONG -> {
+                    }
+                    default -> throw new CloseException(PROTOCOL_ERROR, "Unknown opcode " + opcode);
+                }
+                continue;
+            }
+
+            if (opcode == CONTINUATION) {
+                if (type == 0) {
+                    throw new CloseException(PROTOCOL_ERROR, "Continuation frame without a message");
+                }
+            } else if (opcode == TEXT || opcode == BINARY) {
+                if (type != 0) {
+                    throw new CloseException(PROTOCOL_ERROR, "New message before the last one ended");
+                }
+                type = opcode;
+            } else {
+                throw new CloseException(PROTOCOL_ERROR, "Unknown opcode " + opcode);
+            }
+            if (messageLength + length > maxMessageSize) {
+                throw new CloseException(MESSAGE_TOO_BIG, "Messages are limited to " + maxMessageSize + " bytes");
+            }
+            int total = messageLength + (int) length;
+            if (message == null) {
+                message = new byte[fin ? total : Math.max(total, Math.min(4096, maxMessageSize))];
+            } else if (message.length < total) {
+                message = Arrays.copyOf(message, Math.max(total, (int) Math.min(2L * message.length, maxMessageSize)));
+            }
+            readFully(message, messageLength, (int) length);
+            unmask(message, messageLength, (int) length, mask);
+            messageLength = total;
+            if (!fin) {
+                continue;
+            }
+
+            byte[] data = message.length == messageLength ? message : Arrays.copyOf(message, messageLength);
+            boolean delivered;
+            if (type == TEXT) {
+                String text = decode(data, "Text message is not valid UTF-8");
+                delivered = callback(() -> handler.onText(this, text));
+            } else {
+                delivered = callback(() -> handler.onBinary(this, data));
+            }
+            if (!delivered) {
+                throw new CloseException(INTERNAL_ERROR, "Internal error");
+            }
+            type = 0;
+            message = null;
+            messageLength = 0;
+        }
+    }
+
+    /**
+     * Answers the close frame of the client, unless it answers one of ours.
+     */
+    private CloseFrame closeFrame(byte[] payload) throws IOException {
+        if (payload.length == 0) {
+            if (closeSent.compareAndSet(false, true)) {
+                enqueue(frame(CLOSE, payload));
+            }
+            return new CloseFrame(NO_STATUS, "");
+        }
+        if (payload.length == 1) {
+            throw new CloseException(PROTOCOL_ERROR, "Close frame with a one byte payload");
+        }
+        int code = (payload[0] & 0xff) << 8 | payload[1] & 0xff;
+        boolean valid = code >= 1000 && code <= 1003 || code >= 1007 && code <= 1011 || code >= 3000 && code <= 4999;
+        if (!valid) {
+            throw new CloseException(PROTOCOL_ERROR, "Invalid close code " + code);
+        }
+        String reason = decode(Arrays.copyOfRange(payload, 2, payload.length), "Close reason is not valid UTF-8");
+        if (closeSent.compareAndSet(false, true)) {
+            enqueue(frame(CLOSE, Arrays.copyOf(payload, 2)));
+        }
+        return new CloseFrame(code, reason);
+    }
+
+    private record CloseFrame(int code, String reason) {
+    }
+
+    private static String decode(byte[] data, String error) throws CloseException {
+        try {
+            return StandardCharsets.UTF_8.newDecoder().decode(ByteBuffer.wrap(data)).toString();
+        } catch (CharacterCodingException e) {
+            throw new CloseException(INVALID_PAYLOAD, error);
+        }
+    }
+
+    /**
+     * Reads exactly <code>len</code> bytes. Pings the client when it stays silent for the idle
+     * timeout and gives up when it stays silent for another one.
+     */
+    private void readFully(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n;
+            try {
+                n = connection.read(b, off, len);
+            } catch (SocketTimeoutException e) {
+                if (pinged || closeSent.get()) {
+                    throw e;
+                }
+                pinged = true;
+                enqueue(KEEPALIVE_PING);
+                continue;
+            }
+            if (n == -1) {
+                throw new EOFException("Connection closed by the client");
+            }
+            pinged = false;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private static void unmask(byte[] b, int off, int len, byte[] mask) {
+        for (int i = 0; i < len; i++) {
+            b[off + i] ^= mask[i & 3];
+        }
+    }
+
+    /**
+     * Runs a callback of the handler, reporting what it throws to {@link WebSocketHandler#onError}.
+     *
+     * @return <code>false</code> if it threw
+     */
+    private boolean callback(Runnable callback) {
+        try {
+            callback.run();
+            return true;
+        } catch (RuntimeException e) {
+            try {
+                handler.onError(this, e);
+            } catch (RuntimeException ignored) {
+            }
+            return false;
+        }
+    }
+
+    static byte[] frame(int opcode, byte[] payload) {
+        int length = payload.length;
+        int header = length < 126 ? 2 : length < 65536 ? 4 : 10;
+        byte[] frame = new byte[header + length];
+        frame[0] = (byte) (0x80 | opcode);
+        if (length < 126) {
+            frame[1] = (byte) length;
+        } else if (length < 65536) {
+            frame[1] = 126;
+            frame[2] = (byte) (length >>> 8);
+            frame[3] = (byte) length;
+        } else {
+            frame[1] = 127;
+            for (int i = 0; i < 8; i++) {
+                frame[2 + i] = (byte) ((long) length >>> (56 - 8 * i));
+            }
+        }
+        System.arraycopy(payload, 0, frame, header, length);
+        return frame;
+    }
+
+    private void enqueue(byte[] frame) {
+        if (closed) {
+            return;
+        }
+        if (queuedBytes.addAndGet(frame.length) > MAX_QUEUED_BYTES) {
+            // a client this far behind is not reading, the reading thread sees the closed connection
+            connection.close();
+            return;
+        }
+        outbound.add(frame);
+        if (writing.compareAndSet(false, true)) {
+            Thread.ofVirtual().start(this::drain);
+        }
+    }
+
+    /**
+     * Writes queued frames, several at a time with a gathering write, while holding
+     * <code>writing</code>. Closes the connection once the queue is empty after the reading
+     * thread finished.
+     */
+    private void drain() {
+        try {
+            while (true) {
+                ByteBuffer[] batch = new ByteBuffer[MAX_BATCH];
+                int count = 0;
+                long bytes = 0;
+                for (byte[] frame; count < MAX_BATCH && (frame = outbound.poll()) != null; count++) {
+                    batch[count] = ByteBuffer.wrap(frame);
+                    bytes += frame.length;
+                }
+                if (count > 0) {
+                    connection.write(count == MAX_BATCH ? batch : Arrays.copyOf(batch, count));
+                    queuedBytes.addAndGet(-bytes);
+                    continue;
+                }
+                if (closed) {
+                    connection.close();
+                    return;
+                }
+                writing.set(false);
+                if (outbound.isEmpty() && !closed || !writing.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Called by the reading thread once it is done. Whatever is still queued, e.g. the answer
+     * to a close frame, is written before the connection is closed.
+     */
+    private void finish() {
+        closed = true;
+        if (writing.compareAndSet(false, true)) {
+            drain();
+        }
+    }
+
+    synchronized boolean join(WebSocketGroup group) {
+        if (left) {
+            return false;
+        }
+        if (groups == null) {
+            groups = new ArrayList<>(2);
+        }
+        groups.add(group);
+        return true;
+    }
+
+    synchronized void leave(WebSocketGroup group) {
+        if (groups != null) {
+            groups.remove(group);
+        }
+    }
+
+    private synchronized List<WebSocketGroup> leaveAll() {
+        left = true;
+        List<WebSocketGroup> all = groups == null ? List.of() : groups;
+        groups = null;
+        return all;
+    }
+
+    /**
+     * Thrown by the reading thread to close the connection with a status code.
+     */
+    private static final class CloseException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final int code;
+
+        CloseException(int code, String message) {
+            super(message);
+            this.code = code;
+        }
+    }
+}
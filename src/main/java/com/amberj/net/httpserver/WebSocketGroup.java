@@ -0,0 +1,59 @@
+package com.amberj.net.httpserver;
+
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A set of connections that receive the same messages, e.g. the viewers of a dashboard.
+ * A broadcast encodes the message into a frame once and every connection sends those same
+ * bytes. Connections leave the group by themselves once they are closed.
+ */
+public final class WebSocketGroup implements Iterable<WebSocket> {
+    private final Set<WebSocket> sockets = ConcurrentHashMap.newKeySet();
+
+    public void add(WebSocket socket) {
+        if (sockets.add(socket) && !socket.join(this)) {
+            sockets.remove(socket);
+        }
+    }
+
+    public void remove(WebSocket socket) {
+        if (sockets.remove(socket)) {
+            socket.leave(this);
+        }
+    }
+
+    /**
+     * Called by a closed socket, which already forgot the group.
+     */
+    void removeClosed(WebSocket socket) {
+        sockets.remove(socket);
+    }
+
+    public int size() {
+        return sockets.size();
+    }
+
+    public void broadcast(String text) {
+        broadcast(WebSocket.text(text));
+    }
+
+    public void broadcast(byte[] data) {
+        broadcast(WebSocket.binary(data));
+    }
+
+    /**
+     * Queues the message on every connection of the group without waiting for any of them.
+     */
+    public void broadcast(WebSocket.Message message) {
+        for (WebSocket socket : sockets) {
+            socket.send(message);
+        }
+    }
+
+    @Override
+    public Iterator<WebSocket> iterator() {
+        return sockets.iterator();
+    }
+}
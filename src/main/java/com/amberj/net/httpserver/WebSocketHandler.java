@@ -0,0 +1,42 @@
+package com.amberj.net.httpserver;
+
+/**
+ * Callbacks of a WebSocket route registered with {@link Server#ws(String, WebSocketHandler)}.
+ * They run on the virtual thread that reads the connection, one after the other, so a slow
+ * callback only holds up the next message of its own connection. Only {@link #onText} has to
+ * be implemented, e.g. <code>server.ws("/echo", (socket, message) -> socket.send(message))</code>.
+ */
+@FunctionalInterface
+public interface WebSocketHandler {
+
+    /**
+     * Called once the handshake is done, before any message.
+     */
+    default void onOpen(WebSocket socket) {
+    }
+
+    void onText(WebSocket socket, String message);
+
+    /**
+     * Called with a binary message. Closes the connection with {@link WebSocket#UNSUPPORTED_DATA} by default.
+     */
+    default void onBinary(WebSocket socket, byte[] message) {
+        socket.close(WebSocket.UNSUPPORTED_DATA, "Binary messages are not accepted");
+    }
+
+    /**
+     * Called once when the connection is gone, by a close handshake or because it broke.
+     *
+     * @param code the status code of the close frame, {@link WebSocket#NO_STATUS} if it had none
+     *             and {@link WebSocket#ABNORMAL_CLOSURE} if there was no close frame
+     */
+    default void onClose(WebSocket socket, int code, String reason) {
+    }
+
+    /**
+     * Called when another callback threw. The connection is then closed with {@link WebSocket#INTERNAL_ERROR}.
+     */
+    default void onError(WebSocket socket, Throwable error) {
+        error.printStackTrace();
+    }
+}
@@ -0,0 +1,115 @@
+package com.amberj.net.httpserver;
+
+import com.amberj.net.http.HttpRequest;
+import com.amberj.net.http.HttpResponse;
+import com.amberj.net.transport.UpgradedConnection;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.function.BiConsumer;
+
+/**
+ * Handler of a WebSocket route: answers the opening handshake with <code>101</code> and
+ * starts the virtual thread that reads the connection. Requests that are no handshake get
+ * <code>426 Upgrade Required</code>.
+ */
+final class WebSocketUpgrade implements BiConsumer<HttpRequest, HttpResponse> {
+    private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    private final WebSocketHandler handler;
+    private final int maxMessageSize;
+
+    WebSocketUpgrade(WebSocketHandler handler, int maxMessageSize) {
+        if (maxMessageSize < 1) {
+            throw new IllegalArgumentException("maxMessageSize must be positive, got " + maxMessageSize);
+        }
+        this.handler = handler;
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    @Override
+    public void accept(HttpRequest request, HttpResponse response) {
+        if (!hasToken(request.header("Upgrade"), "websocket") || !hasToken(request.header("Connection"), "upgrade")) {
+            upgradeRequired(response);
+            return;
+        }
+        if (!"13".equals(request.header("Sec-WebSocket-Version"))) {
+            upgradeRequired(response);
+            return;
+        }
+        String key = request.header("Sec-WebSocket-Key");
+        if (!isValidKey(key)) {
+            response.status(400);
+            response.write("400 (Bad Request)\n");
+            return;
+        }
+
+        try {
+            response.header("Upgrade", "websocket");
+            response.header("Connection", "Upgrade");
+            response.header("Sec-WebSocket-Accept", accept(key));
+            HttpExchange exchange = response.getExchange();
+            if (exchange instanceof DeadlineExchange deadline) {
+                // hands over the headers set so far along with the exchange
+                exchange = deadline.upgrade();
+            }
+            UpgradedConnection connection = UpgradedConnection.upgrade(exchange);
+            if (connection == null) {
+                response.status(501);
+                response.write("501 (Not Implemented)\n");
+                return;
+            }
+            var socket = new WebSocket(connection, handler, maxMessageSize, request);
+            Thread.ofVirtual().start(socket::run);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void upgradeRequired(HttpResponse response) {
+        response.status(426);
+        response.header("Upgrade", "websocket");
+        response.header("Sec-WebSocket-Version", "13");
+        response.write("426 (Upgrade Required)\n");
+    }
+
+    private static boolean hasToken(String header, String token) {
+        if (header == null) {
+            return false;
+        }
+        for (String value : header.split(",")) {
+            if (value.trim().equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The key is 16 random bytes in base64.
+     */
+    private static boolean isValidKey(String key) {
+        if (key == null || key.length() != 24) {
+            return false;
+        }
+        try {
+            return Base64.getDecoder().decode(key).length == 16;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    static String accept(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest((key + GUID).getBytes(StandardCharsets.US_ASCII));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+    }
+}
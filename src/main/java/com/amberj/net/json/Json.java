@@ -0,0 +1,190 @@
+package com.amberj.net.json;
+
+import com.dslplatform.json.DslJson;
+import com.dslplatform.json.JsonReader;
+import com.dslplatform.json.JsonWriter;
+import com.dslplatform.json.SerializationException;
+import com.dslplatform.json.runtime.Settings;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The <code>DslJson</code> instance shared by the whole server.
+ * <p>
+ * It resolves converters in this order: the ones generated at compile time for classes
+ * and records annotated with <code>@CompiledJson</code> (found through the service
+ * loader), then converters built by reflection at runtime. Building a
+ * <code>DslJson</code> is expensive and it caches every converter it resolves, so it is
+ * created once. Readers, writers and their buffers are pooled, so parsing a request body
+ * allocates little beyond the result and a response is encoded straight into the stream.
+ */
+public final class Json {
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_POOLED = 64;
+
+    private static final Queue<JsonReader<Object>> readers = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooledReaders = new AtomicInteger();
+    private static final Queue<JsonWriter> writers = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooledWriters = new AtomicInteger();
+
+    private Json() {}
+
+    /**
+     * @return the shared instance, e.g. to register custom converters before the server starts
+     */
+    public static DslJson<Object> dslJson() {
+        return Holder.DSL_JSON;
+    }
+
+    /**
+     * Reads one JSON value of the given type straight from the stream.
+     *
+     * @return the value, <code>null</code> for an empty stream or a JSON <code>null</code>
+     * @throws IOException if the JSON is malformed or does not fit the type
+     */
+    public static <T> T read(InputStream in, Class<T> type) throws IOException {
+        JsonReader.ReadObject<T> decoder = dslJson().tryFindReader(type);
+        if (decoder == null) {
+            throw new IOException("No JSON converter for " + type.getName());
+        }
+        JsonReader<Object> reader = acquireReader();
+        try {
+            reader.process(in);
+            if (reader.length() == 0) {
+                return null;
+            }
+            reader.getNextToken();
+            if (reader.wasNull()) {
+                return null;
+            }
+            return decoder.read(reader);
+        } finally {
+            releaseReader(reader);
+        }
+    }
+
+    /**
+     * Writes the value as JSON straight to the stream. The writer's buffer is flushed to
+     * the stream whenever it fills up, so large values are never held as a whole.
+     */
+    public static void write(OutputStream out, Object value) throws IOException {
+        JsonWriter writer = acquireWriter(out);
+        try {
+            dslJson().serialize(writer, value);
+            writer.flush();
+        } catch (SerializationException e) {
+            throw unwrap(e);
+        } finally {
+            releaseWriter(writer);
+        }
+    }
+
+    /**
+     * Writes the elements as a JSON array while they are iterated, so a large result set
+     * only has to exist one element at a time.
+     */
+    public static void writeArray(OutputStream out, Iterator<?> elements) throws IOException {
+        JsonWriter writer = acquireWriter(out);
+        try {
+            writer.writeByte(JsonWriter.ARRAY_START);
+            Class<?> lastType = null;
+            JsonWriter.WriteObject<Object> encoder = null;
+            boolean first = true;
+            while (elements.hasNext()) {
+                Object element = elements.next();
+                if (!first) {
+                    writer.writeByte(JsonWriter.COMMA);
+                }
+                first = false;
+                if (element == null) {
+                    writer.writeNull();
+                    continue;
+                }
+                if (element.getClass() != lastType) {
+                    lastType = element.getClass();
+                    encoder = findWriter(lastType);
+                }
+                if (encoder != null) {
+                    encoder.write(writer, element);
+                } else {
+                    dslJson().serialize(writer, element);
+                }
+            }
+            writer.writeByte(JsonWriter.ARRAY_END);
+            writer.flush();
+        } catch (SerializationException e) {
+            throw unwrap(e);
+        } finally {
+            releaseWriter(writer);
+        }
+    }
+
+    /**
+     * The writer reports a failing stream as an unchecked exception, callers expect the <code>IOException</code>.
+     */
+    private static RuntimeException unwrap(SerializationException e) throws IOException {
+        if (e.getCause() instanceof IOException io) {
+            throw io;
+        }
+        return e;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static JsonWriter.WriteObject<Object> findWriter(Class<?> type) {
+        return (JsonWriter.WriteObject<Object>) dslJson().tryFindWriter(type);
+    }
+
+    private static JsonWriter acquireWriter(OutputStream out) {
+        JsonWriter writer = writers.poll();
+        if (writer == null) {
+            writer = dslJson().newWriter(new byte[BUFFER_SIZE]);
+        } else {
+            pooledWriters.decrementAndGet();
+        }
+        writer.reset(out);
+        return writer;
+    }
+
+    private static void releaseWriter(JsonWriter writer) {
+        if (pooledWriters.incrementAndGet() > MAX_POOLED) {
+            pooledWriters.decrementAndGet();
+            return;
+        }
+        writer.reset(null);
+        writers.offer(writer);
+    }
+
+    private static JsonReader<Object> acquireReader() {
+        JsonReader<Object> reader = readers.poll();
+        if (reader == null) {
+            return dslJson().newReader(new byte[BUFFER_SIZE]);
+        }
+        pooledReaders.decrementAndGet();
+        return reader;
+    }
+
+    private static void releaseReader(JsonReader<Object> reader) {
+        if (pooledReaders.incrementAndGet() > MAX_POOLED) {
+            pooledReaders.decrementAndGet();
+            return;
+        }
+        try {
+            // drop the reference to the request stream while the reader sits in the pool
+            reader.process(InputStream.nullInputStream());
+        } catch (IOException e) {
+            pooledReaders.decrementAndGet();
+            return;
+        }
+        readers.offer(reader);
+    }
+
+    private static final class Holder {
+        static final DslJson<Object> DSL_JSON = new DslJson<>(Settings.withRuntime().includeServiceLoader());
+    }
+}
@@ -0,0 +1,82 @@
+package com.amberj.net.template;
+
+import io.pebbletemplates.pebble.cache.PebbleCache;
+import io.pebbletemplates.pebble.template.PebbleTemplate;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Compiled-template cache holding at most a fixed number of templates.
+ * <p>
+ * Lookups never lock, they only record when a template was last used. Once an insert
+ * goes over the limit the least recently used templates are dropped and compiled again
+ * when they are next asked for. Templates are compiled outside the map, so a template
+ * that loads another one while compiling does not update the map recursively.
+ */
+final class BoundedTemplateCache implements PebbleCache<Object, PebbleTemplate> {
+    private final int maxTemplates;
+    private final Map<Object, Entry> templates;
+    private final ReentrantLock evictionLock;
+
+    BoundedTemplateCache(int maxTemplates) {
+        this.maxTemplates = maxTemplates;
+        this.templates = new ConcurrentHashMap<>();
+        this.evictionLock = new ReentrantLock();
+    }
+
+    @Override
+    public PebbleTemplate computeIfAbsent(Object key, Function<? super Object, ? extends PebbleTemplate> mappingFunction) {
+        Entry entry = templates.get(key);
+        if (entry != null) {
+            entry.lastAccess = System.nanoTime();
+            return entry.template;
+        }
+        PebbleTemplate template = mappingFunction.apply(key);
+        Entry previous = templates.putIfAbsent(key, new Entry(template));
+        if (previous != null) {
+            return previous.template;
+        }
+        if (templates.size() > maxTemplates) {
+            evict();
+        }
+        return template;
+    }
+
+    private void evict() {
+        evictionLock.lock();
+        try {
+            while (templates.size() > maxTemplates) {
+                Map.Entry<Object, Entry> oldest = null;
+                for (Map.Entry<Object, Entry> entry : templates.entrySet()) {
+                    if (oldest == null || entry.getValue().lastAccess - oldest.getValue().lastAccess < 0) {
+                        oldest = entry;
+                    }
+                }
+                if (oldest == null) {
+                    return;
+                }
+                templates.remove(oldest.getKey(), oldest.getValue());
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    @Override
+    public void invalidateAll() {
+        templates.clear();
+    }
+
+    private static final class Entry {
+        final PebbleTemplate template;
+        volatile long lastAccess;
+
+        Entry(PebbleTemplate template) {
+            this.template = template;
+            this.lastAccess = System.nanoTime();
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.amberj.net.template;
 
-import com.dslplatform.json.DslJson;
+import com.amberj.net.json.Json;
+
 import java.io.ByteArrayOutputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
@@ -8,13 +9,9 @@ import java.util.Map;
 
 public class Data {
     private final Map<String, Object> data;
-    DslJson<Object> dslJson;
-    ByteArrayOutputStream output;
 
     public Data() {
         data = new HashMap<>();
-        dslJson = new DslJson<>();
-        output = new ByteArrayOutputStream();
     }
 
     public Data with(String key, Object value) {
@@ -26,9 +23,14 @@ public class Data {
         return this.data;
     }
 
+    /**
+     * Encodes the data with the shared {@link Json} instance. Responses do not need this,
+     * <code>response.json(data)</code> writes the JSON straight into the response.
+     */
     public String toJson() {
         try {
-            dslJson.serialize(data, output);
+            var output = new ByteArrayOutputStream();
+            Json.write(output, data);
             return output.toString(StandardCharsets.UTF_8);
         } catch (Exception e) {
             e.printStackTrace();
@@ -5,22 +5,108 @@ import io.pebbletemplates.pebble.PebbleEngine;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.*;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
+/**
+ * Renders Pebble templates from the classpath.
+ * <p>
+ * A server uses one engine for all requests so templates are parsed once and kept in
+ * a bounded cache of compiled templates. Pebble itself is only set up when the first
+ * template is needed, so a server without templates never loads it.
+ */
 public class TemplateEngine {
-    PebbleEngine templateEngine;
+    public static final int DEFAULT_MAX_TEMPLATES = 512;
+
+    private final int maxTemplates;
+    private volatile PebbleEngine templateEngine;
 
     public TemplateEngine() {
-        templateEngine = new PebbleEngine.Builder().build();
+        this(DEFAULT_MAX_TEMPLATES);
     }
 
-    public String parse(String templateString, Map<String, Object> context) throws IOException {
-        var compiledTemplate =  templateEngine.getTemplate(templateString);
+    /**
+     * @param maxTemplates how many compiled templates are kept, the least recently used ones are dropped first
+     */
+    public TemplateEngine(int maxTemplates) {
+        this.maxTemplates = maxTemplates;
+    }
 
+    private PebbleEngine engine() {
+        PebbleEngine engine = templateEngine;
+        if (engine == null) {
+            synchronized (this) {
+                engine = templateEngine;
+                if (engine == null) {
+                    engine = new PebbleEngine.Builder()
+                            .templateCache(new BoundedTemplateCache(maxTemplates))
+                            .build();
+                    templateEngine = engine;
+                }
+            }
+        }
+        return engine;
+    }
+
+    public String parse(String templateString, Map<String, Object> context) throws IOException {
         Writer writer = new StringWriter();
+        render(templateString, context, writer);
+        return writer.toString();
+    }
 
-        compiledTemplate.evaluate(writer, context);
+    /**
+     * Evaluates a template straight into the writer, without building the page as a <code>String</code>.
+     *
+     * @param template classpath name of the template, e.g. <code>templates/index.html</code>
+     * @param context variables of the template, may be <code>null</code>
+     */
+    public void render(String template, Map<String, Object> context, Writer writer) throws IOException {
+        engine().getTemplate(template).evaluate(writer, context);
+    }
 
-        return writer.toString();
+    /**
+     * Compiles every file under a classpath directory so the first request for each
+     * template does not pay for parsing it.
+     *
+     * @param directory classpath directory, e.g. <code>templates</code>
+     * @return the number of templates compiled
+     */
+    public int precompile(String directory) throws IOException {
+        String dir = directory.endsWith("/") ? directory : directory + "/";
+        URL url = getClass().getClassLoader().getResource(dir);
+        if (url == null) {
+            return 0;
+        }
+        Path root;
+        try {
+            URI uri = url.toURI();
+            if (uri.getScheme().equals("jar")) {
+                FileSystem fileSystem;
+                try {
+                    fileSystem = FileSystems.newFileSystem(uri, Collections.emptyMap());
+                } catch (FileSystemAlreadyExistsException e) {
+                    fileSystem = FileSystems.getFileSystem(uri);
+                }
+                root = fileSystem.getPath("/" + dir);
+            } else {
+                root = Paths.get(uri);
+            }
+        } catch (URISyntaxException e) {
+            return 0;
+        }
+
+        List<Path> files;
+        try (var walk = Files.walk(root)) {
+            files = walk.filter(Files::isRegularFile).toList();
+        }
+        for (Path file : files) {
+            engine().getTemplate(dir + root.relativize(file).toString().replace('\\', '/'));
+        }
+        return files.size();
     }
 }
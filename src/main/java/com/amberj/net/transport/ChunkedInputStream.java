@@ -0,0 +1,108 @@
+package com.amberj.net.transport;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Request body sent with <code>Transfer-Encoding: chunked</code>.
+ * Chunk extensions and trailers are read and ignored.
+ */
+final class ChunkedInputStream extends InputStream {
+    private static final int MAX_LINE = 4096;
+
+    private final NioConnection connection;
+    private long chunkRemaining;
+    private boolean started;
+    private boolean finished;
+
+    ChunkedInputStream(NioConnection connection) {
+        this.connection = connection;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextChunk()) {
+            return -1;
+        }
+        int b = connection.read();
+        if (b == -1) {
+            throw new EOFException("Connection closed before the request body was complete");
+        }
+        chunkRemaining--;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!nextChunk()) {
+            return -1;
+        }
+        int n = connection.read(b, off, (int) Math.min(len, chunkRemaining));
+        if (n == -1) {
+            throw new EOFException("Connection closed before the request body was complete");
+        }
+        chunkRemaining -= n;
+        return n;
+    }
+
+    /**
+     * @return <code>false</code> once the last chunk was read
+     */
+    private boolean nextChunk() throws IOException {
+        if (finished) {
+            return false;
+        }
+        if (chunkRemaining > 0) {
+            return true;
+        }
+        if (chunkRemaining == 0 && started) {
+            // CRLF after the previous chunk data
+            readLine();
+        }
+        started = true;
+        String line = readLine();
+        int semicolon = line.indexOf(';');
+        String size = (semicolon == -1 ? line : line.substring(0, semicolon)).trim();
+        try {
+            chunkRemaining = Long.parseLong(size, 16);
+        } catch (NumberFormatException e) {
+            throw new HttpParseException(400, "Bad chunk size");
+        }
+        if (chunkRemaining < 0) {
+            throw new HttpParseException(400, "Bad chunk size");
+        }
+        if (chunkRemaining == 0) {
+            while (!readLine().isEmpty()) {
+                // trailers are not exposed
+            }
+            finished = true;
+            return false;
+        }
+        return true;
+    }
+
+    private String readLine() throws IOException {
+        var line = new StringBuilder();
+        int b;
+        while ((b = connection.read()) != '\n') {
+            if (b == -1) {
+                throw new EOFException("Connection closed before the request body was complete");
+            }
+            if (b != '\r') {
+                line.append((char) b);
+            }
+            if (line.length() > MAX_LINE) {
+                throw new HttpParseException(400, "Chunk header too long");
+            }
+        }
+        return line.toString();
+    }
+
+    boolean isFinished() {
+        return finished;
+    }
+}
@@ -0,0 +1,103 @@
+package com.amberj.net.transport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Response body sent with <code>Transfer-Encoding: chunked</code>.
+ * <p>
+ * Data is copied straight into the connection's write buffer behind a reserved
+ * chunk header, which is filled in once the chunk is complete, so one chunk is sent
+ * per buffer instead of one per <code>write</code> call.
+ */
+final class ChunkedOutputStream extends OutputStream {
+    // four hex digits cover the largest buffer, leading zeros are allowed in a chunk size
+    private static final int HEADER = 6;
+    private static final int TRAILER = 2;
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private final NioConnection connection;
+    private int chunkStart = -1;
+    private boolean closed;
+
+    ChunkedOutputStream(NioConnection connection) {
+        this.connection = connection;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream is closed");
+        }
+        while (len > 0) {
+            ByteBuffer out = openChunk();
+            int n = Math.min(len, out.remaining() - TRAILER);
+            out.put(b, off, n);
+            off += n;
+            len -= n;
+            if (out.remaining() == TRAILER) {
+                closeChunk();
+                connection.flush();
+            }
+        }
+    }
+
+    private ByteBuffer openChunk() throws IOException {
+        ByteBuffer out = connection.out();
+        if (chunkStart == -1) {
+            if (out.remaining() < HEADER + TRAILER + 1) {
+                connection.flush();
+            }
+            out.position(out.position() + HEADER);
+            chunkStart = out.position();
+        }
+        return out;
+    }
+
+    private void closeChunk() throws IOException {
+        if (chunkStart == -1) {
+            return;
+        }
+        ByteBuffer out = connection.out();
+        int size = out.position() - chunkStart;
+        if (size == 0) {
+            out.position(chunkStart - HEADER);
+        } else {
+            int header = chunkStart - HEADER;
+            out.put(header, HEX[(size >> 12) & 0xf]);
+            out.put(header + 1, HEX[(size >> 8) & 0xf]);
+            out.put(header + 2, HEX[(size >> 4) & 0xf]);
+            out.put(header + 3, HEX[size & 0xf]);
+            out.put(header + 4, (byte) '\r');
+            out.put(header + 5, (byte) '\n');
+            out.put((byte) '\r').put((byte) '\n');
+        }
+        chunkStart = -1;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (closed) {
+            return;
+        }
+        closeChunk();
+        connection.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closeChunk();
+        closed = true;
+        connection.write(LAST_CHUNK, 0, LAST_CHUNK.length);
+    }
+}
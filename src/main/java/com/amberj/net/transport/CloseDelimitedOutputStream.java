@@ -0,0 +1,50 @@
+package com.amberj.net.transport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+
+/**
+ * Response body of unknown length to an HTTP/1.0 client, which can not decode chunks.
+ * The body ends when the connection is closed.
+ */
+final class CloseDelimitedOutputStream extends OutputStream implements ZeroCopyOutput {
+    private final NioConnection connection;
+    private boolean closed;
+
+    CloseDelimitedOutputStream(NioConnection connection) {
+        this.connection = connection;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream is closed");
+        }
+        connection.write(b, off, len);
+    }
+
+    @Override
+    public void transferFrom(FileChannel file, long position, long count) throws IOException {
+        if (closed) {
+            throw new IOException("Stream is closed");
+        }
+        connection.flush();
+        connection.transferFrom(file, position, count);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        connection.flush();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+}
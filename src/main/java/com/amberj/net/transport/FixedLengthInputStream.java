@@ -0,0 +1,56 @@
+package com.amberj.net.transport;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Request body framed by <code>Content-Length</code>.
+ */
+final class FixedLengthInputStream extends InputStream {
+    private final NioConnection connection;
+    private long remaining;
+
+    FixedLengthInputStream(NioConnection connection, long length) {
+        this.connection = connection;
+        this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (remaining == 0) {
+            return -1;
+        }
+        int b = connection.read();
+        if (b == -1) {
+            throw new EOFException("Connection closed before the request body was complete");
+        }
+        remaining--;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (remaining == 0) {
+            return -1;
+        }
+        if (len == 0) {
+            return 0;
+        }
+        int n = connection.read(b, off, (int) Math.min(len, remaining));
+        if (n == -1) {
+            throw new EOFException("Connection closed before the request body was complete");
+        }
+        remaining -= n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(remaining, connection.buffered());
+    }
+
+    boolean isFinished() {
+        return remaining == 0;
+    }
+}
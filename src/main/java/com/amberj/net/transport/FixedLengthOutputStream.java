@@ -0,0 +1,69 @@
+package com.amberj.net.transport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+
+/**
+ * Response body framed by <code>Content-Length</code>.
+ */
+final class FixedLengthOutputStream extends OutputStream implements ZeroCopyOutput {
+    private final NioConnection connection;
+    private long remaining;
+    private boolean closed;
+
+    FixedLengthOutputStream(NioConnection connection, long length) {
+        this.connection = connection;
+        this.remaining = length;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream is closed");
+        }
+        if (len > remaining) {
+            throw new IOException("Too many bytes to write to stream");
+        }
+        connection.write(b, off, len);
+        remaining -= len;
+    }
+
+    @Override
+    public void transferFrom(FileChannel file, long position, long count) throws IOException {
+        if (closed) {
+            throw new IOException("Stream is closed");
+        }
+        if (count > remaining) {
+            throw new IOException("Too many bytes to write to stream");
+        }
+        connection.flush();
+        connection.transferFrom(file, position, count);
+        remaining -= count;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        connection.flush();
+    }
+
+    /**
+     * @throws IOException if less than the announced length was written,
+     * the connection can not be reused in that case
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (remaining > 0) {
+            throw new IOException("Insufficient bytes written to stream");
+        }
+    }
+}
@@ -0,0 +1,450 @@
+package com.amberj.net.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * HPACK header compression (RFC 7541) of the HTTP/2 engine.
+ * <p>
+ * The {@link Decoder} implements all of it, including the dynamic table and Huffman coded
+ * strings, it belongs to the thread reading the connection. The {@link Encoder} never adds
+ * to the dynamic table: headers are sent as literals, with the name taken from the static
+ * table where it is there and strings Huffman coded where that is shorter. That costs a few
+ * bytes per response but leaves no state that streams writing concurrently would have to
+ * keep in the order the client decodes it.
+ */
+final class Hpack {
+    /** Size of the decoder's dynamic table, the default of <code>SETTINGS_HEADER_TABLE_SIZE</code>. */
+    static final int TABLE_SIZE = 4096;
+
+    private static final String[][] STATIC_TABLE = {
+            {":authority", ""},
+            {":method", "GET"},
+            {":method", "POST"},
+            {":path", "/"},
+            {":path", "/index.html"},
+            {":scheme", "http"},
+            {":scheme", "https"},
+            {":status", "200"},
+            {":status", "204"},
+            {":status", "206"},
+            {":status", "304"},
+            {":status", "400"},
+            {":status", "404"},
+            {":status", "500"},
+            {"accept-charset", ""},
+            {"accept-encoding", "gzip, deflate"},
+            {"accept-language", ""},
+            {"accept-ranges", ""},
+            {"accept", ""},
+            {"access-control-allow-origin", ""},
+            {"age", ""},
+            {"allow", ""},
+            {"authorization", ""},
+            {"cache-control", ""},
+            {"content-disposition", ""},
+            {"content-encoding", ""},
+            {"content-language", ""},
+            {"content-length", ""},
+            {"content-location", ""},
+            {"content-range", ""},
+            {"content-type", ""},
+            {"cookie", ""},
+            {"date", ""},
+            {"etag", ""},
+            {"expect", ""},
+            {"expires", ""},
+            {"from", ""},
+            {"host", ""},
+            {"if-match", ""},
+            {"if-modified-since", ""},
+            {"if-none-match", ""},
+            {"if-range", ""},
+            {"if-unmodified-since", ""},
+            {"last-modified", ""},
+            {"link", ""},
+            {"location", ""},
+            {"max-forwards", ""},
+            {"proxy-authenticate", ""},
+            {"proxy-authorization", ""},
+            {"range", ""},
+            {"referer", ""},
+            {"refresh", ""},
+            {"retry-after", ""},
+            {"server", ""},
+            {"set-cookie", ""},
+            {"strict-transport-security", ""},
+            {"transfer-encoding", ""},
+            {"user-agent", ""},
+            {"vary", ""},
+            {"via", ""},
+            {"www-authenticate", ""}
+    };
+
+    /** Lowest static table index of each name. */
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+
+    /** Code lengths of the symbols 0 to 255 and EOS, RFC 7541 Appendix B. The code is canonical. */
+    private static final byte[] HUFFMAN_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+            30
+    };
+    private static final int EOS = 256;
+    private static final int[] HUFFMAN_CODES = new int[HUFFMAN_LENGTHS.length];
+
+    /**
+     * Decoding tree. Node <code>n</code> has its children at <code>2n</code> (bit 0) and
+     * <code>2n + 1</code> (bit 1), a positive child is a node, a negative one the symbol
+     * <code>-child - 1</code>. The root is node 0.
+     */
+    private static final int[] HUFFMAN_TREE = new int[2 * HUFFMAN_LENGTHS.length];
+
+    static {
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+        }
+
+        Integer[] symbols = new Integer[HUFFMAN_LENGTHS.length];
+        Arrays.setAll(symbols, i -> i);
+        Arrays.sort(symbols, (a, b) -> HUFFMAN_LENGTHS[a] != HUFFMAN_LENGTHS[b] ? HUFFMAN_LENGTHS[a] - HUFFMAN_LENGTHS[b] : a - b);
+        int code = -1;
+        int length = HUFFMAN_LENGTHS[symbols[0]];
+        int nodes = 1;
+        for (int symbol : symbols) {
+            code = (code + 1) << (HUFFMAN_LENGTHS[symbol] - length);
+            length = HUFFMAN_LENGTHS[symbol];
+            HUFFMAN_CODES[symbol] = code;
+
+            int node = 0;
+            for (int bit = length - 1; bit > 0; bit--) {
+                int child = 2 * node + ((code >>> bit) & 1);
+                if (HUFFMAN_TREE[child] == 0) {
+                    HUFFMAN_TREE[child] = nodes++;
+                }
+                node = HUFFMAN_TREE[child];
+            }
+            HUFFMAN_TREE[2 * node + (code & 1)] = -symbol - 1;
+        }
+    }
+
+    private Hpack() {}
+
+    /**
+     * Decodes the header blocks of one connection.
+     */
+    static final class Decoder {
+        private final int maxListSize;
+        private String[] names = new String[16];
+        private String[] values = new String[16];
+        // index of the newest entry, entries get older towards higher indexes
+        private int first;
+        private int count;
+        private int size;
+        private int maxSize = TABLE_SIZE;
+
+        private byte[] block;
+        private int pos;
+        private int end;
+
+        /**
+         * @param maxListSize largest header list delivered, counted like <code>SETTINGS_MAX_HEADER_LIST_SIZE</code>
+         */
+        Decoder(int maxListSize) {
+            this.maxListSize = maxListSize;
+        }
+
+        /**
+         * Decodes a complete header block. The whole block is always decoded, so the
+         * dynamic table stays in sync with the client's even when headers are dropped.
+         *
+         * @return <code>false</code> if the header list was larger than the limit and only its beginning was delivered
+         * @throws Http2Exception with <code>COMPRESSION_ERROR</code> if the block is malformed
+         */
+        boolean decode(byte[] block, int length, BiConsumer<String, String> headers) throws Http2Exception {
+            this.block = block;
+            this.pos = 0;
+            this.end = length;
+            long listSize = 0;
+            boolean complete = true;
+            try {
+                while (pos < end) {
+                    int b = block[pos] & 0xff;
+                    String name;
+                    String value;
+                    if ((b & 0x80) != 0) {
+                        int index = readInt(7);
+                        name = name(index);
+                        value = value(index);
+                    } else if ((b & 0xe0) == 0x20) {
+                        int newSize = readInt(5);
+                        if (newSize > TABLE_SIZE) {
+                            throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Table size update above the limit");
+                        }
+                        maxSize = newSize;
+                        evict(0);
+                        continue;
+                    } else {
+                        boolean indexing = (b & 0xc0) == 0x40;
+                        int index = readInt(indexing ? 6 : 4);
+                        name = index == 0 ? readString() : name(index);
+                        value = readString();
+                        if (indexing) {
+                            add(name, value);
+                        }
+                    }
+                    listSize += name.length() + value.length() + 32;
+                    if (listSize > maxListSize) {
+                        complete = false;
+                    } else {
+                        headers.accept(name, value);
+                    }
+                }
+            } finally {
+                this.block = null;
+            }
+            return complete;
+        }
+
+        private String name(int index) throws Http2Exception {
+            if (index >= 1 && index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1][0];
+            }
+            return names[dynamic(index)];
+        }
+
+        private String value(int index) throws Http2Exception {
+            if (index >= 1 && index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1][1];
+            }
+            return values[dynamic(index)];
+        }
+
+        private int dynamic(int index) throws Http2Exception {
+            int i = index - STATIC_TABLE.length - 1;
+            if (index < 1 || i >= count) {
+                throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Header index " + index + " out of range");
+            }
+            return (first + i) % names.length;
+        }
+
+        private void add(String name, String value) {
+            int entrySize = name.length() + value.length() + 32;
+            evict(entrySize);
+            if (entrySize > maxSize) {
+                // an entry larger than the table empties it and is not added
+                return;
+            }
+            if (count == names.length) {
+                String[] oldNames = names;
+                String[] oldValues = values;
+                names = new String[oldNames.length * 2];
+                values = new String[oldValues.length * 2];
+                for (int i = 0; i < count; i++) {
+                    names[i] = oldNames[(first + i) % oldNames.length];
+                    values[i] = oldValues[(first + i) % oldValues.length];
+                }
+                first = 0;
+            }
+            first = (first - 1 + names.length) % names.length;
+            names[first] = name;
+            values[first] = value;
+            count++;
+            size += entrySize;
+        }
+
+        /**
+         * Drops the oldest entries until <code>room</code> more octets fit.
+         */
+        private void evict(int room) {
+            while (count > 0 && size + room > maxSize) {
+                int oldest = (first + count - 1) % names.length;
+                size -= names[oldest].length() + values[oldest].length() + 32;
+                names[oldest] = null;
+                values[oldest] = null;
+                count--;
+            }
+        }
+
+        private int readInt(int prefix) throws Http2Exception {
+            int max = (1 << prefix) - 1;
+            int value = block[pos++] & max;
+            if (value < max) {
+                return value;
+            }
+            for (int shift = 0; ; shift += 7) {
+                if (pos >= end || shift > 21) {
+                    throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Malformed integer");
+                }
+                int b = block[pos++] & 0xff;
+                value += (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+        }
+
+        private String readString() throws Http2Exception {
+            if (pos >= end) {
+                throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Missing string");
+            }
+            boolean huffman = (block[pos] & 0x80) != 0;
+            int length = readInt(7);
+            if (length > end - pos) {
+                throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "String longer than the block");
+            }
+            String s = huffman ? huffmanDecode(block, pos, length) : latin1(block, pos, length);
+            pos += length;
+            return s;
+        }
+    }
+
+    /**
+     * Encodes header blocks, safe to use from any number of threads.
+     */
+    static final class Encoder {
+        private static final int STATUS = 8;
+
+        /**
+         * Appends <code>:status</code>, indexed if the static table has it.
+         */
+        void status(ByteArrayOutputStream out, int status) {
+            for (int i = STATUS - 1; i < STATUS + 6; i++) {
+                if (STATIC_TABLE[i][1].equals(Integer.toString(status))) {
+                    writeInt(out, 0x80, 7, i + 1);
+                    return;
+                }
+            }
+            writeInt(out, 0x00, 4, STATUS);
+            writeString(out, Integer.toString(status));
+        }
+
+        /**
+         * Appends a literal header field without indexing.
+         *
+         * @param name lower case name
+         */
+        void header(ByteArrayOutputStream out, String name, String value) {
+            Integer index = STATIC_NAMES.get(name);
+            if (index != null) {
+                writeInt(out, 0x00, 4, index);
+            } else {
+                out.write(0x00);
+                writeString(out, name);
+            }
+            writeString(out, value);
+        }
+
+        private static void writeString(ByteArrayOutputStream out, String s) {
+            long bits = 0;
+            for (int i = 0; i < s.length(); i++) {
+                bits += HUFFMAN_LENGTHS[latin1(s.charAt(i))];
+            }
+            int huffmanLength = (int) ((bits + 7) / 8);
+            if (huffmanLength < s.length()) {
+                writeInt(out, 0x80, 7, huffmanLength);
+                huffmanEncode(out, s);
+            } else {
+                writeInt(out, 0x00, 7, s.length());
+                for (int i = 0; i < s.length(); i++) {
+                    out.write(latin1(s.charAt(i)));
+                }
+            }
+        }
+
+        private static void writeInt(ByteArrayOutputStream out, int flags, int prefix, int value) {
+            int max = (1 << prefix) - 1;
+            if (value < max) {
+                out.write(flags | value);
+                return;
+            }
+            out.write(flags | max);
+            value -= max;
+            while (value >= 0x80) {
+                out.write((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+    }
+
+    private static int latin1(char c) {
+        return c <= 0xff ? c : '?';
+    }
+
+    private static String latin1(byte[] b, int off, int len) {
+        char[] chars = new char[len];
+        for (int i = 0; i < len; i++) {
+            chars[i] = (char) (b[off + i] & 0xff);
+        }
+        return new String(chars);
+    }
+
+    static String huffmanDecode(byte[] b, int off, int len) throws Http2Exception {
+        var s = new StringBuilder(len + len / 2);
+        int node = 0;
+        int pending = 0;
+        boolean ones = true;
+        for (int i = off; i < off + len; i++) {
+            int octet = b[i] & 0xff;
+            for (int bit = 7; bit >= 0; bit--) {
+                int one = (octet >>> bit) & 1;
+                int child = HUFFMAN_TREE[2 * node + one];
+                pending++;
+                ones &= one == 1;
+                if (child < 0) {
+                    int symbol = -child - 1;
+                    if (symbol == EOS) {
+                        throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "EOS in a Huffman coded string");
+                    }
+                    s.append((char) symbol);
+                    node = 0;
+                    pending = 0;
+                    ones = true;
+                } else {
+                    node = child;
+                }
+            }
+        }
+        // the padding is the shortest prefix of EOS, all ones and shorter than a byte
+        if (pending > 7 || !ones) {
+            throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Invalid Huffman padding");
+        }
+        return s.toString();
+    }
+
+    static void huffmanEncode(ByteArrayOutputStream out, String s) {
+        long bits = 0;
+        int count = 0;
+        for (int i = 0; i < s.length(); i++) {
+            int symbol = latin1(s.charAt(i));
+            bits = (bits << HUFFMAN_LENGTHS[symbol]) | HUFFMAN_CODES[symbol];
+            count += HUFFMAN_LENGTHS[symbol];
+            while (count >= 8) {
+                count -= 8;
+                out.write((int) (bits >>> count));
+            }
+            bits &= (1L << count) - 1;
+        }
+        if (count > 0) {
+            out.write((int) ((bits << (8 - count)) | (0xff >>> count)));
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package com.amberj.net.transport;
+
+import com.sun.net.httpserver.Headers;
+
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Byte level HTTP/1.x request head parser working directly on the connection buffer.
+ */
+final class Http1Parser {
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+    private static final String[] METHODS = {"GET", "POST", "PUT", "DELETE", "PATCH", "HEAD", "OPTIONS"};
+
+    private Http1Parser() {}
+
+    /**
+     * Parses the request head at the buffer position. The position is only moved past
+     * the head when a complete head was found.
+     *
+     * @return the exchange for the request or <code>null</code> if the head is not complete yet
+     * @throws HttpParseException if the request is malformed
+     */
+    static NioExchange parse(NioConnection connection, ByteBuffer in) throws HttpParseException {
+        int start = in.position();
+        int limit = in.limit();
+
+        // a client may send empty lines between pipelined requests
+        while (start < limit && (in.get(start) == CR || in.get(start) == LF)) {
+            start++;
+        }
+        in.position(start);
+
+        int end = headEnd(in, start, limit);
+        if (end == -1) {
+            return null;
+        }
+
+        int lineEnd = lineEnd(in, start, end);
+        int sp1 = indexOf(in, start, lineEnd, (byte) ' ');
+        int sp2 = sp1 == -1 ? -1 : indexOf(in, sp1 + 1, lineEnd, (byte) ' ');
+        if (sp1 <= start || sp2 <= sp1 + 1) {
+            throw new HttpParseException(400, "Bad Request");
+        }
+
+        String method = method(in, start, sp1);
+        String target = string(in, sp1 + 1, sp2);
+        String protocol = protocol(in, sp2 + 1, trimCr(in, sp2 + 1, lineEnd));
+
+        URI uri;
+        try {
+            uri = new URI(target);
+        } catch (URISyntaxException e) {
+            throw new HttpParseException(400, "Bad Request");
+        }
+
+        var headers = new Headers();
+        int pos = lineEnd + 1;
+        while (pos < end) {
+            int eol = lineEnd(in, pos, end);
+            int valueEnd = trimCr(in, pos, eol);
+            if (valueEnd == pos) {
+                break;
+            }
+            int colon = indexOf(in, pos, valueEnd, (byte) ':');
+            if (colon <= pos) {
+                throw new HttpParseException(400, "Bad Request");
+            }
+            // whitespace before the colon or an obs-fold line would let the name differ from
+            // what an intermediary saw, RFC 9112 section 5.1 and 5.2
+            for (int i = pos; i < colon; i++) {
+                if (!isTchar(in.get(i))) {
+                    throw new HttpParseException(400, "Bad Request");
+                }
+            }
+            int valueStart = colon + 1;
+            while (valueStart < valueEnd && isWhitespace(in.get(valueStart))) {
+                valueStart++;
+            }
+            while (valueEnd > valueStart && isWhitespace(in.get(valueEnd - 1))) {
+                valueEnd--;
+            }
+            for (int i = valueStart; i < valueEnd; i++) {
+                byte b = in.get(i);
+                if (b == CR || b == 0) {
+                    throw new HttpParseException(400, "Bad Request");
+                }
+            }
+            headers.add(string(in, pos, colon), string(in, valueStart, valueEnd));
+            pos = eol + 1;
+        }
+        in.position(end);
+
+        var exchange = new NioExchange(connection, method, uri, protocol, headers, body(connection, headers));
+        if (headers.containsKey("Transfer-Encoding") && headers.containsKey("Content-Length")) {
+            // the message may have been framed differently by an intermediary, RFC 9112 section 6.3
+            exchange.closeAfterResponse();
+        }
+        return exchange;
+    }
+
+    private static InputStream body(NioConnection connection, Headers headers) throws HttpParseException {
+        String transferEncoding = headers.getFirst("Transfer-Encoding");
+        String expect = headers.getFirst("Expect");
+        boolean expectContinue = expect != null && expect.equalsIgnoreCase("100-continue");
+        connection.expectContinue(false);
+
+        if (transferEncoding != null) {
+            if (!transferEncoding.equalsIgnoreCase("chunked")) {
+                throw new HttpParseException(501, "Not Implemented");
+            }
+            connection.expectContinue(expectContinue);
+            return new ChunkedInputStream(connection);
+        }
+
+        long length = contentLength(headers);
+        if (length <= 0) {
+            return InputStream.nullInputStream();
+        }
+        connection.expectContinue(expectContinue);
+        return new FixedLengthInputStream(connection, length);
+    }
+
+    /**
+     * A repeated <code>Content-Length</code>, or a list of values, is accepted when all values
+     * are the same, RFC 9112 section 6.3.
+     *
+     * @return the body length or <code>-1</code> if there is no <code>Content-Length</code>
+     */
+    private static long contentLength(Headers headers) throws HttpParseException {
+        List<String> values = headers.get("Content-Length");
+        if (values == null) {
+            return -1;
+        }
+        long length = -1;
+        for (String value : values) {
+            for (String element : value.split(",", -1)) {
+                element = element.trim();
+                long parsed;
+                try {
+                    // digits only, parseLong would also take a sign
+                    parsed = element.isEmpty() || element.charAt(0) == '+' ? -1 : Long.parseLong(element);
+                } catch (NumberFormatException e) {
+                    throw new HttpParseException(400, "Bad Request");
+                }
+                if (parsed < 0 || length != -1 && parsed != length) {
+                    throw new HttpParseException(400, "Bad Request");
+                }
+                length = parsed;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * @return index just after the empty line ending the head, <code>-1</code> if it is not buffered yet
+     */
+    private static int headEnd(ByteBuffer in, int start, int limit) {
+        for (int i = start; i < limit; i++) {
+            if (in.get(i) == LF) {
+                if (i + 1 < limit && in.get(i + 1) == LF) {
+                    return i + 2;
+                }
+                if (i + 2 < limit && in.get(i + 1) == CR && in.get(i + 2) == LF) {
+                    return i + 3;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static int lineEnd(ByteBuffer in, int from, int to) {
+        int i = indexOf(in, from, to, LF);
+        return i == -1 ? to : i;
+    }
+
+    private static int trimCr(ByteBuffer in, int from, int lineEnd) {
+        return lineEnd > from && in.get(lineEnd - 1) == CR ? lineEnd - 1 : lineEnd;
+    }
+
+    private static int indexOf(ByteBuffer in, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (in.get(i) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    /**
+     * Whether the character may appear in a token such as a header name, RFC 9110 section 5.6.2.
+     */
+    static boolean isTchar(int c) {
+        return c > ' ' && c < 0x7f && "\"(),/:;<=>?@[\\]{}".indexOf(c) == -1;
+    }
+
+    private static boolean matches(ByteBuffer in, int from, int to, String s) {
+        if (to - from != s.length()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (in.get(from + i) != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Common methods resolve to constants so parsing them does not allocate.
+     */
+    private static String method(ByteBuffer in, int from, int to) {
+        for (String method : METHODS) {
+            if (matches(in, from, to, method)) {
+                return method;
+            }
+        }
+        return string(in, from, to);
+    }
+
+    private static String protocol(ByteBuffer in, int from, int to) throws HttpParseException {
+        if (matches(in, from, to, "HTTP/1.1")) {
+            return "HTTP/1.1";
+        }
+        if (matches(in, from, to, "HTTP/1.0")) {
+            return "HTTP/1.0";
+        }
+        throw new HttpParseException(505, "HTTP Version Not Supported");
+    }
+
+    private static String string(ByteBuffer in, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        in.get(from, bytes);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,894 @@
+package com.amberj.net.transport;
+
+import com.sun.net.httpserver.Headers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+/**
+ * An HTTP/2 connection of the nio engine (RFC 9113), cleartext only.
+ * <p>
+ * The task that served the connection when the preface or the upgrade arrived stays on it
+ * and reads frames. Every stream is an {@link Http2Exchange} whose handler runs on the
+ * executor. Frames of all streams are written under one lock, and a writer only flushes the
+ * socket when no other writer is queued behind it, so streams answering at the same time
+ * share system calls.
+ * <p>
+ * A stream counts towards the limit of concurrent streams until its handler returned, even
+ * after the client reset it, so a client resetting streams can not pile up handlers.
+ */
+final class Http2Connection {
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] SWITCHING_PROTOCOLS =
+            "HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int PRIORITY = 0x2;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    private static final int FRAME_HEADER = 9;
+    /** Largest frame accepted, the protocol default, which this side keeps. */
+    private static final int MAX_FRAME_SIZE = 16384;
+    private static final int DEFAULT_WINDOW = 65535;
+    /** Receive window of each stream, how much of a request body is buffered ahead of the handler. */
+    static final int STREAM_WINDOW = 256 * 1024;
+    private static final int CONNECTION_WINDOW = 1024 * 1024;
+    private static final int MAX_STREAMS = 128;
+    private static final int MAX_HEADER_LIST_SIZE = 64 * 1024;
+
+    /** Request headers that only mean something to an HTTP/1.1 connection. */
+    private static final Set<String> CONNECTION_HEADERS = Set.of("connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade");
+
+    private final NioConnection connection;
+    private final Map<Integer, Http2Exchange> streams = new ConcurrentHashMap<>();
+    private final Hpack.Encoder encoder = new Hpack.Encoder();
+    private volatile boolean goingAway;
+
+    // state of the reading task
+    private final Hpack.Decoder decoder = new Hpack.Decoder(MAX_HEADER_LIST_SIZE);
+    private final byte[] header = new byte[FRAME_HEADER];
+    private final byte[] payload = new byte[MAX_FRAME_SIZE];
+    private byte[] block = new byte[1024];
+    private int blockLength;
+    // stream of the header block that is continued, 0 while none is
+    private int blockStream;
+    private boolean blockEndStream;
+    private int lastStreamId;
+
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final byte[] frameHeader = new byte[FRAME_HEADER];
+
+    // send flow control, guarded by windowLock
+    private final ReentrantLock windowLock = new ReentrantLock();
+    private final Condition windowOpened = windowLock.newCondition();
+    private long sendWindow = DEFAULT_WINDOW;
+    private int initialSendWindow = DEFAULT_WINDOW;
+    private volatile int maxSendFrame = MAX_FRAME_SIZE;
+
+    // receive flow control of the connection, the reading task takes from it and the streams give back
+    private final AtomicLong receiveWindow = new AtomicLong(DEFAULT_WINDOW);
+    private final AtomicInteger unacknowledged = new AtomicInteger();
+
+    Http2Connection(NioConnection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * Checks whether the buffered bytes start a connection with the HTTP/2 preface.
+     *
+     * @return <code>1</code> if the whole preface is buffered, <code>0</code> if what is buffered
+     *         is the beginning of it, <code>-1</code> if it is not a preface
+     */
+    static int preface(ByteBuffer in) {
+        int n = Math.min(in.remaining(), PREFACE.length);
+        for (int i = 0; i < n; i++) {
+            if (in.get(in.position() + i) != PREFACE[i]) {
+                return -1;
+            }
+        }
+        return n == PREFACE.length ? 1 : 0;
+    }
+
+    /**
+     * @return whether the request asks for <code>Upgrade: h2c</code> in a way this side accepts,
+     *         without a body and with valid <code>HTTP2-Settings</code>. Other requests are served
+     *         as HTTP/1.1, ignoring the upgrade
+     */
+    static boolean isUpgrade(NioExchange exchange) {
+        Headers headers = exchange.getRequestHeaders();
+        String contentLength = headers.getFirst("Content-Length");
+        return exchange.getProtocol().equals("HTTP/1.1")
+                && hasToken(headers.getFirst("Upgrade"), "h2c")
+                && hasToken(headers.getFirst("Connection"), "upgrade")
+                && !headers.containsKey("Transfer-Encoding")
+                && (contentLength == null || contentLength.equals("0"))
+                && upgradeSettings(headers) != null;
+    }
+
+    private static boolean hasToken(String value, String token) {
+        if (value != null) {
+            for (String candidate : value.split(",")) {
+                if (candidate.trim().equalsIgnoreCase(token)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static byte[] upgradeSettings(Headers headers) {
+        List<String> values = headers.get("HTTP2-Settings");
+        if (values == null || values.size() != 1) {
+            return null;
+        }
+        try {
+            byte[] settings = Base64.getUrlDecoder().decode(values.get(0).trim());
+            return settings.length % 6 == 0 ? settings : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    InetSocketAddress remoteAddress() {
+        return connection.remoteAddress();
+    }
+
+    InetSocketAddress localAddress() {
+        return connection.localAddress();
+    }
+
+    long readTimeoutNanos() {
+        return connection.loop.readTimeoutNanos;
+    }
+
+    boolean isClosed() {
+        return connection.isClosed();
+    }
+
+    /**
+     * Reads frames until the connection ends.
+     *
+     * @param upgrade the request that asked for the upgrade, it becomes stream 1. <code>null</code>
+     *                when the client started with the preface
+     */
+    void serve(NioExchange upgrade) {
+        try {
+            try {
+                if (upgrade != null) {
+                    connection.write(SWITCHING_PROTOCOLS, 0, SWITCHING_PROTOCOLS.length);
+                }
+                writeSettings();
+                readPreface();
+                if (upgrade != null) {
+                    // the 101 acknowledges these settings, they get no SETTINGS ACK
+                    byte[] settings = upgradeSettings(upgrade.getRequestHeaders());
+                    applySettings(settings, settings.length);
+                    lastStreamId = 1;
+                    open(upgraded(upgrade), true);
+                }
+                readFrame(true);
+                while (true) {
+                    readFrame(false);
+                }
+            } catch (Http2Exception e) {
+                goAway(e.errorCode(), e.getMessage());
+            } catch (SocketTimeoutException e) {
+                goAway(Http2Exception.NO_ERROR, "Idle timeout");
+            }
+        } catch (IOException e) {
+            // the client closed the connection or it was closed on stop
+        } finally {
+            close();
+        }
+    }
+
+    private Http2Exchange upgraded(NioExchange upgrade) {
+        var headers = new Headers();
+        for (Map.Entry<String, List<String>> entry : upgrade.getRequestHeaders().entrySet()) {
+            String name = entry.getKey().toLowerCase(Locale.ROOT);
+            if (!CONNECTION_HEADERS.contains(name) && !name.equals("http2-settings")) {
+                headers.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return stream(1, upgrade.getRequestMethod(), upgrade.getRequestURI(), headers);
+    }
+
+    private Http2Exchange stream(int id, String method, URI uri, Headers headers) {
+        windowLock.lock();
+        try {
+            return new Http2Exchange(this, id, method, uri, headers, initialSendWindow);
+        } finally {
+            windowLock.unlock();
+        }
+    }
+
+    /**
+     * Registers the stream and runs its handler on the executor.
+     */
+    private void open(Http2Exchange stream, boolean endStream) throws IOException {
+        if (endStream) {
+            stream.receiveEnd();
+        }
+        streams.put(stream.id, stream);
+        connection.loop.exchanges.incrementAndGet();
+        try {
+            connection.loop.executor.execute(() -> {
+                try {
+                    stream.run(connection.loop.handler);
+                } finally {
+                    streams.remove(stream.id);
+                    connection.loop.exchanges.decrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            streams.remove(stream.id);
+            connection.loop.exchanges.decrementAndGet();
+            writeReset(stream.id, Http2Exception.REFUSED_STREAM);
+        }
+    }
+
+    private void readPreface() throws IOException {
+        readFully(payload, PREFACE.length);
+        if (!Arrays.equals(payload, 0, PREFACE.length, PREFACE, 0, PREFACE.length)) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid connection preface");
+        }
+    }
+
+    /**
+     * Reads frame bytes. Between requests the connection may stay quiet for the idle timeout,
+     * while streams are open the client may wait for their responses as long as it takes.
+     */
+    private void readFully(byte[] b, int length) throws IOException {
+        int off = 0;
+        while (off < length) {
+            int n;
+            try {
+                n = connection.read(b, off, length - off, connection.loop.idleTimeoutNanos);
+            } catch (SocketTimeoutException e) {
+                if (streams.isEmpty()) {
+                    throw e;
+                }
+                continue;
+            }
+            if (n == -1) {
+                throw new EOFException("Connection closed by the client");
+            }
+            off += n;
+        }
+    }
+
+    private void readFrame(boolean first) throws IOException {
+        readFully(header, FRAME_HEADER);
+        int length = (header[0] & 0xff) << 16 | (header[1] & 0xff) << 8 | header[2] & 0xff;
+        int type = header[3] & 0xff;
+        int flags = header[4] & 0xff;
+        int streamId = int32(header, 5) & 0x7fffffff;
+        if (length > MAX_FRAME_SIZE) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Frame of " + length + " bytes");
+        }
+        readFully(payload, length);
+
+        if (first && type != SETTINGS) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Expected SETTINGS after the preface");
+        }
+        if (blockStream != 0 && (type != CONTINUATION || streamId != blockStream)) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Expected CONTINUATION of stream " + blockStream);
+        }
+        switch (type) {
+            case DATA -> onData(flags, streamId, length);
+            case HEADERS -> onHeaders(flags, streamId, length);
+            case PRIORITY -> {
+                if (length != 5) {
+                    throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "PRIORITY of " + length + " bytes");
+                }
+            }
+            case RST_STREAM -> onReset(streamId, length);
+            case SETTINGS -> onSettings(flags, streamId, length);
+            case PUSH_PROMISE -> throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "PUSH_PROMISE from the client");
+            case PING -> onPing(flags, streamId, length);
+            case GOAWAY -> {
+                if (streamId != 0) {
+                    throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "GOAWAY on stream " + streamId);
+                }
+                // the open streams complete, the client closes the connection after them
+                goingAway = true;
+            }
+            case WINDOW_UPDATE -> onWindowUpdate(streamId, length);
+            case CONTINUATION -> {
+                if (blockStream == 0) {
+                    throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "CONTINUATION without HEADERS");
+                }
+                appendBlock(0, length);
+                if ((flags & FLAG_END_HEADERS) != 0) {
+                    endHeaders();
+                }
+            }
+            default -> {
+                // unknown frame types are ignored
+            }
+        }
+    }
+
+    /**
+     * @return the number of padding bytes at the end of the frame
+     */
+    private int padding(int flags, int length) throws Http2Exception {
+        if ((flags & FLAG_PADDED) == 0) {
+            return 0;
+        }
+        if (length < 1 || (payload[0] & 0xff) >= length) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Padding longer than the frame");
+        }
+        return payload[0] & 0xff;
+    }
+
+    private void onData(int flags, int streamId, int length) throws IOException {
+        if (streamId == 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "DATA on stream 0");
+        }
+        int padding = padding(flags, length);
+        int off = (flags & FLAG_PADDED) != 0 ? 1 : 0;
+        if (receiveWindow.addAndGet(-length) < 0) {
+            throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Connection flow control window exceeded");
+        }
+        Http2Exchange stream = streams.get(streamId);
+        if (stream == null) {
+            if (streamId > lastStreamId) {
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "DATA on idle stream " + streamId);
+            }
+            // sent before the client saw the stream end or the reset
+            credit(length);
+            return;
+        }
+        stream.receive(payload, off, length - off - padding, length, (flags & FLAG_END_STREAM) != 0);
+    }
+
+    private void onHeaders(int flags, int streamId, int length) throws IOException {
+        if (streamId == 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "HEADERS on stream 0");
+        }
+        int padding = padding(flags, length);
+        int off = (flags & FLAG_PADDED) != 0 ? 1 : 0;
+        if ((flags & FLAG_PRIORITY) != 0) {
+            // priorities are not followed, streams are answered as their handlers finish
+            off += 5;
+        }
+        if (off + padding > length) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "HEADERS too short");
+        }
+        blockStream = streamId;
+        blockEndStream = (flags & FLAG_END_STREAM) != 0;
+        blockLength = 0;
+        appendBlock(off, length - off - padding);
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            endHeaders();
+        }
+    }
+
+    private void appendBlock(int off, int length) throws Http2Exception {
+        if (blockLength + length > MAX_HEADER_LIST_SIZE) {
+            throw new Http2Exception(Http2Exception.ENHANCE_YOUR_CALM, "Header block too large");
+        }
+        if (blockLength + length > block.length) {
+            block = Arrays.copyOf(block, Math.max(blockLength + length, block.length * 2));
+        }
+        System.arraycopy(payload, off, block, blockLength, length);
+        blockLength += length;
+    }
+
+    private void endHeaders() throws IOException {
+        int streamId = blockStream;
+        blockStream = 0;
+        var head = new RequestHead();
+        // decoded in any case, the dynamic table has to follow the client's
+        boolean complete = decoder.decode(block, blockLength, head);
+
+        if (streamId <= lastStreamId) {
+            Http2Exchange stream = streams.get(streamId);
+            if (stream == null) {
+                // trailers of a stream that was already reset
+                return;
+            }
+            if (!blockEndStream) {
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Trailers without END_STREAM on stream " + streamId);
+            }
+            // trailers are not passed on, they end the request body
+            stream.receiveEnd();
+            return;
+        }
+        if ((streamId & 1) == 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Client opened even stream " + streamId);
+        }
+        lastStreamId = streamId;
+
+        if (goingAway || streams.size() >= MAX_STREAMS) {
+            writeReset(streamId, Http2Exception.REFUSED_STREAM);
+            return;
+        }
+        if (!complete) {
+            writeStatus(streamId, 431, blockEndStream);
+            return;
+        }
+        Http2Exchange stream = head.stream(streamId);
+        if (stream == null) {
+            writeReset(streamId, Http2Exception.PROTOCOL_ERROR);
+            return;
+        }
+        open(stream, blockEndStream);
+    }
+
+    private void onReset(int streamId, int length) throws IOException {
+        if (length != 4) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "RST_STREAM of " + length + " bytes");
+        }
+        if (streamId == 0 || streamId > lastStreamId) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "RST_STREAM on idle stream " + streamId);
+        }
+        Http2Exchange stream = streams.get(streamId);
+        if (stream != null) {
+            stream.reset();
+            windowLock.lock();
+            try {
+                windowOpened.signalAll();
+            } finally {
+                windowLock.unlock();
+            }
+        }
+    }
+
+    private void onSettings(int flags, int streamId, int length) throws IOException {
+        if (streamId != 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "SETTINGS on stream " + streamId);
+        }
+        if ((flags & FLAG_ACK) != 0) {
+            if (length != 0) {
+                throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "SETTINGS ACK with a payload");
+            }
+            return;
+        }
+        if (length % 6 != 0) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "SETTINGS of " + length + " bytes");
+        }
+        applySettings(payload, length);
+        writeFrame(SETTINGS, FLAG_ACK, 0, payload, 0, 0);
+    }
+
+    private void applySettings(byte[] settings, int length) throws Http2Exception {
+        for (int i = 0; i < length; i += 6) {
+            int id = (settings[i] & 0xff) << 8 | settings[i + 1] & 0xff;
+            long value = int32(settings, i + 2) & 0xffffffffL;
+            switch (id) {
+                case SETTINGS_ENABLE_PUSH -> {
+                    if (value > 1) {
+                        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "SETTINGS_ENABLE_PUSH of " + value);
+                    }
+                }
+                case SETTINGS_INITIAL_WINDOW_SIZE -> {
+                    if (value > Integer.MAX_VALUE) {
+                        throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "SETTINGS_INITIAL_WINDOW_SIZE of " + value);
+                    }
+                    windowLock.lock();
+                    try {
+                        int delta = (int) value - initialSendWindow;
+                        initialSendWindow = (int) value;
+                        for (Http2Exchange stream : streams.values()) {
+                            stream.sendWindow += delta;
+                        }
+                        windowOpened.signalAll();
+                    } finally {
+                        windowLock.unlock();
+                    }
+                }
+                case SETTINGS_MAX_FRAME_SIZE -> {
+                    if (value < MAX_FRAME_SIZE || value > 0xffffff) {
+                        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "SETTINGS_MAX_FRAME_SIZE of " + value);
+                    }
+                    maxSendFrame = (int) value;
+                }
+                default -> {
+                    // the encoder needs no dynamic table, nothing is pushed, unknown settings are ignored
+                }
+            }
+        }
+    }
+
+    private void onPing(int flags, int streamId, int length) throws IOException {
+        if (length != 8) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "PING of " + length + " bytes");
+        }
+        if (streamId != 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "PING on stream " + streamId);
+        }
+        if ((flags & FLAG_ACK) == 0) {
+            writeFrame(PING, FLAG_ACK, 0, payload, 0, 8);
+        }
+    }
+
+    private void onWindowUpdate(int streamId, int length) throws Http2Exception {
+        if (length != 4) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "WINDOW_UPDATE of " + length + " bytes");
+        }
+        int increment = int32(payload, 0) & 0x7fffffff;
+        if (increment == 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "WINDOW_UPDATE of 0 on stream " + streamId);
+        }
+        windowLock.lock();
+        try {
+            if (streamId == 0) {
+                sendWindow += increment;
+                if (sendWindow > Integer.MAX_VALUE) {
+                    throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Connection flow control window above 2^31-1");
+                }
+            } else {
+                Http2Exchange stream = streams.get(streamId);
+                if (stream == null) {
+                    if (streamId > lastStreamId) {
+                        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "WINDOW_UPDATE on idle stream " + streamId);
+                    }
+                    return;
+                }
+                stream.sendWindow += increment;
+                if (stream.sendWindow > Integer.MAX_VALUE) {
+                    throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Flow control window of stream " + streamId + " above 2^31-1");
+                }
+            }
+            windowOpened.signalAll();
+        } finally {
+            windowLock.unlock();
+        }
+    }
+
+    /**
+     * Gives request body bytes back to the connection's receive window once they are consumed.
+     * A <code>WINDOW_UPDATE</code> is sent when half of the window is used up.
+     */
+    void credit(int bytes) throws IOException {
+        if (bytes > 0 && unacknowledged.addAndGet(bytes) >= CONNECTION_WINDOW / 2) {
+            int increment = unacknowledged.getAndSet(0);
+            if (increment > 0) {
+                receiveWindow.addAndGet(increment);
+                writeWindowUpdate(0, increment);
+            }
+        }
+    }
+
+    private void writeSettings() throws IOException {
+        byte[] settings = new byte[18];
+        setting(settings, 0, SETTINGS_MAX_CONCURRENT_STREAMS, MAX_STREAMS);
+        setting(settings, 6, SETTINGS_INITIAL_WINDOW_SIZE, STREAM_WINDOW);
+        setting(settings, 12, SETTINGS_MAX_HEADER_LIST_SIZE, MAX_HEADER_LIST_SIZE);
+        writeFrame(SETTINGS, 0, 0, settings, 0, settings.length);
+        receiveWindow.addAndGet(CONNECTION_WINDOW - DEFAULT_WINDOW);
+        writeWindowUpdate(0, CONNECTION_WINDOW - DEFAULT_WINDOW);
+    }
+
+    private static void setting(byte[] b, int off, int id, int value) {
+        b[off] = (byte) (id >>> 8);
+        b[off + 1] = (byte) id;
+        putInt32(b, off + 2, value);
+    }
+
+    /**
+     * Encodes a response head.
+     */
+    byte[] headerBlock(int status, Headers headers) {
+        var out = new ByteArrayOutputStream(256);
+        encoder.status(out, status);
+        if (!headers.containsKey("Date")) {
+            encoder.header(out, "date", HttpDate.now());
+        }
+        for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+            String name = entry.getKey().toLowerCase(Locale.ROOT);
+            if (CONNECTION_HEADERS.contains(name)) {
+                continue;
+            }
+            for (String value : entry.getValue()) {
+                encoder.header(out, name, value);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes a header block as one <code>HEADERS</code> frame and as many
+     * <code>CONTINUATION</code> frames as it needs, with no other frame in between.
+     */
+    void writeHeaders(int streamId, byte[] block, boolean endStream) throws IOException {
+        writeLock.lock();
+        try {
+            int max = maxSendFrame;
+            int n = Math.min(block.length, max);
+            writeFrameHeader(n, HEADERS, (endStream ? FLAG_END_STREAM : 0) | (n == block.length ? FLAG_END_HEADERS : 0), streamId);
+            connection.write(block, 0, n);
+            for (int off = n; off < block.length; off += n) {
+                n = Math.min(block.length - off, max);
+                writeFrameHeader(n, CONTINUATION, off + n == block.length ? FLAG_END_HEADERS : 0, streamId);
+                connection.write(block, off, n);
+            }
+            flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void writeStatus(int streamId, int status, boolean endStream) throws IOException {
+        var headers = new Headers();
+        headers.set("Content-Length", "0");
+        writeHeaders(streamId, headerBlock(status, headers), true);
+        if (!endStream) {
+            writeReset(streamId, Http2Exception.NO_ERROR);
+        }
+    }
+
+    /**
+     * Writes response body bytes as <code>DATA</code> frames, waiting for the client to open
+     * the flow control windows where they are used up.
+     */
+    void writeData(Http2Exchange stream, byte[] b, int off, int len, boolean endStream) throws IOException {
+        do {
+            int n = len == 0 ? 0 : reserve(stream, Math.min(len, maxSendFrame));
+            writeFrame(DATA, endStream && n == len ? FLAG_END_STREAM : 0, stream.id, b, off, n);
+            off += n;
+            len -= n;
+        } while (len > 0);
+    }
+
+    private int reserve(Http2Exchange stream, int wanted) throws IOException {
+        windowLock.lock();
+        try {
+            long deadline = System.nanoTime() + connection.loop.writeTimeoutNanos;
+            while (true) {
+                if (connection.isClosed()) {
+                    throw new ClosedChannelException();
+                }
+                if (stream.isReset()) {
+                    throw new IOException("Stream reset by the client");
+                }
+                int n = (int) Math.min(wanted, Math.min(sendWindow, stream.sendWindow));
+                if (n > 0) {
+                    sendWindow -= n;
+                    stream.sendWindow -= n;
+                    return n;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("Timed out waiting for the client to read");
+                }
+                try {
+                    windowOpened.awaitNanos(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the client to read");
+                }
+            }
+        } finally {
+            windowLock.unlock();
+        }
+    }
+
+    void writeWindowUpdate(int streamId, int increment) throws IOException {
+        byte[] b = new byte[4];
+        putInt32(b, 0, increment);
+        writeFrame(WINDOW_UPDATE, 0, streamId, b, 0, 4);
+    }
+
+    void writeReset(int streamId, int errorCode) throws IOException {
+        byte[] b = new byte[4];
+        putInt32(b, 0, errorCode);
+        writeFrame(RST_STREAM, 0, streamId, b, 0, 4);
+    }
+
+    private void goAway(int errorCode, String message) {
+        byte[] debug = message == null ? new byte[0] : message.getBytes(StandardCharsets.UTF_8);
+        byte[] b = new byte[8 + debug.length];
+        putInt32(b, 0, lastStreamId);
+        putInt32(b, 4, errorCode);
+        System.arraycopy(debug, 0, b, 8, debug.length);
+        writeLock.lock();
+        try {
+            writeFrameHeader(b.length, GOAWAY, 0, 0);
+            connection.write(b, 0, b.length);
+            // the connection is closed right after, a queued writer would not get to flush
+            connection.flush();
+        } catch (IOException ignored) {
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] b, int off, int len) throws IOException {
+        writeLock.lock();
+        try {
+            writeFrameHeader(len, type, flags, streamId);
+            connection.write(b, off, len);
+            flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void writeFrameHeader(int length, int type, int flags, int streamId) throws IOException {
+        frameHeader[0] = (byte) (length >>> 16);
+        frameHeader[1] = (byte) (length >>> 8);
+        frameHeader[2] = (byte) length;
+        frameHeader[3] = (byte) type;
+        frameHeader[4] = (byte) flags;
+        putInt32(frameHeader, 5, streamId);
+        connection.write(frameHeader, 0, FRAME_HEADER);
+    }
+
+    /**
+     * Sends the buffered frames unless another writer is waiting for the lock, which then
+     * sends them along with its own.
+     */
+    private void flush() throws IOException {
+        if (!writeLock.hasQueuedThreads()) {
+            connection.flush();
+        }
+    }
+
+    private void close() {
+        connection.close();
+        for (Http2Exchange stream : streams.values()) {
+            stream.reset();
+        }
+        windowLock.lock();
+        try {
+            windowOpened.signalAll();
+        } finally {
+            windowLock.unlock();
+        }
+        // a writer still holding the lock may be using the write buffer, which goes back to the pool next
+        writeLock.lock();
+        writeLock.unlock();
+    }
+
+    private static int int32(byte[] b, int off) {
+        return (b[off] & 0xff) << 24 | (b[off + 1] & 0xff) << 16 | (b[off + 2] & 0xff) << 8 | b[off + 3] & 0xff;
+    }
+
+    private static void putInt32(byte[] b, int off, int value) {
+        b[off] = (byte) (value >>> 24);
+        b[off + 1] = (byte) (value >>> 16);
+        b[off + 2] = (byte) (value >>> 8);
+        b[off + 3] = (byte) value;
+    }
+
+    /**
+     * Collects the decoded fields of a request head.
+     */
+    private final class RequestHead implements BiConsumer<String, String> {
+        private final Headers headers = new Headers();
+        private String method;
+        private String path;
+        private String scheme;
+        private String authority;
+        private StringBuilder cookie;
+        private boolean regular;
+        private boolean malformed;
+
+        @Override
+        public void accept(String name, String value) {
+            if (!isValid(name, value)) {
+                malformed = true;
+                return;
+            }
+            if (name.startsWith(":")) {
+                // pseudo-header fields come first
+                malformed |= regular;
+                switch (name) {
+                    case ":method" -> method = value;
+                    case ":path" -> path = value;
+                    case ":scheme" -> scheme = value;
+                    case ":authority" -> authority = value;
+                    default -> malformed = true;
+                }
+                return;
+            }
+            regular = true;
+            if (name.equals("cookie")) {
+                // split into one field per cookie for compression, HTTP/1.1 handlers expect one
+                if (cookie == null) {
+                    cookie = new StringBuilder(value);
+                } else {
+                    cookie.append("; ").append(value);
+                }
+            } else if (CONNECTION_HEADERS.contains(name)) {
+                malformed = true;
+            } else {
+                headers.add(name, value);
+            }
+        }
+
+        /**
+         * Names are lower case tokens after an optional colon, values hold no CR, LF or NUL
+         * and no whitespace at either end, RFC 9113 section 8.2.1.
+         */
+        private static boolean isValid(String name, String value) {
+            int start = name.startsWith(":") ? 1 : 0;
+            if (name.length() == start) {
+                return false;
+            }
+            for (int i = start; i < name.length(); i++) {
+                char c = name.charAt(i);
+                if (!Http1Parser.isTchar(c) || c >= 'A' && c <= 'Z') {
+                    return false;
+                }
+            }
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '\r' || c == '\n' || c == 0) {
+                    return false;
+                }
+            }
+            return value.isEmpty() || !isWhitespace(value.charAt(0)) && !isWhitespace(value.charAt(value.length() - 1));
+        }
+
+        private static boolean isWhitespace(char c) {
+            return c == ' ' || c == '\t';
+        }
+
+        /**
+         * @return the stream of the request, <code>null</code> if the request is malformed
+         */
+        Http2Exchange stream(int id) {
+            if (malformed || method == null || path == null || scheme == null) {
+                return null;
+            }
+            URI uri;
+            try {
+                uri = new URI(path);
+            } catch (URISyntaxException e) {
+                return null;
+            }
+            if (authority != null && !headers.containsKey("Host")) {
+                headers.set("Host", authority);
+            }
+            if (cookie != null) {
+                headers.set("Cookie", cookie.toString());
+            }
+            return Http2Connection.this.stream(id, method, uri, headers);
+        }
+    }
+}
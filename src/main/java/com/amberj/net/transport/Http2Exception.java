@@ -0,0 +1,33 @@
+package com.amberj.net.transport;
+
+import java.io.IOException;
+
+/**
+ * A violation of HTTP/2 by the client. The connection is ended with a <code>GOAWAY</code>
+ * carrying the error code and is closed.
+ */
+final class Http2Exception extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    static final int NO_ERROR = 0x0;
+    static final int PROTOCOL_ERROR = 0x1;
+    static final int INTERNAL_ERROR = 0x2;
+    static final int FLOW_CONTROL_ERROR = 0x3;
+    static final int STREAM_CLOSED = 0x5;
+    static final int FRAME_SIZE_ERROR = 0x6;
+    static final int REFUSED_STREAM = 0x7;
+    static final int CANCEL = 0x8;
+    static final int COMPRESSION_ERROR = 0x9;
+    static final int ENHANCE_YOUR_CALM = 0xb;
+
+    private final int errorCode;
+
+    Http2Exception(int errorCode, String message) {
+        super(message);
+        this.errorCode = errorCode;
+    }
+
+    int errorCode() {
+        return errorCode;
+    }
+}
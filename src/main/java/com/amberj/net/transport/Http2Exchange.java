@@ -0,0 +1,467 @@
+package com.amberj.net.transport;
+
+import com.sun.net.httpserver.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One stream of an {@link Http2Connection}, the <code>HttpExchange</code> its handler gets.
+ * It follows the contract of {@link NioExchange}: a length of <code>0</code> in
+ * {@link #sendResponseHeaders(int, long)} streams the body, as <code>DATA</code> frames until
+ * the exchange is closed, and <code>-1</code> sends no body.
+ */
+final class Http2Exchange extends HttpExchange {
+    private static final int BUFFER_SIZE = 16384;
+    // markers in the queue of request body chunks
+    private static final byte[] END = new byte[0];
+    private static final byte[] RESET = new byte[0];
+
+    final int id;
+    private final Http2Connection connection;
+    private final String method;
+    private final URI uri;
+    private final Headers requestHeaders;
+    private final Headers responseHeaders = new Headers();
+    private InputStream requestBody = new RequestBody();
+    private final ResponseBody body = new ResponseBody();
+    private OutputStream responseBody = body;
+    private Map<String, Object> attributes;
+    private int responseCode = -1;
+    private boolean closed;
+    // whether END_STREAM was sent
+    private boolean ended;
+    // body bytes still announced by Content-Length, -1 without one
+    private long remaining;
+
+    /** Flow control window of the response, guarded by the connection's window lock. */
+    long sendWindow;
+
+    // request body, the connection's reading task adds and the handler takes
+    private final BlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+    private final AtomicInteger receiveWindow = new AtomicInteger(Http2Connection.STREAM_WINDOW);
+    private volatile boolean remoteEnded;
+    private volatile boolean reset;
+    // guarded by this, set once the handler is done and the rest of the body is dropped
+    private boolean discarding;
+
+    Http2Exchange(Http2Connection connection, int id, String method, URI uri, Headers requestHeaders, int sendWindow) {
+        this.connection = connection;
+        this.id = id;
+        this.method = method;
+        this.uri = uri;
+        this.requestHeaders = requestHeaders;
+        this.sendWindow = sendWindow;
+    }
+
+    /**
+     * Runs the handler and completes the stream if the handler did not.
+     */
+    void run(HttpHandler handler) {
+        try {
+            handler.handle(this);
+        } catch (Throwable e) {
+            if (responseCode == -1) {
+                try {
+                    sendResponseHeaders(500, -1);
+                } catch (IOException ignored) {
+                }
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Called by the reading task with the data of a <code>DATA</code> frame.
+     *
+     * @param frameLength length of the whole frame, which flow control counts
+     */
+    void receive(byte[] b, int off, int len, int frameLength, boolean endStream) throws IOException {
+        boolean discard;
+        synchronized (this) {
+            if (remoteEnded) {
+                throw new Http2Exception(Http2Exception.STREAM_CLOSED, "DATA after END_STREAM on stream " + id);
+            }
+            if (receiveWindow.addAndGet(-frameLength) < 0) {
+                throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Flow control window of stream " + id + " exceeded");
+            }
+            discard = discarding;
+            if (!discard && len > 0) {
+                received.add(Arrays.copyOfRange(b, off, off + len));
+            }
+            if (endStream) {
+                remoteEnded = true;
+                if (!discard) {
+                    received.add(END);
+                }
+            }
+        }
+        // padding is never read, it is given back right away
+        int unused = discard ? frameLength : frameLength - len;
+        if (unused > 0) {
+            connection.credit(unused);
+            if (!discard && !endStream) {
+                receiveWindow.addAndGet(unused);
+                connection.writeWindowUpdate(id, unused);
+            }
+        }
+    }
+
+    /**
+     * Called by the reading task when the request ended with <code>END_STREAM</code> on its headers.
+     */
+    synchronized void receiveEnd() {
+        remoteEnded = true;
+        if (!discarding) {
+            received.add(END);
+        }
+    }
+
+    /**
+     * Called when the client reset the stream or the connection closed. Reads and writes of
+     * the handler fail from then on.
+     */
+    void reset() {
+        reset = true;
+        received.add(RESET);
+    }
+
+    boolean isReset() {
+        return reset;
+    }
+
+    @Override
+    public Headers getRequestHeaders() {
+        return requestHeaders;
+    }
+
+    @Override
+    public Headers getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return uri;
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return method;
+    }
+
+    @Override
+    public HttpContext getHttpContext() {
+        return null;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (responseCode == -1) {
+                sendResponseHeaders(500, -1);
+            }
+            if (!ended && remaining > 0) {
+                // fewer bytes than announced, the client must not take the body for complete
+                ended = true;
+                connection.writeReset(id, Http2Exception.INTERNAL_ERROR);
+                return;
+            }
+            if (!ended) {
+                ended = true;
+                body.end();
+            }
+            if (!remoteEnded && !reset) {
+                // the response is complete, the client can stop sending the request body
+                connection.writeReset(id, Http2Exception.NO_ERROR);
+            }
+        } catch (IOException e) {
+            if (!reset && !connection.isClosed()) {
+                try {
+                    connection.writeReset(id, Http2Exception.CANCEL);
+                } catch (IOException ignored) {
+                }
+            }
+        } finally {
+            discard();
+        }
+    }
+
+    /**
+     * Drops the request body the handler did not read, giving its bytes back to the
+     * connection's receive window.
+     */
+    private void discard() {
+        int unread = 0;
+        synchronized (this) {
+            discarding = true;
+            for (byte[] chunk; (chunk = received.poll()) != null; ) {
+                unread += chunk.length;
+            }
+        }
+        try {
+            connection.credit(unread);
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+        return requestBody;
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+        return responseBody;
+    }
+
+    @Override
+    public void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+        if (responseCode != -1) {
+            throw new IOException("headers already sent");
+        }
+        responseCode = rCode;
+        if (reset) {
+            throw new IOException("Stream reset by the client");
+        }
+
+        boolean end;
+        if (rCode == 204 || rCode == 304 || rCode < 200) {
+            responseHeaders.remove("Content-Length");
+            remaining = 0;
+            end = true;
+        } else if (method.equals("HEAD")) {
+            // the length a GET would have, as passed or set by the handler, left out when unknown
+            if (responseLength > 0) {
+                responseHeaders.set("Content-Length", Long.toString(responseLength));
+            }
+            remaining = 0;
+            end = true;
+        } else if (responseLength > 0) {
+            responseHeaders.set("Content-Length", Long.toString(responseLength));
+            remaining = responseLength;
+            end = false;
+        } else if (responseLength == 0) {
+            responseHeaders.remove("Content-Length");
+            remaining = -1;
+            end = false;
+        } else {
+            responseHeaders.set("Content-Length", "0");
+            remaining = 0;
+            end = true;
+        }
+        connection.writeHeaders(id, connection.headerBlock(rCode, responseHeaders), end);
+        ended = end;
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return connection.remoteAddress();
+    }
+
+    @Override
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return connection.localAddress();
+    }
+
+    @Override
+    public String getProtocol() {
+        return "HTTP/2.0";
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return attributes == null ? null : attributes.get(name);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        if (attributes == null) {
+            attributes = new HashMap<>();
+        }
+        if (value == null) {
+            attributes.remove(name);
+        } else {
+            attributes.put(name, value);
+        }
+    }
+
+    @Override
+    public void setStreams(InputStream i, OutputStream o) {
+        if (i != null) {
+            requestBody = i;
+        }
+        if (o != null) {
+            responseBody = o;
+        }
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+        return null;
+    }
+
+    /**
+     * Stream handed out by {@link #getRequestBody()}. A chunk is given back to the flow
+     * control windows when it is taken from the queue, half a window at a time.
+     */
+    private final class RequestBody extends InputStream {
+        private byte[] chunk;
+        private int position;
+        private boolean finished;
+        private int unacknowledged;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            Objects.checkFromIndexSize(off, len, b.length);
+            if (len == 0) {
+                return 0;
+            }
+            if (chunk == null || position == chunk.length) {
+                if (finished || !next()) {
+                    return -1;
+                }
+            }
+            int n = Math.min(len, chunk.length - position);
+            System.arraycopy(chunk, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        private boolean next() throws IOException {
+            byte[] next;
+            try {
+                next = received.poll(connection.readTimeoutNanos(), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the request body");
+            }
+            if (next == null) {
+                throw new SocketTimeoutException("Timed out waiting for the request body");
+            }
+            if (next == END) {
+                finished = true;
+                return false;
+            }
+            if (next == RESET) {
+                received.add(RESET);
+                throw new IOException("Stream reset by the client");
+            }
+            chunk = next;
+            position = 0;
+            connection.credit(next.length);
+            if (!remoteEnded) {
+                unacknowledged += next.length;
+                if (unacknowledged >= Http2Connection.STREAM_WINDOW / 2) {
+                    receiveWindow.addAndGet(unacknowledged);
+                    connection.writeWindowUpdate(id, unacknowledged);
+                    unacknowledged = 0;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int available() {
+            return chunk == null ? 0 : chunk.length - position;
+        }
+    }
+
+    /**
+     * Stream handed out by {@link #getResponseBody()}, usable once the headers are sent.
+     * Writes are collected into frames of up to 16 KB.
+     */
+    private final class ResponseBody extends OutputStream {
+        private byte[] buffer;
+        private int count;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            Objects.checkFromIndexSize(off, len, b.length);
+            if (responseCode == -1) {
+                throw new IOException("response headers not sent yet");
+            }
+            if (ended) {
+                throw new IOException("response body already complete");
+            }
+            if (remaining >= 0) {
+                if (len > remaining) {
+                    throw new IOException("too many bytes to write to stream");
+                }
+                remaining -= len;
+            }
+            if (count == 0 && len >= BUFFER_SIZE) {
+                connection.writeData(Http2Exchange.this, b, off, len, false);
+                return;
+            }
+            if (buffer == null) {
+                buffer = new byte[BUFFER_SIZE];
+            }
+            while (len > 0) {
+                if (count == buffer.length) {
+                    flush();
+                }
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (count > 0) {
+                connection.writeData(Http2Exchange.this, buffer, 0, count, false);
+                count = 0;
+            }
+        }
+
+        /**
+         * Sends what is buffered with <code>END_STREAM</code>.
+         */
+        void end() throws IOException {
+            connection.writeData(Http2Exchange.this, buffer == null ? END : buffer, 0, count, true);
+            count = 0;
+        }
+
+        @Override
+        public void close() {
+            Http2Exchange.this.close();
+        }
+    }
+}
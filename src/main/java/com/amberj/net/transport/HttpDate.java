@@ -0,0 +1,26 @@
+package com.amberj.net.transport;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * The value of the <code>Date</code> response header, formatted at most once per second.
+ */
+final class HttpDate {
+    private static volatile Cached cached = new Cached(-1, "");
+
+    private HttpDate() {}
+
+    static String now() {
+        long second = System.currentTimeMillis() / 1000;
+        Cached current = cached;
+        if (current.second != second) {
+            current = new Cached(second, DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochSecond(second).atOffset(ZoneOffset.UTC)));
+            cached = current;
+        }
+        return current.value;
+    }
+
+    private record Cached(long second, String value) {}
+}
@@ -0,0 +1,21 @@
+package com.amberj.net.transport;
+
+import java.io.IOException;
+
+/**
+ * A request that can not be parsed. The connection answers with <code>status</code> and is closed.
+ */
+final class HttpParseException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int status;
+
+    HttpParseException(int status, String message) {
+        super(message);
+        this.status = status;
+    }
+
+    int status() {
+        return status;
+    }
+}
@@ -0,0 +1,88 @@
+package com.amberj.net.transport;
+
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.concurrent.Executor;
+
+/**
+ * The <code>com.sun.net.httpserver.HttpServer</code> engine that ships with the JDK.
+ * <p>
+ * The JDK reads its timeouts from system properties once, when the first server of the
+ * JVM is created, so the timeouts set here only apply if this is the first server and the
+ * properties were not set on the command line.
+ */
+public final class JdkTransport implements Transport {
+    private Duration idleTimeout;
+    private Duration readTimeout;
+    private Duration writeTimeout;
+    private HttpServer server;
+
+    JdkTransport() {}
+
+    /**
+     * How long a keep-alive connection may stay idle before it is closed, 30 seconds by default.
+     */
+    public JdkTransport idleTimeout(Duration idleTimeout) {
+        this.idleTimeout = idleTimeout;
+        return this;
+    }
+
+    /**
+     * How long a slow client may take to send a request, unlimited by default.
+     * Checked once a second, at least a second.
+     */
+    public JdkTransport readTimeout(Duration readTimeout) {
+        this.readTimeout = readTimeout;
+        return this;
+    }
+
+    /**
+     * How long sending a response to a client that does not read may take, unlimited by default.
+     * Checked once a second, at least a second.
+     */
+    public JdkTransport writeTimeout(Duration writeTimeout) {
+        this.writeTimeout = writeTimeout;
+        return this;
+    }
+
+    @Override
+    public void start(InetSocketAddress address, int backlog, HttpHandler handler, Executor executor) throws IOException {
+        // without TCP_NODELAY a small chunked body waits for the delayed ACK of the headers,
+        // the JDK reads this once, so it only applies if no server was created before
+        setDefault("sun.net.httpserver.nodelay", "true");
+        if (idleTimeout != null) {
+            setDefault("sun.net.httpserver.idleInterval", seconds(idleTimeout));
+        }
+        if (readTimeout != null) {
+            setDefault("sun.net.httpserver.maxReqTime", seconds(readTimeout));
+        }
+        if (writeTimeout != null) {
+            setDefault("sun.net.httpserver.maxRspTime", seconds(writeTimeout));
+        }
+        server = HttpServer.create(address, backlog);
+        server.createContext("/", handler);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    private static void setDefault(String property, String value) {
+        if (System.getProperty(property) == null) {
+            System.setProperty(property, value);
+        }
+    }
+
+    private static String seconds(Duration duration) {
+        return Long.toString(Math.max(1, duration.toSeconds()));
+    }
+
+    @Override
+    public void stop(int delay) {
+        if (server != null) {
+            server.stop(delay);
+        }
+    }
+}
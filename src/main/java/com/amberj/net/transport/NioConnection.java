@@ -0,0 +1,572 @@
+package com.amberj.net.transport;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One accepted socket of the nio engine.
+ * <p>
+ * The channel stays non-blocking. When a read or write can not make progress the
+ * task serving the connection parks and the selector thread unparks it once the
+ * socket is ready, which gives handlers ordinary blocking streams without tying
+ * a platform thread to the connection.
+ * <p>
+ * Reading and writing park independently, an HTTP/2 connection reads frames on one task
+ * while the tasks of its streams write.
+ */
+final class NioConnection {
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    final SelectorLoop loop;
+    final SocketChannel channel;
+    private final SelectionKey key;
+    private final InetSocketAddress remoteAddress;
+    private final InetSocketAddress localAddress;
+
+    // read mode, position..limit are the bytes not consumed yet
+    private ByteBuffer in;
+    // write mode
+    private ByteBuffer out;
+
+    private volatile Thread readWaiter;
+    private volatile Thread writeWaiter;
+    private volatile boolean readReady;
+    private volatile boolean writeReady;
+    private volatile boolean serving;
+    private volatile boolean closed;
+    private volatile long idleSince;
+    private boolean continuePending;
+    private boolean detached;
+    // whether the next request is the first one, which may be an HTTP/2 preface or upgrade
+    private boolean first = true;
+
+    NioConnection(SelectorLoop loop, SocketChannel channel, SelectionKey key) throws IOException {
+        this.loop = loop;
+        this.channel = channel;
+        this.key = key;
+        this.remoteAddress = (InetSocketAddress) channel.getRemoteAddress();
+        this.localAddress = (InetSocketAddress) channel.getLocalAddress();
+        this.idleSince = System.nanoTime();
+    }
+
+    InetSocketAddress remoteAddress() {
+        return remoteAddress;
+    }
+
+    InetSocketAddress localAddress() {
+        return localAddress;
+    }
+
+    /**
+     * Called by the selector thread when the socket is ready for operations that were
+     * requested. Either wakes the parked tasks or starts serving the connection.
+     */
+    void onReady() {
+        int ops;
+        try {
+            ops = key.readyOps();
+            key.interestOpsAnd(~ops);
+        } catch (CancelledKeyException e) {
+            return;
+        }
+        if ((ops & SelectionKey.OP_WRITE) != 0) {
+            Thread thread = writeWaiter;
+            if (thread != null) {
+                writeReady = true;
+                LockSupport.unpark(thread);
+            }
+        }
+        if ((ops & SelectionKey.OP_READ) == 0) {
+            return;
+        }
+        Thread thread = readWaiter;
+        if (thread != null) {
+            readReady = true;
+            LockSupport.unpark(thread);
+        } else if (!serving) {
+            serving = true;
+            try {
+                loop.executor.execute(this::serve);
+            } catch (RejectedExecutionException e) {
+                close();
+            }
+        }
+    }
+
+    boolean isIdleSince(long nanos) {
+        return !serving && readWaiter == null && writeWaiter == null && idleSince - nanos < 0;
+    }
+
+    /**
+     * Serves requests until no complete request is buffered and the socket has nothing to read.
+     */
+    private void serve() {
+        try {
+            if (in == null) {
+                in = loop.pool.acquire().flip();
+            }
+            // when the first bytes of the current request head arrived, 0 while none did
+            long headStart = 0;
+            while (!closed) {
+                NioExchange exchange;
+                try {
+                    int preface = first && loop.http2 ? Http2Connection.preface(in) : -1;
+                    if (preface > 0) {
+                        new Http2Connection(this).serve(null);
+                        return;
+                    }
+                    // a partial preface waits for more bytes like a partial head
+                    exchange = preface == 0 ? null : Http1Parser.parse(this, in);
+                } catch (HttpParseException e) {
+                    sendError(e.status(), e.getMessage());
+                    close();
+                    return;
+                }
+
+                if (exchange == null) {
+                    if (in.position() == 0 && in.limit() == in.capacity()) {
+                        sendError(431, "Request header fields too large");
+                        close();
+                        return;
+                    }
+                    flush();
+                    int n = fill();
+                    if (n == -1) {
+                        close();
+                        return;
+                    }
+                    if (n == 0) {
+                        if (!in.hasRemaining()) {
+                            idle();
+                            return;
+                        }
+                        if (headStart == 0) {
+                            headStart = System.nanoTime();
+                        }
+                        try {
+                            await(SelectionKey.OP_READ, headStart + loop.readTimeoutNanos);
+                        } catch (SocketTimeoutException e) {
+                            sendError(408, "Request Timeout");
+                            close();
+                            return;
+                        }
+                    }
+                    continue;
+                }
+
+                headStart = 0;
+                if (first && loop.http2 && Http2Connection.isUpgrade(exchange)) {
+                    new Http2Connection(this).serve(exchange);
+                    return;
+                }
+                first = false;
+                exchange.run(loop.handler);
+                if (exchange.isUpgraded()) {
+                    return;
+                }
+                if (!exchange.keepAlive() || loop.isDraining()) {
+                    flush();
+                    close();
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            close();
+        } catch (Throwable e) {
+            close();
+            throw e;
+        } finally {
+            // an upgraded connection's buffers belong to whoever reads it now
+            if (closed && !detached) {
+                release();
+            }
+        }
+    }
+
+    /**
+     * Gives the buffers back to the pool and waits for the next request without a task.
+     */
+    private void idle() {
+        release();
+        idleSince = System.nanoTime();
+        serving = false;
+        arm(SelectionKey.OP_READ);
+    }
+
+    private void release() {
+        if (in != null) {
+            loop.pool.release(in);
+            in = null;
+        }
+        if (out != null) {
+            loop.pool.release(out);
+            out = null;
+        }
+    }
+
+    private void arm(int ops) {
+        try {
+            key.interestOpsOr(ops);
+            loop.wakeup();
+        } catch (CancelledKeyException e) {
+            close();
+        }
+    }
+
+    /**
+     * Parks the serving task until the socket is ready for <code>ops</code>, at most for the
+     * read or write timeout.
+     */
+    void await(int ops) throws IOException {
+        long timeout = ops == SelectionKey.OP_WRITE ? loop.writeTimeoutNanos : loop.readTimeoutNanos;
+        await(ops, System.nanoTime() + timeout);
+    }
+
+    /**
+     * Parks the serving task until the socket is ready for <code>ops</code>.
+     *
+     * @param deadline <code>System.nanoTime()</code> after which it gives up
+     * @throws InterruptedIOException if the thread is interrupted, e.g. by a handler timeout. Like an
+     *                                interruptible channel the connection is closed, a request or response
+     *                                stopped halfway would leave it in an unknown state
+     */
+    void await(int ops, long deadline) throws IOException {
+        boolean write = ops == SelectionKey.OP_WRITE;
+        if (write) {
+            writeReady = false;
+            writeWaiter = Thread.currentThread();
+        } else {
+            readReady = false;
+            readWaiter = Thread.currentThread();
+        }
+        try {
+            arm(ops);
+            while (write ? !writeReady : !readReady) {
+                if (closed) {
+                    throw new ClosedChannelException();
+                }
+                if (Thread.currentThread().isInterrupted()) {
+                    close();
+                    throw new InterruptedIOException("Interrupted while waiting for the client");
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("Timed out waiting for the client");
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+        } finally {
+            if (write) {
+                writeWaiter = null;
+            } else {
+                readWaiter = null;
+            }
+        }
+    }
+
+    /**
+     * Reads whatever the socket has into the input buffer without blocking.
+     *
+     * @return bytes read, <code>-1</code> at end of stream
+     */
+    private int fill() throws IOException {
+        in.compact();
+        try {
+            return channel.read(in);
+        } finally {
+            in.flip();
+        }
+    }
+
+    private boolean fillBlocking(long timeoutNanos) throws IOException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (true) {
+            int n = fill();
+            if (n == -1) {
+                return false;
+            }
+            if (n > 0) {
+                return true;
+            }
+            await(SelectionKey.OP_READ, deadline);
+        }
+    }
+
+    /**
+     * Reads request body bytes, blocking until at least one byte is available.
+     *
+     * @return bytes read or <code>-1</code> if the client closed the connection
+     */
+    int read(byte[] b, int off, int len) throws IOException {
+        if (continuePending) {
+            sendContinue();
+        }
+        if (!in.hasRemaining() && !fillBlocking(loop.readTimeoutNanos)) {
+            return -1;
+        }
+        int n = Math.min(len, in.remaining());
+        in.get(b, off, n);
+        return n;
+    }
+
+    /**
+     * Reads HTTP/2 frame bytes, waiting at most <code>timeoutNanos</code> for the first one.
+     *
+     * @return bytes read or <code>-1</code> if the client closed the connection
+     */
+    int read(byte[] b, int off, int len, long timeoutNanos) throws IOException {
+        if (!in.hasRemaining() && !fillBlocking(timeoutNanos)) {
+            return -1;
+        }
+        int n = Math.min(len, in.remaining());
+        in.get(b, off, n);
+        return n;
+    }
+
+    /**
+     * Reads from a connection that switched protocols. The read buffer goes back to the pool
+     * whenever it is empty, so a connection waiting for its next message holds no buffer.
+     *
+     * @return bytes read or <code>-1</code> if the client closed the connection
+     * @throws SocketTimeoutException if nothing arrived within the idle timeout
+     */
+    int readUpgraded(byte[] b, int off, int len) throws IOException {
+        if (in == null || !in.hasRemaining()) {
+            long deadline = System.nanoTime() + loop.idleTimeoutNanos;
+            while (true) {
+                if (in == null) {
+                    in = loop.pool.acquire().flip();
+                }
+                int n;
+                try {
+                    n = fill();
+                } catch (IOException e) {
+                    release();
+                    throw e;
+                }
+                if (n > 0) {
+                    break;
+                }
+                loop.pool.release(in);
+                in = null;
+                if (n == -1) {
+                    return -1;
+                }
+                await(SelectionKey.OP_READ, deadline);
+            }
+        }
+        int n = Math.min(len, in.remaining());
+        in.get(b, off, n);
+        return n;
+    }
+
+    /**
+     * Sends what is buffered, e.g. the <code>101</code> response, and gives the write buffer
+     * back. From here on the connection is written with {@link #writeFully(ByteBuffer[])}.
+     */
+    void detach() throws IOException {
+        detached = true;
+        flush();
+        if (out != null) {
+            loop.pool.release(out);
+            out = null;
+        }
+    }
+
+    /**
+     * @return the next request byte or <code>-1</code> if the client closed the connection
+     */
+    int read() throws IOException {
+        if (continuePending) {
+            sendContinue();
+        }
+        if (!in.hasRemaining() && !fillBlocking(loop.readTimeoutNanos)) {
+            return -1;
+        }
+        return in.get() & 0xff;
+    }
+
+    /**
+     * Number of request bytes already buffered, a pipelined request can start here.
+     */
+    int buffered() {
+        return in == null ? 0 : in.remaining();
+    }
+
+    void expectContinue(boolean expect) {
+        this.continuePending = expect;
+    }
+
+    boolean continuePending() {
+        return continuePending;
+    }
+
+    private void sendContinue() throws IOException {
+        continuePending = false;
+        write(CONTINUE, 0, CONTINUE.length);
+        flush();
+    }
+
+    /**
+     * @throws ClosedChannelException once the connection is closed, its buffers may be back in the pool
+     */
+    ByteBuffer out() throws ClosedChannelException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        if (out == null) {
+            out = loop.pool.acquire();
+        }
+        return out;
+    }
+
+    void write(byte[] b, int off, int len) throws IOException {
+        ByteBuffer out = out();
+        if (len > out.remaining()) {
+            flush();
+            if (len >= out.capacity()) {
+                writeFully(ByteBuffer.wrap(b, off, len));
+                return;
+            }
+        }
+        out.put(b, off, len);
+    }
+
+    void write(ByteBuffer src) throws IOException {
+        ByteBuffer out = out();
+        if (src.remaining() > out.remaining()) {
+            flush();
+            if (src.remaining() >= out.capacity()) {
+                writeFully(src);
+                return;
+            }
+        }
+        out.put(src);
+    }
+
+    void writeAscii(String s) throws IOException {
+        ByteBuffer out = out();
+        int len = s.length();
+        if (len > out.remaining()) {
+            flush();
+            if (len > out.capacity()) {
+                write(s.getBytes(StandardCharsets.ISO_8859_1), 0, len);
+                return;
+            }
+        }
+        for (int i = 0; i < len; i++) {
+            out.put((byte) s.charAt(i));
+        }
+    }
+
+    /**
+     * Writes every buffered response byte to the socket.
+     */
+    void flush() throws IOException {
+        if (out == null || out.position() == 0) {
+            return;
+        }
+        out.flip();
+        try {
+            writeFully(out);
+        } finally {
+            out.clear();
+        }
+    }
+
+    void writeFully(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            if (channel.write(src) == 0) {
+                await(SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    /**
+     * Writes the buffers with gathering writes, e.g. a frame header and a payload shared by
+     * many connections, without copying them into the write buffer.
+     */
+    void writeFully(ByteBuffer[] srcs) throws IOException {
+        int first = 0;
+        while (first < srcs.length) {
+            if (!srcs[first].hasRemaining()) {
+                first++;
+            } else if (channel.write(srcs, first, srcs.length - first) == 0) {
+                await(SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    /**
+     * Sends a file region with <code>FileChannel.transferTo</code>, which lets the kernel
+     * copy the pages to the socket. The write buffer has to be flushed before.
+     */
+    void transferFrom(FileChannel file, long position, long count) throws IOException {
+        while (count > 0) {
+            long n = file.transferTo(position, count, channel);
+            if (n == 0) {
+                if (position >= file.size()) {
+                    throw new EOFException("File is shorter than the announced length");
+                }
+                await(SelectionKey.OP_WRITE);
+            }
+            position += n;
+            count -= n;
+        }
+    }
+
+    private void sendError(int status, String message) {
+        try {
+            String body = status + " (" + message + ")\n";
+            writeAscii("HTTP/1.1 " + status + " " + NioExchange.reason(status) + "\r\n"
+                    + "Date: " + HttpDate.now() + "\r\n"
+                    + "Content-Length: " + body.length() + "\r\n"
+                    + "Connection: close\r\n\r\n" + body);
+            flush();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Closes the socket. The buffers go back to the pool right away if no task is serving the
+     * connection, otherwise the serving task gives them back when it ends.
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        Thread reader = readWaiter;
+        if (reader != null) {
+            LockSupport.unpark(reader);
+        }
+        Thread writer = writeWaiter;
+        if (writer != null) {
+            LockSupport.unpark(writer);
+        }
+        if (!serving) {
+            release();
+        }
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+}
@@ -0,0 +1,488 @@
+package com.amberj.net.transport;
+
+import com.sun.net.httpserver.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <code>HttpExchange</code> of the nio engine. It follows the same contract as the JDK
+ * implementation: a length of <code>0</code> in {@link #sendResponseHeaders(int, long)}
+ * sends a chunked body and <code>-1</code> sends no body.
+ */
+final class NioExchange extends HttpExchange {
+    private static final int MAX_DRAIN = 64 * 1024;
+
+    private final NioConnection connection;
+    private final String method;
+    private final URI uri;
+    private final String protocol;
+    private final Headers requestHeaders;
+    private final Headers responseHeaders;
+    // the body as framed on the connection, requestBody may be a wrapper set with setStreams
+    private final InputStream rawRequestBody;
+    private InputStream requestBody;
+    private OutputStream responseBody;
+    private OutputStream body;
+    private Map<String, Object> attributes;
+    private int responseCode = -1;
+    private boolean keepAlive;
+    private boolean closed;
+    private boolean upgraded;
+
+    NioExchange(NioConnection connection, String method, URI uri, String protocol, Headers requestHeaders, InputStream requestBody) {
+        this.connection = connection;
+        this.method = method;
+        this.uri = uri;
+        this.protocol = protocol;
+        this.requestHeaders = requestHeaders;
+        this.rawRequestBody = requestBody;
+        this.requestBody = requestBody;
+        this.responseHeaders = new Headers();
+        this.responseBody = new ResponseBody();
+        // a stopping server answers the requests already sent and closes the connection
+        this.keepAlive = keepAlive(protocol, requestHeaders.getFirst("Connection")) && !connection.loop.isDraining();
+    }
+
+    private static boolean keepAlive(String protocol, String connection) {
+        if (connection != null) {
+            for (String token : connection.split(",")) {
+                token = token.trim();
+                if (token.equalsIgnoreCase("close")) {
+                    return false;
+                }
+                if (token.equalsIgnoreCase("keep-alive")) {
+                    return true;
+                }
+            }
+        }
+        return protocol.equals("HTTP/1.1");
+    }
+
+    /**
+     * Runs the handler and completes the exchange if the handler did not.
+     */
+    void run(HttpHandler handler) {
+        connection.loop.exchanges.incrementAndGet();
+        try {
+            handler.handle(this);
+        } catch (Throwable e) {
+            keepAlive = false;
+            if (responseCode == -1) {
+                try {
+                    // the handler's headers may be what failed
+                    responseHeaders.clear();
+                    sendResponseHeaders(500, -1);
+                } catch (IOException ignored) {
+                }
+            }
+        } finally {
+            close();
+            connection.loop.exchanges.decrementAndGet();
+        }
+    }
+
+    /**
+     * Whether the handler took the connection over with {@link #upgrade()}, the serving
+     * task must leave it alone from then on.
+     */
+    boolean isUpgraded() {
+        return upgraded;
+    }
+
+    /**
+     * Sends <code>101 Switching Protocols</code> and hands the connection over. Closing the
+     * exchange afterwards does nothing.
+     */
+    UpgradedConnection upgrade() throws IOException {
+        if (responseCode != -1) {
+            throw new IOException("headers already sent");
+        }
+        if (!isFinished(rawRequestBody) || connection.continuePending()) {
+            throw new IOException("Can not upgrade a request with a body");
+        }
+        sendResponseHeaders(101, -1);
+        connection.detach();
+        upgraded = true;
+        closed = true;
+        return new UpgradedConnection() {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return connection.readUpgraded(b, off, len);
+            }
+
+            @Override
+            public void write(ByteBuffer... srcs) throws IOException {
+                connection.writeFully(srcs);
+            }
+
+            @Override
+            public void close() {
+                connection.close();
+            }
+
+            @Override
+            public boolean isOpen() {
+                return !connection.isClosed();
+            }
+
+            @Override
+            public InetSocketAddress remoteAddress() {
+                return connection.remoteAddress();
+            }
+        };
+    }
+
+    /**
+     * Closes the connection once this exchange is complete.
+     */
+    void closeAfterResponse() {
+        keepAlive = false;
+    }
+
+    boolean keepAlive() {
+        return keepAlive && !connection.isClosed();
+    }
+
+    @Override
+    public Headers getRequestHeaders() {
+        return requestHeaders;
+    }
+
+    @Override
+    public Headers getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return uri;
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return method;
+    }
+
+    @Override
+    public HttpContext getHttpContext() {
+        return null;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (responseCode == -1) {
+                keepAlive = false;
+                responseHeaders.clear();
+                sendResponseHeaders(500, -1);
+            }
+            body.close();
+            if (keepAlive) {
+                drainRequestBody();
+            }
+        } catch (IOException e) {
+            keepAlive = false;
+        }
+    }
+
+    /**
+     * Skips what the handler did not read from the request body so the next pipelined
+     * request starts at the right byte. Large leftovers close the connection instead.
+     */
+    private void drainRequestBody() throws IOException {
+        if (connection.continuePending()) {
+            // the client is still waiting for 100-continue and may not send the body at all
+            keepAlive = false;
+            return;
+        }
+        InputStream in = rawRequestBody;
+        long drained = 0;
+        byte[] skip = null;
+        while (!isFinished(in)) {
+            if (skip == null) {
+                skip = new byte[4096];
+            }
+            int n = in.read(skip, 0, skip.length);
+            if (n == -1) {
+                break;
+            }
+            drained += n;
+            if (drained > MAX_DRAIN) {
+                keepAlive = false;
+                return;
+            }
+        }
+    }
+
+    private static boolean isFinished(InputStream in) {
+        if (in instanceof FixedLengthInputStream fixed) {
+            return fixed.isFinished();
+        }
+        if (in instanceof ChunkedInputStream chunked) {
+            return chunked.isFinished();
+        }
+        return true;
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+        return requestBody;
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+        return responseBody;
+    }
+
+    @Override
+    public void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+        if (responseCode != -1) {
+            throw new IOException("headers already sent");
+        }
+        validate(responseHeaders);
+        responseCode = rCode;
+        // a final response before the body was requested means the body is not wanted
+        connection.expectContinue(false);
+
+        String connectionHeader = responseHeaders.getFirst("Connection");
+        if (connectionHeader != null && connectionHeader.equalsIgnoreCase("close")) {
+            keepAlive = false;
+        }
+        boolean closeDelimited = responseLength == 0 && protocol.equals("HTTP/1.0");
+        if (closeDelimited) {
+            // HTTP/1.0 has no chunked encoding, the end of the connection ends the body
+            keepAlive = false;
+        }
+        if (!keepAlive) {
+            responseHeaders.set("Connection", "close");
+        } else if (protocol.equals("HTTP/1.0")) {
+            responseHeaders.set("Connection", "keep-alive");
+        }
+
+        boolean noContent = rCode == 204 || rCode == 304 || rCode < 200;
+        if (noContent) {
+            responseHeaders.remove("Content-Length");
+            body = new FixedLengthOutputStream(connection, 0);
+        } else if (method.equals("HEAD")) {
+            // the length a GET would have, as passed or set by the handler, left out when unknown
+            if (responseLength > 0) {
+                responseHeaders.set("Content-Length", Long.toString(responseLength));
+            }
+            body = new FixedLengthOutputStream(connection, 0);
+        } else if (responseLength > 0) {
+            responseHeaders.set("Content-Length", Long.toString(responseLength));
+            body = new FixedLengthOutputStream(connection, responseLength);
+        } else if (closeDelimited) {
+            responseHeaders.remove("Content-Length");
+            responseHeaders.remove("Transfer-Encoding");
+            body = new CloseDelimitedOutputStream(connection);
+        } else if (responseLength == 0) {
+            responseHeaders.remove("Content-Length");
+            responseHeaders.set("Transfer-Encoding", "chunked");
+            body = new ChunkedOutputStream(connection);
+        } else {
+            responseHeaders.set("Content-Length", "0");
+            body = new FixedLengthOutputStream(connection, 0);
+        }
+
+        connection.writeAscii(protocol);
+        connection.writeAscii(" ");
+        connection.writeAscii(Integer.toString(rCode));
+        connection.writeAscii(" ");
+        connection.writeAscii(reason(rCode));
+        connection.writeAscii("\r\nDate: ");
+        connection.writeAscii(HttpDate.now());
+        connection.writeAscii("\r\n");
+        for (Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+            for (String value : header.getValue()) {
+                connection.writeAscii(header.getKey());
+                connection.writeAscii(": ");
+                connection.writeAscii(value);
+                connection.writeAscii("\r\n");
+            }
+        }
+        connection.writeAscii("\r\n");
+    }
+
+    /**
+     * Header names must be tokens and values must not hold control characters other than
+     * tab, so nothing a handler sets can end the head early or start a new header.
+     */
+    private static void validate(Headers headers) {
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            String name = header.getKey();
+            if (name.isEmpty()) {
+                throw new IllegalArgumentException("Empty header name");
+            }
+            for (int i = 0; i < name.length(); i++) {
+                if (!Http1Parser.isTchar(name.charAt(i))) {
+                    throw new IllegalArgumentException("Illegal character in header name: " + name);
+                }
+            }
+            for (String value : header.getValue()) {
+                if (value == null) {
+                    throw new IllegalArgumentException("Null value of header " + name);
+                }
+                for (int i = 0; i < value.length(); i++) {
+                    char c = value.charAt(i);
+                    if (c < ' ' && c != '\t' || c == 0x7f) {
+                        throw new IllegalArgumentException("Illegal character in value of header " + name);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return connection.remoteAddress();
+    }
+
+    @Override
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return connection.localAddress();
+    }
+
+    @Override
+    public String getProtocol() {
+        return protocol;
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return attributes == null ? null : attributes.get(name);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        if (attributes == null) {
+            attributes = new HashMap<>();
+        }
+        if (value == null) {
+            attributes.remove(name);
+        } else {
+            attributes.put(name, value);
+        }
+    }
+
+    @Override
+    public void setStreams(InputStream i, OutputStream o) {
+        if (i != null) {
+            requestBody = i;
+        }
+        if (o != null) {
+            responseBody = o;
+        }
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+        return null;
+    }
+
+    static String reason(int status) {
+        return switch (status) {
+            case 100 -> "Continue";
+            case 101 -> "Switching Protocols";
+            case 200 -> "OK";
+            case 201 -> "Created";
+            case 202 -> "Accepted";
+            case 204 -> "No Content";
+            case 206 -> "Partial Content";
+            case 301 -> "Moved Permanently";
+            case 302 -> "Found";
+            case 303 -> "See Other";
+            case 304 -> "Not Modified";
+            case 307 -> "Temporary Redirect";
+            case 308 -> "Permanent Redirect";
+            case 400 -> "Bad Request";
+            case 401 -> "Unauthorized";
+            case 403 -> "Forbidden";
+            case 404 -> "Not Found";
+            case 405 -> "Method Not Allowed";
+            case 408 -> "Request Timeout";
+            case 409 -> "Conflict";
+            case 413 -> "Content Too Large";
+            case 415 -> "Unsupported Media Type";
+            case 416 -> "Range Not Satisfiable";
+            case 426 -> "Upgrade Required";
+            case 429 -> "Too Many Requests";
+            case 431 -> "Request Header Fields Too Large";
+            case 500 -> "Internal Server Error";
+            case 501 -> "Not Implemented";
+            case 502 -> "Bad Gateway";
+            case 503 -> "Service Unavailable";
+            case 504 -> "Gateway Timeout";
+            case 505 -> "HTTP Version Not Supported";
+            default -> "";
+        };
+    }
+
+    /**
+     * Stream handed out by {@link #getResponseBody()}, usable once the headers are sent.
+     */
+    private final class ResponseBody extends OutputStream implements ZeroCopyOutput {
+        private OutputStream body() throws IOException {
+            if (body == null) {
+                throw new IOException("response headers not sent yet");
+            }
+            return body;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            body().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            body().write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            body().flush();
+        }
+
+        @Override
+        public void transferFrom(FileChannel file, long position, long count) throws IOException {
+            if (body() instanceof ZeroCopyOutput out) {
+                out.transferFrom(file, position, count);
+                return;
+            }
+            var target = Channels.newChannel(body());
+            while (count > 0) {
+                long n = file.transferTo(position, count, target);
+                if (n <= 0) {
+                    throw new IOException("File is shorter than the announced length");
+                }
+                position += n;
+                count -= n;
+            }
+        }
+
+        @Override
+        public void close() {
+            NioExchange.this.close();
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.amberj.net.transport;
+
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP/1.1 engine built on <code>java.nio</code> selectors.
+ * <p>
+ * A selector thread only accepts connections and watches for readiness. Requests are
+ * parsed straight from pooled direct buffers and run on the server's executor, one
+ * task per connection for as long as it has buffered or pipelined requests. Once a
+ * keep-alive connection goes idle its task ends and its buffers go back to the pool.
+ * <p>
+ * With {@link #acceptors(int)} several selector threads accept and watch connections,
+ * each for the connections it accepted, so accepting scales with the cores.
+ * <p>
+ * With {@link #http2(boolean)} it also speaks HTTP/2 over cleartext connections.
+ */
+public final class NioTransport implements Transport {
+    private int bufferSize = 16 * 1024;
+    private Duration idleTimeout = Duration.ofSeconds(30);
+    private Duration readTimeout;
+    private Duration writeTimeout;
+    private int acceptors = 1;
+    private boolean reusePort = true;
+    private boolean http2;
+    private final List<ServerSocketChannel> channels = new ArrayList<>();
+    private final List<SelectorLoop> loops = new ArrayList<>();
+
+    NioTransport() {}
+
+    /**
+     * Size of the per-connection read and write buffers. A request line plus its
+     * headers must fit in one buffer.
+     *
+     * @param bytes between 1024 and 65535
+     */
+    public NioTransport bufferSize(int bytes) {
+        if (bytes < 1024 || bytes > 65535) {
+            throw new IllegalArgumentException("bufferSize must be between 1024 and 65535");
+        }
+        this.bufferSize = bytes;
+        return this;
+    }
+
+    /**
+     * How long a keep-alive connection may stay idle before it is closed, 30 seconds by default.
+     */
+    public NioTransport idleTimeout(Duration idleTimeout) {
+        this.idleTimeout = idleTimeout;
+        return this;
+    }
+
+    /**
+     * How long a slow client may take to send the request line and headers, and how long a
+     * read of the request body may wait for the next bytes. A request whose headers take
+     * longer is answered with <code>408</code>, a stalled body fails the handler's read.
+     * Defaults to the idle timeout.
+     */
+    public NioTransport readTimeout(Duration readTimeout) {
+        this.readTimeout = readTimeout;
+        return this;
+    }
+
+    /**
+     * How long a write of the response may wait for a client that does not read, after
+     * which the connection is closed. Defaults to the idle timeout.
+     */
+    public NioTransport writeTimeout(Duration writeTimeout) {
+        this.writeTimeout = writeTimeout;
+        return this;
+    }
+
+    /**
+     * Number of selector threads, 1 by default. Where the platform supports
+     * <code>SO_REUSEPORT</code> (Linux, BSD) every thread listens on its own socket bound to
+     * the same port and the kernel spreads new connections over them, elsewhere the threads
+     * take turns accepting from one socket. A selector thread per 4 to 8 cores is plenty,
+     * the requests themselves run on the executor either way.
+     *
+     * @param acceptors number of selector threads
+     */
+    public NioTransport acceptors(int acceptors) {
+        if (acceptors < 1) {
+            throw new IllegalArgumentException("acceptors must be at least 1");
+        }
+        this.acceptors = acceptors;
+        return this;
+    }
+
+    /**
+     * Whether several {@link #acceptors(int)} listen with <code>SO_REUSEPORT</code> where it is
+     * supported, <code>true</code> by default. Any process of the same user can then bind the
+     * port as well, turn it off to share one socket instead.
+     */
+    public NioTransport reusePort(boolean reusePort) {
+        this.reusePort = reusePort;
+        return this;
+    }
+
+    /**
+     * Whether clients may speak HTTP/2 without TLS (h2c), off by default. A client either
+     * starts the connection with the HTTP/2 preface ("prior knowledge") or asks for
+     * <code>Upgrade: h2c</code> on its first request, which must not have a body. The
+     * streams of a connection are multiplexed, each request runs on the executor like an
+     * HTTP/1.1 one and handlers see the same exchange API, with protocol
+     * <code>HTTP/2.0</code>. Responses use flow control and HPACK, the peer gets no server
+     * push.
+     * <p>
+     * Off by default because clients that prefer HTTP/2, such as the JDK's
+     * <code>HttpClient</code>, then upgrade their first request on every connection.
+     */
+    public NioTransport http2(boolean http2) {
+        this.http2 = http2;
+        return this;
+    }
+
+    @Override
+    public void start(InetSocketAddress address, int backlog, HttpHandler handler, Executor executor) throws IOException {
+        var pool = new BufferPool(bufferSize, 4096);
+        long idle = idleTimeout.toNanos();
+        long read = (readTimeout != null ? readTimeout : idleTimeout).toNanos();
+        long write = (writeTimeout != null ? writeTimeout : idleTimeout).toNanos();
+        boolean ownSockets = acceptors > 1 && reusePort && supportsReusePort();
+        try {
+            ServerSocketChannel shared = null;
+            for (int i = 0; i < acceptors; i++) {
+                ServerSocketChannel channel;
+                if (ownSockets || shared == null) {
+                    channel = open(address, backlog, ownSockets);
+                    // with port 0 the others have to bind the port the first one got
+                    address = (InetSocketAddress) channel.getLocalAddress();
+                    channels.add(channel);
+                    shared = channel;
+                } else {
+                    channel = shared;
+                }
+                var loop = new SelectorLoop(handler, executor, pool, idle, read, write, http2);
+                loops.add(loop);
+                loop.listen(channel);
+            }
+        } catch (IOException e) {
+            stop(0);
+            throw e;
+        }
+        for (int i = 0; i < loops.size(); i++) {
+            loops.get(i).start(loops.size() == 1 ? "amberj-nio-selector" : "amberj-nio-selector-" + i);
+        }
+    }
+
+    private static boolean supportsReusePort() throws IOException {
+        try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        }
+    }
+
+    private static ServerSocketChannel open(InetSocketAddress address, int backlog, boolean reusePort) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            if (reusePort) {
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            channel.bind(address, backlog);
+            channel.configureBlocking(false);
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Stops accepting connections, waits up to <code>delay</code> seconds for the requests
+     * being handled to be answered and closes every connection.
+     */
+    @Override
+    public void stop(int delay) {
+        for (ServerSocketChannel channel : channels) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+        channels.clear();
+        for (SelectorLoop loop : loops) {
+            loop.drain();
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(Math.max(delay, 0));
+        while (busy() && deadline - System.nanoTime() > 0) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        for (SelectorLoop loop : loops) {
+            loop.close();
+        }
+        loops.clear();
+    }
+
+    private boolean busy() {
+        for (SelectorLoop loop : loops) {
+            if (loop.exchanges.get() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
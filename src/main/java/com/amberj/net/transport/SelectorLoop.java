@@ -0,0 +1,161 @@
+package com.amberj.net.transport;
+
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Selector thread of the nio engine. It never reads or writes request data itself,
+ * it accepts connections and wakes up the connection that became ready.
+ */
+final class SelectorLoop implements Runnable {
+    private static final long SWEEP_INTERVAL = 1_000_000_000L;
+
+    final HttpHandler handler;
+    final Executor executor;
+    final BufferPool pool;
+    final long idleTimeoutNanos;
+    final long readTimeoutNanos;
+    final long writeTimeoutNanos;
+    final boolean http2;
+    // requests whose handler is running, HTTP/2 streams included
+    final AtomicInteger exchanges = new AtomicInteger();
+    private final Selector selector;
+    private volatile boolean running;
+    private volatile boolean draining;
+    private Thread thread;
+
+    SelectorLoop(HttpHandler handler, Executor executor, BufferPool pool,
+                 long idleTimeoutNanos, long readTimeoutNanos, long writeTimeoutNanos, boolean http2) throws IOException {
+        this.handler = handler;
+        this.executor = executor;
+        this.pool = pool;
+        this.idleTimeoutNanos = idleTimeoutNanos;
+        this.readTimeoutNanos = readTimeoutNanos;
+        this.writeTimeoutNanos = writeTimeoutNanos;
+        this.http2 = http2;
+        this.selector = Selector.open();
+    }
+
+    void listen(ServerSocketChannel channel) throws ClosedChannelException {
+        channel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    void start(String name) {
+        running = true;
+        thread = Thread.ofPlatform().name(name).daemon(true).start(this);
+    }
+
+    void wakeup() {
+        selector.wakeup();
+    }
+
+    /**
+     * Starts a graceful stop: idle connections are closed right away and connections serving
+     * a request are closed once it is answered.
+     */
+    void drain() {
+        draining = true;
+        selector.wakeup();
+    }
+
+    boolean isDraining() {
+        return draining;
+    }
+
+    @Override
+    public void run() {
+        long lastSweep = System.nanoTime();
+        while (running) {
+            try {
+                selector.select(1000);
+            } catch (IOException e) {
+                // the connections are still registered, losing the thread would leave them hanging
+                e.printStackTrace();
+                LockSupport.parkNanos(100_000_000L);
+                continue;
+            } catch (ClosedSelectorException e) {
+                return;
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept((ServerSocketChannel) key.channel());
+                } else {
+                    ((NioConnection) key.attachment()).onReady();
+                }
+            }
+
+            long now = System.nanoTime();
+            if (draining) {
+                sweep(now);
+            } else if (now - lastSweep > SWEEP_INTERVAL) {
+                lastSweep = now;
+                sweep(now - idleTimeoutNanos);
+            }
+        }
+    }
+
+    private void accept(ServerSocketChannel server) {
+        SocketChannel channel;
+        try {
+            while ((channel = server.accept()) != null) {
+                try {
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    key.attach(new NioConnection(this, channel, key));
+                } catch (IOException e) {
+                    channel.close();
+                }
+            }
+        } catch (IOException ignored) {
+            // the listener was closed or ran out of descriptors, try again on the next select
+        }
+    }
+
+    /**
+     * Closes keep-alive connections that are idle since before <code>idleSince</code>.
+     */
+    private void sweep(long idleSince) {
+        try {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof NioConnection connection && connection.isIdleSince(idleSince)) {
+                    connection.close();
+                }
+            }
+        } catch (ClosedSelectorException ignored) {
+        }
+    }
+
+    void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            if (thread != null) {
+                thread.join(1000);
+            }
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof NioConnection connection) {
+                    connection.close();
+                }
+            }
+            selector.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | ClosedSelectorException ignored) {
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.amberj.net.transport;
+
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executor;
+
+/**
+ * The engine that owns the listening socket and turns bytes on the wire into
+ * <code>HttpExchange</code>s for the server's root handler.
+ * <p>
+ * Every engine hands the same <code>com.sun.net.httpserver</code> exchange
+ * API to the handler, so routes, middleware and handlers work unchanged
+ * whichever engine is selected with <code>Server.transport(...)</code>.
+ */
+public interface Transport {
+
+    /**
+     * Binds the socket and starts accepting connections.
+     *
+     * @param address address to bind
+     * @param backlog the socket backlog
+     * @param handler root handler every request is dispatched to
+     * @param executor executor the handler is invoked on
+     * @throws IOException if the address can not be bound
+     */
+    void start(InetSocketAddress address, int backlog, HttpHandler handler, Executor executor) throws IOException;
+
+    /**
+     * Stops accepting connections and closes the socket.
+     *
+     * @param delay seconds to wait for in-flight exchanges to finish
+     */
+    void stop(int delay);
+
+    /**
+     * The <code>com.sun.net.httpserver.HttpServer</code> engine that ships with the JDK.
+     */
+    static JdkTransport jdk() {
+        return new JdkTransport();
+    }
+
+    /**
+     * The built-in <code>java.nio</code> selector engine, which parses HTTP/1.1 itself,
+     * supports keep-alive and pipelining and runs every request on the given executor.
+     */
+    static NioTransport nio() {
+        return new NioTransport();
+    }
+}
@@ -0,0 +1,48 @@
+package com.amberj.net.transport;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * The connection of an exchange that switched protocols, e.g. to WebSocket. The engine is
+ * done with it after <code>101 Switching Protocols</code>, whoever upgraded it reads, writes
+ * and closes it from then on.
+ */
+public interface UpgradedConnection {
+
+    /**
+     * Sends <code>101 Switching Protocols</code> with the response headers of the exchange
+     * and takes its connection over. The request must not have a body.
+     *
+     * @return the connection, <code>null</code> if the engine of the exchange can not hand
+     *         its connections over (the JDK engine and HTTP/2 streams)
+     */
+    static UpgradedConnection upgrade(HttpExchange exchange) throws IOException {
+        return exchange instanceof NioExchange nio ? nio.upgrade() : null;
+    }
+
+    /**
+     * Reads at least one byte, waiting at most the idle timeout of the engine. While nothing
+     * has arrived the connection holds no buffer.
+     *
+     * @return bytes read, <code>-1</code> if the client closed the connection
+     * @throws java.net.SocketTimeoutException if nothing arrived within the idle timeout,
+     *                                         the connection stays usable
+     */
+    int read(byte[] b, int off, int len) throws IOException;
+
+    /**
+     * Writes everything that remains in the buffers, waiting at most the write timeout of
+     * the engine for a client that does not read. One thread writes at a time.
+     */
+    void write(ByteBuffer... srcs) throws IOException;
+
+    void close();
+
+    boolean isOpen();
+
+    InetSocketAddress remoteAddress();
+}
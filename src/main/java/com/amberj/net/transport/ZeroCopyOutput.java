@@ -0,0 +1,16 @@
+package com.amberj.net.transport;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Implemented by response body streams that can send a file region straight from the
+ * page cache to the socket (<code>sendfile</code>) instead of copying it through the heap.
+ */
+public interface ZeroCopyOutput {
+
+    /**
+     * Writes <code>count</code> bytes of <code>file</code> starting at <code>position</code>.
+     */
+    void transferFrom(FileChannel file, long position, long count) throws IOException;
+}
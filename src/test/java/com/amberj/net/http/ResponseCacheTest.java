@@ -0,0 +1,265 @@
+package com.amberj.net.http;
+
+import com.amberj.net.httpserver.Server;
+import com.amberj.net.transport.Transport;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResponseCacheTest {
+    private final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    private final AtomicInteger calls = new AtomicInteger();
+    private volatile BiConsumer<HttpRequest, HttpResponse> handler;
+    private Server<Object> server;
+    private int port;
+
+    /**
+     * Serves <code>/cached/{name}</code> through the cache, the handler answers with its
+     * name and the number of the call.
+     */
+    private void start(ResponseCache cache) throws IOException {
+        try (var probe = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            port = probe.getLocalPort();
+        }
+        handler = (request, response) -> response.write(request.pathParams().get("name") + " " + calls.get());
+        server = new Server<>(port);
+        server.transport(Transport.nio());
+        server.accessLog(null);
+        server.use("/cached", cache);
+        server.get("/cached/{name}", (request, response) -> {
+            calls.incrementAndGet();
+            handler.accept(request, response);
+        });
+        server.run(() -> {});
+    }
+
+    @AfterEach
+    void stop() {
+        if (server != null) {
+            server.stop(0);
+        }
+        client.close();
+    }
+
+    private java.net.http.HttpRequest.Builder request(String path) {
+        return java.net.http.HttpRequest.newBuilder(URI.create("http://localhost:" + port + path))
+                .timeout(Duration.ofSeconds(10));
+    }
+
+    private java.net.http.HttpResponse<String> get(String path) throws IOException, InterruptedException {
+        return client.send(request(path).build(), BodyHandlers.ofString());
+    }
+
+    private CompletableFuture<java.net.http.HttpResponse<String>> getAsync(String path) {
+        return client.sendAsync(request(path).build(), BodyHandlers.ofString());
+    }
+
+    private void awaitCalls(int n) throws InterruptedException {
+        for (int i = 0; i < 500 && calls.get() < n; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(n, calls.get());
+    }
+
+    @Test
+    void answersRepeatedRequestsFromTheCache() throws Exception {
+        start(new ResponseCache().ttl(Duration.ofMinutes(1)));
+
+        assertEquals("a 1", get("/cached/a").body());
+        var hit = get("/cached/a");
+        assertEquals("a 1", hit.body());
+        assertEquals("0", hit.headers().firstValue("Age").orElseThrow());
+        assertEquals("b 2", get("/cached/b").body(), "other paths have their own entry");
+        assertEquals("b 3", get("/cached/b?page=2").body(), "and so do other queries");
+        assertEquals(3, calls.get());
+    }
+
+    @Test
+    void servesHeadFromTheCache() throws Exception {
+        start(new ResponseCache().ttl(Duration.ofMinutes(1)));
+
+        get("/cached/a");
+        var head = client.send(request("/cached/a").method("HEAD", java.net.http.HttpRequest.BodyPublishers.noBody()).build(),
+                BodyHandlers.ofString());
+        assertEquals(200, head.statusCode());
+        assertEquals("", head.body());
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    void runsTheHandlerAgainAfterTheTtl() throws Exception {
+        start(new ResponseCache().ttl(Duration.ofMillis(100)));
+
+        assertEquals("a 1", get("/cached/a").body());
+        assertEquals("a 1", get("/cached/a").body());
+        Thread.sleep(150);
+        assertEquals("a 2", get("/cached/a").body());
+        assertEquals("a 2", get("/cached/a").body());
+    }
+
+    @Test
+    void servesStaleResponsesWhileOneRequestRefreshes() throws Exception {
+        start(new ResponseCache().ttl(Duration.ofMillis(100)).staleWhileRevalidate(Duration.ofMinutes(1)));
+        assertEquals("a 1", get("/cached/a").body());
+        Thread.sleep(150);
+
+        var release = new CountDownLatch(1);
+        handler = (request, response) -> {
+            await(release);
+            response.write("a fresh");
+        };
+        var refreshing = getAsync("/cached/a");
+        awaitCalls(2);
+        for (int i = 0; i < 5; i++) {
+            assertEquals("a 1", get("/cached/a").body(), "stale while the refresh runs");
+        }
+        assertEquals(2, calls.get(), "only one request refreshes");
+
+        release.countDown();
+        assertEquals("a fresh", refreshing.get(10, TimeUnit.SECONDS).body());
+        assertEquals("a fresh", get("/cached/a").body());
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    void coalescesConcurrentMisses() throws Exception {
+        start(new ResponseCache().ttl(Duration.ofMinutes(1)));
+        var release = new CountDownLatch(1);
+        handler = (request, response) -> {
+            await(release);
+            response.write("shared");
+        };
+
+        var responses = new ArrayList<CompletableFuture<java.net.http.HttpResponse<String>>>();
+        for (int i = 0; i < 5; i++) {
+            responses.add(getAsync("/cached/a"));
+        }
+        awaitCalls(1);
+        Thread.sleep(200);
+        release.countDown();
+
+        for (var response : responses) {
+            assertEquals("shared", response.get(10, TimeUnit.SECONDS).body());
+        }
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    void runsTheHandlerForWaitingRequestsWhenTheResponseIsNotCacheable() throws Exception {
+        start(new ResponseCache().ttl(Duration.ofMinutes(1)));
+        var release = new CountDownLatch(1);
+        handler = (request, response) -> {
+            await(release);
+            response.header("Set-Cookie", "session=1");
+            response.write("private");
+        };
+
+        var responses = new ArrayList<CompletableFuture<java.net.http.HttpResponse<String>>>();
+        for (int i = 0; i < 3; i++) {
+            responses.add(getAsync("/cached/a"));
+        }
+        awaitCalls(1);
+        Thread.sleep(200);
+        release.countDown();
+
+        for (var response : responses) {
+            var received = response.get(10, TimeUnit.SECONDS);
+            assertEquals(200, received.statusCode());
+            assertTrue(received.headers().firstValue("Set-Cookie").isPresent());
+        }
+        assertEquals(3, calls.get(), "every request ran the handler");
+    }
+
+    @Test
+    void keepsOnlySharedResponses() throws Exception {
+        start(new ResponseCache().ttl(Duration.ofMinutes(1)).vary("Accept-Language"));
+        List<BiConsumer<HttpRequest, HttpResponse>> uncacheable = List.of(
+                (request, response) -> response.header("Set-Cookie", "a=b").write("cookie"),
+                (request, response) -> response.header("Cache-Control", "no-store").write("no-store"),
+                (request, response) -> response.header("Cache-Control", "private, max-age=60").write("private"),
+                (request, response) -> response.header("Vary", "User-Agent").write("vary"),
+                (request, response) -> response.header("Vary", "*").write("vary all"),
+                (request, response) -> response.status(500).write("error"));
+
+        for (var answer : uncacheable) {
+            handler = answer;
+            int before = calls.get();
+            get("/cached/a");
+            get("/cached/a");
+            assertEquals(before + 2, calls.get(), "not kept");
+        }
+
+        handler = (request, response) -> response.header("Vary", "Accept-Language").write("lang " + calls.get());
+        int before = calls.get();
+        get("/cached/b");
+        get("/cached/b");
+        assertEquals(before + 1, calls.get(), "varies by a header the key includes");
+    }
+
+    @Test
+    void keysByTheVaryHeadersAndBypassesAuthorizedRequests() throws Exception {
+        start(new ResponseCache().ttl(Duration.ofMinutes(1)).vary("Accept-Language"));
+
+        String en = client.send(request("/cached/a").header("Accept-Language", "en").build(), BodyHandlers.ofString()).body();
+        String de = client.send(request("/cached/a").header("Accept-Language", "de").build(), BodyHandlers.ofString()).body();
+        assertNotEquals(en, de);
+        assertEquals(en, client.send(request("/cached/a").header("Accept-Language", "en").build(), BodyHandlers.ofString()).body());
+
+        int before = calls.get();
+        client.send(request("/cached/a").header("Accept-Language", "en").header("Authorization", "Bearer x").build(),
+                BodyHandlers.ofString());
+        assertEquals(before + 1, calls.get());
+    }
+
+    @Test
+    void evictsTheLeastRecentlyUsedResponsesOverTheBudget() throws Exception {
+        // room for two responses, each weighs its body and 512 bytes of overhead
+        start(new ResponseCache().ttl(Duration.ofMinutes(1)).maxBytes(1100, 1000));
+        handler = (request, response) -> response.write("x".repeat(10));
+
+        get("/cached/a");
+        get("/cached/b");
+        get("/cached/a");
+        get("/cached/c");
+        assertEquals(3, calls.get());
+
+        get("/cached/a");
+        assertEquals(3, calls.get(), "a was used after b");
+        get("/cached/b");
+        assertEquals(4, calls.get(), "b was evicted");
+    }
+
+    @Test
+    void doesNotKeepResponsesOverThePerResponseLimit() throws Exception {
+        start(new ResponseCache().ttl(Duration.ofMinutes(1)).maxBytes(100_000, 100));
+        handler = (request, response) -> response.write("x".repeat(101));
+
+        assertEquals(101, get("/cached/a").body().length());
+        assertEquals(101, get("/cached/a").body().length());
+        assertEquals(2, calls.get());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package com.amberj.net.httpserver;
+
+import com.amberj.net.transport.Transport;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConcurrencyLimitTest {
+    private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final AtomicLong clock = new AtomicLong();
+    private Server<Object> server;
+    private HttpClient client;
+
+    @AfterEach
+    void stop() {
+        if (server != null) {
+            server.stop(0);
+            client.close();
+        }
+    }
+
+    /**
+     * Runs one window of the adaptive limit in which every slot is taken and each request took
+     * the given latency.
+     */
+    private void window(ConcurrencyLimit limit, long latencyNanos) {
+        int slots = limit.limit();
+        for (int i = 0; i < slots; i++) {
+            assertTrue(limit.tryAcquire());
+        }
+        for (int i = 0; i < slots - 1; i++) {
+            limit.release(latencyNanos);
+        }
+        clock.addAndGet(100 * MILLIS);
+        limit.release(latencyNanos);
+        assertEquals(0, limit.inFlight());
+    }
+
+    @Test
+    void rejectsRequestsOverAFixedLimit() {
+        var limit = ConcurrencyLimit.fixed(2);
+        assertTrue(limit.tryAcquire());
+        assertTrue(limit.tryAcquire());
+        assertFalse(limit.tryAcquire());
+        assertEquals(2, limit.inFlight());
+        assertEquals(1, limit.rejected());
+
+        limit.release(Long.MAX_VALUE);
+        assertTrue(limit.tryAcquire());
+        assertFalse(limit.tryAcquire());
+        assertEquals(2, limit.rejected());
+        assertEquals(2, limit.limit(), "a fixed limit ignores latency");
+    }
+
+    @Test
+    void validatesTheBounds() {
+        assertThrows(IllegalArgumentException.class, () -> ConcurrencyLimit.fixed(0));
+        assertThrows(IllegalArgumentException.class, () -> ConcurrencyLimit.adaptive(5, 10, 100));
+        assertThrows(IllegalArgumentException.class, () -> ConcurrencyLimit.adaptive(50, 10, 20));
+    }
+
+    @Test
+    void adaptsTheLimitToTheLatency() {
+        var limit = ConcurrencyLimit.adaptive(20, 10, 60, clock::get);
+
+        // latency stays at the baseline, the limit grows up to the maximum
+        int previous = limit.limit();
+        for (int i = 0; i < 5; i++) {
+            window(limit, 10 * MILLIS);
+            assertTrue(limit.limit() >= previous, "grows while latency is flat");
+            previous = limit.limit();
+        }
+        assertTrue(previous > 20);
+        for (int i = 0; i < 50; i++) {
+            window(limit, 10 * MILLIS);
+        }
+        assertEquals(60, limit.limit());
+
+        // requests queue up and latency rises, the limit shrinks down to the minimum
+        previous = limit.limit();
+        for (int i = 0; i < 5; i++) {
+            window(limit, 40 * MILLIS);
+            assertTrue(limit.limit() <= previous, "shrinks while latency is high");
+            assertTrue(limit.limit() >= previous / 2, "at most halves per window");
+            previous = limit.limit();
+        }
+        assertTrue(previous < 60);
+        for (int i = 0; i < 50; i++) {
+            window(limit, 40 * MILLIS);
+        }
+        assertEquals(10, limit.limit());
+
+        // the load goes away, the limit grows back
+        for (int i = 0; i < 5; i++) {
+            window(limit, 10 * MILLIS);
+        }
+        assertTrue(limit.limit() > 10);
+    }
+
+    @Test
+    void keepsTheLimitOfAnIdleServer() {
+        var limit = ConcurrencyLimit.adaptive(20, 10, 60, clock::get);
+        window(limit, 10 * MILLIS);
+        int before = limit.limit();
+
+        // one request at a time, far slower than the baseline
+        for (int i = 0; i < 10; i++) {
+            assertTrue(limit.tryAcquire());
+            if (i == 9) {
+                clock.addAndGet(100 * MILLIS);
+            }
+            limit.release(100 * MILLIS);
+        }
+        assertEquals(before, limit.limit());
+    }
+
+    @Test
+    void waitsForEnoughSamplesBeforeAdapting() {
+        var limit = ConcurrencyLimit.adaptive(20, 10, 60, clock::get);
+        for (int i = 0; i < 9; i++) {
+            assertTrue(limit.tryAcquire());
+        }
+        clock.addAndGet(200 * MILLIS);
+        for (int i = 0; i < 9; i++) {
+            limit.release(10 * MILLIS);
+        }
+        assertEquals(20, limit.limit());
+    }
+
+    private int start() throws IOException {
+        int port;
+        try (var probe = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            port = probe.getLocalPort();
+        }
+        server = new Server<>(port);
+        server.transport(Transport.nio());
+        server.accessLog(null);
+        client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        return port;
+    }
+
+    private HttpResponse<String> get(int port, String path) throws IOException, InterruptedException {
+        return client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + port + path))
+                .timeout(Duration.ofSeconds(10)).build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private void assertRejected(HttpResponse<String> response, String retryAfter) {
+        assertEquals(503, response.statusCode());
+        assertEquals(retryAfter, response.headers().firstValue("Retry-After").orElseThrow());
+    }
+
+    @Test
+    void answersRequestsOverTheLimitWithServiceUnavailable() throws Exception {
+        int port = start();
+        var limit = ConcurrencyLimit.fixed(1).retryAfter(Duration.ofSeconds(7));
+        var entered = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        server.concurrencyLimit(limit);
+        server.get("/slow", (request, response) -> {
+            entered.countDown();
+            await(release);
+            response.write("done");
+        });
+        server.get("/fast", (request, response) -> response.write("fast"));
+        server.run(() -> {});
+
+        CompletableFuture<HttpResponse<String>> slow = client.sendAsync(
+                HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/slow")).build(),
+                HttpResponse.BodyHandlers.ofString());
+        assertTrue(entered.await(10, TimeUnit.SECONDS));
+        assertRejected(get(port, "/fast"), "7");
+        assertEquals(1, limit.rejected());
+
+        release.countDown();
+        assertEquals("done", slow.get(10, TimeUnit.SECONDS).body());
+        assertEquals("fast", get(port, "/fast").body());
+        assertEquals(0, limit.inFlight());
+    }
+
+    @Test
+    void limitsTheRoutesUnderAPrefix() throws Exception {
+        int port = start();
+        var entered = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        server.concurrencyLimit("/reports", ConcurrencyLimit.fixed(1));
+        server.get("/reports/{name}", (request, response) -> {
+            entered.countDown();
+            await(release);
+            response.write("report");
+        });
+        server.get("/other", (request, response) -> response.write("other"));
+        server.run(() -> {});
+
+        CompletableFuture<HttpResponse<String>> report = client.sendAsync(
+                HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/reports/a")).build(),
+                HttpResponse.BodyHandlers.ofString());
+        assertTrue(entered.await(10, TimeUnit.SECONDS));
+        assertRejected(get(port, "/reports/b"), "1");
+        assertEquals("other", get(port, "/other").body(), "other routes are not limited");
+
+        release.countDown();
+        assertEquals("report", report.get(10, TimeUnit.SECONDS).body());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
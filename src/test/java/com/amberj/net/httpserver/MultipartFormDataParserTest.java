@@ -0,0 +1,209 @@
+package com.amberj.net.httpserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MultipartFormDataParserTest {
+    private static final String BOUNDARY = "----form7MA4YWxkTrZu0gW";
+    private static final MultipartFormDataParser.Limits NO_LIMITS =
+            new MultipartFormDataParser.Limits(Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE);
+    private static final Path TEMP_DIR = Path.of(System.getProperty("java.io.tmpdir"));
+
+    private static WarmupExchange exchange(String contentType, byte[] body) {
+        return new WarmupExchange(new WarmupPlan.Request("POST", "/upload",
+                Map.of("Content-Type", List.of(contentType)), body));
+    }
+
+    private static WarmupExchange exchange(byte[] body) {
+        return exchange("multipart/form-data; boundary=" + BOUNDARY, body);
+    }
+
+    private static byte[] body(String... parts) {
+        var body = new ByteArrayOutputStream();
+        for (String part : parts) {
+            body.writeBytes(("--" + BOUNDARY + "\r\n" + part + "\r\n").getBytes(StandardCharsets.UTF_8));
+        }
+        body.writeBytes(("--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8));
+        return body.toByteArray();
+    }
+
+    private static String field(String name, String value) {
+        return "Content-Disposition: form-data; name=\"" + name + "\"\r\n\r\n" + value;
+    }
+
+    /**
+     * Hands out at most <code>chunk</code> bytes per read, like a slow socket.
+     */
+    private static InputStream trickle(byte[] body, int chunk) {
+        return new ByteArrayInputStream(body) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, chunk));
+            }
+        };
+    }
+
+    private static Map<String, Object> parse(WarmupExchange exchange, MultipartFormDataParser.Limits limits) throws IOException {
+        return MultipartFormDataParser.parseMultipartForm(exchange, limits);
+    }
+
+    @Test
+    void parsesFields() throws IOException {
+        Map<String, Object> form = parse(exchange(body(
+                field("name", "Ada Lovelace"),
+                field("empty", ""),
+                field("unicode", "grüße ✓"),
+                field("lines", "a\r\nb\r\n"))), NO_LIMITS);
+
+        assertEquals(Map.of("name", "Ada Lovelace", "empty", "", "unicode", "grüße ✓", "lines", "a\r\nb\r\n"), form);
+    }
+
+    @Test
+    void writesFilesToTempFiles() throws IOException {
+        byte[] content = new byte[300_000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        var body = new ByteArrayOutputStream();
+        body.writeBytes(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"../../etc/a b.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        body.writeBytes(content);
+        body.writeBytes(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8));
+
+        File file = (File) parse(exchange(body.toByteArray()), NO_LIMITS).get("file");
+        try {
+            assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+            assertTrue(file.getName().endsWith("-a_b.bin"), file.getName());
+            assertEquals(TEMP_DIR, file.toPath().getParent());
+        } finally {
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    @Test
+    void findsBoundariesSplitAcrossReads() throws IOException {
+        // content that almost matches the delimiter must be kept
+        String tricky = "\r\n--" + BOUNDARY.substring(0, 10) + "\r\n-" + "x".repeat(70_000);
+        byte[] body = body(field("a", tricky), field("b", "second"));
+        for (int chunk : new int[]{1, 2, 3, 7, 64, 1000}) {
+            var exchange = exchange(body);
+            exchange.setStreams(trickle(body, chunk), null);
+
+            assertEquals(Map.of("a", tricky, "b", "second"), parse(exchange, NO_LIMITS), "reads of " + chunk);
+        }
+    }
+
+    @Test
+    void skipsPreambleEpilogueAndUnnamedParts() throws IOException {
+        byte[] parts = body("Content-Type: text/plain\r\n\r\nno name", field("kept", "yes"),
+                "Content-Disposition: form-data; name=\"nofile\"; filename=\"\"\r\n\r\n");
+        var body = new ByteArrayOutputStream();
+        body.writeBytes("This is the preamble.\r\n".getBytes(StandardCharsets.UTF_8));
+        body.writeBytes(parts);
+        body.writeBytes("This is the epilogue.".getBytes(StandardCharsets.UTF_8));
+
+        assertEquals(Map.of("kept", "yes"), parse(exchange(body.toByteArray()), NO_LIMITS));
+    }
+
+    @Test
+    void readsParametersQuotedOrNot() throws IOException {
+        byte[] body = body("content-disposition: form-data; name=plain\r\n\r\n1",
+                "Content-Disposition: form-data;name=\"with \\\"quotes\\\"; and semicolon\"\r\n\r\n2");
+
+        assertEquals(Map.of("plain", "1", "with \"quotes\"; and semicolon", "2"), parse(exchange(body), NO_LIMITS));
+        assertEquals("x.txt", MultipartFormDataParser.parameter("form-data; name=\"f\"; filename=\"x.txt\"", "filename"));
+        assertNull(MultipartFormDataParser.parameter("form-data; name=\"f\"", "filename"));
+    }
+
+    @Test
+    void acceptsQuotedBoundariesAndBoundaryPadding() throws IOException {
+        byte[] body = ("--" + BOUNDARY + " \t\r\n" + field("a", "1") + "\r\n--" + BOUNDARY + "--")
+                .getBytes(StandardCharsets.UTF_8);
+
+        assertEquals(Map.of("a", "1"),
+                parse(exchange("Multipart/Form-Data; charset=utf-8; boundary=\"" + BOUNDARY + "\"", body), NO_LIMITS));
+    }
+
+    @Test
+    void returnsNothingForABodyWithoutBoundary() throws IOException {
+        assertEquals(Map.of(), parse(exchange("no parts here".getBytes(StandardCharsets.UTF_8)), NO_LIMITS));
+    }
+
+    @Test
+    void rejectsOtherContentTypes() {
+        assertThrows(IllegalArgumentException.class, () -> parse(exchange("application/json", new byte[0]), NO_LIMITS));
+        assertThrows(IllegalArgumentException.class, () -> parse(exchange("multipart/form-data", new byte[0]), NO_LIMITS));
+    }
+
+    @Test
+    void rejectsTruncatedBodies() {
+        byte[] body = body(field("a", "value"));
+        byte[] inPart = new String(body, StandardCharsets.UTF_8).substring(0, body.length - BOUNDARY.length() - 10)
+                .getBytes(StandardCharsets.UTF_8);
+        byte[] inHeaders = ("--" + BOUNDARY + "\r\nContent-Disposition: form-da").getBytes(StandardCharsets.UTF_8);
+        byte[] afterBoundary = ("--" + BOUNDARY).getBytes(StandardCharsets.UTF_8);
+
+        assertThrows(EOFException.class, () -> parse(exchange(inPart), NO_LIMITS));
+        assertThrows(EOFException.class, () -> parse(exchange(inHeaders), NO_LIMITS));
+        assertThrows(EOFException.class, () -> parse(exchange(afterBoundary), NO_LIMITS));
+    }
+
+    @Test
+    void enforcesTheLimits() {
+        byte[] body = body(field("a", "x".repeat(100)));
+        assertThrows(MultipartFormDataParser.LimitExceededException.class,
+                () -> parse(exchange(body), new MultipartFormDataParser.Limits(99, Long.MAX_VALUE, Long.MAX_VALUE)));
+        assertThrows(MultipartFormDataParser.LimitExceededException.class,
+                () -> parse(exchange(body), new MultipartFormDataParser.Limits(Long.MAX_VALUE, Long.MAX_VALUE, body.length - 1)));
+
+        byte[] file = body("Content-Disposition: form-data; name=\"f\"; filename=\"f.txt\"\r\n\r\n" + "x".repeat(100));
+        assertThrows(MultipartFormDataParser.LimitExceededException.class,
+                () -> parse(exchange(file), new MultipartFormDataParser.Limits(Long.MAX_VALUE, 99, Long.MAX_VALUE)));
+
+        byte[] headers = body("X-Padding: " + "x".repeat(20_000) + "\r\n" + field("a", "1"));
+        assertThrows(MultipartFormDataParser.LimitExceededException.class, () -> parse(exchange(headers), NO_LIMITS));
+    }
+
+    @Test
+    void keepsFieldsWithinTheLimits() throws IOException {
+        byte[] body = body(field("a", "x".repeat(100)));
+
+        assertEquals(Map.of("a", "x".repeat(100)),
+                parse(exchange(body), new MultipartFormDataParser.Limits(100, 0, body.length)));
+    }
+
+    @Test
+    void deletesTempFilesOfAFailedParse() throws IOException {
+        String marker = "-cleanup-" + System.nanoTime() + ".txt";
+        byte[] body = body("Content-Disposition: form-data; name=\"f\"; filename=\"" + marker.substring(1) + "\"\r\n\r\n" + "x".repeat(100));
+
+        assertThrows(MultipartFormDataParser.LimitExceededException.class,
+                () -> parse(exchange(body), new MultipartFormDataParser.Limits(Long.MAX_VALUE, 50, Long.MAX_VALUE)));
+        try (var files = Files.list(TEMP_DIR)) {
+            assertTrue(files.noneMatch(file -> file.getFileName().toString().endsWith(marker)));
+        }
+    }
+
+    @Test
+    void deletesTheTempFilesOfARequest() throws IOException {
+        var exchange = exchange(body("Content-Disposition: form-data; name=\"f\"; filename=\"f.txt\"\r\n\r\ncontent"));
+        File file = (File) MultipartFormDataParser.parseRequest(exchange, NO_LIMITS).get("f");
+        assertTrue(file.exists());
+
+        MultipartFormDataParser.deleteTempFiles(exchange);
+        assertFalse(file.exists());
+    }
+}
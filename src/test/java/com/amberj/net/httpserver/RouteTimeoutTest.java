@@ -0,0 +1,154 @@
+package com.amberj.net.httpserver;
+
+import com.amberj.net.transport.Transport;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Handlers of routes with a timeout, run on the NIO transport.
+ */
+class RouteTimeoutTest {
+    private static final String BOUNDARY = "----form7MA4YWxkTrZu0gW";
+
+    private final BlockingQueue<Object> seen = new LinkedBlockingQueue<>();
+    private final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    private Server<Object> server;
+    private int port;
+
+    @BeforeEach
+    void start() throws IOException {
+        try (var probe = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            port = probe.getLocalPort();
+        }
+        server = new Server<>(port);
+        server.transport(Transport.nio());
+        server.accessLog(null);
+        server.timeout("/timed", Duration.ofMillis(200));
+        server.get("/timed/slow", (request, response) -> {
+            response.header("X-Handler", "slow");
+            sleepThroughInterrupts(500);
+            // the server answered in the meantime
+            try {
+                OutputStream out = response.outputStream();
+                out.write("late".getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                seen.add("sent");
+            } catch (IOException e) {
+                seen.add(e);
+            }
+        });
+        server.get("/timed/streaming", (request, response) -> {
+            try {
+                OutputStream out = response.outputStream();
+                out.write("started".getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                try {
+                    Thread.sleep(5_000);
+                } catch (InterruptedException e) {
+                    out.write(" interrupted".getBytes(StandardCharsets.UTF_8));
+                }
+            } catch (IOException e) {
+                seen.add(e);
+            }
+        });
+        server.get("/timed/remaining", (request, response) -> response.write(request.remainingTime().toMillis() + ""));
+        server.get("/untimed", (request, response) -> response.write(String.valueOf(request.remainingTime())));
+        server.post("/timed/upload", (request, response) -> {
+            var file = (File) request.body().get("file");
+            seen.add(file.toPath());
+            response.write("uploaded " + file.length());
+        });
+        server.run(() -> {});
+    }
+
+    @AfterEach
+    void stop() {
+        server.stop(0);
+        client.close();
+    }
+
+    private static void sleepThroughInterrupts(long millis) {
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        while (System.nanoTime() < end) {
+            try {
+                Thread.sleep(Math.max(1, TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime())));
+            } catch (InterruptedException ignored) {
+            }
+        }
+    }
+
+    private HttpRequest.Builder request(String path) {
+        return HttpRequest.newBuilder(URI.create("http://localhost:" + port + path)).timeout(Duration.ofSeconds(10));
+    }
+
+    private HttpResponse<String> get(String path) throws IOException, InterruptedException {
+        return client.send(request(path).build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    @Test
+    void answersWithServiceUnavailableOnceTheTimeoutPassed() throws Exception {
+        long start = System.nanoTime();
+        var response = get("/timed/slow");
+        assertEquals(503, response.statusCode());
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(450), "answered before the handler returned");
+        assertTrue(response.headers().firstValue("X-Handler").isEmpty(), "without the handler's headers");
+
+        var late = seen.poll(5, TimeUnit.SECONDS);
+        assertInstanceOf(IOException.class, late, "the handler can not send its response");
+        assertEquals(200, get("/timed/remaining").statusCode(), "the connection stays usable");
+    }
+
+    @Test
+    void letsAHandlerThatStartedItsResponseFinishIt() throws Exception {
+        var response = get("/timed/streaming");
+        assertEquals(200, response.statusCode());
+        assertEquals("started interrupted", response.body());
+        assertNull(seen.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void tellsHandlersTheTimeTheyHaveLeft() throws Exception {
+        long remaining = Long.parseLong(get("/timed/remaining").body());
+        assertTrue(remaining > 0 && remaining <= 200, "remaining " + remaining);
+        assertEquals("null", get("/untimed").body());
+    }
+
+    @Test
+    void deletesTheUploadsOfTimedRoutes() throws Exception {
+        String body = "--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"a.txt\"\r\n\r\n"
+                + "hello\r\n"
+                + "--" + BOUNDARY + "--\r\n";
+        var response = client.send(request("/timed/upload")
+                .header("Content-Type", "multipart/form-data; boundary=" + BOUNDARY)
+                .POST(HttpRequest.BodyPublishers.ofString(body)).build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals("uploaded 5", response.body());
+
+        var file = (Path) seen.poll(5, TimeUnit.SECONDS);
+        assertNotNull(file);
+        for (int i = 0; i < 500 && Files.exists(file); i++) {
+            Thread.sleep(10);
+        }
+        assertFalse(Files.exists(file), "temp file deleted");
+    }
+}
@@ -0,0 +1,142 @@
+package com.amberj.net.httpserver;
+
+import com.amberj.net.http.HttpRequest;
+import com.amberj.net.http.HttpResponse;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RouterTest {
+    private static final BiConsumer<HttpRequest, HttpResponse> NOOP = (request, response) -> {};
+
+    private static Router router(String... patterns) {
+        Router.Builder builder = Router.builder();
+        for (String pattern : patterns) {
+            builder.add(Router.GET, pattern, NOOP);
+        }
+        return builder.build();
+    }
+
+    private static String pattern(Router router, String path) {
+        Router.Match match = router.match(Router.GET, path);
+        return match == null ? null : match.route().pattern();
+    }
+
+    @Test
+    void matchesStaticRoutesWithoutParams() {
+        Router router = router("/", "/users", "/users/all");
+
+        assertEquals("/", pattern(router, "/"));
+        assertEquals("/users", pattern(router, "/users"));
+        assertEquals("/users/all", pattern(router, "/users/all"));
+        assertTrue(router.match(Router.GET, "/users/all").params().isEmpty());
+        assertNull(pattern(router, "/users/none"));
+        assertNull(pattern(router, "/user"));
+    }
+
+    @Test
+    void capturesParams() {
+        Router router = router("/users/{id}", "/users/{id}/posts/{post:int}");
+
+        assertEquals(Map.of("id", "42"), router.match(Router.GET, "/users/42").params());
+        assertEquals(Map.of("id", "7", "post", "9"), router.match(Router.GET, "/users/7/posts/9").params());
+        assertNull(pattern(router, "/users/7/posts"));
+    }
+
+    @Test
+    void prefersStaticSegmentsOverParams() {
+        Router router = router("/users/{id}", "/users/me");
+
+        assertEquals("/users/me", pattern(router, "/users/me"));
+        assertEquals("/users/{id}", pattern(router, "/users/you"));
+    }
+
+    @Test
+    void backtracksToParamWhenStaticBranchFails() {
+        Router router = router("/a/b/d", "/a/{x}/c");
+
+        Router.Match match = router.match(Router.GET, "/a/b/c");
+        assertNotNull(match);
+        assertEquals("/a/{x}/c", match.route().pattern());
+        assertEquals(Map.of("x", "b"), match.params());
+        assertEquals("/a/b/d", pattern(router, "/a/b/d"));
+    }
+
+    @Test
+    void backtracksOverSeveralLevels() {
+        Router router = router("/{a}/{b}/z", "/x/{b}/y", "/x/y/w");
+
+        assertEquals("/x/y/w", pattern(router, "/x/y/w"));
+        assertEquals("/x/{b}/y", pattern(router, "/x/y/y"));
+        assertEquals(Map.of("a", "x", "b", "y"), router.match(Router.GET, "/x/y/z").params());
+    }
+
+    @Test
+    void ignoresTrailingSlash() {
+        Router router = router("/users/", "/users/{id}");
+
+        assertEquals("/users/", pattern(router, "/users"));
+        assertEquals("/users/", pattern(router, "/users/"));
+        assertEquals(Map.of("id", "42"), router.match(Router.GET, "/users/42/").params());
+    }
+
+    @Test
+    void paramsDoNotMatchEmptySegments() {
+        Router router = router("/users/{id}");
+
+        assertNull(pattern(router, "/users//"));
+        assertNull(pattern(router, "/users"));
+    }
+
+    @Test
+    void everyMatchGetsItsOwnParams() {
+        Router router = router("/users/{id}");
+
+        Map<String, String> first = router.match(Router.GET, "/users/1").params();
+        Map<String, String> second = router.match(Router.GET, "/users/2").params();
+        assertEquals("1", first.get("id"));
+        assertEquals("2", second.get("id"));
+    }
+
+    @Test
+    void keepsTheFirstRouteRegisteredTwice() {
+        BiConsumer<HttpRequest, HttpResponse> second = (request, response) -> {};
+        Router router = Router.builder()
+                .add(Router.GET, "/users/{id}", NOOP)
+                .add(Router.GET, "/users/{name}", second)
+                .build();
+
+        Router.Match match = router.match(Router.GET, "/users/1");
+        assertSame(NOOP, match.route().handler());
+        assertEquals(Map.of("id", "1"), match.params());
+    }
+
+    @Test
+    void separatesMethodsAndSharesGetWithHead() {
+        Router router = Router.builder()
+                .add(Router.GET, "/items", NOOP)
+                .add(Router.POST, "/items/{id}", NOOP)
+                .build();
+
+        assertEquals(Router.GET, Router.methodIndex("HEAD"));
+        assertEquals(-1, Router.methodIndex("TRACE"));
+        assertNotNull(router.match(Router.methodIndex("HEAD"), "/items"));
+        assertNull(router.match(Router.POST, "/items"));
+        assertNull(router.match(Router.GET, "/items/1"));
+        assertNotNull(router.match(Router.POST, "/items/1"));
+        assertNull(router.match(-1, "/items"));
+    }
+
+    @Test
+    void rejectsRoutesWithTooManyParams() {
+        var pattern = new StringBuilder();
+        for (int i = 0; i <= Router.Route.MAX_PARAMS; i++) {
+            pattern.append("/{p").append(i).append('}');
+        }
+
+        assertThrows(IllegalArgumentException.class, () -> Router.builder().add(Router.GET, pattern.toString(), NOOP));
+    }
+}
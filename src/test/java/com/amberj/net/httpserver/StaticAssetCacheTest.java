@@ -0,0 +1,83 @@
+package com.amberj.net.httpserver;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StaticAssetCacheTest {
+    private Path dir;
+
+    @BeforeEach
+    void createDir() throws IOException {
+        dir = Files.createTempDirectory("assets");
+    }
+
+    @AfterEach
+    void deleteDir() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private StaticFileHandler.StaticFile file(String name, String content) throws IOException {
+        Path path = Files.writeString(dir.resolve(name), content);
+        return stat(path, content.length());
+    }
+
+    private static StaticFileHandler.StaticFile stat(Path path, long size) {
+        return new StaticFileHandler.StaticFile(path, size, 1000, "\"" + Long.toHexString(size) + "-3e8\"",
+                "Thu, 01 Jan 1970 00:00:01 GMT", "application/octet-stream");
+    }
+
+    @Test
+    void loadsAFileOnce() throws IOException {
+        var cache = new StaticAssetCache(10_000, 1000);
+        var file = file("a.bin", "content");
+
+        StaticAssetCache.Asset asset = cache.get("a.bin", file);
+        assertEquals("content", new String(asset.identity(), StandardCharsets.UTF_8));
+        Files.writeString(file.path(), "changed");
+        assertSame(asset, cache.get("a.bin", file), "the same version is served from memory");
+    }
+
+    @Test
+    void doesNotCacheAFileRewrittenAfterItsStat() throws IOException {
+        var cache = new StaticAssetCache(10_000, 1000);
+        var file = file("a.bin", "short");
+        Files.writeString(file.path(), "rewritten and longer");
+
+        assertNull(cache.get("a.bin", file));
+        assertNull(cache.get("a.bin", file), "nothing was cached for the old stat");
+
+        var current = stat(file.path(), "rewritten and longer".length());
+        assertEquals("rewritten and longer", new String(cache.get("a.bin", current).identity(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void evictsTheLeastRecentlyUsedFiles() throws IOException {
+        // room for two entries of 256 bytes overhead and 100 bytes content
+        var cache = new StaticAssetCache(800, 1000);
+        var a = file("a.bin", "a".repeat(100));
+        var b = file("b.bin", "b".repeat(100));
+        var c = file("c.bin", "c".repeat(100));
+
+        StaticAssetCache.Asset assetA = cache.get("a.bin", a);
+        StaticAssetCache.Asset assetB = cache.get("b.bin", b);
+        assertSame(assetA, cache.get("a.bin", a));
+        cache.get("c.bin", c);
+
+        assertSame(assetA, cache.get("a.bin", a), "a was used after b");
+        assertNotSame(assetB, cache.get("b.bin", b), "b was evicted and is loaded again");
+    }
+}
@@ -0,0 +1,74 @@
+package com.amberj.net.httpserver;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StaticFileHandlerTest {
+    private static final long SIZE = 1000;
+
+    private static void assertRange(long start, long end, String header) {
+        assertArrayEquals(new long[]{start, end}, StaticFileHandler.parseRange(header, SIZE), header);
+    }
+
+    private static void assertWholeFile(String header) {
+        assertNull(StaticFileHandler.parseRange(header, SIZE), header);
+    }
+
+    private static void assertUnsatisfiable(String header, long size) {
+        long[] range = StaticFileHandler.parseRange(header, size);
+        assertNotNull(range, header);
+        assertEquals(0, range.length, header);
+    }
+
+    @Test
+    void parsesClosedRanges() {
+        assertRange(0, 0, "bytes=0-0");
+        assertRange(0, 499, "bytes=0-499");
+        assertRange(500, 999, "bytes=500-999");
+        assertRange(10, 20, "bytes= 10 - 20 ");
+    }
+
+    @Test
+    void clampsTheEndToTheFile() {
+        assertRange(500, 999, "bytes=500-");
+        assertRange(500, 999, "bytes=500-5000");
+        assertRange(999, 999, "bytes=999-99999999999999999");
+    }
+
+    @Test
+    void parsesSuffixRanges() {
+        assertRange(900, 999, "bytes=-100");
+        assertRange(0, 999, "bytes=-1000");
+        assertRange(0, 999, "bytes=-5000");
+    }
+
+    @Test
+    void answersUnsatisfiableRanges() {
+        assertUnsatisfiable("bytes=1000-", SIZE);
+        assertUnsatisfiable("bytes=1000-1005", SIZE);
+        assertUnsatisfiable("bytes=-0", SIZE);
+        assertUnsatisfiable("bytes=0-", 0);
+        assertUnsatisfiable("bytes=-10", 0);
+    }
+
+    @Test
+    void sendsTheWholeFileForRangesItDoesNotServe() {
+        assertWholeFile("bytes=0-1,5-6");
+        assertWholeFile("items=0-10");
+        assertWholeFile("bytes=10");
+        assertWholeFile("bytes=-");
+        assertWholeFile("bytes=20-10");
+        assertWholeFile("bytes=a-10");
+        assertWholeFile("bytes=0-1e3");
+        assertWholeFile("bytes=99999999999999999999-");
+    }
+
+    @Test
+    void ignoresSignedPositions() {
+        assertWholeFile("bytes=--1");
+        assertWholeFile("bytes=-+100");
+        assertWholeFile("bytes=+10-20");
+        assertWholeFile("bytes=10-+20");
+    }
+}
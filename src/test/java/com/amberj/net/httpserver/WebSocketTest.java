@@ -0,0 +1,342 @@
+package com.amberj.net.httpserver;
+
+import com.amberj.net.transport.Transport;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Frames sent over a raw socket after the opening handshake.
+ */
+class WebSocketTest {
+    private static final int TEXT = 0x1;
+    private static final int BINARY = 0x2;
+    private static final int CONTINUATION = 0x0;
+    private static final int CLOSE = 0x8;
+    private static final int PING = 0x9;
+    private static final int PONG = 0xa;
+    private static final int MAX_MESSAGE_SIZE = 100_000;
+
+    private final BlockingQueue<String> closes = new LinkedBlockingQueue<>();
+    private Server<Object> server;
+    private int port;
+
+    @BeforeEach
+    void start() throws IOException {
+        try (var probe = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            port = probe.getLocalPort();
+        }
+        server = new Server<>(port);
+        server.transport(Transport.nio());
+        server.accessLog(null);
+        server.ws("/echo", new WebSocketHandler() {
+            @Override
+            public void onText(WebSocket socket, String message) {
+                socket.send(message);
+            }
+
+            @Override
+            public void onBinary(WebSocket socket, byte[] message) {
+                socket.send(message);
+            }
+
+            @Override
+            public void onClose(WebSocket socket, int code, String reason) {
+                closes.add(code + " " + reason);
+            }
+        }, MAX_MESSAGE_SIZE);
+        server.run(() -> {});
+    }
+
+    @AfterEach
+    void stop() {
+        server.stop(0);
+    }
+
+    private record Frame(int fin, int opcode, byte[] payload) {
+        String text() {
+            return new String(payload, StandardCharsets.UTF_8);
+        }
+
+        int closeCode() {
+            return (payload[0] & 0xff) << 8 | payload[1] & 0xff;
+        }
+    }
+
+    private final class Client implements AutoCloseable {
+        private final Socket socket;
+        private final OutputStream out;
+        private final DataInputStream in;
+
+        Client() throws IOException {
+            socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            socket.setSoTimeout(5000);
+            out = socket.getOutputStream();
+            in = new DataInputStream(socket.getInputStream());
+            out.write(("GET /echo HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                    + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\nSec-WebSocket-Version: 13\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1));
+        }
+
+        /**
+         * @return the response head of the handshake
+         */
+        String handshake() throws IOException {
+            var head = new StringBuilder();
+            while (!head.toString().endsWith("\r\n\r\n")) {
+                head.append((char) in.readUnsignedByte());
+            }
+            return head.toString();
+        }
+
+        void send(int first, byte[] payload) throws IOException {
+            send(first, payload, true);
+        }
+
+        /**
+         * @param first the first byte of the frame, FIN, reserved bits and opcode
+         */
+        void send(int first, byte[] payload, boolean masked) throws IOException {
+            var frame = new ByteArrayOutputStream();
+            frame.write(first);
+            int mask = masked ? 0x80 : 0;
+            if (payload.length < 126) {
+                frame.write(mask | payload.length);
+            } else if (payload.length < 65536) {
+                frame.write(mask | 126);
+                frame.write(payload.length >>> 8);
+                frame.write(payload.length);
+            } else {
+                frame.write(mask | 127);
+                frame.writeBytes(ByteBuffer.allocate(8).putLong(payload.length).array());
+            }
+            byte[] key = {0x37, (byte) 0xfa, 0x21, 0x3d};
+            byte[] data = payload.clone();
+            if (masked) {
+                frame.writeBytes(key);
+                for (int i = 0; i < data.length; i++) {
+                    data[i] ^= key[i % 4];
+                }
+            }
+            frame.writeBytes(data);
+            out.write(frame.toByteArray());
+            out.flush();
+        }
+
+        void sendText(String text) throws IOException {
+            send(0x80 | TEXT, text.getBytes(StandardCharsets.UTF_8));
+        }
+
+        Frame read() throws IOException {
+            int b0 = in.readUnsignedByte();
+            int b1 = in.readUnsignedByte();
+            assertEquals(0, b1 & 0x80, "frames of the server are not masked");
+            long length = b1 & 0x7f;
+            if (length == 126) {
+                length = in.readUnsignedShort();
+            } else if (length == 127) {
+                length = in.readLong();
+            }
+            byte[] payload = new byte[(int) length];
+            in.readFully(payload);
+            return new Frame(b0 >>> 7, b0 & 0x0f, payload);
+        }
+
+        /**
+         * @return the code of the close frame the server answers with
+         */
+        int closeCode() throws IOException {
+            Frame frame;
+            do {
+                frame = read();
+            } while (frame.opcode() != CLOSE);
+            return frame.closeCode();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    private static byte[] close(int code, String reason) {
+        byte[] text = reason.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(2 + text.length).putShort((short) code).put(text).array();
+    }
+
+    private int closeCodeAfter(int first, byte[] payload) throws IOException {
+        try (var client = new Client()) {
+            client.handshake();
+            client.send(first, payload);
+            return client.closeCode();
+        }
+    }
+
+    @Test
+    void acceptsTheHandshake() throws IOException {
+        try (var client = new Client()) {
+            String head = client.handshake();
+
+            assertTrue(head.startsWith("HTTP/1.1 101 "), head);
+            // the example of RFC 6455, section 1.3
+            assertTrue(head.contains("s3pPLMBiTxaQ9kYGzzhZRbK+xOo=\r\n"), head);
+        }
+    }
+
+    @Test
+    void echoesMessagesOfEveryLengthEncoding() throws IOException {
+        try (var client = new Client()) {
+            client.handshake();
+            for (int length : new int[]{0, 125, 126, 65535, 65536, MAX_MESSAGE_SIZE}) {
+                String text = "ü".repeat(length / 2) + "x".repeat(length % 2);
+                client.sendText(text);
+
+                Frame frame = client.read();
+                assertEquals(TEXT, frame.opcode());
+                assertEquals(1, frame.fin());
+                assertEquals(text, frame.text(), "message of " + length + " bytes");
+            }
+            byte[] binary = {0, 1, 2, (byte) 0xff};
+            client.send(0x80 | BINARY, binary);
+            Frame frame = client.read();
+            assertEquals(BINARY, frame.opcode());
+            assertArrayEquals(binary, frame.payload());
+        }
+    }
+
+    @Test
+    void joinsFragmentsAndAnswersPingsBetweenThem() throws IOException {
+        try (var client = new Client()) {
+            client.handshake();
+            client.send(TEXT, "frag".getBytes(StandardCharsets.UTF_8));
+            client.send(0x80 | PING, new byte[]{1, 2, 3});
+            client.send(CONTINUATION, "men".getBytes(StandardCharsets.UTF_8));
+            client.send(0x80 | CONTINUATION, "ted".getBytes(StandardCharsets.UTF_8));
+
+            Frame pong = client.read();
+            assertEquals(PONG, pong.opcode());
+            assertArrayEquals(new byte[]{1, 2, 3}, pong.payload());
+            assertEquals("fragmented", client.read().text());
+        }
+    }
+
+    @Test
+    void closesOnProtocolErrors() throws IOException {
+        byte[] data = "data".getBytes(StandardCharsets.UTF_8);
+        assertEquals(WebSocket.PROTOCOL_ERROR, closeCodeAfter(0x80 | 0x40 | TEXT, data), "reserved bit");
+        assertEquals(WebSocket.PROTOCOL_ERROR, closeCodeAfter(0x80 | 0x3, data), "unknown data opcode");
+        assertEquals(WebSocket.PROTOCOL_ERROR, closeCodeAfter(0x80 | 0xb, data), "unknown control opcode");
+        assertEquals(WebSocket.PROTOCOL_ERROR, closeCodeAfter(0x80 | CONTINUATION, data), "continuation without message");
+        assertEquals(WebSocket.PROTOCOL_ERROR, closeCodeAfter(PING, data), "fragmented control frame");
+        assertEquals(WebSocket.PROTOCOL_ERROR, closeCodeAfter(0x80 | PING, new byte[126]), "control frame over 125 bytes");
+    }
+
+    @Test
+    void closesOnUnmaskedFrames() throws IOException {
+        try (var client = new Client()) {
+            client.handshake();
+            client.send(0x80 | TEXT, "data".getBytes(StandardCharsets.UTF_8), false);
+
+            assertEquals(WebSocket.PROTOCOL_ERROR, client.closeCode());
+        }
+    }
+
+    @Test
+    void closesOnANewMessageBeforeTheLastEnded() throws IOException {
+        try (var client = new Client()) {
+            client.handshake();
+            client.send(TEXT, "a".getBytes(StandardCharsets.UTF_8));
+            client.send(0x80 | TEXT, "b".getBytes(StandardCharsets.UTF_8));
+
+            assertEquals(WebSocket.PROTOCOL_ERROR, client.closeCode());
+        }
+    }
+
+    @Test
+    void closesOnMessagesOverTheLimit() throws IOException {
+        assertEquals(WebSocket.MESSAGE_TOO_BIG, closeCodeAfter(0x80 | TEXT, new byte[MAX_MESSAGE_SIZE + 1]));
+        try (var client = new Client()) {
+            client.handshake();
+            client.send(TEXT, new byte[MAX_MESSAGE_SIZE / 2]);
+            client.send(0x80 | CONTINUATION, new byte[MAX_MESSAGE_SIZE / 2 + 1]);
+
+            assertEquals(WebSocket.MESSAGE_TOO_BIG, client.closeCode(), "fragments count together");
+        }
+    }
+
+    @Test
+    void closesOnInvalidUtf8() throws IOException {
+        assertEquals(WebSocket.INVALID_PAYLOAD, closeCodeAfter(0x80 | TEXT, new byte[]{'a', (byte) 0xc3}));
+        assertEquals(WebSocket.INVALID_PAYLOAD, closeCodeAfter(0x80 | CLOSE, new byte[]{3, (byte) 0xe8, (byte) 0xff}));
+    }
+
+    @Test
+    void closesOnInvalidCloseFrames() throws IOException {
+        assertEquals(WebSocket.PROTOCOL_ERROR, closeCodeAfter(0x80 | CLOSE, new byte[]{3}));
+        for (int code : new int[]{999, WebSocket.NO_STATUS, WebSocket.ABNORMAL_CLOSURE, 1015, 2999, 5000}) {
+            assertEquals(WebSocket.PROTOCOL_ERROR, closeCodeAfter(0x80 | CLOSE, close(code, "")), "code " + code);
+        }
+    }
+
+    @Test
+    void answersTheCloseOfTheClient() throws IOException, InterruptedException {
+        try (var client = new Client()) {
+            client.handshake();
+            client.send(0x80 | CLOSE, close(4000, "done ✓"));
+
+            Frame frame = client.read();
+            assertEquals(CLOSE, frame.opcode());
+            assertArrayEquals(close(4000, ""), frame.payload());
+            assertEquals(-1, client.in.read(), "the server closes the connection");
+        }
+        assertEquals("4000 done ✓", closes.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void answersAnEmptyCloseWithAnEmptyOne() throws IOException, InterruptedException {
+        try (var client = new Client()) {
+            client.handshake();
+            client.send(0x80 | CLOSE, new byte[0]);
+
+            Frame frame = client.read();
+            assertEquals(CLOSE, frame.opcode());
+            assertEquals(0, frame.payload().length);
+        }
+        assertEquals(WebSocket.NO_STATUS + " ", closes.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void readsFramesSplitIntoSingleBytes() throws IOException {
+        try (var client = new Client()) {
+            client.handshake();
+            var frame = new ByteArrayOutputStream();
+            byte[] payload = "split".getBytes(StandardCharsets.UTF_8);
+            frame.write(0x80 | TEXT);
+            frame.write(0x80 | payload.length);
+            // a zero mask leaves the payload as it is
+            frame.writeBytes(new byte[4]);
+            frame.writeBytes(payload);
+            for (byte b : frame.toByteArray()) {
+                client.out.write(b);
+                client.out.flush();
+            }
+
+            assertEquals("split", client.read().text());
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.amberj.net.transport;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChunkedStreamTest {
+    private NioTestServer server;
+
+    @BeforeEach
+    void start() throws IOException {
+        server = new NioTestServer(ChunkedStreamTest::handle);
+    }
+
+    @AfterEach
+    void stop() {
+        server.close();
+    }
+
+    /**
+     * <code>/echo</code> answers with the request body, <code>/stream?n</code> sends n bytes chunked
+     * in writes of varying size.
+     */
+    private static void handle(HttpExchange exchange) throws IOException {
+        if (exchange.getRequestURI().getPath().equals("/stream")) {
+            int n = Integer.parseInt(exchange.getRequestURI().getQuery());
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream out = exchange.getResponseBody()) {
+                byte[] body = body(n);
+                for (int off = 0, len = 1; off < n; off += len, len = len * 3 + 1) {
+                    len = Math.min(len, n - off);
+                    out.write(body, off, len);
+                    if (len % 2 == 0) {
+                        out.flush();
+                    }
+                }
+            }
+            return;
+        }
+        byte[] body = exchange.getRequestBody().readAllBytes();
+        exchange.sendResponseHeaders(200, body.length == 0 ? -1 : body.length);
+        exchange.getResponseBody().write(body);
+        exchange.close();
+    }
+
+    private static byte[] body(int n) {
+        byte[] body = new byte[n];
+        for (int i = 0; i < n; i++) {
+            body[i] = (byte) ('a' + i % 26);
+        }
+        return body;
+    }
+
+    @Test
+    void readsChunksWithExtensionsAndTrailers() throws IOException {
+        String response = server.send("POST /echo HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "5;name=value\r\nhello\r\n"
+                + "1\r\n \r\n"
+                + "0005\r\nworld\r\n"
+                + "0\r\nX-Trailer: a\r\nX-Other: b\r\n\r\n"
+                + "GET /echo HTTP/1.1\r\n\r\n");
+
+        assertTrue(response.startsWith("HTTP/1.1 200 "), response);
+        assertTrue(response.contains("\r\n\r\nhello world"), response);
+        assertEquals(2, response.split("HTTP/1.1 200 ").length - 1, "the connection stays usable after the trailers");
+    }
+
+    @Test
+    void acceptsUppercaseHexAndBareLineFeeds() throws IOException {
+        String body = "x".repeat(0x1A);
+        String response = server.send("POST /echo HTTP/1.1\nTransfer-Encoding: chunked\n\n1A\n" + body + "\n0\n\n");
+
+        assertTrue(response.endsWith("\r\n\r\n" + body), response);
+    }
+
+    @Test
+    void readsAnEmptyChunkedBody() throws IOException {
+        String response = server.send("POST /echo HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n0\r\n\r\n");
+
+        assertTrue(response.startsWith("HTTP/1.1 200 "), response);
+        assertTrue(response.endsWith("\r\n\r\n"), response);
+    }
+
+    @Test
+    void rejectsBadChunkSizes() throws IOException {
+        for (String size : new String[]{"zz", "-1", "", "10000000000000000"}) {
+            String response = server.send("POST /echo HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"
+                    + size + "\r\nabc\r\n0\r\n\r\n"
+                    + "GET /echo HTTP/1.1\r\n\r\n");
+            assertFalse(response.contains("HTTP/1.1 200 "), size + ": " + response);
+        }
+    }
+
+    @Test
+    void failsOnATruncatedBody() throws IOException {
+        String response = server.send("POST /echo HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n10\r\nabc");
+
+        assertFalse(response.contains("HTTP/1.1 200 "), response);
+    }
+
+    @Test
+    void writesChunksThatDecodeToTheBody() throws IOException {
+        for (int n : new int[]{1, 100, 16 * 1024, 200_000}) {
+            String response = server.send("GET /stream?" + n + " HTTP/1.1\r\nConnection: close\r\n\r\n");
+
+            int head = response.indexOf("\r\n\r\n");
+            assertTrue(response.substring(0, head).toLowerCase().contains("transfer-encoding: chunked"), response);
+            assertArrayEquals(body(n), decode(response.substring(head + 4)), "body of " + n);
+        }
+    }
+
+    @Test
+    void writesOnlyTheLastChunkForAnEmptyBody() throws IOException {
+        String response = server.send("GET /stream?0 HTTP/1.1\r\nConnection: close\r\n\r\n");
+
+        assertTrue(response.endsWith("\r\n\r\n0\r\n\r\n"), response);
+    }
+
+    /**
+     * Decodes a chunked body and checks that it ends with the last chunk.
+     */
+    private static byte[] decode(String chunked) {
+        var body = new ByteArrayOutputStream();
+        int pos = 0;
+        while (true) {
+            int eol = chunked.indexOf("\r\n", pos);
+            assertTrue(eol != -1, "chunk header missing");
+            int size = Integer.parseInt(chunked.substring(pos, eol), 16);
+            pos = eol + 2;
+            if (size == 0) {
+                assertEquals("\r\n", chunked.substring(pos), "after the last chunk");
+                return body.toByteArray();
+            }
+            assertTrue(size > 0 && pos + size + 2 <= chunked.length(), "chunk of " + size + " bytes cut off");
+            body.writeBytes(chunked.substring(pos, pos + size).getBytes(StandardCharsets.ISO_8859_1));
+            pos += size;
+            assertEquals("\r\n", chunked.substring(pos, pos + 2), "after a chunk");
+            pos += 2;
+        }
+    }
+}
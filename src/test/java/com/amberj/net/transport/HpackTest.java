@@ -0,0 +1,164 @@
+package com.amberj.net.transport;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Decoding uses the examples of RFC 7541, Appendix C.
+ */
+class HpackTest {
+    private static final String DATE_1 = "Mon, 21 Oct 2013 20:13:21 GMT";
+    private static final String DATE_2 = "Mon, 21 Oct 2013 20:13:22 GMT";
+    private static final String LOCATION = "https://www.example.com";
+
+    private static List<String> decode(Hpack.Decoder decoder, String hex) throws Http2Exception {
+        byte[] block = HexFormat.of().parseHex(hex.replace(" ", ""));
+        var headers = new ArrayList<String>();
+        assertTrue(decoder.decode(block, block.length, (name, value) -> headers.add(name + ": " + value)));
+        return headers;
+    }
+
+    private static Http2Exception decodeFails(String hex) {
+        return assertThrows(Http2Exception.class, () -> decode(new Hpack.Decoder(Integer.MAX_VALUE), hex));
+    }
+
+    @Test
+    void decodesRequestsWithoutHuffmanCoding() throws Http2Exception {
+        var decoder = new Hpack.Decoder(Integer.MAX_VALUE);
+
+        assertEquals(List.of(":method: GET", ":scheme: http", ":path: /", ":authority: www.example.com"),
+                decode(decoder, "8286 8441 0f77 7777 2e65 7861 6d70 6c65 2e63 6f6d"));
+        assertEquals(List.of(":method: GET", ":scheme: http", ":path: /", ":authority: www.example.com",
+                        "cache-control: no-cache"),
+                decode(decoder, "8286 84be 5808 6e6f 2d63 6163 6865"));
+        assertEquals(List.of(":method: GET", ":scheme: https", ":path: /index.html", ":authority: www.example.com",
+                        "custom-key: custom-value"),
+                decode(decoder, "8287 85bf 400a 6375 7374 6f6d 2d6b 6579 0c63 7573 746f 6d2d 7661 6c75 65"));
+    }
+
+    @Test
+    void decodesRequestsWithHuffmanCoding() throws Http2Exception {
+        var decoder = new Hpack.Decoder(Integer.MAX_VALUE);
+
+        assertEquals(List.of(":method: GET", ":scheme: http", ":path: /", ":authority: www.example.com"),
+                decode(decoder, "8286 8441 8cf1 e3c2 e5f2 3a6b a0ab 90f4 ff"));
+        assertEquals(List.of(":method: GET", ":scheme: http", ":path: /", ":authority: www.example.com",
+                        "cache-control: no-cache"),
+                decode(decoder, "8286 84be 5886 a8eb 1064 9cbf"));
+        assertEquals(List.of(":method: GET", ":scheme: https", ":path: /index.html", ":authority: www.example.com",
+                        "custom-key: custom-value"),
+                decode(decoder, "8287 85bf 4088 25a8 49e9 5ba9 7d7f 8925 a849 e95b b8e8 b4bf"));
+    }
+
+    @Test
+    void evictsTheOldestEntriesFromTheDynamicTable() throws Http2Exception {
+        var decoder = new Hpack.Decoder(Integer.MAX_VALUE);
+
+        // the examples use a table of 256 octets, set by a size update in front of the first block
+        assertEquals(List.of(":status: 302", "cache-control: private", "date: " + DATE_1, "location: " + LOCATION),
+                decode(decoder, "3fe1 01 4803 3330 3258 0770 7269 7661 7465 611d 4d6f 6e2c 2032 3120 4f63 7420 3230"
+                        + "3133 2032 303a 3133 3a32 3120 474d 546e 1768 7474 7073 3a2f 2f77 7777 2e65 7861 6d70 6c65 2e63 6f6d"));
+        // :status 302 is evicted by :status 307
+        assertEquals(List.of(":status: 307", "cache-control: private", "date: " + DATE_1, "location: " + LOCATION),
+                decode(decoder, "4803 3330 37c1 c0bf"));
+        assertEquals(List.of(":status: 200", "cache-control: private", "date: " + DATE_2, "location: " + LOCATION,
+                        "content-encoding: gzip", "set-cookie: foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1"),
+                decode(decoder, "88c1 611d 4d6f 6e2c 2032 3120 4f63 7420 3230 3133 2032 303a 3133 3a32 3220 474d 54c0"
+                        + "5a04 677a 6970 7738 666f 6f3d 4153 444a 4b48 514b 425a 584f 5157 454f 5049 5541 5851 5745"
+                        + "4f49 553b 206d 6178 2d61 6765 3d33 3630 303b 2076 6572 7369 6f6e 3d31"));
+        // only the three entries of the last block are left
+        assertEquals(List.of("date: " + DATE_2), decode(decoder, "c0"));
+        assertEquals(Http2Exception.COMPRESSION_ERROR, assertThrows(Http2Exception.class, () -> decode(decoder, "c1")).errorCode());
+    }
+
+    @Test
+    void keepsTheTableInSyncWhenHeadersAreDropped() throws Http2Exception {
+        var decoder = new Hpack.Decoder(100);
+        byte[] block = HexFormat.of().parseHex("828684410f7777772e6578616d706c652e636f6d");
+        var headers = new ArrayList<String>();
+
+        assertFalse(decoder.decode(block, block.length, (name, value) -> headers.add(name)));
+        assertEquals(List.of(":method", ":scheme"), headers);
+        assertEquals(List.of(":authority: www.example.com"), decode(decoder, "be"));
+    }
+
+    @Test
+    void rejectsMalformedBlocks() {
+        for (String hex : new String[]{
+                "80", // index 0
+                "be", // empty dynamic table
+                "3fe2 1f", // table size above 4096
+                "ffff ffff ffff", // integer too long
+                "ff", // integer cut off
+                "0005 61", // string longer than the block
+                "00", // name missing
+                "0081 00", // Huffman padding not all ones
+                "0082 ffff", // Huffman padding longer than 7 bits
+                "0084 ffff ffff", // EOS
+        }) {
+            assertEquals(Http2Exception.COMPRESSION_ERROR, decodeFails(hex).errorCode(), hex);
+        }
+    }
+
+    @Test
+    void encodesHeadersTheDecoderReads() throws Http2Exception {
+        var random = new Random(42);
+        var encoder = new Hpack.Encoder();
+        var decoder = new Hpack.Decoder(Integer.MAX_VALUE);
+        for (int i = 0; i < 200; i++) {
+            var out = new ByteArrayOutputStream();
+            int status = 100 + random.nextInt(500);
+            String custom = randomString(random);
+            encoder.status(out, status);
+            encoder.header(out, "content-type", "text/html; charset=utf-8");
+            encoder.header(out, "x-custom", custom);
+            encoder.header(out, "location", "");
+
+            byte[] block = out.toByteArray();
+            var headers = new ArrayList<String>();
+            assertTrue(decoder.decode(block, block.length, (name, value) -> headers.add(name + ": " + value)));
+            assertEquals(List.of(":status: " + status, "content-type: text/html; charset=utf-8",
+                    "x-custom: " + custom, "location: "), headers);
+        }
+    }
+
+    @Test
+    void indexesCommonStatusCodes() {
+        var out = new ByteArrayOutputStream();
+        new Hpack.Encoder().status(out, 200);
+        new Hpack.Encoder().status(out, 500);
+
+        assertArrayEquals(new byte[]{(byte) 0x88, (byte) 0x8e}, out.toByteArray());
+    }
+
+    @Test
+    void huffmanCodesEveryOctet() throws Http2Exception {
+        var chars = new StringBuilder();
+        for (char c = 0; c <= 0xff; c++) {
+            chars.append(c);
+        }
+        String s = chars.toString();
+        var out = new ByteArrayOutputStream();
+        Hpack.huffmanEncode(out, s);
+        byte[] coded = out.toByteArray();
+
+        assertEquals(s, Hpack.huffmanDecode(coded, 0, coded.length));
+        assertEquals("www.example.com", Hpack.huffmanDecode(HexFormat.of().parseHex("f1e3c2e5f23a6ba0ab90f4ff"), 0, 12));
+    }
+
+    private static String randomString(Random random) {
+        var s = new StringBuilder();
+        int length = random.nextInt(300);
+        for (int i = 0; i < length; i++) {
+            s.append((char) (random.nextBoolean() ? 0x20 + random.nextInt(0x5f) : random.nextInt(0x100)));
+        }
+        return s.toString();
+    }
+}
@@ -0,0 +1,181 @@
+package com.amberj.net.transport;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class Http1ParserTest {
+    private static final Pattern STATUS = Pattern.compile("HTTP/1\\.[01] (\\d{3}) ");
+
+    private NioTestServer server;
+
+    @BeforeEach
+    void start() throws IOException {
+        server = new NioTestServer(Http1ParserTest::echo);
+    }
+
+    @AfterEach
+    void stop() {
+        server.close();
+    }
+
+    /**
+     * Answers with the request line as parsed, the <code>X-Test</code> header and the body.
+     */
+    private static void echo(HttpExchange exchange) throws IOException {
+        byte[] body = exchange.getRequestBody().readAllBytes();
+        String echo = exchange.getRequestMethod() + " " + exchange.getRequestURI() + " " + exchange.getProtocol()
+                + "|" + exchange.getRequestHeaders().getFirst("X-Test")
+                + "|" + new String(body, StandardCharsets.ISO_8859_1);
+        byte[] bytes = echo.getBytes(StandardCharsets.ISO_8859_1);
+        exchange.sendResponseHeaders(200, bytes.length);
+        exchange.getResponseBody().write(bytes);
+        exchange.close();
+    }
+
+    private static List<Integer> statuses(String response) {
+        var statuses = new ArrayList<Integer>();
+        Matcher matcher = STATUS.matcher(response);
+        while (matcher.find()) {
+            statuses.add(Integer.parseInt(matcher.group(1)));
+        }
+        return statuses;
+    }
+
+    @Test
+    void parsesRequestLineAndHeaders() throws IOException {
+        String response = server.send("GET /items/1?sort=asc HTTP/1.1\r\nHost: x\r\nX-Test: \t padded value \t\r\n\r\n");
+
+        assertEquals(List.of(200), statuses(response));
+        assertTrue(response.endsWith("GET /items/1?sort=asc HTTP/1.1|padded value|"), response);
+    }
+
+    @Test
+    void acceptsBareLineFeedsAndLeadingEmptyLines() throws IOException {
+        String response = server.send("\r\n\r\nGET / HTTP/1.0\nX-Test: a\n\n");
+
+        assertEquals(List.of(200), statuses(response));
+        assertTrue(response.endsWith("GET / HTTP/1.0|a|"), response);
+    }
+
+    @Test
+    void servesPipelinedRequestsInOrder() throws IOException {
+        String response = server.send("POST /a HTTP/1.1\r\nHost: x\r\nContent-Length: 3\r\n\r\nabc"
+                + "GET /b HTTP/1.1\r\nHost: x\r\n\r\n"
+                + "POST /c HTTP/1.1\r\nHost: x\r\nContent-Length: 2\r\n\r\nde");
+
+        assertEquals(List.of(200, 200, 200), statuses(response));
+        int a = response.indexOf("POST /a HTTP/1.1|null|abc");
+        int b = response.indexOf("GET /b HTTP/1.1|null|");
+        int c = response.indexOf("POST /c HTTP/1.1|null|de");
+        assertTrue(a != -1 && a < b && b < c, response);
+    }
+
+    @Test
+    void acceptsRepeatedEqualContentLengths() throws IOException {
+        String response = server.send("POST / HTTP/1.1\r\nContent-Length: 3\r\nContent-Length: 3, 3\r\n\r\nabc");
+
+        assertEquals(List.of(200), statuses(response));
+        assertTrue(response.endsWith("|abc"), response);
+    }
+
+    @Test
+    void rejectsConflictingContentLengths() throws IOException {
+        assertEquals(List.of(400), statuses(server.send("POST / HTTP/1.1\r\nContent-Length: 3\r\nContent-Length: 4\r\n\r\nabcd")));
+        assertEquals(List.of(400), statuses(server.send("POST / HTTP/1.1\r\nContent-Length: 3, 4\r\n\r\nabcd")));
+    }
+
+    @Test
+    void rejectsMalformedContentLengths() throws IOException {
+        for (String length : List.of("+3", "-3", "3a", "", "0x3", "99999999999999999999")) {
+            String response = server.send("POST / HTTP/1.1\r\nContent-Length: " + length + "\r\n\r\nabc");
+            assertEquals(List.of(400), statuses(response), length);
+        }
+    }
+
+    @Test
+    void readsChunkedBodyAndClosesWhenContentLengthIsAlsoSent() throws IOException {
+        String response = server.send("POST / HTTP/1.1\r\nContent-Length: 100\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "3\r\nabc\r\n0\r\n\r\n"
+                + "GET /next HTTP/1.1\r\n\r\n");
+
+        assertEquals(List.of(200), statuses(response), "the request after the ambiguous one must not be served");
+        assertTrue(response.contains("Connection: close\r\n"), response);
+        assertTrue(response.endsWith("|abc"), response);
+    }
+
+    @Test
+    void rejectsUnsupportedTransferEncoding() throws IOException {
+        assertEquals(List.of(501), statuses(server.send("POST / HTTP/1.1\r\nTransfer-Encoding: gzip\r\n\r\n")));
+    }
+
+    @Test
+    void rejectsMalformedRequestLines() throws IOException {
+        assertEquals(List.of(400), statuses(server.send("GET\r\n\r\n")));
+        assertEquals(List.of(400), statuses(server.send("GET  HTTP/1.1\r\n\r\n")));
+        assertEquals(List.of(400), statuses(server.send("GET / HTTP/1.1\r\nNo colon\r\n\r\n")));
+        assertEquals(List.of(400), statuses(server.send("GET / HTTP/1.1\r\n: empty name\r\n\r\n")));
+        assertEquals(List.of(505), statuses(server.send("GET / HTTP/2.0\r\n\r\n")));
+    }
+
+    @Test
+    void rejectsHeaderNamesThatAreNotTokens() throws IOException {
+        // with the whitespace kept in the name the chunked body would be read as a second request
+        String response = server.send("POST /a HTTP/1.1\r\nTransfer-Encoding : chunked\r\n\r\n5\r\nhello\r\n0\r\n\r\n");
+        assertEquals(List.of(400), statuses(response));
+
+        assertEquals(List.of(400), statuses(server.send("GET / HTTP/1.1\r\nX-Test\t: a\r\n\r\n")));
+        assertEquals(List.of(400), statuses(server.send("GET / HTTP/1.1\r\nX Test: a\r\n\r\n")));
+        assertEquals(List.of(400), statuses(server.send("GET / HTTP/1.1\r\nX(Test): a\r\n\r\n")));
+        assertEquals(List.of(400), statuses(server.send("GET / HTTP/1.1\r\nX-T\u00e9st: a\r\n\r\n")));
+    }
+
+    @Test
+    void rejectsObsoleteLineFolding() throws IOException {
+        assertEquals(List.of(400), statuses(server.send("GET / HTTP/1.1\r\nX-Test: a\r\n folded: y\r\n\r\n")));
+        assertEquals(List.of(400), statuses(server.send("GET / HTTP/1.1\r\nX-Test: a\r\n\tb\r\n\r\n")));
+    }
+
+    @Test
+    void rejectsControlCharactersInHeaderValues() throws IOException {
+        assertEquals(List.of(400), statuses(server.send("GET / HTTP/1.1\r\nX-Test: a\rb\r\n\r\n")));
+        assertEquals(List.of(400), statuses(server.send("GET / HTTP/1.1\r\nX-Test: a\u0000b\r\n\r\n")));
+        String response = server.send("GET / HTTP/1.1\r\nX-Test: a\tb\r\n\r\n");
+        assertTrue(response.endsWith("|a\tb|"), response);
+    }
+
+    @Test
+    void rejectsHeadsLargerThanTheBuffer() throws IOException {
+        String response = server.send("GET / HTTP/1.1\r\nX-Test: " + "a".repeat(20_000) + "\r\n\r\n");
+
+        assertEquals(List.of(431), statuses(response));
+    }
+
+    @Test
+    void closesAfterHttp10UnlessKeepAliveIsAsked() throws IOException {
+        String response = server.send("GET /a HTTP/1.0\r\n\r\nGET /b HTTP/1.0\r\n\r\n");
+        assertEquals(List.of(200), statuses(response));
+        assertTrue(response.contains("Connection: close\r\n"), response);
+
+        response = server.send("GET /a HTTP/1.0\r\nConnection: keep-alive\r\n\r\nGET /b HTTP/1.0\r\n\r\n");
+        assertEquals(List.of(200, 200), statuses(response));
+        assertTrue(response.contains("Connection: keep-alive\r\n"), response);
+    }
+
+    @Test
+    void closesWhenTheClientAsksTo() throws IOException {
+        String response = server.send("GET /a HTTP/1.1\r\nConnection: close\r\n\r\nGET /b HTTP/1.1\r\n\r\n");
+
+        assertEquals(List.of(200), statuses(response));
+    }
+}
@@ -0,0 +1,339 @@
+package com.amberj.net.transport;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Frames sent to an h2c server with prior knowledge.
+ */
+class Http2ConnectionTest {
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int END_STREAM = 0x1;
+    private static final int ACK = 0x1;
+    private static final int END_HEADERS = 0x4;
+
+    private NioTestServer server;
+
+    @BeforeEach
+    void start() throws IOException {
+        server = new NioTestServer(Transport.nio().http2(true), Http2ConnectionTest::handle);
+    }
+
+    @AfterEach
+    void stop() {
+        server.close();
+    }
+
+    private static void handle(HttpExchange exchange) throws IOException {
+        byte[] body = (exchange.getProtocol() + " " + exchange.getRequestURI()).getBytes(StandardCharsets.ISO_8859_1);
+        exchange.sendResponseHeaders(200, body.length);
+        exchange.getResponseBody().write(body);
+        exchange.close();
+    }
+
+    private record Frame(int type, int flags, int stream, byte[] payload) {}
+
+    /**
+     * A connection that has sent the preface and empty settings.
+     */
+    private final class Client implements AutoCloseable {
+        private final Socket socket = server.connect();
+        private final OutputStream out = socket.getOutputStream();
+        private final DataInputStream in = new DataInputStream(socket.getInputStream());
+
+        Client() throws IOException {
+            out.write(PREFACE);
+            send(SETTINGS, 0, 0, new byte[0]);
+        }
+
+        void send(int type, int flags, int stream, byte[] payload) throws IOException {
+            send(type, flags, stream, payload, payload.length);
+        }
+
+        void send(int type, int flags, int stream, byte[] payload, int length) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(9);
+            header.put((byte) (length >>> 16)).put((byte) (length >>> 8)).put((byte) length);
+            header.put((byte) type).put((byte) flags).putInt(stream);
+            out.write(header.array());
+            out.write(payload);
+            out.flush();
+        }
+
+        Frame read() throws IOException {
+            byte[] header = new byte[9];
+            in.readFully(header);
+            int length = (header[0] & 0xff) << 16 | (header[1] & 0xff) << 8 | header[2] & 0xff;
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            return new Frame(header[3], header[4], ByteBuffer.wrap(header, 5, 4).getInt() & 0x7fffffff, payload);
+        }
+
+        /**
+         * @return the error code of the <code>GOAWAY</code> the server ends the connection with
+         */
+        int goAway() throws IOException {
+            while (true) {
+                Frame frame = read();
+                if (frame.type() == GOAWAY) {
+                    return ByteBuffer.wrap(frame.payload()).getInt(4);
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    private static byte[] request(String path) {
+        var block = new ByteArrayOutputStream();
+        var encoder = new Hpack.Encoder();
+        encoder.header(block, ":method", "GET");
+        encoder.header(block, ":scheme", "http");
+        encoder.header(block, ":path", path);
+        encoder.header(block, ":authority", "localhost");
+        return block.toByteArray();
+    }
+
+    private static byte[] request(String path, String name, String value) {
+        var block = new ByteArrayOutputStream();
+        block.writeBytes(request(path));
+        new Hpack.Encoder().header(block, name, value);
+        return block.toByteArray();
+    }
+
+    private static byte[] int32s(int... values) {
+        ByteBuffer b = ByteBuffer.allocate(values.length * 4);
+        for (int value : values) {
+            b.putInt(value);
+        }
+        return b.array();
+    }
+
+    private int goAwayAfter(int type, int flags, int stream, byte[] payload) throws IOException {
+        try (var client = new Client()) {
+            client.send(type, flags, stream, payload);
+            return client.goAway();
+        }
+    }
+
+    @Test
+    void answersRequestsOnTheirStreams() throws IOException {
+        try (var client = new Client()) {
+            client.send(HEADERS, END_STREAM | END_HEADERS, 1, request("/a"));
+            client.send(HEADERS, END_STREAM | END_HEADERS, 3, request("/b"));
+
+            var decoder = new Hpack.Decoder(Integer.MAX_VALUE);
+            var bodies = new String[4];
+            int ended = 0;
+            while (ended < 2) {
+                Frame frame = client.read();
+                if (frame.type() == HEADERS) {
+                    var headers = new ArrayList<String>();
+                    decoder.decode(frame.payload(), frame.payload().length, (name, value) -> headers.add(name + ": " + value));
+                    assertEquals(":status: 200", headers.get(0));
+                    assertTrue(headers.contains("content-length: 11"), headers.toString());
+                } else if (frame.type() == DATA) {
+                    String data = new String(frame.payload(), StandardCharsets.ISO_8859_1);
+                    bodies[frame.stream()] = bodies[frame.stream()] == null ? data : bodies[frame.stream()] + data;
+                }
+                if ((frame.type() == DATA || frame.type() == HEADERS) && (frame.flags() & END_STREAM) != 0) {
+                    ended++;
+                }
+            }
+            assertEquals("HTTP/2.0 /a", bodies[1]);
+            assertEquals("HTTP/2.0 /b", bodies[3]);
+        }
+    }
+
+    @Test
+    void acknowledgesSettingsAndPings() throws IOException {
+        try (var client = new Client()) {
+            byte[] opaque = {1, 2, 3, 4, 5, 6, 7, 8};
+            client.send(PING, 0, 0, opaque);
+
+            var received = new ArrayList<Frame>();
+            while (received.stream().noneMatch(frame -> frame.type() == PING)) {
+                received.add(client.read());
+            }
+            assertEquals(SETTINGS, received.get(0).type(), "the server's own settings come first");
+            assertTrue(received.stream().anyMatch(frame -> frame.type() == SETTINGS && frame.flags() == ACK));
+            Frame pong = received.get(received.size() - 1);
+            assertEquals(ACK, pong.flags());
+            assertArrayEquals(opaque, pong.payload());
+        }
+    }
+
+    @Test
+    void rejectsAnInvalidPreface() throws IOException {
+        try (var socket = server.connect()) {
+            socket.getOutputStream().write("PRI * HTTP/2.0\r\n\r\nXX\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            assertFalse(new String(socket.getInputStream().readAllBytes(), StandardCharsets.ISO_8859_1)
+                    .startsWith("HTTP/1.1 200"));
+        }
+    }
+
+    @Test
+    void requiresSettingsFirst() throws IOException {
+        try (var socket = server.connect()) {
+            socket.getOutputStream().write(PREFACE);
+            socket.getOutputStream().write(new byte[]{0, 0, 8, PING, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0});
+            var in = new DataInputStream(socket.getInputStream());
+            int errorCode = -1;
+            try {
+                while (true) {
+                    byte[] header = new byte[9];
+                    in.readFully(header);
+                    byte[] payload = new byte[(header[0] & 0xff) << 16 | (header[1] & 0xff) << 8 | header[2] & 0xff];
+                    in.readFully(payload);
+                    if (header[3] == GOAWAY) {
+                        errorCode = ByteBuffer.wrap(payload).getInt(4);
+                    }
+                }
+            } catch (EOFException e) {
+                // closed after the GOAWAY
+            }
+            assertEquals(Http2Exception.PROTOCOL_ERROR, errorCode);
+        }
+    }
+
+    @Test
+    void rejectsFramesLargerThanTheMaximumSize() throws IOException {
+        try (var client = new Client()) {
+            client.send(DATA, 0, 1, new byte[0], 16385);
+            assertEquals(Http2Exception.FRAME_SIZE_ERROR, client.goAway());
+        }
+    }
+
+    @Test
+    void rejectsFramesOnTheWrongStream() throws IOException {
+        assertEquals(Http2Exception.PROTOCOL_ERROR, goAwayAfter(DATA, 0, 0, new byte[1]));
+        assertEquals(Http2Exception.PROTOCOL_ERROR, goAwayAfter(HEADERS, END_STREAM | END_HEADERS, 0, request("/")));
+        assertEquals(Http2Exception.PROTOCOL_ERROR, goAwayAfter(HEADERS, END_STREAM | END_HEADERS, 2, request("/")));
+        assertEquals(Http2Exception.PROTOCOL_ERROR, goAwayAfter(DATA, 0, 5, new byte[1]));
+        assertEquals(Http2Exception.PROTOCOL_ERROR, goAwayAfter(SETTINGS, 0, 1, new byte[0]));
+        assertEquals(Http2Exception.PROTOCOL_ERROR, goAwayAfter(PING, 0, 1, new byte[8]));
+    }
+
+    @Test
+    void rejectsFramesOfTheWrongSize() throws IOException {
+        assertEquals(Http2Exception.FRAME_SIZE_ERROR, goAwayAfter(PING, 0, 0, new byte[7]));
+        assertEquals(Http2Exception.FRAME_SIZE_ERROR, goAwayAfter(SETTINGS, 0, 0, new byte[5]));
+        assertEquals(Http2Exception.FRAME_SIZE_ERROR, goAwayAfter(SETTINGS, ACK, 0, new byte[6]));
+        assertEquals(Http2Exception.FRAME_SIZE_ERROR, goAwayAfter(WINDOW_UPDATE, 0, 0, new byte[3]));
+    }
+
+    @Test
+    void rejectsInvalidSettings() throws IOException {
+        assertEquals(Http2Exception.PROTOCOL_ERROR, goAwayAfter(SETTINGS, 0, 0, new byte[]{0, 2, 0, 0, 0, 2}));
+        assertEquals(Http2Exception.FLOW_CONTROL_ERROR, goAwayAfter(SETTINGS, 0, 0, new byte[]{0, 4, (byte) 0x80, 0, 0, 0}));
+        assertEquals(Http2Exception.PROTOCOL_ERROR, goAwayAfter(SETTINGS, 0, 0, new byte[]{0, 5, 0, 0, 0x10, 0}));
+    }
+
+    @Test
+    void rejectsFlowControlViolations() throws IOException {
+        assertEquals(Http2Exception.PROTOCOL_ERROR, goAwayAfter(WINDOW_UPDATE, 0, 0, int32s(0)));
+        assertEquals(Http2Exception.FLOW_CONTROL_ERROR, goAwayAfter(WINDOW_UPDATE, 0, 0, int32s(0x7fffffff)));
+    }
+
+    @Test
+    void rejectsPushPromises() throws IOException {
+        assertEquals(Http2Exception.PROTOCOL_ERROR, goAwayAfter(PUSH_PROMISE, END_HEADERS, 1, int32s(2)));
+    }
+
+    @Test
+    void requiresContinuationAfterAnIncompleteHeaderBlock() throws IOException {
+        try (var client = new Client()) {
+            client.send(HEADERS, END_STREAM, 1, request("/"));
+            client.send(PING, 0, 0, new byte[8]);
+            assertEquals(Http2Exception.PROTOCOL_ERROR, client.goAway());
+        }
+    }
+
+    @Test
+    void rejectsMalformedHeaderBlocks() throws IOException {
+        byte[] block = Arrays.copyOf(request("/"), request("/").length + 1);
+        block[block.length - 1] = (byte) 0xbe;
+        assertEquals(Http2Exception.COMPRESSION_ERROR, goAwayAfter(HEADERS, END_STREAM | END_HEADERS, 1, block));
+    }
+
+    @Test
+    void resetsStreamsWithMalformedFields() throws IOException {
+        String[][] fields = {
+                {"X-Upper", "a"},
+                {"x-test", "a\rb"},
+                {"x-test", "a\nb"},
+                {"x-test", "a\u0000b"},
+                {"x-test", " a"},
+                {"x-test", "a\t"},
+                {"x:test", "a"},
+                {"x test", "a"},
+                {"", "a"},
+                {":unknown", "a"},
+                {"connection", "keep-alive"},
+        };
+        try (var client = new Client()) {
+            int stream = 1;
+            for (String[] field : fields) {
+                client.send(HEADERS, END_STREAM | END_HEADERS, stream, request("/", field[0], field[1]));
+                Frame frame;
+                do {
+                    frame = client.read();
+                } while (frame.type() != RST_STREAM);
+                assertEquals(stream, frame.stream(), field[0]);
+                assertEquals(Http2Exception.PROTOCOL_ERROR, ByteBuffer.wrap(frame.payload()).getInt(), field[0]);
+                stream += 2;
+            }
+            // the connection stays usable
+            client.send(HEADERS, END_STREAM | END_HEADERS, stream, request("/ok", "x-test", "a b"));
+            Frame frame;
+            do {
+                frame = client.read();
+            } while (frame.type() != DATA);
+            assertEquals(stream, frame.stream());
+            assertEquals("HTTP/2.0 /ok", new String(frame.payload(), StandardCharsets.ISO_8859_1));
+        }
+    }
+
+    @Test
+    void keepsServingAfterAResponse() throws IOException {
+        try (var client = new Client()) {
+            for (int stream = 1; stream <= 9; stream += 2) {
+                client.send(HEADERS, END_STREAM | END_HEADERS, stream, request("/" + stream));
+                List<Integer> types = new ArrayList<>();
+                Frame frame;
+                do {
+                    frame = client.read();
+                    types.add(frame.type());
+                } while (!(frame.type() == DATA && (frame.flags() & END_STREAM) != 0));
+                assertEquals(stream, frame.stream());
+                assertTrue(types.contains(HEADERS), types.toString());
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.amberj.net.transport;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class NioExchangeTest {
+    private static final byte[] BODY = "hello".getBytes(StandardCharsets.ISO_8859_1);
+
+    private NioTestServer server;
+
+    @BeforeEach
+    void start() throws IOException {
+        server = new NioTestServer(NioExchangeTest::handle);
+    }
+
+    @AfterEach
+    void stop() {
+        server.close();
+    }
+
+    private static void handle(HttpExchange exchange) throws IOException {
+        switch (exchange.getRequestURI().getPath()) {
+            // as with the jdk transport, a HEAD response has no body to write
+            case "/fixed" -> {
+                exchange.sendResponseHeaders(200, BODY.length);
+                if (!exchange.getRequestMethod().equals("HEAD")) {
+                    exchange.getResponseBody().write(BODY);
+                }
+            }
+            case "/chunked" -> {
+                exchange.sendResponseHeaders(200, 0);
+                if (!exchange.getRequestMethod().equals("HEAD")) {
+                    exchange.getResponseBody().write(BODY);
+                }
+            }
+            case "/header" -> {
+                exchange.getResponseHeaders().set("X-Value", exchange.getRequestURI().getQuery());
+                exchange.sendResponseHeaders(200, BODY.length);
+                exchange.getResponseBody().write(BODY);
+            }
+            default -> {
+                exchange.getResponseHeaders().set("X Bad", "name");
+                exchange.sendResponseHeaders(200, -1);
+            }
+        }
+        exchange.close();
+    }
+
+    private static String head(String response) {
+        return response.substring(0, response.indexOf("\r\n\r\n") + 4);
+    }
+
+    /**
+     * Header lines of the response with lower case names, <code>Headers</code> changes their case.
+     */
+    private static String headers(String response) {
+        var lines = new StringBuilder();
+        for (String line : head(response).split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon != -1) {
+                lines.append(line.substring(0, colon).toLowerCase()).append(line.substring(colon)).append("\n");
+            }
+        }
+        return lines.toString();
+    }
+
+    @Test
+    void sendsTheContentLengthOfGetForHead() throws IOException {
+        String response = server.send("HEAD /fixed HTTP/1.1\r\nConnection: close\r\n\r\n");
+
+        assertTrue(response.startsWith("HTTP/1.1 200 "), response);
+        assertTrue(headers(response).contains("content-length: 5\n"), response);
+        assertEquals(head(response), response, "no body for HEAD");
+    }
+
+    @Test
+    void leavesTheContentLengthOutForHeadOfAChunkedResponse() throws IOException {
+        String response = server.send("HEAD /chunked HTTP/1.1\r\nConnection: close\r\n\r\n");
+
+        assertTrue(response.startsWith("HTTP/1.1 200 "), response);
+        assertFalse(headers(response).contains("content-length"), response);
+        assertEquals(head(response), response, "no body for HEAD");
+    }
+
+    @Test
+    void keepsTheConnectionAfterHead() throws IOException {
+        String response = server.send("HEAD /fixed HTTP/1.1\r\n\r\nGET /fixed HTTP/1.1\r\nConnection: close\r\n\r\n");
+
+        assertTrue(response.endsWith("\r\n\r\nhello"), response);
+        assertEquals(2, response.split("HTTP/1.1 200 ").length - 1, response);
+    }
+
+    @Test
+    void endsABodyOfUnknownLengthByClosingForHttp10() throws IOException {
+        String response = server.send("GET /chunked HTTP/1.0\r\nConnection: keep-alive\r\n\r\nGET /fixed HTTP/1.0\r\n\r\n");
+
+        assertTrue(response.startsWith("HTTP/1.0 200 "), response);
+        assertFalse(headers(response).contains("transfer-encoding"), response);
+        assertFalse(headers(response).contains("content-length"), response);
+        assertTrue(headers(response).contains("connection: close\n"), response);
+        assertEquals(head(response) + "hello", response, "the next request is not served");
+    }
+
+    @Test
+    void answersWithAnErrorInsteadOfAnInvalidHeader() throws IOException {
+        String response = server.send("GET /bad HTTP/1.1\r\nConnection: close\r\n\r\n");
+
+        assertTrue(response.startsWith("HTTP/1.1 500 "), response);
+        assertFalse(response.contains("X Bad"), response);
+    }
+
+    @Test
+    void refusesLineBreaksInHeaderValues() throws IOException {
+        // an obs-fold passes the checks of Headers itself
+        String response = server.send("GET /header?a%0D%0A%20Injected:%20yes HTTP/1.1\r\nConnection: close\r\n\r\n");
+
+        assertTrue(response.startsWith("HTTP/1.1 500 "), response);
+        assertFalse(response.contains("Injected"), response);
+    }
+
+    @Test
+    void allowsTabsInHeaderValues() throws IOException {
+        String response = server.send("GET /header?a%09b HTTP/1.1\r\nConnection: close\r\n\r\n");
+
+        assertTrue(response.startsWith("HTTP/1.1 200 "), response);
+        assertTrue(headers(response).contains("x-value: a\tb\n"), response);
+    }
+}
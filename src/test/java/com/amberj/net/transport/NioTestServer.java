@@ -0,0 +1,64 @@
+package com.amberj.net.transport;
+
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A nio transport on a free local port for tests that talk raw HTTP to it.
+ */
+final class NioTestServer implements AutoCloseable {
+    private final NioTransport transport;
+    private final ExecutorService executor;
+    private final int port;
+
+    NioTestServer(HttpHandler handler) throws IOException {
+        this(Transport.nio(), handler);
+    }
+
+    NioTestServer(NioTransport transport, HttpHandler handler) throws IOException {
+        try (var probe = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            port = probe.getLocalPort();
+        }
+        this.transport = transport;
+        this.executor = Executors.newVirtualThreadPerTaskExecutor();
+        transport.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 50, handler, executor);
+    }
+
+    /**
+     * Sends the bytes on a new connection, half-closes it and reads until the server closes it.
+     *
+     * @return everything the server sent, as ISO-8859-1
+     */
+    String send(String request) throws IOException {
+        return send(request.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    String send(byte[] request) throws IOException {
+        try (var socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write(request);
+            socket.shutdownOutput();
+            return new String(socket.getInputStream().readAllBytes(), StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    Socket connect() throws IOException {
+        var socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+    @Override
+    public void close() {
+        transport.stop(0);
+        executor.close();
+    }
+}